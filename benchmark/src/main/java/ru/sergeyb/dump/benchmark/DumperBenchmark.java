@@ -0,0 +1,164 @@
+package ru.sergeyb.dump.benchmark;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ru.sergeyb.dump.Dumper;
+import ru.sergeyb.dump.HotSpotVMDumper;
+import ru.sergeyb.dump.JMXDumper;
+import ru.sergeyb.dump.SimpleDumper;
+
+/**
+ * Замеряет время создания одного дампа каждым из дамперов при разном
+ * количестве потоков. Вывод не сохраняется, считается только его размер.
+ * Размер выводится вспомогательными счетчиками {@link OutputSize}:
+ * <code>outputChars</code> - символы всех дампов замера, <code>dumps</code> -
+ * количество дампов, их отношение - размер одного дампа.
+ * <p>
+ * Запуск с замером выделения памяти:
+ * <pre>
+ * java -jar target/benchmarks.jar -prof gc
+ * </pre>
+ * Если подключиться к JVM не удалось, {@link HotSpotVMDumper} молча
+ * переходит на JMX, поэтому такой замер HOTSPOT завершается ошибкой
+ * при подготовке.
+ *
+ * @author sergeyb
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class DumperBenchmark {
+    private static final int DEPTH = 200;
+    private static final String HOTSPOT_MARKER = "Full thread dump";
+
+    @Param({"100", "1000", "10000"})
+    public int threads;
+
+    @Param({"SIMPLE", "JMX", "HOTSPOT"})
+    public String dumpType;
+
+    private SyntheticThreads synthetic;
+    private Dumper dumper;
+    private CountingWriter counter;
+    private PrintWriter out;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        synthetic = SyntheticThreads.start(threads, DEPTH);
+        switch (dumpType) {
+            case "SIMPLE":
+                dumper = new SimpleDumper();
+                break;
+            case "JMX":
+                dumper = new JMXDumper();
+                break;
+            case "HOTSPOT":
+                dumper = new HotSpotVMDumper();
+                break;
+            default:
+                throw new IllegalArgumentException(dumpType);
+        }
+        counter = new CountingWriter();
+        out = new PrintWriter(counter);
+        if (dumpType.equals("HOTSPOT")) {
+            StringWriter text = new StringWriter();
+            try (PrintWriter textOut = new PrintWriter(text)) {
+                dumper.threadDump(textOut, new Date());
+            }
+            if (!text.toString().contains(HOTSPOT_MARKER)) {
+                dumper.destroy();
+                synthetic.close();
+                throw new IllegalStateException("HOTSPOT dumper fell back to JMX, attach to this JVM is not available");
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        dumper.destroy();
+        synthetic.close();
+    }
+
+    @Benchmark
+    public long threadDump(OutputSize size) throws IOException {
+        counter.reset();
+        dumper.threadDump(out, new Date());
+        out.flush();
+        long count = counter.getCount();
+        size.outputChars += count;
+        size.dumps++;
+        return count;
+    }
+
+    /**
+     * Вспомогательные счетчики размера вывода. Счетчики событий JMH
+     * суммируются по итерациям, поэтому сбрасываются перед каждой итерацией,
+     * а размер одного дампа получается делением <code>outputChars</code>
+     * на <code>dumps</code>.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class OutputSize {
+        public long outputChars;
+        public long dumps;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            outputChars = 0;
+            dumps = 0;
+        }
+    }
+
+    /**
+     * Считает записанные символы.
+     */
+    private static class CountingWriter extends Writer {
+        private long count;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            count += len;
+        }
+
+        void reset() {
+            count = 0;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public void flush() {
+            // nothing to flush
+        }
+
+        @Override
+        public void close() {
+            // nothing to close
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package ru.sergeyb.dump.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Набор потоков, которые попадают в дамп. Потоки поровну делятся на три вида:
+ * <ul>
+ * <li>заблокированные на мониторе, который захвачен отдельным потоком;</li>
+ * <li>припаркованные на {@link ReentrantLock}, который захвачен тем же потоком;</li>
+ * <li>ожидающие в глубокой рекурсии.</li>
+ * </ul>
+ *
+ * @author sergeyb
+ */
+class SyntheticThreads implements AutoCloseable {
+    private static final long STACK_SIZE = 512 * 1024;
+    private static final long START_TIMEOUT_MS = 60000;
+    private final Object monitor;
+    private final ReentrantLock lock;
+    private final CountDownLatch locked;
+    private final CountDownLatch stop;
+    private final List<Thread> threads;
+    private final int depth;
+
+    private SyntheticThreads(int depth) {
+        this.monitor = new Object();
+        this.lock = new ReentrantLock();
+        this.locked = new CountDownLatch(1);
+        this.stop = new CountDownLatch(1);
+        this.threads = new ArrayList<>();
+        this.depth = depth;
+    }
+
+    /**
+     * Запускает потоки и дожидается, пока все они не перейдут в состояние ожидания.
+     *
+     * @param count количество потоков без учета потока, который держит блокировки
+     * @param depth глубина рекурсии для потоков третьего вида
+     */
+    static SyntheticThreads start(int count, int depth) throws InterruptedException {
+        SyntheticThreads result = new SyntheticThreads(depth);
+        try {
+            result.startHolder();
+            for (int i = 0; i < count; i++) {
+                result.startWaiter(i);
+            }
+            result.awaitWaiting();
+        } catch (InterruptedException | RuntimeException e) {
+            result.close();
+            throw e;
+        }
+        return result;
+    }
+
+    private void startHolder() throws InterruptedException {
+        start("synthetic-holder", new Runnable() {
+            @Override
+            public void run() {
+                synchronized (monitor) {
+                    lock.lock();
+                    try {
+                        locked.countDown();
+                        awaitStop();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+        });
+        locked.await();
+    }
+
+    private void startWaiter(int i) {
+        switch (i % 3) {
+            case 0:
+                start("synthetic-blocked-" + i, new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (monitor) {
+                            // only wait for the holder to release the monitor
+                        }
+                    }
+                });
+                break;
+            case 1:
+                start("synthetic-parked-" + i, new Runnable() {
+                    @Override
+                    public void run() {
+                        lock.lock();
+                        lock.unlock();
+                    }
+                });
+                break;
+            default:
+                start("synthetic-deep-" + i, new Runnable() {
+                    @Override
+                    public void run() {
+                        recurse(depth);
+                    }
+                });
+                break;
+        }
+    }
+
+    private void start(String name, Runnable task) {
+        Thread thread = new Thread(null, task, name, STACK_SIZE);
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+    }
+
+    private void recurse(int remaining) {
+        if (remaining > 0) {
+            recurse(remaining - 1);
+        } else {
+            awaitStop();
+        }
+    }
+
+    private void awaitStop() {
+        try {
+            stop.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void awaitWaiting() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MS;
+        for (Thread thread: threads) {
+            while (true) {
+                Thread.State state = thread.getState();
+                if (state != Thread.State.NEW && state != Thread.State.RUNNABLE) {
+                    break;
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("Thread " + thread.getName() + " has not started waiting");
+                }
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    int size() {
+        return threads.size();
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        stop.countDown();
+        for (Thread thread: threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        threads.clear();
+    }
+}
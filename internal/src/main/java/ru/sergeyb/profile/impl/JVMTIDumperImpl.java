@@ -17,31 +17,155 @@ import sun.tools.attach.HotSpotVirtualMachine;
 public class JVMTIDumperImpl {
     private final String pid;
     private final String host;
+    private volatile HotSpotVirtualMachine vm;
+    private volatile InputStream current;
+    private volatile boolean destroyed;
+    private long lastAttachTimeNanos;
+    private long lastDumpTimeNanos;
+    private long reconnectCount;
 
     public JVMTIDumperImpl() {
         String vmName = ManagementFactory.getRuntimeMXBean().getName();
         int i = vmName.indexOf('@');
         this.pid = vmName.substring(0, i);
         this.host = vmName.substring(i + 1);
+        this.vm = null;
     }
 
-    public void dump(PrintWriter out, Date date) throws IOException {
+    /**
+     * @param pid идентификатор процесса другой JVM
+     */
+    public JVMTIDumperImpl(String pid) {
+        String vmName = ManagementFactory.getRuntimeMXBean().getName();
+        this.pid = pid;
+        this.host = String.format("%s pid %s", vmName.substring(vmName.indexOf('@') + 1), pid);
+        this.vm = null;
+    }
+
+    public synchronized void dump(PrintWriter out, Date date) throws IOException {
         out.printf("[%1$tY-%1$tm-%1$td %1$tT%1$tz] Thread dump at %2$s:%n%n", date, host);
+        lastAttachTimeNanos = 0;
+        lastDumpTimeNanos = 0;
+        HotSpotVirtualMachine theVm = session();
+        long start = System.nanoTime();
+        InputStream in;
         try {
-            HotSpotVirtualMachine vm = (HotSpotVirtualMachine) VirtualMachine.attach(pid);
-            try (
-                InputStream in = vm.remoteDataDump("-l");
-                Reader reader = new InputStreamReader(in, Charset.defaultCharset());
-            ) {
-                char buf[] = new char[10240];
-                for (int i = reader.read(buf); i >= 0; i = reader.read(buf)) {
-                    out.write(buf, 0, i);
-                }
-            } finally {
-                vm.detach();
+            in = theVm.remoteDataDump("-l");
+        } catch (IOException e) {
+            // подключение разорвано, подключаемся заново
+            close();
+            reconnectCount++;
+            theVm = session();
+            start = System.nanoTime();
+            in = theVm.remoteDataDump("-l");
+        }
+        current = in;
+        try (Reader reader = new InputStreamReader(in, Charset.defaultCharset())) {
+            char buf[] = new char[10240];
+            for (int i = reader.read(buf); i >= 0; i = reader.read(buf)) {
+                out.write(buf, 0, i);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        } finally {
+            current = null;
+        }
+        lastDumpTimeNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Открывает подключение к JVM заранее, не получая дамп.
+     */
+    public synchronized void connect() throws IOException {
+        lastAttachTimeNanos = 0;
+        session();
+    }
+
+    private HotSpotVirtualMachine session() throws IOException {
+        if (vm == null) {
+            long start = System.nanoTime();
+            HotSpotVirtualMachine theVm;
+            try {
+                theVm = (HotSpotVirtualMachine) VirtualMachine.attach(pid);
+            } catch (AttachNotSupportedException e) {
+                throw new IOException(e);
+            }
+            lastAttachTimeNanos += System.nanoTime() - start;
+            if (destroyed) {
+                // дампер закрыт, пока выполнялось подключение
+                theVm.detach();
+                throw new IOException("Thread dumper is destroyed");
+            }
+            vm = theVm;
+        }
+        return vm;
+    }
+
+    /**
+     * Закрывает поток данных дампа и подключение без блокировки,
+     * чтобы поток, зависший в чтении дампа, получил ошибку.
+     */
+    public void abort() {
+        InputStream in = current;
+        current = null;
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore
             }
-        } catch (AttachNotSupportedException e) {
-            throw new IOException(e);
         }
+        HotSpotVirtualMachine theVm = vm;
+        vm = null;
+        if (theVm != null) {
+            try {
+                theVm.detach();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Окончательно закрывает подключение без блокировки: дамп, брошенный
+     * по таймауту, может удерживать монитор, зависнув в подключении к JVM.
+     */
+    public void destroy() {
+        destroyed = true;
+        abort();
+    }
+
+    public synchronized void close() {
+        HotSpotVirtualMachine theVm = vm;
+        vm = null;
+        if (theVm != null) {
+            try {
+                theVm.detach();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * @return длительность подключения при последнем вызове {@link #dump} или {@link #connect}, 0 если подключение было переиспользовано
+     */
+    public synchronized long getLastAttachTimeNanos() {
+        return lastAttachTimeNanos;
+    }
+
+    /**
+     * @return длительность получения дампа при последнем вызове {@link #dump}
+     */
+    public synchronized long getLastDumpTimeNanos() {
+        return lastDumpTimeNanos;
+    }
+
+    /**
+     * @return количество повторных подключений после разрыва соединения
+     */
+    public synchronized long getReconnectCount() {
+        return reconnectCount;
     }
 }
@@ -0,0 +1,254 @@
+package ru.sergeyb.dump;
+
+import java.lang.Thread.State;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+
+/**
+ * Режим учащенного сохранения дампов. Периодически проверяет дешевые
+ * признаки проблем (количество заблокированных потоков, загрузку процессора
+ * процессом, прирост количества потоков) и при превышении порогов на
+ * ограниченное время переходит к сохранению дампов с интервалом меньше секунды.
+ * После окончания окна режим не включается повторно в течение такого же
+ * по длительности интервала.
+ * <p>
+ * По умолчанию режим отключен: длительность окна равна 0. При запуске
+ * приложения потоки создаются сотнями и процессор загружен полностью,
+ * поэтому первые {@link #STARTUP_GRACE_SEC} секунд работы JVM признаки
+ * не проверяются, даже если режим включен.
+ *
+ * @author sergeyb
+ */
+class BurstSampler {
+    private static final int CHECK_PERIOD_SEC = 2;
+    private static final int MINIMAL_PERIOD_MS = 100;
+    private static final int MAXIMAL_WINDOW_SEC = 600;
+    static final int STARTUP_GRACE_SEC = 120;
+    static final int DEFAULT_BLOCKED_THREADS = 20;
+    static final int DEFAULT_CPU_LOAD_PERCENT = 90;
+    static final int DEFAULT_THREAD_GROWTH = 100;
+    static final int DEFAULT_WINDOW_SEC = 0;
+    static final int DEFAULT_PERIOD_MS = 500;
+    private static final AtomicInteger blockedThreads = new AtomicInteger(-1);
+    private static final AtomicInteger cpuLoadPercent = new AtomicInteger(-1);
+    private static final AtomicInteger threadGrowth = new AtomicInteger(-1);
+    private static final AtomicInteger windowSec = new AtomicInteger(-1);
+    private static final AtomicInteger periodMs = new AtomicInteger(-1);
+    private static final AtomicReference<ScheduledExecutorService> pool = new AtomicReference<>();
+    private static final AtomicReference<ScheduledFuture<?>> checkTimer = new AtomicReference<>();
+    private static final AtomicReference<ScheduledFuture<?>> burstTimer = new AtomicReference<>();
+    private static final AtomicLong burstUntil = new AtomicLong(0);
+    private static final AtomicLong cooldownUntil = new AtomicLong(0);
+    private static final AtomicInteger lastThreadCount = new AtomicInteger(-1);
+    private static final AtomicLong burstCount = new AtomicLong(0);
+    private static final Runnable checker;
+    private static final Runnable burstWorker;
+
+    static {
+        checker = new Runnable() {
+            @Override
+            public void run() {
+                check();
+            }
+        };
+        burstWorker = new Runnable() {
+            @Override
+            public void run() {
+                burst();
+            }
+        };
+    }
+
+    private BurstSampler() {
+        // hidden constructor
+    }
+
+    static int getBlockedThreads() {
+        return blockedThreads.get();
+    }
+
+    static void setBlockedThreads(int value) {
+        blockedThreads.set(Math.max(value, 0));
+        ThreadDumpImpl.getPreferences().putInt("burstBlockedThreads", blockedThreads.get());
+    }
+
+    static int getCpuLoadPercent() {
+        return cpuLoadPercent.get();
+    }
+
+    static void setCpuLoadPercent(int value) {
+        cpuLoadPercent.set(Math.min(Math.max(value, 0), 100));
+        ThreadDumpImpl.getPreferences().putInt("burstCpuLoadPercent", cpuLoadPercent.get());
+    }
+
+    static int getThreadGrowth() {
+        return threadGrowth.get();
+    }
+
+    static void setThreadGrowth(int value) {
+        threadGrowth.set(Math.max(value, 0));
+        ThreadDumpImpl.getPreferences().putInt("burstThreadGrowth", threadGrowth.get());
+    }
+
+    static int getWindowSec() {
+        return windowSec.get();
+    }
+
+    static void setWindowSec(int value) {
+        int newValue = value;
+        if (newValue > MAXIMAL_WINDOW_SEC) {
+            ThreadDumpImpl.logger.log(Level.WARNING, "Invalid burst window {0} sec. Maximum window allowed is {1} sec.", new Object[] {newValue, MAXIMAL_WINDOW_SEC});
+            newValue = MAXIMAL_WINDOW_SEC;
+        }
+        windowSec.set(Math.max(newValue, 0));
+        ThreadDumpImpl.getPreferences().putInt("burstWindowSec", windowSec.get());
+    }
+
+    static int getPeriodMs() {
+        return periodMs.get();
+    }
+
+    static void setPeriodMs(int value) {
+        int newValue = value;
+        if (newValue < MINIMAL_PERIOD_MS) {
+            ThreadDumpImpl.logger.log(Level.WARNING, "Invalid burst period {0} ms. Minimum period allowed is {1} ms.", new Object[] {newValue, MINIMAL_PERIOD_MS});
+            newValue = MINIMAL_PERIOD_MS;
+        }
+        periodMs.set(newValue);
+        ThreadDumpImpl.getPreferences().putInt("burstPeriodMs", newValue);
+    }
+
+    static boolean isActive() {
+        return burstTimer.get() != null;
+    }
+
+    static long getBurstCount() {
+        return burstCount.get();
+    }
+
+    /**
+     * Запускает периодическую проверку признаков проблем.
+     *
+     * @param thePool пул, в котором выполняется мониторинг дампов
+     */
+    static void start(ScheduledExecutorService thePool) {
+        if (blockedThreads.get() < 0) {
+            blockedThreads.set(ThreadDumpImpl.getPreferences().getInt("burstBlockedThreads", DEFAULT_BLOCKED_THREADS));
+        }
+        if (cpuLoadPercent.get() < 0) {
+            cpuLoadPercent.set(ThreadDumpImpl.getPreferences().getInt("burstCpuLoadPercent", DEFAULT_CPU_LOAD_PERCENT));
+        }
+        if (threadGrowth.get() < 0) {
+            threadGrowth.set(ThreadDumpImpl.getPreferences().getInt("burstThreadGrowth", DEFAULT_THREAD_GROWTH));
+        }
+        if (windowSec.get() < 0) {
+            windowSec.set(ThreadDumpImpl.getPreferences().getInt("burstWindowSec", DEFAULT_WINDOW_SEC));
+        }
+        if (periodMs.get() < 0) {
+            periodMs.set(ThreadDumpImpl.getPreferences().getInt("burstPeriodMs", DEFAULT_PERIOD_MS));
+        }
+        pool.set(thePool);
+        lastThreadCount.set(-1);
+        checkTimer.set(thePool.scheduleAtFixedRate(checker, CHECK_PERIOD_SEC, CHECK_PERIOD_SEC, TimeUnit.SECONDS));
+    }
+
+    static void stop() {
+        ScheduledFuture<?> theTimer = checkTimer.getAndSet(null);
+        if (theTimer != null) {
+            theTimer.cancel(false);
+        }
+        theTimer = burstTimer.getAndSet(null);
+        if (theTimer != null) {
+            theTimer.cancel(false);
+        }
+        pool.set(null);
+    }
+
+    private static void check() {
+        try {
+            ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+            int threadCount = threadMXBean.getThreadCount();
+            int previousThreadCount = lastThreadCount.getAndSet(threadCount);
+            if (isActive() || windowSec.get() == 0 || System.currentTimeMillis() < cooldownUntil.get()) {
+                return;
+            }
+            if (ManagementFactory.getRuntimeMXBean().getUptime() < TimeUnit.SECONDS.toMillis(STARTUP_GRACE_SEC)) {
+                return;
+            }
+            String reason = null;
+            int growth = threadGrowth.get();
+            if (growth > 0 && previousThreadCount >= 0 && threadCount - previousThreadCount >= growth) {
+                reason = String.format("live threads grew from %d to %d", previousThreadCount, threadCount);
+            }
+            int cpu = cpuLoadPercent.get();
+            if (reason == null && cpu > 0) {
+                double load = getProcessCpuLoad();
+                if (load * 100 >= cpu) {
+                    reason = String.format("process CPU load is %.0f%%", load * 100);
+                }
+            }
+            int blocked = blockedThreads.get();
+            if (reason == null && blocked > 0) {
+                int count = 0;
+                for (ThreadInfo threadInfo: threadMXBean.getThreadInfo(threadMXBean.getAllThreadIds())) {
+                    if (threadInfo != null && threadInfo.getThreadState() == State.BLOCKED) {
+                        count++;
+                    }
+                }
+                if (count >= blocked) {
+                    reason = String.format("%d threads are blocked", count);
+                }
+            }
+            if (reason != null) {
+                startBurst(reason);
+            }
+        } catch (RuntimeException e) {
+            ThreadDumpImpl.logger.log(Level.SEVERE, "Failed to check burst conditions. Error = {0}", new Object[] {e.toString()});
+        }
+    }
+
+    static double getProcessCpuLoad() {
+        OperatingSystemMXBean osMXBean = ManagementFactory.getOperatingSystemMXBean();
+        if (osMXBean instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) osMXBean).getProcessCpuLoad();
+        }
+        return -1;
+    }
+
+    private static void startBurst(String reason) {
+        ScheduledExecutorService thePool = pool.get();
+        if (thePool == null) {
+            return;
+        }
+        burstUntil.set(System.currentTimeMillis() + TimeUnit.MILLISECONDS.convert(windowSec.get(), TimeUnit.SECONDS));
+        burstCount.incrementAndGet();
+        ThreadDumpImpl.logger.log(Level.WARNING, "Entering burst mode for {0} sec because {1}.", new Object[] {windowSec.get(), reason});
+        burstTimer.set(thePool.scheduleAtFixedRate(burstWorker, 0, periodMs.get(), TimeUnit.MILLISECONDS));
+    }
+
+    private static void burst() {
+        long now = System.currentTimeMillis();
+        if (now >= burstUntil.get()) {
+            ScheduledFuture<?> theTimer = burstTimer.getAndSet(null);
+            if (theTimer != null) {
+                theTimer.cancel(false);
+            }
+            cooldownUntil.set(now + TimeUnit.MILLISECONDS.convert(windowSec.get(), TimeUnit.SECONDS));
+            ThreadDumpImpl.logger.log(Level.INFO, "Leaving burst mode.");
+            return;
+        }
+        if (PauseMeter.shouldSkip()) {
+            return;
+        }
+        ThreadDumpImpl.burstThreadDump();
+    }
+}
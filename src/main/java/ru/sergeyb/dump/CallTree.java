@@ -0,0 +1,168 @@
+package ru.sergeyb.dump;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Дерево вызовов, в которое сливаются выборки стеков.
+ * Кадры стека и узлы дерева хранятся в виде компактных целочисленных
+ * идентификаторов, поэтому повторяющиеся стеки не занимают дополнительной памяти.
+ * Словарь кадров живет до сброса дерева, и после заполнения дерева новые
+ * кадры в него не добавляются, поэтому его размер ограничен размером дерева.
+ * Класс не потокобезопасен.
+ *
+ * @author sergeyb
+ */
+class CallTree {
+    private static final int ROOT = 0;
+    private final int maxNodes;
+    private final Map<StackTraceElement, Integer> elementIds;
+    private final Map<String, Integer> frameIds;
+    private final List<String> frames;
+    private final LongIntHashMap children;
+    private int parents[];
+    private int nodeFrames[];
+    private long counts[];
+    private int nodeCount;
+    private long samples;
+    private long truncated;
+
+    CallTree(int maxNodes) {
+        this.maxNodes = maxNodes;
+        this.elementIds = new HashMap<>();
+        this.frameIds = new HashMap<>();
+        this.frames = new ArrayList<>();
+        this.children = new LongIntHashMap(1024);
+        this.parents = new int[1024];
+        this.nodeFrames = new int[1024];
+        this.counts = new long[1024];
+        this.nodeCount = 1;
+        this.parents[ROOT] = -1;
+        this.nodeFrames[ROOT] = -1;
+    }
+
+    /**
+     * Добавляет одну выборку стека.
+     *
+     * @param stackTrace стек, начиная с верхнего кадра
+     */
+    void add(StackTraceElement stackTrace[]) {
+        int node = ROOT;
+        for (int i = stackTrace.length - 1; i >= 0; i--) {
+            int frame = frameId(stackTrace[i], nodeCount < maxNodes);
+            if (frame < 0) {
+                // нового кадра нет ни в одном узле, а места для узла уже нет
+                truncated++;
+                break;
+            }
+            long key = ((long) node << 32) | frame;
+            int child = children.get(key);
+            if (child < 0) {
+                if (nodeCount >= maxNodes) {
+                    truncated++;
+                    break;
+                }
+                child = newNode(node, frame);
+                children.put(key, child);
+            }
+            node = child;
+        }
+        counts[node]++;
+        samples++;
+    }
+
+    long getSamples() {
+        return samples;
+    }
+
+    int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Записывает дерево в формате collapsed stacks: по одной строке на стек,
+     * кадры от корня к вершине через <code>;</code>, затем количество выборок.
+     */
+    void write(PrintWriter out) {
+        StringBuilder buf = new StringBuilder();
+        int path[] = new int[64];
+        for (int node = 1; node < nodeCount; node++) {
+            if (counts[node] == 0) {
+                continue;
+            }
+            int depth = 0;
+            for (int n = node; n != ROOT; n = parents[n]) {
+                if (depth == path.length) {
+                    path = Arrays.copyOf(path, depth * 2);
+                }
+                path[depth++] = nodeFrames[n];
+            }
+            buf.setLength(0);
+            for (int i = depth - 1; i >= 0; i--) {
+                buf.append(frames.get(path[i]));
+                if (i > 0) {
+                    buf.append(';');
+                }
+            }
+            buf.append(' ').append(counts[node]);
+            out.println(buf);
+        }
+        if (truncated > 0) {
+            out.printf("[truncated] %d%n", truncated);
+        }
+    }
+
+    /**
+     * Очищает накопленные выборки вместе со словарем кадров.
+     */
+    void reset() {
+        elementIds.clear();
+        frameIds.clear();
+        frames.clear();
+        children.clear();
+        nodeCount = 1;
+        counts[ROOT] = 0;
+        samples = 0;
+        truncated = 0;
+    }
+
+    /**
+     * @param add добавлять ли в словарь неизвестный кадр
+     * @return идентификатор кадра или -1, если кадр неизвестен и не добавлен
+     */
+    private int frameId(StackTraceElement element, boolean add) {
+        Integer id = elementIds.get(element);
+        if (id == null) {
+            if (!add) {
+                return -1;
+            }
+            String name = element.getClassName() + "." + element.getMethodName();
+            id = frameIds.get(name);
+            if (id == null) {
+                id = frames.size();
+                frames.add(name);
+                frameIds.put(name, id);
+            }
+            elementIds.put(element, id);
+        }
+        return id;
+    }
+
+    private int newNode(int parent, int frame) {
+        if (nodeCount == parents.length) {
+            int capacity = Math.min(nodeCount * 2, maxNodes);
+            parents = Arrays.copyOf(parents, capacity);
+            nodeFrames = Arrays.copyOf(nodeFrames, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+        }
+        int node = nodeCount++;
+        parents[node] = parent;
+        nodeFrames[node] = frame;
+        counts[node] = 0;
+        return node;
+    }
+}
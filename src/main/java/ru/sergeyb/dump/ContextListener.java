@@ -20,12 +20,14 @@ public class ContextListener implements ServletContextListener {
     private final Logger logger;
     private final MBeanServer mBeanServer;
     private final ObjectName name;
+    private final ObjectName metricsName;
 
     public ContextListener() {
         this.logger = Logger.getLogger(ContextListener.class.getName());
         this.mBeanServer = ManagementFactory.getPlatformMBeanServer();
         try {
             this.name = new ObjectName(ThreadDumpImpl.JMX_NAME);
+            this.metricsName = new ObjectName(ThreadDumpMetrics.JMX_NAME);
         } catch (MalformedObjectNameException e) {
             logger.log(Level.SEVERE, "ContextListener", e);
             throw new IllegalArgumentException(e);
@@ -36,9 +38,23 @@ public class ContextListener implements ServletContextListener {
     public void contextInitialized(ServletContextEvent event) {
         logger.log(Level.INFO, "Starting thread dump monitoring...");
         ThreadDumpImpl.runThreadDumpMonitoring();
+        // MBean метрик регистрируется, даже если не удалось зарегистрировать основной MBean
+        register(new ThreadDump(), name);
+        register(new ThreadDumpMetrics(), metricsName);
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        logger.log(Level.INFO, "Stopping thread dump monitoring...");
+        unregister(name);
+        unregister(metricsName);
+        ThreadDumpImpl.stopThreadDumpMonitoring();
+        DumpType.destroyAll();
+    }
+
+    private void register(Object mBean, ObjectName objectName) {
         try {
-            ThreadDumpMBean mBean = new ThreadDump();
-            mBeanServer.registerMBean(mBean, name);
+            mBeanServer.registerMBean(mBean, objectName);
         } catch (InstanceAlreadyExistsException e) {
             logger.log(Level.SEVERE, "contextInitialized", e);
         } catch (MBeanRegistrationException e) {
@@ -48,17 +64,13 @@ public class ContextListener implements ServletContextListener {
         }
     }
 
-    @Override
-    public void contextDestroyed(ServletContextEvent event) {
-        logger.log(Level.INFO, "Stopping thread dump monitoring...");
+    private void unregister(ObjectName objectName) {
         try {
-            mBeanServer.unregisterMBean(name);
+            mBeanServer.unregisterMBean(objectName);
         } catch (MBeanRegistrationException e) {
             logger.log(Level.SEVERE, "contextDestroyed", e);
         } catch (InstanceNotFoundException e) {
             logger.log(Level.SEVERE, "contextDestroyed", e);
         }
-        ThreadDumpImpl.stopThreadDumpMonitoring();
-        DumpType.destroyAll();
     }
 }
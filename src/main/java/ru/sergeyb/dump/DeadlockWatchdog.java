@@ -0,0 +1,257 @@
+package ru.sergeyb.dump;
+
+import java.lang.management.LockInfo;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+
+import javax.management.MBeanNotificationInfo;
+import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationBroadcasterSupport;
+import javax.management.ObjectName;
+
+/**
+ * Частая проверка взаимных блокировок потоков. Проверка выполняется через
+ * {@link ThreadMXBean#findDeadlockedThreads()}, что гораздо дешевле полного
+ * дампа. При обнаружении нового цикла сохраняется краткий отчет о цикле
+ * и полный дамп HOTSPOT, а подписчикам MBean отправляется уведомление.
+ * Цикл, о котором уже сообщено, повторно не обрабатывается, пока он
+ * не исчезнет.
+ *
+ * @author sergeyb
+ */
+class DeadlockWatchdog {
+    static final String NOTIFICATION_TYPE = "ru.sergeyb.dump.deadlock";
+    static final int DEFAULT_CHECK_PERIOD_SEC = 5;
+    private static final int MAXIMAL_CHECK_PERIOD_SEC = 3600;
+    private static final ObjectName SOURCE;
+    private static final NotificationBroadcasterSupport broadcaster;
+    private static final AtomicInteger checkPeriodSec = new AtomicInteger(-1);
+    private static final AtomicReference<ScheduledExecutorService> pool = new AtomicReference<>();
+    private static final AtomicReference<ScheduledFuture<?>> checkTimer = new AtomicReference<>();
+    private static final AtomicReference<Set<String>> reportedCycles = new AtomicReference<Set<String>>(Collections.<String>emptySet());
+    private static final AtomicLong sequenceNumber = new AtomicLong(0);
+    private static final AtomicLong deadlockCount = new AtomicLong(0);
+    private static final AtomicReference<String> lastReport = new AtomicReference<>("");
+    private static final Runnable checker;
+
+    static {
+        try {
+            SOURCE = new ObjectName(ThreadDumpImpl.JMX_NAME);
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException(e);
+        }
+        MBeanNotificationInfo info = new MBeanNotificationInfo(new String[] {NOTIFICATION_TYPE}, Notification.class.getName(), "Thread deadlock found");
+        broadcaster = new NotificationBroadcasterSupport(info);
+        checker = new Runnable() {
+            @Override
+            public void run() {
+                check();
+            }
+        };
+    }
+
+    private DeadlockWatchdog() {
+        // hidden constructor
+    }
+
+    /**
+     * Источник уведомлений, к которому обращается {@link ThreadDump}.
+     */
+    static NotificationBroadcasterSupport getBroadcaster() {
+        return broadcaster;
+    }
+
+    static int getCheckPeriodSec() {
+        if (checkPeriodSec.get() < 0) {
+            checkPeriodSec.compareAndSet(-1, Math.min(Math.max(ThreadDumpImpl.getPreferences().getInt("deadlockCheckPeriodSec", DEFAULT_CHECK_PERIOD_SEC), 0), MAXIMAL_CHECK_PERIOD_SEC));
+        }
+        return checkPeriodSec.get();
+    }
+
+    /**
+     * Устанавливает период проверки. Если мониторинг запущен,
+     * проверка перепланируется с новым периодом.
+     *
+     * @param value период в секундах, 0 - проверка выключена
+     */
+    static void setCheckPeriodSec(int value) {
+        int newValue = value;
+        if (newValue < 0 || newValue > MAXIMAL_CHECK_PERIOD_SEC) {
+            ThreadDumpImpl.logger.log(Level.WARNING, "Invalid deadlock check period {0} sec. Period must be between 0 and {1} sec.", new Object[] {newValue, MAXIMAL_CHECK_PERIOD_SEC});
+            newValue = Math.min(Math.max(newValue, 0), MAXIMAL_CHECK_PERIOD_SEC);
+        }
+        checkPeriodSec.set(newValue);
+        ThreadDumpImpl.getPreferences().putInt("deadlockCheckPeriodSec", newValue);
+        ScheduledExecutorService thePool = pool.get();
+        if (thePool != null) {
+            cancel();
+            schedule(thePool);
+        }
+    }
+
+    static long getDeadlockCount() {
+        return deadlockCount.get();
+    }
+
+    static String getLastReport() {
+        return lastReport.get();
+    }
+
+    /**
+     * Запускает периодическую проверку.
+     *
+     * @param thePool пул, в котором выполняется мониторинг дампов
+     */
+    static void start(ScheduledExecutorService thePool) {
+        pool.set(thePool);
+        reportedCycles.set(Collections.<String>emptySet());
+        schedule(thePool);
+    }
+
+    static void stop() {
+        pool.set(null);
+        cancel();
+    }
+
+    private static void schedule(ScheduledExecutorService thePool) {
+        int period = getCheckPeriodSec();
+        if (period > 0) {
+            checkTimer.set(thePool.scheduleAtFixedRate(checker, period, period, TimeUnit.SECONDS));
+        }
+    }
+
+    private static void cancel() {
+        ScheduledFuture<?> theTimer = checkTimer.getAndSet(null);
+        if (theTimer != null) {
+            theTimer.cancel(false);
+        }
+    }
+
+    private static void check() {
+        try {
+            ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+            long ids[] = threadMXBean.isSynchronizerUsageSupported() ? threadMXBean.findDeadlockedThreads() : threadMXBean.findMonitorDeadlockedThreads();
+            if (ids == null) {
+                reportedCycles.set(Collections.<String>emptySet());
+                return;
+            }
+            Map<Long, ThreadInfo> infos = new HashMap<>(ids.length * 2);
+            for (ThreadInfo threadInfo: threadMXBean.getThreadInfo(ids, 1)) {
+                if (threadInfo != null) {
+                    infos.put(threadInfo.getThreadId(), threadInfo);
+                }
+            }
+            Set<String> previous = reportedCycles.get();
+            Set<String> current = new HashSet<>();
+            List<List<ThreadInfo>> found = new ArrayList<>();
+            for (List<ThreadInfo> cycle: findCycles(infos)) {
+                String key = getKey(cycle);
+                current.add(key);
+                if (!previous.contains(key)) {
+                    found.add(cycle);
+                }
+            }
+            reportedCycles.set(current);
+            if (!found.isEmpty()) {
+                deadlockFound(found);
+            }
+        } catch (RuntimeException e) {
+            ThreadDumpImpl.logger.log(Level.SEVERE, "Failed to check deadlocks. Error = {0}", new Object[] {e.toString()});
+        }
+    }
+
+    /**
+     * Разбивает заблокированные потоки на циклы, переходя от потока
+     * к владельцу блокировки, которую он ждет.
+     */
+    private static List<List<ThreadInfo>> findCycles(Map<Long, ThreadInfo> infos) {
+        List<List<ThreadInfo>> result = new ArrayList<>();
+        Set<Long> visited = new HashSet<>();
+        for (Long start: infos.keySet()) {
+            List<ThreadInfo> path = new ArrayList<>();
+            Map<Long, Integer> positions = new HashMap<>();
+            Long id = start;
+            while (id != null && !visited.contains(id)) {
+                ThreadInfo threadInfo = infos.get(id);
+                if (threadInfo == null) {
+                    break;
+                }
+                visited.add(id);
+                positions.put(id, path.size());
+                path.add(threadInfo);
+                id = threadInfo.getLockOwnerId() < 0 ? null : threadInfo.getLockOwnerId();
+            }
+            if (id != null && positions.containsKey(id)) {
+                result.add(path.subList(positions.get(id), path.size()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return идентификаторы потоков цикла по возрастанию
+     */
+    private static String getKey(List<ThreadInfo> cycle) {
+        long ids[] = new long[cycle.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = cycle.get(i).getThreadId();
+        }
+        Arrays.sort(ids);
+        return Arrays.toString(ids);
+    }
+
+    private static void deadlockFound(List<List<ThreadInfo>> cycles) {
+        Date date = Calendar.getInstance().getTime();
+        String report = getReport(date, cycles);
+        deadlockCount.addAndGet(cycles.size());
+        lastReport.set(report);
+        ThreadDumpImpl.logger.log(Level.SEVERE, report);
+        Notification notification = new Notification(NOTIFICATION_TYPE, SOURCE, sequenceNumber.incrementAndGet(), date.getTime(),
+            String.format("%d thread deadlock(s) found", cycles.size()));
+        notification.setUserData(report);
+        broadcaster.sendNotification(notification);
+        ThreadDumpImpl.deadlockDump(report, date);
+    }
+
+    /**
+     * Краткий отчет: для каждого потока цикла - ожидаемая блокировка,
+     * ее владелец и кадр стека, в котором поток остановился.
+     */
+    private static String getReport(Date date, List<List<ThreadInfo>> cycles) {
+        StringBuilder buf = new StringBuilder();
+        buf.append(String.format("Deadlock found at %1$tF %1$tT.%1$tL%n", date));
+        int n = 0;
+        for (List<ThreadInfo> cycle: cycles) {
+            buf.append(String.format("%nCycle %d:%n", ++n));
+            for (ThreadInfo threadInfo: cycle) {
+                LockInfo lock = threadInfo.getLockInfo();
+                buf.append(String.format("\"%s\" Id=%d %s on %s owned by \"%s\" Id=%d%n", threadInfo.getThreadName(), threadInfo.getThreadId(),
+                    threadInfo.getThreadState(), lock == null ? threadInfo.getLockName() : lock, threadInfo.getLockOwnerName(), threadInfo.getLockOwnerId()));
+                StackTraceElement stackTrace[] = threadInfo.getStackTrace();
+                if (stackTrace.length > 0) {
+                    buf.append("\tat ").append(FrameCache.toString(stackTrace[0])).append(String.format("%n"));
+                }
+            }
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,468 @@
+package ru.sergeyb.dump;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Работа с сохраненными дампами: сжатые файлы, архивы за прошедшие дни,
+ * чтение отдельных дампов независимо от способа хранения.
+ * <p>
+ * Дамп идентифицируется именем вида <code>yyyy-MM-dd/thread-dump-...txt</code>.
+ * Он может лежать в каталоге дня как есть, в сжатом виде с суффиксом
+ * <code>.gz</code>, в хранилище {@link StackStore} каталога дня
+ * или внутри архива <code>yyyy-MM-dd.zip</code>.
+ *
+ * @author sergeyb
+ */
+class DumpArchive {
+    static final String GZIP_SUFFIX = ".gz";
+    static final String ARCHIVE_SUFFIX = ".zip";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final Pattern DAY_PATTERN = Pattern.compile("\\d{4}-\\d{2}-\\d{2}");
+    private static final Set<Path> busyDays = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+
+    private DumpArchive() {
+        // hidden constructor
+    }
+
+    static boolean isDay(String name) {
+        return DAY_PATTERN.matcher(name).matches();
+    }
+
+    static Path getArchive(Path parentDir, String day) {
+        return parentDir.resolve(day + ARCHIVE_SUFFIX);
+    }
+
+    /**
+     * Занимает день для упаковки или удаления, чтобы они не выполнялись
+     * одновременно. Кто не смог занять день, пропускает его и не ждет:
+     * упаковка может идти долго, а удаление выполняется в потоке записи дампов.
+     *
+     * @return <code>false</code>, если день уже упаковывается или удаляется
+     */
+    static boolean lockDay(Path parentDir, String day) {
+        return busyDays.add(parentDir.resolve(day).toAbsolutePath().normalize());
+    }
+
+    static void unlockDay(Path parentDir, String day) {
+        busyDays.remove(parentDir.resolve(day).toAbsolutePath().normalize());
+    }
+
+    /**
+     * Упаковывает все дампы из каталогов за дни раньше указанного
+     * в архивы и удаляет каталоги.
+     *
+     * @param parentDir корневой каталог дампов
+     * @param today день, каталог которого не трогается
+     * @param throttle ограничение скорости или <code>null</code>
+     */
+    static void archiveBefore(Path parentDir, String today, DumpCompactor.Throttle throttle) {
+        List<String> days = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(parentDir)) {
+            for (Path dir: stream) {
+                String name = dir.getFileName().toString();
+                if (isDay(name) && name.compareTo(today) < 0 && Files.isDirectory(dir)) {
+                    days.add(name);
+                }
+            }
+        } catch (IOException e) {
+            ThreadDumpImpl.logger.log(Level.SEVERE, e.getMessage(), e);
+            return;
+        }
+        Collections.sort(days);
+        for (String day: days) {
+            if (!lockDay(parentDir, day)) {
+                ThreadDumpImpl.logger.log(Level.INFO, "Thread dumps of {0} are being deleted, archiving skipped.", new Object[] {day});
+                continue;
+            }
+            try {
+                if (Files.isDirectory(parentDir.resolve(day))) {
+                    archive(parentDir, day, throttle);
+                }
+            } catch (InterruptedIOException e) {
+                ThreadDumpImpl.logger.log(Level.INFO, "Archiving of {0} interrupted.", new Object[] {day});
+                return;
+            } catch (IOException e) {
+                ThreadDumpImpl.logger.log(Level.SEVERE, "Failed to archive {0}. Error = {1}", new Object[] {day, e.toString()});
+            } finally {
+                unlockDay(parentDir, day);
+            }
+        }
+    }
+
+    /**
+     * Упаковывает каталог дня в один архив. Дампы, уже находящиеся
+     * в архиве этого дня, сохраняются. Записанный архив перечитывается
+     * и сверяется по контрольным суммам с исходными данными, и только
+     * после этого каталог удаляется.
+     */
+    static void archive(Path parentDir, String day, DumpCompactor.Throttle throttle) throws IOException {
+        Path dayDir = parentDir.resolve(day);
+        Path archive = getArchive(parentDir, day);
+        Path temp = parentDir.resolve(day + ARCHIVE_SUFFIX + TEMP_SUFFIX);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dayDir)) {
+            for (Path file: stream) {
+                if (Files.isRegularFile(file) && !isIndex(file.getFileName().toString())) {
+                    files.add(file);
+                }
+            }
+        }
+        Collections.sort(files);
+        long start = System.currentTimeMillis();
+        byte buf[] = new byte[65536];
+        // имя элемента архива -> {CRC32, размер} исходных данных
+        Map<String, long[]> sums = new HashMap<>();
+        try {
+            try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(temp))) {
+                for (Path file: files) {
+                    String name = plainName(file.getFileName().toString());
+                    if (sums.containsKey(name)) {
+                        // например, x.txt и x.txt.gz: оба дампа сохраняются
+                        String unique = uniqueName(name, sums);
+                        ThreadDumpImpl.logger.log(Level.WARNING, "Dump {0} of {1} is archived as {2} because {3} is already archived.", new Object[] {file.getFileName(), day, unique, name});
+                        name = unique;
+                    }
+                    zip.putNextEntry(new ZipEntry(name));
+                    try (InputStream input = open(file)) {
+                        sums.put(name, copyChecked(input, zip, buf, throttle));
+                    }
+                    zip.closeEntry();
+                }
+                if (Files.exists(archive)) {
+                    try (ZipFile old = new ZipFile(archive.toFile())) {
+                        Enumeration<? extends ZipEntry> entries = old.entries();
+                        while (entries.hasMoreElements()) {
+                            ZipEntry entry = entries.nextElement();
+                            String name = entry.getName();
+                            long sum[] = sums.get(name);
+                            if (sum != null) {
+                                if (sum[0] == entry.getCrc() && sum[1] == entry.getSize()) {
+                                    // тот же дамп остался в каталоге после прерванной упаковки
+                                    continue;
+                                }
+                                String unique = uniqueName(name, sums);
+                                ThreadDumpImpl.logger.log(Level.WARNING, "Archived dump {0} of {1} is kept as {2} because the name is already used.", new Object[] {name, day, unique});
+                                name = unique;
+                            }
+                            zip.putNextEntry(new ZipEntry(name));
+                            try (InputStream input = old.getInputStream(entry)) {
+                                sums.put(name, copyChecked(input, zip, buf, throttle));
+                            }
+                            zip.closeEntry();
+                        }
+                    }
+                }
+            }
+            verify(temp, sums, buf, throttle);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, archive, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        SegmentReader.release(dayDir);
+        for (Path file: files) {
+            Files.delete(file);
+        }
+        Files.deleteIfExists(dayDir.resolve(StackStore.INDEX_FILE_NAME));
+        Files.deleteIfExists(dayDir.resolve(StackStore.THREAD_INDEX_FILE_NAME));
+        Files.delete(dayDir);
+        ThreadDumpImpl.logger.log(Level.INFO, "Archived {0} dumps of {1} in {2} ms.", new Object[] {files.size(), day, System.currentTimeMillis() - start});
+    }
+
+    /**
+     * @return имя вида <code>x-2.txt</code>, которого еще нет в архиве
+     */
+    private static String uniqueName(String name, Map<String, long[]> sums) {
+        int dot = name.lastIndexOf('.');
+        String base = dot < 0 ? name : name.substring(0, dot);
+        String extension = dot < 0 ? "" : name.substring(dot);
+        for (int i = 2; ; i++) {
+            String result = String.format("%s-%d%s", base, i, extension);
+            if (!sums.containsKey(result)) {
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Возвращает имена дампов за указанный день.
+     */
+    static List<String> list(Path parentDir, String day) throws IOException {
+        List<String> result = new ArrayList<>();
+        Path dayDir = parentDir.resolve(day);
+        if (Files.isDirectory(dayDir)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dayDir)) {
+                for (Path file: stream) {
+                    String name = file.getFileName().toString();
+                    if (name.equals(StackStore.FILE_NAME)) {
+                        try (SegmentReader reader = SegmentReader.open(dayDir)) {
+                            for (int i = 0; reader != null && i < reader.size(); i++) {
+                                result.add(day + "/" + reader.getName(i));
+                            }
+                        }
+                    } else if (!isIndex(name) && !name.equals(DumpIndex.FILE_NAME)) {
+                        result.add(day + "/" + plainName(name));
+                    }
+                }
+            }
+        }
+        Path archive = getArchive(parentDir, day);
+        if (Files.exists(archive)) {
+            try (ZipFile zip = new ZipFile(archive.toFile())) {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (entry.getName().equals(StackStore.FILE_NAME)) {
+                        for (String dump: StackStore.list(zip.getInputStream(entry))) {
+                            result.add(day + "/" + dump);
+                        }
+                    } else if (!entry.getName().equals(DumpIndex.FILE_NAME)) {
+                        result.add(day + "/" + entry.getName());
+                    }
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Копирует содержимое дампа в поток.
+     *
+     * @param parentDir корневой каталог дампов
+     * @param name имя дампа вида <code>yyyy-MM-dd/thread-dump-...txt</code>
+     * @param out поток, куда копируется дамп
+     * @param reconstruct выводить ли разностный дамп из хранилища полностью;
+     *        иначе выводятся только изменившиеся потоки
+     */
+    static void read(Path parentDir, String name, OutputStream out, boolean reconstruct) throws IOException {
+        int i = checkName(parentDir, name);
+        String day = name.substring(0, i);
+        String fileName = name.substring(i + 1);
+        byte buf[] = new byte[65536];
+        Path dayDir = parentDir.resolve(day);
+        for (Path file: new Path[] {dayDir.resolve(fileName), dayDir.resolve(fileName + GZIP_SUFFIX)}) {
+            if (Files.isRegularFile(file)) {
+                try (InputStream input = open(file)) {
+                    copy(input, out, buf);
+                }
+                return;
+            }
+        }
+        try (SegmentReader reader = SegmentReader.open(dayDir)) {
+            int ordinal = reader == null ? -1 : reader.find(fileName);
+            if (ordinal >= 0 && write(reconstruct ? reader.read(ordinal) : reader.readStored(ordinal), out)) {
+                return;
+            }
+        }
+        Path archive = getArchive(parentDir, day);
+        if (Files.exists(archive)) {
+            try (ZipFile zip = new ZipFile(archive.toFile())) {
+                ZipEntry entry = zip.getEntry(fileName);
+                if (entry != null) {
+                    try (InputStream input = zip.getInputStream(entry)) {
+                        copy(input, out, buf);
+                    }
+                    return;
+                }
+                entry = zip.getEntry(StackStore.FILE_NAME);
+                if (entry != null && write(StackStore.read(zip.getInputStream(entry), fileName, reconstruct), out)) {
+                    return;
+                }
+            }
+        }
+        throw new IOException(String.format("Dump %s not found", name));
+    }
+
+    /**
+     * Читает дамп из хранилища дня или из хранилища в архиве дня.
+     * Разностный дамп восстанавливается до полного.
+     *
+     * @param parentDir корневой каталог дампов
+     * @param name имя дампа вида <code>yyyy-MM-dd/thread-dump-...txt</code>
+     * @return <code>null</code>, если дампа нет в хранилище, например, он сохранен текстом
+     */
+    static DumpRecord load(Path parentDir, String name) throws IOException {
+        int i = checkName(parentDir, name);
+        String day = name.substring(0, i);
+        String fileName = name.substring(i + 1);
+        Path dayDir = parentDir.resolve(day);
+        try (SegmentReader reader = SegmentReader.open(dayDir)) {
+            int ordinal = reader == null ? -1 : reader.find(fileName);
+            if (ordinal >= 0) {
+                return reader.read(ordinal);
+            }
+        }
+        Path archive = getArchive(parentDir, day);
+        if (Files.exists(archive)) {
+            try (ZipFile zip = new ZipFile(archive.toFile())) {
+                ZipEntry entry = zip.getEntry(StackStore.FILE_NAME);
+                if (entry != null) {
+                    return StackStore.read(zip.getInputStream(entry), fileName, true);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Проверяет, что имя дампа указывает на файл внутри каталога дня.
+     * Имя приходит из запроса HTTP, поэтому разделители каталогов Windows,
+     * указание диска и переходы к родительскому каталогу запрещены.
+     *
+     * @return позиция разделителя дня и имени файла
+     */
+    private static int checkName(Path parentDir, String name) throws IOException {
+        int i = name.indexOf('/');
+        if (i < 0 || !isDay(name.substring(0, i)) || name.indexOf('/', i + 1) >= 0) {
+            throw new IOException(String.format("Invalid dump name %s", name));
+        }
+        String fileName = name.substring(i + 1);
+        if (fileName.isEmpty() || fileName.startsWith(".") || fileName.contains("..")
+                || fileName.indexOf('\\') >= 0 || fileName.indexOf(':') >= 0 || fileName.indexOf('\0') >= 0) {
+            throw new IOException(String.format("Invalid dump name %s", name));
+        }
+        Path dayDir = parentDir.resolve(name.substring(0, i)).normalize();
+        Path file;
+        try {
+            file = dayDir.resolve(fileName).normalize();
+        } catch (InvalidPathException e) {
+            throw new IOException(String.format("Invalid dump name %s", name));
+        }
+        if (!file.startsWith(dayDir) || !dayDir.equals(file.getParent())) {
+            throw new IOException(String.format("Invalid dump name %s", name));
+        }
+        return i;
+    }
+
+    /**
+     * Восстанавливает текстовое представление дампа из хранилища.
+     * После разностного дампа выводится имя предыдущего дампа
+     * и список завершившихся потоков.
+     *
+     * @return <code>false</code>, если дамп не найден
+     */
+    static boolean write(DumpRecord dump, OutputStream out) throws IOException {
+        if (dump == null) {
+            return false;
+        }
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, "UTF-8"));
+        ((StructuredDumper) dump.getType().dumper()).write(writer, dump);
+        if (dump.isDelta()) {
+            writer.printf("Unchanged threads are omitted, see previous dump %s%n", dump.getBase());
+            ThreadRecord ended[] = dump.getEndedThreads();
+            if (ended.length > 0) {
+                writer.printf("%nEnded threads:%n");
+                for (ThreadRecord thread: ended) {
+                    writer.printf("\"%s\" Id=%d%n", thread.getName(), thread.getId());
+                }
+            }
+        }
+        writer.flush();
+        return true;
+    }
+
+    private static InputStream open(Path file) throws IOException {
+        InputStream input = Files.newInputStream(file);
+        if (file.getFileName().toString().endsWith(GZIP_SUFFIX)) {
+            try {
+                return new GZIPInputStream(input, 65536);
+            } catch (IOException e) {
+                input.close();
+                throw e;
+            }
+        }
+        return input;
+    }
+
+    /**
+     * Индексы хранилища не архивируются: в архиве хранилище читается последовательно.
+     */
+    private static boolean isIndex(String name) {
+        return name.equals(StackStore.INDEX_FILE_NAME) || name.equals(StackStore.THREAD_INDEX_FILE_NAME);
+    }
+
+    private static String plainName(String name) {
+        if (name.endsWith(GZIP_SUFFIX)) {
+            return name.substring(0, name.length() - GZIP_SUFFIX.length());
+        }
+        return name;
+    }
+
+    /**
+     * Сверяет содержимое архива с контрольными суммами исходных данных.
+     */
+    private static void verify(Path archive, Map<String, long[]> sums, byte buf[], DumpCompactor.Throttle throttle) throws IOException {
+        try (ZipFile zip = new ZipFile(archive.toFile())) {
+            if (zip.size() != sums.size()) {
+                throw new IOException(String.format("Archive %s has %d entries instead of %d", archive, zip.size(), sums.size()));
+            }
+            for (Map.Entry<String, long[]> sum: sums.entrySet()) {
+                ZipEntry entry = zip.getEntry(sum.getKey());
+                if (entry == null) {
+                    throw new IOException(String.format("Archive %s has no entry %s", archive, sum.getKey()));
+                }
+                long actual[];
+                try (InputStream input = zip.getInputStream(entry)) {
+                    actual = copyChecked(input, null, buf, throttle);
+                }
+                if (actual[0] != sum.getValue()[0] || actual[1] != sum.getValue()[1]) {
+                    throw new IOException(String.format("Archive %s entry %s does not match its source", archive, sum.getKey()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Копирует данные, считая их контрольную сумму.
+     *
+     * @param out поток, куда копируются данные, или <code>null</code>, если данные только читаются
+     * @return CRC32 и размер данных
+     */
+    private static long[] copyChecked(InputStream input, OutputStream out, byte buf[], DumpCompactor.Throttle throttle) throws IOException {
+        CRC32 crc = new CRC32();
+        long size = 0;
+        for (int n = input.read(buf); n >= 0; n = input.read(buf)) {
+            crc.update(buf, 0, n);
+            size += n;
+            if (out != null) {
+                out.write(buf, 0, n);
+            }
+            if (throttle != null) {
+                throttle.acquire(n);
+            }
+        }
+        return new long[] {crc.getValue(), size};
+    }
+
+    private static void copy(InputStream input, OutputStream out, byte buf[]) throws IOException {
+        for (int n = input.read(buf); n >= 0; n = input.read(buf)) {
+            out.write(buf, 0, n);
+        }
+    }
+}
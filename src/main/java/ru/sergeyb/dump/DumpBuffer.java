@@ -0,0 +1,31 @@
+package ru.sergeyb.dump;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Буфер в памяти, в который снимается дамп до записи на диск.
+ * Буферы переиспользуются, поэтому после записи дампа память
+ * под его текст не освобождается.
+ *
+ * @author sergeyb
+ */
+class DumpBuffer extends ByteArrayOutputStream {
+
+    DumpBuffer() {
+        super(65536);
+    }
+
+    /**
+     * @return размер выделенной памяти в байтах
+     */
+    int capacity() {
+        return buf.length;
+    }
+
+    /**
+     * @return внутренний массив буфера без копирования, заполнены первые {@link #size()} байт
+     */
+    byte[] array() {
+        return buf;
+    }
+}
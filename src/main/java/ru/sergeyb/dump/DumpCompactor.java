@@ -0,0 +1,165 @@
+package ru.sergeyb.dump;
+
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+
+/**
+ * Фоновая упаковка каталогов прошедших дней в архивы {@link DumpArchive}.
+ * Упаковка выполняется в отдельном потоке с низким приоритетом, а не
+ * в потоке записи дампов, и ограничивает скорость чтения и записи,
+ * чтобы не конкурировать с приложением за диск. Исходные файлы удаляются
+ * только после проверки записанного архива. Упаковка дня и его удаление
+ * {@link DumpRetention} не выполняются одновременно, см.
+ * {@link DumpArchive#lockDay(java.nio.file.Path, String)}.
+ *
+ * @author sergeyb
+ */
+class DumpCompactor {
+    static final int DEFAULT_MB_PER_SEC = 4;
+    private static final int MAXIMAL_MB_PER_SEC = 1024;
+    private static final String THREAD_NAME = "ThreadDumpCompactorK2m7x9pd";
+    private static final AtomicInteger mbPerSec = new AtomicInteger(-1);
+    private static final AtomicReference<ExecutorService> executor = new AtomicReference<>();
+    private static final Set<Path> pending = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+
+    private DumpCompactor() {
+        // hidden constructor
+    }
+
+    /**
+     * @return ограничение скорости упаковки в мегабайтах в секунду, 0 - без ограничения
+     */
+    static int getMbPerSec() {
+        if (mbPerSec.get() < 0) {
+            mbPerSec.compareAndSet(-1, Math.min(Math.max(ThreadDumpImpl.getPreferences().getInt("compactMbPerSec", DEFAULT_MB_PER_SEC), 0), MAXIMAL_MB_PER_SEC));
+        }
+        return mbPerSec.get();
+    }
+
+    static void setMbPerSec(int value) {
+        int newValue = value;
+        if (newValue < 0 || newValue > MAXIMAL_MB_PER_SEC) {
+            ThreadDumpImpl.logger.log(Level.WARNING, "Invalid compaction rate {0} MB/s. Rate must be between 0 and {1} MB/s.", new Object[] {newValue, MAXIMAL_MB_PER_SEC});
+            newValue = Math.min(Math.max(newValue, 0), MAXIMAL_MB_PER_SEC);
+        }
+        mbPerSec.set(newValue);
+        ThreadDumpImpl.getPreferences().putInt("compactMbPerSec", newValue);
+    }
+
+    /**
+     * Запускает поток упаковки. Поток завершается после минуты простоя
+     * и создается заново при следующей упаковке.
+     */
+    static void start() {
+        ThreadPoolExecutor theExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable target) {
+                Thread result = new Thread(target, THREAD_NAME);
+                result.setDaemon(true);
+                result.setPriority(Thread.MIN_PRIORITY);
+                return result;
+            }
+        });
+        theExecutor.allowCoreThreadTimeOut(true);
+        if (!executor.compareAndSet(null, theExecutor)) {
+            theExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Прерывает упаковку. Недописанный архив удаляется, каталог дня
+     * остается и будет упакован при следующем запуске.
+     */
+    static void stop() {
+        ExecutorService theExecutor = executor.getAndSet(null);
+        if (theExecutor != null) {
+            theExecutor.shutdownNow();
+        }
+        pending.clear();
+    }
+
+    /**
+     * Ставит в очередь упаковку всех каталогов за дни раньше указанного.
+     * Повторные запросы для того же каталога, пока упаковка еще не началась,
+     * не добавляются.
+     * Без запущенного мониторинга поток упаковки запускается для этого
+     * запроса, поэтому вызывающий поток не выполняет упаковку сам.
+     *
+     * @param parentDir корневой каталог дампов
+     * @param today день, каталог которого не трогается
+     */
+    static void compact(final Path parentDir, final String today) {
+        ExecutorService theExecutor = executor.get();
+        if (theExecutor == null) {
+            start();
+            theExecutor = executor.get();
+            if (theExecutor == null) {
+                return;
+            }
+        }
+        if (!pending.add(parentDir)) {
+            return;
+        }
+        try {
+            theExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    pending.remove(parentDir);
+                    compactNow(parentDir, today);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(parentDir);
+            ThreadDumpImpl.logger.log(Level.WARNING, "Compaction of thread dumps before {0} is not scheduled. Error = {1}", new Object[] {today, e.toString()});
+        }
+    }
+
+    private static void compactNow(Path parentDir, String today) {
+        int rate = getMbPerSec();
+        DumpArchive.archiveBefore(parentDir, today, rate == 0 ? null : new Throttle(rate * 1024L * 1024L));
+        if (parentDir.equals(ThreadDumpImpl.getDumpParentDir())) {
+            // после упаковки размеры прошедших дней изменились
+            DumpRetention.scan(parentDir);
+        }
+    }
+
+    /**
+     * Ограничение скорости: после каждой порции данных поток засыпает,
+     * если обработано больше, чем допускает скорость за прошедшее время.
+     */
+    static final class Throttle {
+        private final long bytesPerSec;
+        private final long start = System.nanoTime();
+        private long bytes;
+
+        Throttle(long bytesPerSec) {
+            this.bytesPerSec = bytesPerSec;
+        }
+
+        void acquire(int count) throws InterruptedIOException {
+            bytes += count;
+            long waitMs = bytes * 1000 / bytesPerSec - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (waitMs <= 0) {
+                return;
+            }
+            try {
+                Thread.sleep(waitMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Compaction interrupted");
+            }
+        }
+    }
+}
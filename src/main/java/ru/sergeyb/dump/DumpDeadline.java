@@ -0,0 +1,223 @@
+package ru.sergeyb.dump;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+
+/**
+ * Снятие дампа с ограничением времени. Дамп снимается в отдельном потоке,
+ * а вызывающий поток, например, поток планировщика, ждет его не дольше
+ * заданного времени. Если время истекло, дамп отменяется, подключение
+ * к JVM закрывается и снимается дамп следующего способа в цепочке
+ * HOTSPOT - JMX - SIMPLE (VIRTUAL - JMX - SIMPLE). Пока отмененный дамп какого-то способа
+ * не завершился, этот способ пропускается, поэтому зависший дамп
+ * занимает не больше одного потока.
+ *
+ * @author sergeyb
+ */
+class DumpDeadline {
+    static final int DEFAULT_TIMEOUT_SEC = 60;
+    private static final int MAXIMAL_TIMEOUT_SEC = 3600;
+    private static final String THREAD_NAME = "ThreadDumpCaptureN3x8w2jt";
+    private static final AtomicInteger timeoutSec = new AtomicInteger(-1);
+    private static final AtomicReference<ExecutorService> executor = new AtomicReference<>();
+    private static final ConcurrentMap<DumpType, AtomicBoolean> stuck = new ConcurrentHashMap<>();
+
+    private DumpDeadline() {
+        // hidden constructor
+    }
+
+    /**
+     * @return время на снятие дампа в секундах, 0 - без ограничения
+     */
+    static int getTimeoutSec() {
+        if (timeoutSec.get() < 0) {
+            timeoutSec.compareAndSet(-1, Math.min(Math.max(ThreadDumpImpl.getPreferences().getInt("dumpTimeoutSec", DEFAULT_TIMEOUT_SEC), 0), MAXIMAL_TIMEOUT_SEC));
+        }
+        return timeoutSec.get();
+    }
+
+    static void setTimeoutSec(int value) {
+        int newValue = value;
+        if (newValue < 0 || newValue > MAXIMAL_TIMEOUT_SEC) {
+            ThreadDumpImpl.logger.log(Level.WARNING, "Invalid dump timeout {0} sec. Timeout must be between 0 and {1} sec.", new Object[] {newValue, MAXIMAL_TIMEOUT_SEC});
+            newValue = Math.min(Math.max(newValue, 0), MAXIMAL_TIMEOUT_SEC);
+        }
+        timeoutSec.set(newValue);
+        ThreadDumpImpl.getPreferences().putInt("dumpTimeoutSec", newValue);
+    }
+
+    /**
+     * @return способ снятия дампа, который используется, если дамп указанным способом не снят вовремя
+     */
+    static DumpType fallback(DumpType type) {
+        switch (type) {
+            case HOTSPOT:
+                return DumpType.JMX;
+            case VIRTUAL:
+                return DumpType.JMX;
+            case JMX:
+                return DumpType.SIMPLE;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Снимает дамп в память, переходя к следующему способу по цепочке,
+     * если дамп не снят вовремя. Ошибки, отличные от истечения времени,
+     * передаются вызывающему.
+     */
+    static PendingDump capture(DumpType type, Date date, boolean burst, DumpTrigger trigger, String reason) throws IOException {
+        int timeout = getTimeoutSec();
+        if (timeout == 0) {
+            return ThreadDumpImpl.captureNow(type, date, burst, trigger, reason);
+        }
+        String failure = null;
+        for (DumpType current = type; current != null; current = fallback(current)) {
+            if (stuck.containsKey(current)) {
+                failure = String.format("Previous %s dump is still running", current);
+                ThreadDumpImpl.logger.log(Level.WARNING, "{0}, trying next dump type.", new Object[] {failure});
+                continue;
+            }
+            PendingDump result = captureWithin(current, timeout, date, burst, trigger, reason);
+            if (result != null) {
+                return result;
+            }
+            failure = String.format("%s dump timed out after %d sec", current, timeout);
+        }
+        throw new IOException(failure);
+    }
+
+    /**
+     * Буфер снятого дампа освобождает тот, кому дамп достался: ожидающий
+     * поток, если задача завершилась до отмены, иначе сама задача.
+     *
+     * @return дамп или <code>null</code>, если время истекло
+     */
+    private static PendingDump captureWithin(final DumpType type, int timeout, final Date date, final boolean burst, final DumpTrigger trigger, final String reason) throws IOException {
+        final AtomicBoolean finished = new AtomicBoolean(false);
+        FutureTask<PendingDump> task = new FutureTask<PendingDump>(new Callable<PendingDump>() {
+            @Override
+            public PendingDump call() throws IOException {
+                try {
+                    return ThreadDumpImpl.captureNow(type, date, burst, trigger, reason);
+                } finally {
+                    finished.set(true);
+                    stuck.remove(type, finished);
+                }
+            }
+        }) {
+            @Override
+            protected void set(PendingDump result) {
+                super.set(result);
+                if (isCancelled()) {
+                    // дамп уже никто не ждет
+                    DumpWriter.release(result);
+                }
+            }
+        };
+        try {
+            getExecutor().execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+        try {
+            return task.get(timeout, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            cancel(task);
+            DumpMetrics.of(type).timedOut();
+            stuck.put(type, finished);
+            if (finished.get()) {
+                stuck.remove(type, finished);
+            }
+            ThreadDumpImpl.logger.log(Level.WARNING, "{0} thread dump timed out after {1} sec.", new Object[] {type, timeout});
+            abort(type);
+            return null;
+        } catch (InterruptedException e) {
+            cancel(task);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for thread dump");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Отменяет задачу снятия дампа. Если задача успела завершиться,
+     * освобождает снятый ею дамп.
+     */
+    private static void cancel(FutureTask<PendingDump> task) {
+        if (task.cancel(true)) {
+            return;
+        }
+        try {
+            DumpWriter.release(task.get());
+        } catch (InterruptedException | ExecutionException | CancellationException e) {
+            // дамп не снят, освобождать нечего
+        }
+    }
+
+    /**
+     * Закрывает подключение зависшего дампа, чтобы освободить поток,
+     * ожидающий данных от JVM.
+     */
+    private static void abort(DumpType type) {
+        Dumper dumper = type.dumper();
+        if (dumper instanceof HotSpotVMDumper) {
+            ((HotSpotVMDumper) dumper).abort();
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        ExecutorService result = executor.get();
+        if (result == null) {
+            result = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger number = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(Runnable target) {
+                    Thread thread = new Thread(target, THREAD_NAME + "-" + number.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.set(result);
+        }
+        return result;
+    }
+
+    static void stop() {
+        ExecutorService theExecutor = executor.getAndSet(null);
+        if (theExecutor != null) {
+            theExecutor.shutdownNow();
+        }
+    }
+}
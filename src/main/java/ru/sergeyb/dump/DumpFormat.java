@@ -0,0 +1,242 @@
+package ru.sergeyb.dump;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Формат, в котором дамп в структурированном виде отдается по HTTP.
+ *
+ * @author sergeyb
+ */
+enum DumpFormat {
+    /**
+     * Текст в том же виде, в каком дамп сохраняется в файл.
+     */
+    TEXT("text/plain") {
+        @Override
+        void write(PrintWriter out, DumpRecord dump) {
+            ((StructuredDumper) dump.getType().dumper()).write(out, dump);
+        }
+    },
+    /**
+     * Объект JSON с полями дампа и массивом потоков.
+     */
+    JSON("application/json") {
+        @Override
+        void write(PrintWriter out, DumpRecord dump) {
+            out.write("{\"type\":");
+            string(out, dump.getType().name());
+            out.printf(",\"time\":%d,\"date\":", dump.getDate().getTime());
+            string(out, String.format("%1$tY-%1$tm-%1$tdT%1$tH:%1$tM:%1$tS.%1$tL%1$tz", dump.getDate()));
+            out.write(",\"host\":");
+            string(out, dump.getHost());
+            out.write(",\"threads\":[");
+            ThreadRecord threads[] = dump.getThreads();
+            for (int i = 0; i < threads.length; i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                thread(out, threads[i]);
+            }
+            out.write("]}");
+        }
+
+        @Override
+        void begin(PrintWriter out) {
+            out.write('[');
+        }
+
+        @Override
+        void separator(PrintWriter out) {
+            out.write(',');
+        }
+
+        @Override
+        void end(PrintWriter out) {
+            out.println(']');
+        }
+    },
+    /**
+     * Collapsed stacks для построения flame graph: одинаковые стеки
+     * потоков объединяются, кадры идут от корня через <code>;</code>,
+     * в конце строки - количество потоков. Строки нескольких дампов
+     * можно просто склеить, инструменты суммируют одинаковые стеки.
+     */
+    COLLAPSED("text/plain") {
+        @Override
+        void write(PrintWriter out, DumpRecord dump) {
+            Map<String, int[]> stacks = new LinkedHashMap<>();
+            StringBuilder buf = new StringBuilder();
+            for (ThreadRecord thread: dump.getThreads()) {
+                String frames[] = thread.getFrames();
+                if (frames.length == 0) {
+                    continue;
+                }
+                buf.setLength(0);
+                for (int i = frames.length - 1; i >= 0; i--) {
+                    buf.append(method(frames[i]));
+                    if (i > 0) {
+                        buf.append(';');
+                    }
+                }
+                String stack = buf.toString();
+                int count[] = stacks.get(stack);
+                if (count == null) {
+                    stacks.put(stack, new int[] {1});
+                } else {
+                    count[0]++;
+                }
+            }
+            for (Map.Entry<String, int[]> entry: stacks.entrySet()) {
+                out.write(entry.getKey());
+                out.write(' ');
+                out.println(entry.getValue()[0]);
+            }
+        }
+
+        @Override
+        void separator(PrintWriter out) {
+            // строки дампов не разделяются
+        }
+    };
+
+    private final String contentType;
+
+    private DumpFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    String getContentType() {
+        return contentType;
+    }
+
+    abstract void write(PrintWriter out, DumpRecord dump);
+
+    /**
+     * Выводится перед последовательностью дампов.
+     */
+    void begin(PrintWriter out) {
+        // по умолчанию ничего
+    }
+
+    /**
+     * Выводится между дампами последовательности.
+     */
+    void separator(PrintWriter out) {
+        out.println();
+    }
+
+    /**
+     * Выводится после последовательности дампов.
+     */
+    void end(PrintWriter out) {
+        // по умолчанию ничего
+    }
+
+    private static void thread(PrintWriter out, ThreadRecord thread) {
+        out.printf("{\"id\":%d,\"name\":", thread.getId());
+        string(out, thread.getName());
+        out.write(",\"state\":");
+        string(out, String.valueOf(thread.getState()));
+        if (thread.getLockName() != null) {
+            out.write(",\"lockName\":");
+            string(out, thread.getLockName());
+        }
+        if (thread.getLockOwnerName() != null) {
+            out.write(",\"lockOwnerName\":");
+            string(out, thread.getLockOwnerName());
+            out.printf(",\"lockOwnerId\":%d", thread.getLockOwnerId());
+        }
+        out.printf(",\"suspended\":%b,\"inNative\":%b", thread.isSuspended(), thread.isInNative());
+        if (thread.getCpuTime() >= 0) {
+            out.printf(",\"cpuTime\":%d", thread.getCpuTime());
+        }
+        if (thread.getCpuTimeDelta() >= 0) {
+            out.printf(",\"cpuTimeDelta\":%d", thread.getCpuTimeDelta());
+        }
+        out.write(",\"frames\":");
+        strings(out, thread.getFrames());
+        String monitors[] = thread.getLockedMonitors();
+        if (monitors.length > 0) {
+            int depths[] = thread.getLockedMonitorDepths();
+            out.write(",\"lockedMonitors\":[");
+            for (int i = 0; i < monitors.length; i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                out.write("{\"lock\":");
+                string(out, monitors[i]);
+                out.printf(",\"depth\":%d}", depths[i]);
+            }
+            out.write(']');
+        }
+        if (thread.getLockedSynchronizers().length > 0) {
+            out.write(",\"lockedSynchronizers\":");
+            strings(out, thread.getLockedSynchronizers());
+        }
+        out.write('}');
+    }
+
+    private static void strings(PrintWriter out, String values[]) {
+        out.write('[');
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            string(out, values[i]);
+        }
+        out.write(']');
+    }
+
+    static void string(PrintWriter out, String value) {
+        if (value == null) {
+            out.write("null");
+            return;
+        }
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                out.write("\\\"");
+                break;
+            case '\\':
+                out.write("\\\\");
+                break;
+            case '\n':
+                out.write("\\n");
+                break;
+            case '\r':
+                out.write("\\r");
+                break;
+            case '\t':
+                out.write("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    out.printf("\\u%04x", (int) c);
+                } else {
+                    out.write(c);
+                }
+            }
+        }
+        out.write('"');
+    }
+
+    /**
+     * @return кадр без имени модуля, загрузчика и места в исходном коде,
+     *         например <code>java.lang.Thread.run</code>
+     */
+    static String method(String frame) {
+        int end = frame.indexOf('(');
+        String result = end < 0 ? frame : frame.substring(0, end);
+        int slash = result.indexOf('/');
+        // у лямбд косая черта входит в имя класса
+        if (slash >= 0 && result.lastIndexOf('$', slash) < 0) {
+            int start = slash + 1 < result.length() && result.charAt(slash + 1) == '/' ? slash + 2 : slash + 1;
+            result = result.substring(start);
+        }
+        return result.replace(';', ':');
+    }
+}
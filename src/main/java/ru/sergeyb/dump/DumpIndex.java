@@ -0,0 +1,599 @@
+package ru.sergeyb.dump;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Инвертированный индекс дампов за день. Для каждого потока каждого
+ * дампа индексируются термы: имя потока, состояние, кадры стека и классы
+ * из них, ожидаемая блокировка, ее владелец и захваченные блокировки.
+ * Набор термов потока хранится один раз, а дамп ссылается на номера
+ * наборов, поэтому повторяющиеся потоки почти не увеличивают индекс.
+ * По терму находятся наборы, в которые он входит, а по наборам - дампы и потоки.
+ * <p>
+ * Файл индекса {@link #FILE_NAME} лежит в каталоге дня, пополняется при
+ * записи каждого структурированного дампа и только дописывается в конец:
+ * блок словаря с новыми термами и наборами, затем блок дампа. Формат
+ * блока такой же, как в {@link StackStore}. Индекс упаковывается в архив
+ * и удаляется при ротации вместе с дампами своего дня.
+ * <p>
+ * Запрос состоит из условий вида <code>поле:значение</code>, которые
+ * должны выполняться для одного и того же потока. Значение со звездочкой
+ * в конце задает префикс, значение с пробелами заключается в кавычки.
+ * Поля: thread, state, frame, class, lock, owner, holds.
+ *
+ * @author sergeyb
+ */
+class DumpIndex implements Closeable {
+    static final String FILE_NAME = "thread-dumps.inv";
+    private static final String FIELDS[] = {"thread", "state", "frame", "class", "lock", "owner", "holds"};
+    private static final int MAGIC = 0x54444931;
+    private static final int HEADER_SIZE = 4;
+    private static final byte DICTIONARY = 'D';
+    private static final byte DUMP = 'T';
+    private static final int CACHED_DAYS = 7;
+    private static final Object writerLock = new Object();
+    private static DumpIndex writer;
+    private static final Map<String, Segment> cache = new LinkedHashMap<String, Segment>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Segment> eldest) {
+            return size() > CACHED_DAYS;
+        }
+    };
+    private final Path file;
+    private final FileChannel channel;
+    private final Segment segment;
+    private long size;
+
+    private DumpIndex(Path file, FileChannel channel, Segment segment, long size) {
+        this.file = file;
+        this.channel = channel;
+        this.segment = segment;
+        this.size = size;
+    }
+
+    /**
+     * Добавляет дамп в индекс каталога дня. При смене дня индекс
+     * предыдущего дня закрывается.
+     *
+     * @param name имя дампа в каталоге дня
+     */
+    static void add(Path dumpDir, String name, DumpRecord dump) throws IOException {
+        synchronized (writerLock) {
+            Path file = dumpDir.resolve(FILE_NAME);
+            if (writer != null && !writer.file.equals(file)) {
+                closeWriter();
+            }
+            if (writer == null) {
+                writer = open(file);
+            }
+            try {
+                writer.append(name, dump);
+            } catch (IOException e) {
+                closeWriter();
+                throw e;
+            }
+        }
+    }
+
+    static void closeWriter() {
+        synchronized (writerLock) {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    ThreadDumpImpl.logger.log(Level.SEVERE, e.getMessage(), e);
+                }
+                writer = null;
+            }
+        }
+    }
+
+    private static DumpIndex open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            Segment segment = new Segment();
+            long good;
+            if (channel.size() < HEADER_SIZE) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC);
+                header.flip();
+                channel.truncate(0);
+                channel.write(header, 0);
+                good = HEADER_SIZE;
+            } else {
+                good = segment.load(Files.newInputStream(file));
+                if (good < channel.size()) {
+                    ThreadDumpImpl.logger.log(Level.WARNING, "Truncating incomplete record at offset {0} of {1}", new Object[] {good, file});
+                    channel.truncate(good);
+                }
+            }
+            return new DumpIndex(file, channel, segment, good);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void append(String name, DumpRecord dump) throws IOException {
+        ThreadRecord threads[] = dump.getThreads();
+        List<String> newTerms = new ArrayList<>();
+        Map<String, Integer> newTermIds = new HashMap<>();
+        List<int[]> newTermsets = new ArrayList<>();
+        Map<TermsetKey, Integer> newTermsetIds = new HashMap<>();
+        long ids[] = new long[threads.length];
+        int termsets[] = new int[threads.length];
+        Set<String> terms = new LinkedHashSet<>();
+        for (int i = 0; i < threads.length; i++) {
+            terms.clear();
+            addTerms(terms, threads[i]);
+            int termset[] = new int[terms.size()];
+            int j = 0;
+            for (String term: terms) {
+                Integer id = segment.termIds.get(term);
+                if (id == null) {
+                    id = newTermIds.get(term);
+                    if (id == null) {
+                        id = segment.terms.size() + newTerms.size();
+                        newTerms.add(term);
+                        newTermIds.put(term, id);
+                    }
+                }
+                termset[j++] = id;
+            }
+            TermsetKey key = new TermsetKey(termset);
+            Integer id = segment.termsetIds.get(key);
+            if (id == null) {
+                id = newTermsetIds.get(key);
+                if (id == null) {
+                    id = segment.termsets.size() + newTermsets.size();
+                    newTermsets.add(termset);
+                    newTermsetIds.put(key, id);
+                }
+            }
+            ids[i] = threads[i].getId();
+            termsets[i] = id;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(threads.length * 12 + 1024);
+        DataOutputStream out = new DataOutputStream(bytes);
+        if (!newTerms.isEmpty() || !newTermsets.isEmpty()) {
+            ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+            DataOutputStream dictionaryOut = new DataOutputStream(dictionary);
+            dictionaryOut.writeInt(newTerms.size());
+            for (String term: newTerms) {
+                dictionaryOut.writeUTF(term);
+            }
+            dictionaryOut.writeInt(newTermsets.size());
+            for (int termset[]: newTermsets) {
+                dictionaryOut.writeInt(termset.length);
+                for (int id: termset) {
+                    dictionaryOut.writeInt(id);
+                }
+            }
+            dictionaryOut.flush();
+            writeBlock(out, DICTIONARY, dictionary);
+        }
+        ByteArrayOutputStream dumpBytes = new ByteArrayOutputStream(threads.length * 12 + 64);
+        DataOutputStream dumpOut = new DataOutputStream(dumpBytes);
+        dumpOut.writeLong(dump.getDate().getTime());
+        dumpOut.writeUTF(name);
+        dumpOut.writeInt(threads.length);
+        for (int i = 0; i < threads.length; i++) {
+            dumpOut.writeLong(ids[i]);
+            dumpOut.writeInt(termsets[i]);
+        }
+        dumpOut.flush();
+        writeBlock(out, DUMP, dumpBytes);
+        out.flush();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        long p = size;
+        try {
+            while (buffer.hasRemaining()) {
+                p += channel.write(buffer, p);
+            }
+        } catch (IOException e) {
+            channel.truncate(size);
+            throw e;
+        }
+        size = p;
+        // в память попадает только то, что уже записано в файл
+        segment.addDictionary(newTerms, newTermsets);
+        segment.addDump(dump.getDate().getTime(), name, ids, termsets);
+    }
+
+    private static void writeBlock(DataOutputStream out, byte type, ByteArrayOutputStream payload) throws IOException {
+        out.writeInt(payload.size());
+        out.writeByte(type);
+        payload.writeTo(out);
+    }
+
+    private static void addTerms(Set<String> terms, ThreadRecord thread) {
+        // имя и состояние всегда первые: по ним выводится результат поиска
+        terms.add("thread:" + thread.getName());
+        terms.add("state:" + thread.getState());
+        if (thread.getLockName() != null) {
+            terms.add("lock:" + thread.getLockName());
+        }
+        if (thread.getLockOwnerName() != null) {
+            terms.add("owner:" + thread.getLockOwnerName());
+        }
+        for (String lock: thread.getLockedMonitors()) {
+            terms.add("holds:" + lock);
+        }
+        for (String lock: thread.getLockedSynchronizers()) {
+            terms.add("holds:" + lock);
+        }
+        for (String frame: thread.getFrames()) {
+            String method = DumpFormat.method(frame);
+            terms.add("frame:" + method);
+            int i = method.lastIndexOf('.');
+            if (i > 0) {
+                terms.add("class:" + method.substring(0, i));
+            }
+        }
+    }
+
+    /**
+     * Ищет потоки по индексам дней интервала.
+     *
+     * @param parentDir корневой каталог дампов
+     * @param from начало интервала
+     * @param to конец интервала включительно
+     * @param query условия поиска
+     * @param limit максимальное количество результатов
+     * @return строки вида <code>yyyy-MM-dd/thread-dump-...txt "имя потока" Id=1 BLOCKED</code>
+     */
+    static List<String> search(Path parentDir, Date from, Date to, String query, int limit) throws IOException {
+        List<String[]> clauses = parse(query);
+        List<String> result = new ArrayList<>();
+        Calendar day = Calendar.getInstance();
+        day.setTime(from);
+        String lastDay = String.format("%1$tY-%1$tm-%1$td", to);
+        for (String name = String.format("%1$tY-%1$tm-%1$td", day); name.compareTo(lastDay) <= 0 && result.size() < limit;
+                name = String.format("%1$tY-%1$tm-%1$td", day)) {
+            Segment segment = getSegment(parentDir, name);
+            if (segment != null) {
+                segment.search(name, clauses, from.getTime(), to.getTime(), limit, result);
+            }
+            day.add(Calendar.DATE, 1);
+        }
+        return result;
+    }
+
+    /**
+     * Возвращает индекс дня: для текущего дня - тот, который пополняется,
+     * для остальных - загруженный из каталога или архива дня.
+     */
+    private static Segment getSegment(Path parentDir, String day) throws IOException {
+        Path dayDir = parentDir.resolve(day);
+        Path file = dayDir.resolve(FILE_NAME);
+        synchronized (writerLock) {
+            if (writer != null && writer.file.equals(file)) {
+                return writer.segment;
+            }
+        }
+        if (Files.isRegularFile(file)) {
+            long length = Files.size(file);
+            synchronized (cache) {
+                Segment cached = cache.get(day);
+                if (cached != null && cached.length == length) {
+                    return cached;
+                }
+            }
+            Segment segment = new Segment();
+            segment.length = length;
+            segment.load(Files.newInputStream(file));
+            synchronized (cache) {
+                cache.put(day, segment);
+            }
+            return segment;
+        }
+        Path archive = DumpArchive.getArchive(parentDir, day);
+        if (Files.exists(archive)) {
+            try (ZipFile zip = new ZipFile(archive.toFile())) {
+                ZipEntry entry = zip.getEntry(FILE_NAME);
+                if (entry == null) {
+                    return null;
+                }
+                synchronized (cache) {
+                    Segment cached = cache.get(day);
+                    if (cached != null && cached.length == entry.getSize()) {
+                        return cached;
+                    }
+                }
+                Segment segment = new Segment();
+                segment.length = entry.getSize();
+                segment.load(zip.getInputStream(entry));
+                synchronized (cache) {
+                    cache.put(day, segment);
+                }
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Разбирает запрос на условия.
+     *
+     * @return пары из префикса терма (поле с двоеточием и значение) и признака
+     *         поиска по префиксу (<code>"*"</code>) или <code>null</code>
+     */
+    static List<String[]> parse(String query) {
+        List<String[]> result = new ArrayList<>();
+        int i = 0;
+        int n = query.length();
+        while (i < n) {
+            if (Character.isWhitespace(query.charAt(i))) {
+                i++;
+                continue;
+            }
+            int colon = query.indexOf(':', i);
+            if (colon < 0) {
+                throw new IllegalArgumentException(String.format("Invalid condition %s, expected field:value", query.substring(i)));
+            }
+            String field = query.substring(i, colon).toLowerCase(Locale.ROOT);
+            if (!Arrays.asList(FIELDS).contains(field)) {
+                throw new IllegalArgumentException(String.format("Unknown field %s, expected one of %s", field, Arrays.toString(FIELDS)));
+            }
+            String value;
+            i = colon + 1;
+            if (i < n && query.charAt(i) == '"') {
+                int end = query.indexOf('"', i + 1);
+                if (end < 0) {
+                    throw new IllegalArgumentException(String.format("Unterminated quote in %s", query));
+                }
+                value = query.substring(i + 1, end);
+                i = end + 1;
+                if (i < n && query.charAt(i) == '*') {
+                    value += '*';
+                    i++;
+                }
+            } else {
+                int end = i;
+                while (end < n && !Character.isWhitespace(query.charAt(end))) {
+                    end++;
+                }
+                value = query.substring(i, end);
+                i = end;
+            }
+            boolean prefix = value.endsWith("*");
+            if (prefix) {
+                value = value.substring(0, value.length() - 1);
+            }
+            if (field.equals("state")) {
+                value = value.toUpperCase(Locale.ROOT);
+            }
+            result.add(new String[] {field + ":" + value, prefix ? "*" : null});
+        }
+        if (result.isEmpty()) {
+            throw new IllegalArgumentException("Empty query");
+        }
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Индекс одного дня в памяти.
+     */
+    private static final class Segment {
+        final List<String> terms = new ArrayList<>();
+        final NavigableMap<String, Integer> termIds = new TreeMap<>();
+        final List<int[]> termsets = new ArrayList<>();
+        final Map<TermsetKey, Integer> termsetIds = new HashMap<>();
+        int postings[][] = new int[1024][];
+        int postingSizes[] = new int[1024];
+        final List<String> dumpNames = new ArrayList<>();
+        long dumpTimes[] = new long[256];
+        final List<long[]> threadIds = new ArrayList<>();
+        final List<int[]> threadTermsets = new ArrayList<>();
+        long length;
+
+        /**
+         * @return смещение конца последнего целого блока
+         */
+        long load(InputStream input) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(input, 65536))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a thread dump index");
+                }
+                long offset = HEADER_SIZE;
+                while (true) {
+                    int blockLength;
+                    byte type;
+                    try {
+                        blockLength = in.readInt();
+                        type = in.readByte();
+                    } catch (EOFException e) {
+                        return offset;
+                    }
+                    byte payload[] = new byte[blockLength];
+                    try {
+                        in.readFully(payload);
+                    } catch (EOFException e) {
+                        return offset;
+                    }
+                    DataInputStream block = new DataInputStream(new ByteArrayInputStream(payload));
+                    if (type == DICTIONARY) {
+                        List<String> newTerms = new ArrayList<>();
+                        for (int i = block.readInt(); i > 0; i--) {
+                            newTerms.add(block.readUTF());
+                        }
+                        List<int[]> newTermsets = new ArrayList<>();
+                        for (int i = block.readInt(); i > 0; i--) {
+                            int termset[] = new int[block.readInt()];
+                            for (int j = 0; j < termset.length; j++) {
+                                termset[j] = block.readInt();
+                            }
+                            newTermsets.add(termset);
+                        }
+                        addDictionary(newTerms, newTermsets);
+                    } else if (type == DUMP) {
+                        long time = block.readLong();
+                        String name = block.readUTF();
+                        int n = block.readInt();
+                        long ids[] = new long[n];
+                        int sets[] = new int[n];
+                        for (int i = 0; i < n; i++) {
+                            ids[i] = block.readLong();
+                            sets[i] = block.readInt();
+                        }
+                        addDump(time, name, ids, sets);
+                    }
+                    offset += StackStore.BLOCK_HEADER_SIZE + blockLength;
+                }
+            } catch (EOFException e) {
+                return 0;
+            }
+        }
+
+        synchronized void addDictionary(List<String> newTerms, List<int[]> newTermsets) {
+            for (String term: newTerms) {
+                termIds.put(term, terms.size());
+                terms.add(term);
+            }
+            if (terms.size() > postings.length) {
+                int capacity = Math.max(terms.size(), postings.length * 2);
+                postings = Arrays.copyOf(postings, capacity);
+                postingSizes = Arrays.copyOf(postingSizes, capacity);
+            }
+            for (int termset[]: newTermsets) {
+                int id = termsets.size();
+                termsets.add(termset);
+                termsetIds.put(new TermsetKey(termset), id);
+                for (int term: termset) {
+                    int list[] = postings[term];
+                    if (list == null) {
+                        list = new int[4];
+                    } else if (postingSizes[term] == list.length) {
+                        list = Arrays.copyOf(list, list.length * 2);
+                    }
+                    list[postingSizes[term]++] = id;
+                    postings[term] = list;
+                }
+            }
+        }
+
+        synchronized void addDump(long time, String name, long ids[], int sets[]) {
+            int i = dumpNames.size();
+            if (i == dumpTimes.length) {
+                dumpTimes = Arrays.copyOf(dumpTimes, i * 2);
+            }
+            dumpTimes[i] = time;
+            dumpNames.add(name);
+            threadIds.add(ids);
+            threadTermsets.add(sets);
+        }
+
+        /**
+         * @return номера наборов термов, удовлетворяющих всем условиям
+         */
+        private BitSet match(List<String[]> clauses) {
+            BitSet result = null;
+            for (String clause[]: clauses) {
+                BitSet sets = new BitSet(termsets.size());
+                if (clause[1] == null) {
+                    addPostings(sets, termIds.get(clause[0]));
+                } else {
+                    for (Integer term: termIds.subMap(clause[0], true, clause[0] + Character.MAX_VALUE, false).values()) {
+                        addPostings(sets, term);
+                    }
+                }
+                if (result == null) {
+                    result = sets;
+                } else {
+                    result.and(sets);
+                }
+                if (result.isEmpty()) {
+                    break;
+                }
+            }
+            return result;
+        }
+
+        private void addPostings(BitSet sets, Integer term) {
+            if (term == null || postings[term] == null) {
+                return;
+            }
+            int list[] = postings[term];
+            for (int i = postingSizes[term] - 1; i >= 0; i--) {
+                sets.set(list[i]);
+            }
+        }
+
+        synchronized void search(String day, List<String[]> clauses, long from, long to, int limit, List<String> result) {
+            BitSet sets = match(clauses);
+            if (sets.isEmpty()) {
+                return;
+            }
+            for (int i = 0; i < dumpNames.size() && result.size() < limit; i++) {
+                if (dumpTimes[i] < from || dumpTimes[i] > to) {
+                    continue;
+                }
+                long ids[] = threadIds.get(i);
+                int dumpSets[] = threadTermsets.get(i);
+                for (int j = 0; j < dumpSets.length && result.size() < limit; j++) {
+                    if (sets.get(dumpSets[j])) {
+                        int termset[] = termsets.get(dumpSets[j]);
+                        result.add(String.format("%s/%s \"%s\" Id=%d %s", day, dumpNames.get(i), terms.get(termset[0]).substring("thread:".length()),
+                            ids[j], terms.get(termset[1]).substring("state:".length())));
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class TermsetKey {
+        private final int ids[];
+        private final int hash;
+
+        TermsetKey(int ids[]) {
+            this.ids = ids;
+            this.hash = Arrays.hashCode(ids);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof TermsetKey && Arrays.equals(ids, ((TermsetKey) obj).ids);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package ru.sergeyb.dump;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Показатели работы сохранения дампов по одному способу снятия дампа,
+ * а также общие показатели планировщика и ротации.
+ * Все значения хранятся в счетчиках без блокировок.
+ *
+ * @author sergeyb
+ */
+class DumpMetrics {
+    private static final Map<DumpType, DumpMetrics> metrics;
+    private static final Histogram schedulerLag = new Histogram(Histogram.MILLIS_BOUNDS);
+    private static final Histogram rotationTime = new Histogram(Histogram.MILLIS_BOUNDS);
+    private static final AtomicLong rotatedFiles = new AtomicLong(0);
+    private static final AtomicLong coalescedTicks = new AtomicLong(0);
+    private final Histogram captureTime;
+    private final Histogram writeTime;
+    private final Histogram totalTime;
+    private final AtomicLong dumps;
+    private final AtomicLong failures;
+    private final AtomicLong timeouts;
+    private final AtomicLong bytes;
+    private final AtomicLong threads;
+
+    static {
+        Map<DumpType, DumpMetrics> theMetrics = new EnumMap<>(DumpType.class);
+        for (DumpType dumpType: DumpType.values()) {
+            theMetrics.put(dumpType, new DumpMetrics());
+        }
+        metrics = theMetrics;
+    }
+
+    private DumpMetrics() {
+        this.captureTime = new Histogram(Histogram.MILLIS_BOUNDS);
+        this.writeTime = new Histogram(Histogram.MILLIS_BOUNDS);
+        this.totalTime = new Histogram(Histogram.MILLIS_BOUNDS);
+        this.dumps = new AtomicLong(0);
+        this.failures = new AtomicLong(0);
+        this.timeouts = new AtomicLong(0);
+        this.bytes = new AtomicLong(0);
+        this.threads = new AtomicLong(0);
+    }
+
+    static DumpMetrics of(DumpType dumpType) {
+        return metrics.get(dumpType);
+    }
+
+    /**
+     * Время снятия дампа в память.
+     */
+    void captured(long nanos) {
+        captureTime.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    /**
+     * Время записи снятого дампа в файл или хранилище.
+     */
+    void written(long nanos) {
+        writeTime.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    /**
+     * Учитывает успешно сохраненный дамп.
+     *
+     * @param nanos полное время сохранения
+     * @param size количество байт, записанных на диск
+     * @param threadCount количество потоков в дампе или -1, если оно неизвестно
+     */
+    void dumped(long nanos, long size, int threadCount) {
+        totalTime.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+        dumps.incrementAndGet();
+        bytes.addAndGet(size);
+        if (threadCount >= 0) {
+            threads.addAndGet(threadCount);
+        }
+    }
+
+    void failed() {
+        failures.incrementAndGet();
+    }
+
+    /**
+     * Учитывает дамп, отмененный по истечении времени.
+     */
+    void timedOut() {
+        timeouts.incrementAndGet();
+        failures.incrementAndGet();
+    }
+
+    Histogram getCaptureTime() {
+        return captureTime;
+    }
+
+    Histogram getWriteTime() {
+        return writeTime;
+    }
+
+    Histogram getTotalTime() {
+        return totalTime;
+    }
+
+    long getDumps() {
+        return dumps.get();
+    }
+
+    long getFailures() {
+        return failures.get();
+    }
+
+    long getTimeouts() {
+        return timeouts.get();
+    }
+
+    long getBytes() {
+        return bytes.get();
+    }
+
+    long getThreads() {
+        return threads.get();
+    }
+
+    private void reset() {
+        captureTime.reset();
+        writeTime.reset();
+        totalTime.reset();
+        dumps.set(0);
+        failures.set(0);
+        timeouts.set(0);
+        bytes.set(0);
+        threads.set(0);
+    }
+
+    /**
+     * Учитывает отставание планового дампа от запланированного времени.
+     *
+     * @param lagMs отставание в миллисекундах
+     */
+    static void tickFired(long lagMs) {
+        schedulerLag.record(lagMs);
+    }
+
+    /**
+     * Учитывает пропущенное срабатывание планового дампа.
+     */
+    static void tickCoalesced() {
+        coalescedTicks.incrementAndGet();
+    }
+
+    static long getCoalescedTicks() {
+        return coalescedTicks.get();
+    }
+
+    static Histogram getSchedulerLag() {
+        return schedulerLag;
+    }
+
+    static void rotated(long nanos, int deletedFiles) {
+        rotationTime.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+        rotatedFiles.addAndGet(deletedFiles);
+    }
+
+    static Histogram getRotationTime() {
+        return rotationTime;
+    }
+
+    static long getRotatedFiles() {
+        return rotatedFiles.get();
+    }
+
+    static void resetAll() {
+        for (DumpMetrics m: metrics.values()) {
+            m.reset();
+        }
+        schedulerLag.reset();
+        rotationTime.reset();
+        rotatedFiles.set(0);
+        coalescedTicks.set(0);
+    }
+}
@@ -0,0 +1,108 @@
+package ru.sergeyb.dump;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Дамп потоков в структурированном виде.
+ * <p>
+ * Дамп может быть разностным: тогда он содержит только потоки, которые
+ * появились или изменились по сравнению с предыдущим дампом,
+ * и потоки, которые к этому моменту завершились.
+ *
+ * @author sergeyb
+ */
+class DumpRecord {
+    private static final ThreadRecord NO_THREADS[] = new ThreadRecord[0];
+    private final DumpType type;
+    private final Date date;
+    private final String host;
+    private final ThreadRecord threads[];
+    private final String base;
+    private final ThreadRecord endedThreads[];
+    private long cpuInterval;
+
+    DumpRecord(DumpType type, Date date, String host, ThreadRecord threads[]) {
+        this(type, date, host, threads, null, null);
+    }
+
+    /**
+     * @param base имя предыдущего дампа, если дамп разностный, иначе <code>null</code>
+     * @param endedThreads потоки предыдущего дампа, которые завершились; у них заполнены только идентификатор и имя
+     */
+    DumpRecord(DumpType type, Date date, String host, ThreadRecord threads[], String base, ThreadRecord endedThreads[]) {
+        this.type = type;
+        this.date = date;
+        this.host = host;
+        this.threads = threads;
+        this.base = base;
+        this.endedThreads = endedThreads == null ? NO_THREADS : endedThreads;
+    }
+
+    /**
+     * @return тип дампа, который определяет формат текстового представления
+     */
+    DumpType getType() {
+        return type;
+    }
+
+    Date getDate() {
+        return date;
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    ThreadRecord[] getThreads() {
+        return threads;
+    }
+
+    /**
+     * @return время между замерами процессорного времени потоков этого
+     *         и предыдущего дампа в наносекундах или 0, если замера не было
+     */
+    long getCpuInterval() {
+        return cpuInterval;
+    }
+
+    void setCpuInterval(long cpuInterval) {
+        this.cpuInterval = cpuInterval;
+    }
+
+    boolean isDelta() {
+        return base != null;
+    }
+
+    /**
+     * @return имя предыдущего дампа для разностного дампа или <code>null</code>
+     */
+    String getBase() {
+        return base;
+    }
+
+    ThreadRecord[] getEndedThreads() {
+        return endedThreads;
+    }
+
+    /**
+     * Применяет к полному дампу следующий за ним разностный дамп.
+     * Порядок неизменившихся потоков сохраняется, новые потоки добавляются в конец.
+     *
+     * @return полный дамп на момент разностного дампа
+     */
+    DumpRecord applyDelta(DumpRecord delta) {
+        Map<Long, ThreadRecord> result = new LinkedHashMap<>(threads.length * 2);
+        for (ThreadRecord thread: threads) {
+            result.put(thread.getId(), thread);
+        }
+        for (ThreadRecord thread: delta.getEndedThreads()) {
+            result.remove(thread.getId());
+        }
+        for (ThreadRecord thread: delta.getThreads()) {
+            result.put(thread.getId(), thread);
+        }
+        return new DumpRecord(delta.getType(), delta.getDate(), delta.getHost(), result.values().toArray(new ThreadRecord[result.size()]));
+    }
+}
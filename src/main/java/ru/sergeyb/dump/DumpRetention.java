@@ -0,0 +1,307 @@
+package ru.sergeyb.dump;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Хранение дампов с ограничением по возрасту и по объему. В памяти
+ * ведется каталог дней: каталоги дней и архивы дней с их размерами.
+ * Каталог строится просмотром только корневого каталога и каталогов дней,
+ * затем пополняется размерами записанных дампов, поэтому проверка
+ * ограничений после каждого дампа не обращается к диску. Дни удаляются
+ * начиная с самого старого, пока выполняются условия удаления, так что
+ * время очистки пропорционально количеству удаляемых файлов.
+ * День удаляется по возрасту, когда с его начала прошло больше заданного
+ * количества дней, то есть день d удаляется, начиная с дня d + rotateDays.
+ * Текущий день никогда не удаляется, а день, который в это время
+ * упаковывается {@link DumpCompactor}, удаляется после упаковки.
+ * <p>
+ * Имена каталогов дней имеют вид yyyy-MM-dd, поэтому порядок строк
+ * совпадает с порядком дат и разбор дат не нужен.
+ *
+ * @author sergeyb
+ */
+class DumpRetention {
+    private static final long MB = 1024 * 1024;
+    private static final AtomicInteger maxTotalMb = new AtomicInteger(-1);
+    private static final AtomicInteger minFreeMb = new AtomicInteger(-1);
+    private static final TreeMap<String, long[]> days = new TreeMap<>();
+    private static Path catalogDir;
+    private static long totalBytes;
+
+    private DumpRetention() {
+        // hidden constructor
+    }
+
+    /**
+     * @return максимальный объем всех дампов в мегабайтах, 0 - без ограничения
+     */
+    static int getMaxTotalMb() {
+        if (maxTotalMb.get() < 0) {
+            maxTotalMb.compareAndSet(-1, Math.max(ThreadDumpImpl.getPreferences().getInt("retentionMaxTotalMb", 0), 0));
+        }
+        return maxTotalMb.get();
+    }
+
+    static void setMaxTotalMb(int value) {
+        maxTotalMb.set(Math.max(value, 0));
+        ThreadDumpImpl.getPreferences().putInt("retentionMaxTotalMb", maxTotalMb.get());
+        ThreadDumpImpl.logger.log(Level.INFO, "Maximum total size of thread dumps set to {0} MB.", new Object[] {maxTotalMb.get()});
+    }
+
+    /**
+     * @return минимальное свободное место на диске в мегабайтах, 0 - не проверяется
+     */
+    static int getMinFreeMb() {
+        if (minFreeMb.get() < 0) {
+            minFreeMb.compareAndSet(-1, Math.max(ThreadDumpImpl.getPreferences().getInt("retentionMinFreeMb", 0), 0));
+        }
+        return minFreeMb.get();
+    }
+
+    static void setMinFreeMb(int value) {
+        minFreeMb.set(Math.max(value, 0));
+        ThreadDumpImpl.getPreferences().putInt("retentionMinFreeMb", minFreeMb.get());
+        ThreadDumpImpl.logger.log(Level.INFO, "Minimum free disk space set to {0} MB.", new Object[] {minFreeMb.get()});
+    }
+
+    /**
+     * Перестраивает каталог по содержимому корневого каталога дампов.
+     * Файлы внутри каталогов дней не читаются, только их размеры.
+     */
+    static synchronized void scan(Path parentDir) {
+        days.clear();
+        totalBytes = 0;
+        catalogDir = parentDir;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(parentDir)) {
+            for (Path path: stream) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(DumpArchive.ARCHIVE_SUFFIX)) {
+                    String day = name.substring(0, name.length() - DumpArchive.ARCHIVE_SUFFIX.length());
+                    if (DumpArchive.isDay(day)) {
+                        add(day, size(path));
+                    }
+                } else if (DumpArchive.isDay(name) && Files.isDirectory(path)) {
+                    add(name, directorySize(path));
+                }
+            }
+        } catch (IOException e) {
+            ThreadDumpImpl.logger.log(Level.SEVERE, "Failed to scan {0}. Error = {1}", new Object[] {parentDir, e.toString()});
+        }
+    }
+
+    /**
+     * Учитывает записанные в каталог дня байты.
+     */
+    static synchronized void added(Path parentDir, Date date, long bytes) {
+        if (!parentDir.equals(catalogDir)) {
+            scan(parentDir);
+            return;
+        }
+        add(String.format("%1$tY-%1$tm-%1$td", date), bytes);
+    }
+
+    private static void add(String day, long bytes) {
+        long entry[] = days.get(day);
+        if (entry == null) {
+            entry = new long[1];
+            days.put(day, entry);
+        }
+        entry[0] += bytes;
+        totalBytes += bytes;
+    }
+
+    /**
+     * Удаляет самые старые дни, пока они старше заданного количества дней,
+     * общий объем больше заданного или свободного места на диске меньше заданного.
+     *
+     * @param rotateDays количество дней хранения, 0 - дни не удаляются по возрасту
+     *        (ограничения объема и свободного места при этом действуют)
+     */
+    static synchronized void enforce(Path parentDir, Date date, int rotateDays) {
+        if (!parentDir.equals(catalogDir)) {
+            scan(parentDir);
+        }
+        long start = System.nanoTime();
+        String today = String.format("%1$tY-%1$tm-%1$td", date);
+        String expired = null;
+        if (rotateDays > 0) {
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTime(date);
+            calendar.add(Calendar.DATE, -rotateDays);
+            expired = String.format("%1$tY-%1$tm-%1$td", calendar);
+        }
+        long maxBytes = getMaxTotalMb() * MB;
+        long minFreeBytes = getMinFreeMb() * MB;
+        int deleted = 0;
+        while (!days.isEmpty()) {
+            String oldest = days.firstKey();
+            if (oldest.compareTo(today) >= 0) {
+                break;
+            }
+            String reason;
+            if (expired != null && oldest.compareTo(expired) <= 0) {
+                reason = "expired";
+            } else if (maxBytes > 0 && totalBytes > maxBytes) {
+                reason = String.format("total size %d bytes exceeds %d MB", totalBytes, getMaxTotalMb());
+            } else if (minFreeBytes > 0 && getUsableSpace(parentDir) < minFreeBytes) {
+                reason = String.format("free disk space is below %d MB", getMinFreeMb());
+            } else {
+                break;
+            }
+            if (!DumpArchive.lockDay(parentDir, oldest)) {
+                // день будет удален при первой проверке после упаковки
+                ThreadDumpImpl.logger.log(Level.INFO, "Thread dumps of {0} are being archived, deletion postponed.", new Object[] {oldest});
+                break;
+            }
+            ThreadDumpImpl.logger.log(Level.INFO, "Deleting thread dumps of {0}: {1}.", new Object[] {oldest, reason});
+            try {
+                deleted += delete(parentDir, oldest);
+            } finally {
+                DumpArchive.unlockDay(parentDir, oldest);
+            }
+            totalBytes -= days.remove(oldest)[0];
+        }
+        if (deleted > 0) {
+            DumpMetrics.rotated(System.nanoTime() - start, deleted);
+        }
+    }
+
+    /**
+     * Удаляет дни старше заданного количества дней в каталоге, который
+     * не ведется в каталоге хранения, например, в каталоге дампов другой JVM.
+     *
+     * @param rotateDays количество дней хранения, 0 - дни не удаляются
+     */
+    static void expire(Path parentDir, Date date, int rotateDays) {
+        if (rotateDays <= 0) {
+            return;
+        }
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(date);
+        calendar.add(Calendar.DATE, -rotateDays);
+        String expired = String.format("%1$tY-%1$tm-%1$td", calendar);
+        List<String> days = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(parentDir)) {
+            for (Path path: stream) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(DumpArchive.ARCHIVE_SUFFIX)) {
+                    name = name.substring(0, name.length() - DumpArchive.ARCHIVE_SUFFIX.length());
+                }
+                if (DumpArchive.isDay(name) && name.compareTo(expired) <= 0 && !days.contains(name)) {
+                    days.add(name);
+                }
+            }
+        } catch (IOException e) {
+            ThreadDumpImpl.logger.log(Level.SEVERE, "Failed to scan {0}. Error = {1}", new Object[] {parentDir, e.toString()});
+            return;
+        }
+        long start = System.nanoTime();
+        int deleted = 0;
+        for (String day: days) {
+            if (!DumpArchive.lockDay(parentDir, day)) {
+                continue;
+            }
+            try {
+                deleted += delete(parentDir, day);
+            } finally {
+                DumpArchive.unlockDay(parentDir, day);
+            }
+        }
+        if (deleted > 0) {
+            DumpMetrics.rotated(System.nanoTime() - start, deleted);
+        }
+    }
+
+    /**
+     * @return строки вида <code>2017-06-12 1048576 bytes</code> от старых дней к новым
+     */
+    static synchronized List<String> list() {
+        List<String> result = new ArrayList<>(days.size());
+        for (Map.Entry<String, long[]> entry: days.entrySet()) {
+            result.add(String.format("%s %d bytes", entry.getKey(), entry.getValue()[0]));
+        }
+        return result;
+    }
+
+    static synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Удаляет архив и каталог дня.
+     *
+     * @return количество удаленных файлов
+     */
+    private static int delete(Path parentDir, String day) {
+        int result = 0;
+        try {
+            if (Files.deleteIfExists(DumpArchive.getArchive(parentDir, day))) {
+                result++;
+            }
+        } catch (IOException e) {
+            ThreadDumpImpl.logger.log(Level.SEVERE, e.getMessage(), e);
+        }
+        Path dayDir = parentDir.resolve(day);
+        if (!Files.isDirectory(dayDir)) {
+            return result;
+        }
+        SegmentReader.release(dayDir);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dayDir)) {
+            for (Path file: stream) {
+                try {
+                    Files.delete(file);
+                    result++;
+                } catch (IOException e) {
+                    ThreadDumpImpl.logger.log(Level.SEVERE, e.getMessage(), e);
+                }
+            }
+        } catch (IOException e) {
+            ThreadDumpImpl.logger.log(Level.SEVERE, e.getMessage(), e);
+        }
+        try {
+            Files.delete(dayDir);
+        } catch (IOException e) {
+            ThreadDumpImpl.logger.log(Level.SEVERE, e.getMessage(), e);
+        }
+        return result;
+    }
+
+    private static long directorySize(Path dir) throws IOException {
+        long result = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path file: stream) {
+                result += size(file);
+            }
+        }
+        return result;
+    }
+
+    private static long size(Path file) throws IOException {
+        try {
+            return Files.isRegularFile(file) ? Files.size(file) : 0;
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
+    private static long getUsableSpace(Path parentDir) {
+        try {
+            return Files.getFileStore(parentDir).getUsableSpace();
+        } catch (IOException e) {
+            ThreadDumpImpl.logger.log(Level.SEVERE, "Failed to get free disk space. Error = {0}", new Object[] {e.toString()});
+            return Long.MAX_VALUE;
+        }
+    }
+}
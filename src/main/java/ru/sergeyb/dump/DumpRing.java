@@ -0,0 +1,314 @@
+package ru.sergeyb.dump;
+
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Кольцевой буфер последних дампов в памяти вне кучи. Дампы доступны,
+ * даже если диск заполнен или недоступен для записи, а сам буфер
+ * не нагружает сборщик мусора исследуемой JVM.
+ * <p>
+ * Текст дампа сжимается и дописывается в буфер, выделенный один раз
+ * через {@link ByteBuffer#allocateDirect(int)}. Когда место заканчивается,
+ * новые дампы записываются поверх самых старых. Дампы старше заданного
+ * возраста удаляются. Кроме дампов по расписанию в буфер могут
+ * сниматься дампы с собственным, более частым периодом.
+ *
+ * @author sergeyb
+ */
+class DumpRing {
+    static final int DEFAULT_SIZE_MB = 16;
+    static final int DEFAULT_MAX_AGE_SEC = 900;
+    private static final int MAXIMAL_SIZE_MB = 1024;
+    private static final int MINIMAL_PERIOD_MS = 100;
+    private static final int MAX_ENTRIES = 4096;
+    private static final AtomicInteger sizeMb = new AtomicInteger(-1);
+    private static final AtomicInteger maxAgeSec = new AtomicInteger(-1);
+    private static final AtomicInteger periodMs = new AtomicInteger(-1);
+    private static final AtomicReference<ScheduledFuture<?>> timer = new AtomicReference<>();
+    private static final Runnable sampler;
+    private static final long ids[] = new long[MAX_ENTRIES];
+    private static final long times[] = new long[MAX_ENTRIES];
+    private static final int offsets[] = new int[MAX_ENTRIES];
+    private static final int lengths[] = new int[MAX_ENTRIES];
+    private static final int textLengths[] = new int[MAX_ENTRIES];
+    private static final DumpType types[] = new DumpType[MAX_ENTRIES];
+    private static final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private static final DumpBuffer text = new DumpBuffer();
+    private static ByteBuffer ring;
+    private static byte compressed[] = new byte[65536];
+    private static int first;
+    private static int count;
+    private static int tail;
+    private static long nextId = 1;
+
+    static {
+        sampler = new Runnable() {
+            @Override
+            public void run() {
+                sample();
+            }
+        };
+    }
+
+    private DumpRing() {
+        // hidden constructor
+    }
+
+    /**
+     * @return размер буфера в мегабайтах, 0 - буфер не используется
+     */
+    static int getSizeMb() {
+        if (sizeMb.get() < 0) {
+            sizeMb.compareAndSet(-1, Math.min(Math.max(ThreadDumpImpl.getPreferences().getInt("ringSizeMb", DEFAULT_SIZE_MB), 0), MAXIMAL_SIZE_MB));
+        }
+        return sizeMb.get();
+    }
+
+    /**
+     * Устанавливает размер буфера. Содержимое буфера при этом теряется.
+     */
+    static synchronized void setSizeMb(int value) {
+        int newValue = value;
+        if (newValue < 0 || newValue > MAXIMAL_SIZE_MB) {
+            ThreadDumpImpl.logger.log(Level.WARNING, "Invalid ring size {0} MB. Size must be between 0 and {1} MB.", new Object[] {newValue, MAXIMAL_SIZE_MB});
+            newValue = Math.min(Math.max(newValue, 0), MAXIMAL_SIZE_MB);
+        }
+        sizeMb.set(newValue);
+        ThreadDumpImpl.getPreferences().putInt("ringSizeMb", newValue);
+        ring = null;
+        count = 0;
+        tail = 0;
+    }
+
+    /**
+     * @return возраст, после которого дамп удаляется из буфера, 0 - только по размеру
+     */
+    static int getMaxAgeSec() {
+        if (maxAgeSec.get() < 0) {
+            maxAgeSec.compareAndSet(-1, Math.max(ThreadDumpImpl.getPreferences().getInt("ringMaxAgeSec", DEFAULT_MAX_AGE_SEC), 0));
+        }
+        return maxAgeSec.get();
+    }
+
+    static void setMaxAgeSec(int value) {
+        maxAgeSec.set(Math.max(value, 0));
+        ThreadDumpImpl.getPreferences().putInt("ringMaxAgeSec", maxAgeSec.get());
+    }
+
+    /**
+     * @return период снятия дампов только в буфер, 0 - в буфер попадают только дампы по расписанию
+     */
+    static int getPeriodMs() {
+        if (periodMs.get() < 0) {
+            periodMs.compareAndSet(-1, Math.max(ThreadDumpImpl.getPreferences().getInt("ringPeriodMs", 0), 0));
+        }
+        return periodMs.get();
+    }
+
+    /**
+     * Устанавливает период снятия дампов в буфер. Новый период действует
+     * после перезапуска мониторинга.
+     */
+    static void setPeriodMs(int value) {
+        int newValue = value;
+        if (newValue > 0 && newValue < MINIMAL_PERIOD_MS) {
+            ThreadDumpImpl.logger.log(Level.WARNING, "Invalid ring period {0} ms. Minimum period allowed is {1} ms.", new Object[] {newValue, MINIMAL_PERIOD_MS});
+            newValue = MINIMAL_PERIOD_MS;
+        }
+        periodMs.set(Math.max(newValue, 0));
+        ThreadDumpImpl.getPreferences().putInt("ringPeriodMs", periodMs.get());
+    }
+
+    /**
+     * Запускает снятие дампов в буфер с собственным периодом, если он задан.
+     *
+     * @param thePool пул, в котором выполняется мониторинг дампов
+     */
+    static void start(ScheduledExecutorService thePool) {
+        int period = getPeriodMs();
+        if (period > 0 && getSizeMb() > 0) {
+            timer.set(thePool.scheduleAtFixedRate(sampler, period, period, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    static void stop() {
+        ScheduledFuture<?> theTimer = timer.getAndSet(null);
+        if (theTimer != null) {
+            theTimer.cancel(false);
+        }
+    }
+
+    private static void sample() {
+        if (PauseMeter.shouldSkip()) {
+            return;
+        }
+        try {
+            PendingDump dump = ThreadDumpImpl.captureDump(ThreadDumpImpl.getDumpType(), ThreadCpuSampler.RING);
+            try {
+                add(dump);
+            } finally {
+                DumpWriter.release(dump);
+            }
+        } catch (Exception e) {
+            ThreadDumpImpl.logger.log(Level.SEVERE, "Failed to capture thread dump to ring. Error = {0}", new Object[] {e.toString()});
+        }
+    }
+
+    /**
+     * Сжимает текст дампа и дописывает его в буфер, вытесняя самые старые дампы.
+     */
+    static synchronized void add(PendingDump dump) {
+        if (getSizeMb() == 0) {
+            return;
+        }
+        if (ring == null) {
+            ring = ByteBuffer.allocateDirect(sizeMb.get() * 1024 * 1024);
+        }
+        int length = compress(dump);
+        if (length > ring.capacity()) {
+            ThreadDumpImpl.logger.log(Level.WARNING, "Thread dump of {0} bytes does not fit into ring.", new Object[] {length});
+            return;
+        }
+        evictOld(dump.getDate().getTime());
+        if (tail + length > ring.capacity()) {
+            // все, что лежит после конца записи, старше того, что лежит перед ним
+            while (count > 0 && offsets[first] >= tail) {
+                evict();
+            }
+            tail = 0;
+        }
+        while (count > 0 && offsets[first] >= tail && offsets[first] < tail + length || count == MAX_ENTRIES) {
+            evict();
+        }
+        ByteBuffer target = ring.duplicate();
+        target.position(tail);
+        target.put(compressed, 0, length);
+        int i = (first + count) % MAX_ENTRIES;
+        ids[i] = nextId++;
+        times[i] = dump.getDate().getTime();
+        offsets[i] = tail;
+        lengths[i] = length;
+        textLengths[i] = text.size();
+        types[i] = dump.getType();
+        count++;
+        tail += length;
+    }
+
+    /**
+     * Сжимает текст дампа в {@link #compressed}.
+     *
+     * @return длина сжатых данных
+     */
+    private static int compress(PendingDump dump) {
+        text.reset();
+        if (dump.getRecord() != null) {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(text, StandardCharsets.UTF_8));
+            ((StructuredDumper) dump.getType().dumper()).write(out, dump.getRecord());
+            out.flush();
+        } else {
+            text.write(dump.getBuffer().array(), 0, dump.getBuffer().size());
+        }
+        deflater.reset();
+        deflater.setInput(text.array(), 0, text.size());
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                byte newCompressed[] = new byte[compressed.length * 2];
+                System.arraycopy(compressed, 0, newCompressed, 0, length);
+                compressed = newCompressed;
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        return length;
+    }
+
+    private static void evictOld(long now) {
+        int age = getMaxAgeSec();
+        if (age == 0) {
+            return;
+        }
+        long before = now - TimeUnit.SECONDS.toMillis(age);
+        while (count > 0 && times[first] < before) {
+            evict();
+        }
+    }
+
+    private static void evict() {
+        types[first] = null;
+        first = (first + 1) % MAX_ENTRIES;
+        count--;
+    }
+
+    /**
+     * @return строки вида <code>12 2017-06-12 10:15:00.000 JMX 183204 bytes</code>
+     *         от старых дампов к новым; первое число - номер дампа в буфере
+     */
+    static synchronized List<String> list() {
+        evictOld(System.currentTimeMillis());
+        List<String> result = new ArrayList<>(count);
+        for (int j = 0; j < count; j++) {
+            int i = (first + j) % MAX_ENTRIES;
+            result.add(String.format("%d %2$tF %2$tT.%2$tL %3$s %4$d bytes", ids[i], new Date(times[i]), types[i], textLengths[i]));
+        }
+        return result;
+    }
+
+    /**
+     * @param id номер дампа в буфере
+     * @return текст дампа или <code>null</code>, если дамп уже вытеснен
+     */
+    static String read(long id) throws DataFormatException {
+        byte data[];
+        int textLength;
+        synchronized (DumpRing.class) {
+            if (count == 0 || id < ids[first] || id >= ids[first] + count) {
+                return null;
+            }
+            int i = (int) ((first + id - ids[first]) % MAX_ENTRIES);
+            data = new byte[lengths[i]];
+            ByteBuffer source = ring.duplicate();
+            source.position(offsets[i]);
+            source.get(data);
+            textLength = textLengths[i];
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            byte result[] = new byte[textLength];
+            int length = 0;
+            while (length < textLength && !inflater.finished()) {
+                length += inflater.inflate(result, length, textLength - length);
+            }
+            return new String(result, 0, length, StandardCharsets.UTF_8);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @return количество байт, занятых сжатыми дампами
+     */
+    static synchronized long getUsedBytes() {
+        long result = 0;
+        for (int j = 0; j < count; j++) {
+            result += lengths[(first + j) % MAX_ENTRIES];
+        }
+        return result;
+    }
+}
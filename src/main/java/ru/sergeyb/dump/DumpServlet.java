@@ -0,0 +1,221 @@
+package ru.sergeyb.dump;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Отдает дампы потоков по HTTP. Ответ не буферизуется целиком,
+ * а передается частями по мере форматирования.
+ * <p>
+ * Параметры запроса:
+ * <ul>
+ * <li><code>format</code> - text (по умолчанию), json или collapsed;</li>
+ * <li><code>type</code> - способ снятия нового дампа, по умолчанию текущий способ мониторинга;
+ *     HOTSPOT, PROFILE и VIRTUAL отдаются только текстом; PROFILE отдает выборки,
+ *     накопленные с прошлого сохранения профиля, не сбрасывая их;</li>
+ * <li><code>name</code> - имя сохраненного дампа вида yyyy-MM-dd/thread-dump-...txt;</li>
+ * <li><code>from</code>, <code>to</code> - интервал времени yyyy-MM-dd HH:mm:ss, за который
+ *     отдаются все дампы из хранилищ, и <code>thread</code> - имя потока,
+ *     который должен быть в дампе;</li>
+ * <li><code>q</code> - условия поиска потоков по индексу {@link DumpIndex}
+ *     за интервал <code>from</code>, <code>to</code> (по умолчанию - за сегодня);
+ *     результат - строки text или массив строк json.</li>
+ * </ul>
+ * Без <code>name</code> и <code>from</code> снимается новый дамп, который
+ * не сохраняется в каталог дампов.
+ * <p>
+ * Сервлет отвечает 404, пока дампы по HTTP не включены через
+ * атрибут HttpEnabled MBean. Сам сервлет не проверяет права доступа,
+ * поэтому перед включением адрес <code>/dump</code> нужно закрыть
+ * средствами безопасности контейнера.
+ *
+ * @author sergeyb
+ */
+@WebServlet(urlPatterns = "/dump")
+public class DumpServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+    private static final int SEARCH_LIMIT = 10000;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!OnDemandCapture.isEnabled()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        DumpFormat format;
+        DumpType type;
+        try {
+            format = getEnum(DumpFormat.class, request.getParameter("format"), DumpFormat.TEXT);
+            DumpType defaultType = ThreadDumpImpl.getDumpType();
+            type = getEnum(DumpType.class, request.getParameter("type"), defaultType == null ? ThreadDumpImpl.getDefaultDumpType() : defaultType);
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        if (!OnDemandCapture.acquire()) {
+            response.setHeader("Retry-After", "1");
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many thread dump requests");
+            return;
+        }
+        try {
+            String name = request.getParameter("name");
+            String from = request.getParameter("from");
+            String query = request.getParameter("q");
+            if (query != null) {
+                search(response, format, request.getParameter("from"), request.getParameter("to"), query);
+            } else if (name != null) {
+                stored(response, format, name);
+            } else if (from != null) {
+                range(response, format, from, request.getParameter("to"), request.getParameter("thread"));
+            } else {
+                fresh(response, format, type);
+            }
+        } catch (IllegalArgumentException e) {
+            if (!response.isCommitted()) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            }
+        } catch (IOException e) {
+            if (response.isCommitted()) {
+                // дамп уже снят и передается: обычно это клиент, закрывший соединение
+                ThreadDumpImpl.logger.log(Level.FINE, "Thread dump response aborted. Error = {0}", new Object[] {e.toString()});
+            } else {
+                ThreadDumpImpl.logger.log(Level.SEVERE, "Failed to serve thread dump. Error = {0}", new Object[] {e.toString()});
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.toString());
+            }
+        } catch (RuntimeException e) {
+            ThreadDumpImpl.logger.log(Level.SEVERE, "Failed to serve thread dump. Error = {0}", new Object[] {e.toString()});
+            if (!response.isCommitted()) {
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.toString());
+            }
+        } finally {
+            OnDemandCapture.release();
+        }
+    }
+
+    private static void fresh(HttpServletResponse response, DumpFormat format, DumpType type) throws IOException {
+        if (format != DumpFormat.TEXT && !(type.dumper() instanceof StructuredDumper)) {
+            throw new IllegalArgumentException(String.format("Dump type %s supports only text format", type));
+        }
+        OnDemandCapture.Result result = OnDemandCapture.capture(type);
+        try {
+            if (result.getRecord() == null) {
+                start(response, format);
+                result.writeTo(response.getOutputStream());
+                return;
+            }
+            PrintWriter out = start(response, format);
+            format.write(out, result.getRecord());
+            out.flush();
+        } finally {
+            result.release();
+        }
+    }
+
+    private static void stored(HttpServletResponse response, DumpFormat format, String name) throws IOException {
+        if (format == DumpFormat.TEXT) {
+            // текстовый дамп может быть сохранен не в хранилище
+            start(response, format);
+            ThreadDumpImpl.reconstructDump(name, response.getOutputStream());
+            return;
+        }
+        DumpRecord dump = ThreadDumpImpl.loadDump(name);
+        if (dump == null) {
+            throw new IllegalArgumentException(String.format("Dump %s is not in a stack store and supports only text format", name));
+        }
+        PrintWriter out = start(response, format);
+        format.write(out, dump);
+        out.flush();
+    }
+
+    private static void range(HttpServletResponse response, DumpFormat format, String from, String to, String thread) throws IOException {
+        Date fromDate = ThreadDump.parseTime(from);
+        Date toDate = to == null ? new Date() : ThreadDump.parseTime(to);
+        List<String> names = ThreadDumpImpl.findDumps(fromDate, toDate, thread == null || thread.isEmpty() ? null : thread);
+        PrintWriter out = start(response, format);
+        format.begin(out);
+        boolean first = true;
+        for (String name: names) {
+            DumpRecord dump = ThreadDumpImpl.loadDump(name);
+            if (dump == null) {
+                continue;
+            }
+            if (!first) {
+                format.separator(out);
+            }
+            first = false;
+            format.write(out, dump);
+            // каждый дамп уходит клиенту сразу, а не копится в буфере ответа
+            out.flush();
+            response.flushBuffer();
+        }
+        format.end(out);
+        out.flush();
+    }
+
+    private static void search(HttpServletResponse response, DumpFormat format, String from, String to, String query) throws IOException {
+        if (format == DumpFormat.COLLAPSED) {
+            throw new IllegalArgumentException("Search results support only text and json formats");
+        }
+        Date fromDate;
+        if (from == null) {
+            Calendar today = Calendar.getInstance();
+            today.set(Calendar.HOUR_OF_DAY, 0);
+            today.set(Calendar.MINUTE, 0);
+            today.set(Calendar.SECOND, 0);
+            today.set(Calendar.MILLISECOND, 0);
+            fromDate = today.getTime();
+        } else {
+            fromDate = ThreadDump.parseTime(from);
+        }
+        Date toDate = to == null ? new Date() : ThreadDump.parseTime(to);
+        List<String> result = ThreadDumpImpl.searchDumps(fromDate, toDate, query, SEARCH_LIMIT);
+        PrintWriter out = start(response, format);
+        if (format == DumpFormat.JSON) {
+            out.write('[');
+            for (int i = 0; i < result.size(); i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                DumpFormat.string(out, result.get(i));
+            }
+            out.println(']');
+        } else {
+            for (String line: result) {
+                out.println(line);
+            }
+        }
+        out.flush();
+    }
+
+    private static PrintWriter start(HttpServletResponse response, DumpFormat format) throws IOException {
+        response.setContentType(format.getContentType());
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.setHeader("Cache-Control", "no-store");
+        OutputStream output = response.getOutputStream();
+        return new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+    }
+
+    private static <T extends Enum<T>> T getEnum(Class<T> enumClass, String value, T defaultValue) {
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(enumClass, value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format("Invalid %s %s", enumClass.getSimpleName(), value));
+        }
+    }
+}
@@ -0,0 +1,531 @@
+package ru.sergeyb.dump;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import ru.sergeyb.profile.JVMTIDumper;
+
+/**
+ * Дампы других JVM этого компьютера, например, пакетных процессов
+ * без собственного мониторинга. Цели задаются списком идентификаторов
+ * процессов и списком регулярных выражений для отображаемого имени JVM,
+ * по которым цели находятся через {@link JVMTIDumper#listVirtualMachines(Path)}.
+ * Если Attach API недоступен загрузчику классов приложения, используются
+ * tools.jar и библиотека attach, распакованные для дампов своей JVM.
+ * <p>
+ * С периодом мониторинга дампы всех целей снимаются параллельно в пуле
+ * ограниченного размера через Attach API и пишутся в собственное дерево
+ * каталогов каждой цели <code>targets/имя-pid/yyyy-MM-dd</code> в корневом
+ * каталоге дампов. Дамп, не снятый за заданное время, прерывается и
+ * считается неудачным. Пока зависший дамп цели не завершился, новые дампы
+ * этой цели не снимаются, поэтому зависшая цель занимает не больше
+ * одного потока пула и не мешает остальным.
+ *
+ * @author sergeyb
+ */
+class DumpTargets {
+    static final String TARGETS_DIR = "targets";
+    static final int DEFAULT_TIMEOUT_SEC = 30;
+    static final int DEFAULT_THREADS = 4;
+    private static final int MAXIMAL_TIMEOUT_SEC = 3600;
+    private static final int MAXIMAL_THREADS = 32;
+    private static final String THREAD_NAME = "ThreadDumpTargetsQ7v3n5ck";
+    private static final String WORKER_THREAD_NAME = "ThreadDumpTargetWorkerQ7v3n5ck";
+    private static final AtomicReference<String> pids = new AtomicReference<>();
+    private static final AtomicReference<String> patterns = new AtomicReference<>();
+    private static final AtomicInteger timeoutSec = new AtomicInteger(-1);
+    private static final AtomicInteger threads = new AtomicInteger(-1);
+    private static final AtomicReference<ScheduledExecutorService> coordinator = new AtomicReference<>();
+    private static final AtomicReference<ExecutorService> workers = new AtomicReference<>();
+    private static final ConcurrentMap<String, Target> targets = new ConcurrentHashMap<>();
+    private static final AtomicReference<String> lastDay = new AtomicReference<>("");
+    private static final Runnable collector;
+
+    static {
+        collector = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    collect(new Date());
+                } catch (RuntimeException e) {
+                    ThreadDumpImpl.logger.log(Level.SEVERE, "Failed to dump target JVMs. Error = {0}", new Object[] {e.toString()});
+                }
+            }
+        };
+    }
+
+    private DumpTargets() {
+        // hidden constructor
+    }
+
+    /**
+     * @return идентификаторы процессов через запятую
+     */
+    static String getPids() {
+        if (pids.get() == null) {
+            pids.compareAndSet(null, ThreadDumpImpl.getPreferences().get("targetPids", ""));
+        }
+        return pids.get();
+    }
+
+    static void setPids(String value) {
+        String newValue = value == null ? "" : value.trim();
+        for (String pid: split(newValue)) {
+            if (!pid.matches("\\d+")) {
+                throw new IllegalArgumentException(String.format("Invalid process id %s", pid));
+            }
+        }
+        pids.set(newValue);
+        ThreadDumpImpl.getPreferences().put("targetPids", newValue);
+        ThreadDumpImpl.logger.log(Level.INFO, "Target JVM process ids set to \"{0}\".", new Object[] {newValue});
+    }
+
+    /**
+     * @return регулярные выражения для отображаемых имен JVM через запятую
+     */
+    static String getPatterns() {
+        if (patterns.get() == null) {
+            patterns.compareAndSet(null, ThreadDumpImpl.getPreferences().get("targetPatterns", ""));
+        }
+        return patterns.get();
+    }
+
+    static void setPatterns(String value) {
+        String newValue = value == null ? "" : value.trim();
+        for (String pattern: split(newValue)) {
+            try {
+                Pattern.compile(pattern);
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException(String.format("Invalid pattern %s: %s", pattern, e.getDescription()));
+            }
+        }
+        patterns.set(newValue);
+        ThreadDumpImpl.getPreferences().put("targetPatterns", newValue);
+        ThreadDumpImpl.logger.log(Level.INFO, "Target JVM patterns set to \"{0}\".", new Object[] {newValue});
+    }
+
+    static int getTimeoutSec() {
+        if (timeoutSec.get() < 0) {
+            timeoutSec.compareAndSet(-1, Math.min(Math.max(ThreadDumpImpl.getPreferences().getInt("targetTimeoutSec", DEFAULT_TIMEOUT_SEC), 1), MAXIMAL_TIMEOUT_SEC));
+        }
+        return timeoutSec.get();
+    }
+
+    static void setTimeoutSec(int value) {
+        int newValue = value;
+        if (newValue < 1 || newValue > MAXIMAL_TIMEOUT_SEC) {
+            ThreadDumpImpl.logger.log(Level.WARNING, "Invalid target timeout {0} sec. Timeout must be between 1 and {1} sec.", new Object[] {newValue, MAXIMAL_TIMEOUT_SEC});
+            newValue = Math.min(Math.max(newValue, 1), MAXIMAL_TIMEOUT_SEC);
+        }
+        timeoutSec.set(newValue);
+        ThreadDumpImpl.getPreferences().putInt("targetTimeoutSec", newValue);
+    }
+
+    static int getThreads() {
+        if (threads.get() < 0) {
+            threads.compareAndSet(-1, Math.min(Math.max(ThreadDumpImpl.getPreferences().getInt("targetThreads", DEFAULT_THREADS), 1), MAXIMAL_THREADS));
+        }
+        return threads.get();
+    }
+
+    /**
+     * Устанавливает размер пула. Новый размер действует после перезапуска мониторинга.
+     */
+    static void setThreads(int value) {
+        int newValue = value;
+        if (newValue < 1 || newValue > MAXIMAL_THREADS) {
+            ThreadDumpImpl.logger.log(Level.WARNING, "Invalid target thread count {0}. Count must be between 1 and {1}.", new Object[] {newValue, MAXIMAL_THREADS});
+            newValue = Math.min(Math.max(newValue, 1), MAXIMAL_THREADS);
+        }
+        threads.set(newValue);
+        ThreadDumpImpl.getPreferences().putInt("targetThreads", newValue);
+    }
+
+    /**
+     * Запускает снятие дампов целей с периодом мониторинга. Ожидание
+     * дампов целей выполняется в отдельном потоке, чтобы не задерживать
+     * дампы своей JVM.
+     */
+    static void start(int periodSec) {
+        ScheduledExecutorService theCoordinator = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable target) {
+                Thread result = new Thread(target, THREAD_NAME);
+                result.setDaemon(true);
+                return result;
+            }
+        });
+        if (!coordinator.compareAndSet(null, theCoordinator)) {
+            theCoordinator.shutdown();
+            return;
+        }
+        final AtomicInteger number = new AtomicInteger(0);
+        workers.set(Executors.newFixedThreadPool(getThreads(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable target) {
+                Thread result = new Thread(target, WORKER_THREAD_NAME + "-" + number.incrementAndGet());
+                result.setDaemon(true);
+                return result;
+            }
+        }));
+        theCoordinator.scheduleAtFixedRate(collector, 1, periodSec, TimeUnit.SECONDS);
+    }
+
+    static void stop() {
+        ScheduledExecutorService theCoordinator = coordinator.getAndSet(null);
+        if (theCoordinator != null) {
+            theCoordinator.shutdownNow();
+        }
+        ExecutorService theWorkers = workers.getAndSet(null);
+        if (theWorkers != null) {
+            theWorkers.shutdownNow();
+        }
+        for (String pid: targets.keySet()) {
+            Target target = targets.remove(pid);
+            if (target != null) {
+                target.close();
+            }
+        }
+    }
+
+    /**
+     * Обновляет список целей, снимает дампы всех целей и ждет их завершения.
+     */
+    private static void collect(Date date) {
+        ExecutorService theWorkers = workers.get();
+        Path parentDir = ThreadDumpImpl.getDumpParentDir();
+        if (theWorkers == null || parentDir == null) {
+            return;
+        }
+        refresh();
+        if (targets.isEmpty()) {
+            return;
+        }
+        Path targetsDir = parentDir.resolve(TARGETS_DIR);
+        List<Target> started = new ArrayList<>();
+        for (Target target: targets.values()) {
+            if (target.isRunning()) {
+                target.skipped();
+                ThreadDumpImpl.logger.log(Level.WARNING, "Previous thread dump of {0} is still running.", new Object[] {target.getDirName()});
+                continue;
+            }
+            try {
+                target.submit(theWorkers, targetsDir.resolve(target.getDirName()), date);
+                started.add(target);
+            } catch (RejectedExecutionException e) {
+                return;
+            }
+        }
+        long timeoutNanos = TimeUnit.SECONDS.toNanos(getTimeoutSec());
+        for (Target target: started) {
+            target.await(timeoutNanos);
+        }
+        rotate(targetsDir, date);
+    }
+
+    /**
+     * Обновляет список целей по заданным идентификаторам и шаблонам.
+     * Цели, процессы которых завершились, удаляются.
+     */
+    private static void refresh() {
+        Map<String, String> found = new LinkedHashMap<>();
+        List<String> thePids = split(getPids());
+        List<String> thePatterns = split(getPatterns());
+        if (thePids.isEmpty() && thePatterns.isEmpty()) {
+            found = Collections.emptyMap();
+        } else {
+            Map<String, String> vms;
+            try {
+                vms = JVMTIDumper.listVirtualMachines(getCacheDir());
+            } catch (ReflectiveOperationException | LinkageError e) {
+                ThreadDumpImpl.logger.log(Level.WARNING, "Attach API is not available, target JVMs are not dumped. Error = {0}", new Object[] {e.toString()});
+                vms = new LinkedHashMap<>();
+            }
+            vms.remove(getOwnPid());
+            for (String pid: thePids) {
+                if (vms.containsKey(pid)) {
+                    found.put(pid, vms.get(pid));
+                }
+            }
+            for (String pattern: thePatterns) {
+                Pattern compiled = Pattern.compile(pattern);
+                for (Map.Entry<String, String> vm: vms.entrySet()) {
+                    if (compiled.matcher(vm.getValue()).find()) {
+                        found.put(vm.getKey(), vm.getValue());
+                    }
+                }
+            }
+        }
+        for (String pid: targets.keySet()) {
+            if (!found.containsKey(pid)) {
+                Target target = targets.remove(pid);
+                if (target != null) {
+                    ThreadDumpImpl.logger.log(Level.INFO, "Target JVM {0} is gone.", new Object[] {target.getDirName()});
+                    target.close();
+                }
+            }
+        }
+        for (Map.Entry<String, String> vm: found.entrySet()) {
+            if (!targets.containsKey(vm.getKey())) {
+                Target target = new Target(vm.getKey(), vm.getValue());
+                targets.put(vm.getKey(), target);
+                ThreadDumpImpl.logger.log(Level.INFO, "Target JVM {0} added: {1}.", new Object[] {target.getDirName(), vm.getValue()});
+            }
+        }
+    }
+
+    /**
+     * После смены дня удаляет и упаковывает прошедшие дни в каталогах
+     * всех целей, в том числе завершившихся.
+     */
+    private static void rotate(Path targetsDir, Date date) {
+        String today = String.format("%1$tY-%1$tm-%1$td", date);
+        String last = lastDay.get();
+        if (today.equals(last) || !lastDay.compareAndSet(last, today)) {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(targetsDir)) {
+            for (Path dir: stream) {
+                if (!Files.isDirectory(dir)) {
+                    continue;
+                }
+                DumpRetention.expire(dir, date, ThreadDumpImpl.getRotateDays());
+                if (ThreadDumpImpl.isCompress()) {
+                    DumpCompactor.compact(dir, today);
+                }
+            }
+        } catch (IOException e) {
+            ThreadDumpImpl.logger.log(Level.SEVERE, "Failed to rotate {0}. Error = {1}", new Object[] {targetsDir, e.toString()});
+        }
+    }
+
+    /**
+     * @return строки вида <code>1234 batch-1234 ok 3 dumps 0 failed 0 skipped 152 ms Main</code>
+     */
+    static List<String> list() {
+        List<String> result = new ArrayList<>();
+        for (Target target: targets.values()) {
+            result.add(target.toString());
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * @return строки вида <code>1234 org.example.Main</code>; недоступные цели - пустой список
+     */
+    static List<String> listVirtualMachines() {
+        List<String> result = new ArrayList<>();
+        try {
+            for (Map.Entry<String, String> vm: JVMTIDumper.listVirtualMachines(getCacheDir()).entrySet()) {
+                result.add(String.format("%s %s", vm.getKey(), vm.getValue()));
+            }
+        } catch (ReflectiveOperationException | LinkageError e) {
+            ThreadDumpImpl.logger.log(Level.WARNING, "Attach API is not available. Error = {0}", new Object[] {e.toString()});
+        }
+        return result;
+    }
+
+    /**
+     * @return каталог распакованных библиотек Attach API или <code>null</code>
+     */
+    private static Path getCacheDir() {
+        Path parentDir = ThreadDumpImpl.getDumpParentDir();
+        return parentDir == null ? null : parentDir.resolve(HotSpotVMDumper.CACHE_DIR);
+    }
+
+    private static List<String> split(String value) {
+        List<String> result = new ArrayList<>();
+        for (String item: value.split(",")) {
+            if (!item.trim().isEmpty()) {
+                result.add(item.trim());
+            }
+        }
+        return result;
+    }
+
+    private static String getOwnPid() {
+        String vmName = ManagementFactory.getRuntimeMXBean().getName();
+        int i = vmName.indexOf('@');
+        return i < 0 ? vmName : vmName.substring(0, i);
+    }
+
+    /**
+     * JVM, дампы которой снимаются, и состояние ее дампов.
+     */
+    private static final class Target {
+        private final String pid;
+        private final String displayName;
+        private final String dirName;
+        private final JVMTIDumper dumper;
+        private volatile boolean initialized;
+        private volatile long startNanos;
+        private volatile Future<?> future;
+        private volatile String lastError;
+        private volatile long lastDurationMs;
+        private final AtomicInteger dumpCount = new AtomicInteger(0);
+        private final AtomicInteger failedCount = new AtomicInteger(0);
+        private final AtomicInteger skippedCount = new AtomicInteger(0);
+
+        Target(String pid, String displayName) {
+            this.pid = pid;
+            this.displayName = displayName;
+            String name = displayName.trim();
+            int i = name.indexOf(' ');
+            if (i > 0) {
+                name = name.substring(0, i);
+            }
+            name = name.substring(Math.max(name.lastIndexOf('.'), name.lastIndexOf('/')) + 1).replaceAll("[^A-Za-z0-9_-]", "_");
+            this.dirName = name.isEmpty() ? pid : name + "-" + pid;
+            this.dumper = new JVMTIDumper(pid);
+            this.dumper.setCacheDir(getCacheDir());
+        }
+
+        String getDirName() {
+            return dirName;
+        }
+
+        boolean isRunning() {
+            return startNanos != 0;
+        }
+
+        void skipped() {
+            skippedCount.incrementAndGet();
+        }
+
+        void submit(ExecutorService theWorkers, final Path dir, final Date date) {
+            future = theWorkers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    dump(dir, date);
+                }
+            });
+        }
+
+        /**
+         * Ждет дамп не дольше заданного времени от начала его снятия.
+         * Если свободного потока не нашлось за это время, дамп отменяется.
+         */
+        void await(long timeoutNanos) {
+            for (;;) {
+                long begin = startNanos;
+                long waitNanos = begin == 0 ? timeoutNanos : begin + timeoutNanos - System.nanoTime();
+                try {
+                    future.get(Math.max(waitNanos, 0), TimeUnit.NANOSECONDS);
+                    return;
+                } catch (TimeoutException e) {
+                    if (begin != 0 || startNanos == 0) {
+                        future.cancel(true);
+                        failed(begin != 0
+                                ? String.format("Timed out after %d sec", TimeUnit.NANOSECONDS.toSeconds(timeoutNanos))
+                                : "No free worker thread");
+                        return;
+                    }
+                    // дамп начался во время ожидания, ждем остаток времени от его начала
+                } catch (ExecutionException e) {
+                    failed(e.getCause().toString());
+                    return;
+                } catch (CancellationException e) {
+                    return;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        private void dump(Path dir, Date date) {
+            startNanos = System.nanoTime();
+            Path file = null;
+            try {
+                if (!initialized) {
+                    dumper.init();
+                    initialized = true;
+                }
+                Path dayDir = dir.resolve(String.format("%1$tY-%1$tm-%1$td", date));
+                Files.createDirectories(dayDir);
+                file = dayDir.resolve(String.format(ThreadDumpImpl.FILE_NAME, date) + ThreadDumpImpl.getSuffix());
+                if (Files.exists(file)) {
+                    file = dayDir.resolve(String.format(ThreadDumpImpl.PRECISE_FILE_NAME, date) + ThreadDumpImpl.getSuffix());
+                }
+                try (PrintWriter out = new PrintWriter(new OutputStreamWriter(ThreadDumpImpl.newOutputStream(file), Charset.defaultCharset()))) {
+                    dumper.dump(out, date);
+                }
+                lastDurationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+                lastError = null;
+                dumpCount.incrementAndGet();
+            } catch (IOException | RuntimeException e) {
+                if (file != null) {
+                    try {
+                        Files.deleteIfExists(file);
+                    } catch (IOException e1) {
+                        // ignore
+                    }
+                }
+                if (!Thread.currentThread().isInterrupted()) {
+                    // ошибку прерванного дампа уже учел ожидающий поток
+                    failed(e.toString());
+                }
+            } finally {
+                if (Thread.interrupted()) {
+                    // дамп отменен по таймауту, подключение могло остаться в неизвестном состоянии
+                    dumper.close();
+                    initialized = false;
+                }
+                startNanos = 0;
+            }
+        }
+
+        private void failed(String error) {
+            lastError = error;
+            failedCount.incrementAndGet();
+            ThreadDumpImpl.logger.log(Level.WARNING, "Failed to dump target JVM {0}. Error = {1}", new Object[] {dirName, error});
+        }
+
+        void close() {
+            Future<?> theFuture = future;
+            if (theFuture != null) {
+                theFuture.cancel(true);
+            }
+            if (!isRunning()) {
+                dumper.close();
+            }
+        }
+
+        @Override
+        public String toString() {
+            String error = lastError;
+            return String.format("%s %s %s %d dumps %d failed %d skipped %d ms %s", pid, dirName, error == null ? "ok" : "error: " + error,
+                    dumpCount.get(), failedCount.get(), skippedCount.get(), lastDurationMs, displayName);
+        }
+    }
+}
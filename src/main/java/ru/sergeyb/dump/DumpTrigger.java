@@ -0,0 +1,134 @@
+package ru.sergeyb.dump;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+
+/**
+ * Событие, по которому дамп сохраняется вне расписания.
+ * У каждого события свой порог, интервал, в течение которого
+ * повторное событие игнорируется, и способ снятия дампа.
+ * Настройки хранятся в Preferences с префиксом <code>trigger.</code>
+ * и именем события.
+ *
+ * @author sergeyb
+ */
+enum DumpTrigger {
+    /**
+     * Пауза сборщика мусора длиннее порога в миллисекундах.
+     */
+    GC_PAUSE("gcPause", 1000, "ms"),
+    /**
+     * Заполнение пула памяти после сборки мусора выше порога в процентах от максимума.
+     */
+    MEMORY("memory", 90, "%"),
+    /**
+     * Загрузка процессора процессом выше порога в процентах.
+     */
+    CPU("cpu", 90, "%"),
+    /**
+     * Количество живых потоков выше порога.
+     */
+    THREADS("threads", 2000, "threads");
+
+    static final int DEFAULT_COOLDOWN_SEC = 300;
+    private final String key;
+    private final int defaultThreshold;
+    private final String unit;
+    private final AtomicInteger threshold;
+    private final AtomicInteger cooldownSec;
+    private final AtomicReference<DumpType> dumpType;
+    private final AtomicLong nextAllowed;
+    private final AtomicLong firedCount;
+
+    private DumpTrigger(String key, int defaultThreshold, String unit) {
+        this.key = key;
+        this.defaultThreshold = defaultThreshold;
+        this.unit = unit;
+        this.threshold = new AtomicInteger(-1);
+        this.cooldownSec = new AtomicInteger(-1);
+        this.dumpType = new AtomicReference<>();
+        this.nextAllowed = new AtomicLong(0);
+        this.firedCount = new AtomicLong(0);
+    }
+
+    /**
+     * @return порог, 0 - событие не отслеживается
+     */
+    int getThreshold() {
+        if (threshold.get() < 0) {
+            threshold.compareAndSet(-1, Math.max(ThreadDumpImpl.getPreferences().getInt("trigger." + key + ".threshold", defaultThreshold), 0));
+        }
+        return threshold.get();
+    }
+
+    int getCooldownSec() {
+        if (cooldownSec.get() < 0) {
+            cooldownSec.compareAndSet(-1, Math.max(ThreadDumpImpl.getPreferences().getInt("trigger." + key + ".cooldownSec", DEFAULT_COOLDOWN_SEC), 0));
+        }
+        return cooldownSec.get();
+    }
+
+    DumpType getDumpType() {
+        if (dumpType.get() == null) {
+            DumpType result;
+            try {
+                result = DumpType.valueOf(ThreadDumpImpl.getPreferences().get("trigger." + key + ".dumpType", DumpType.JMX.name()));
+            } catch (IllegalArgumentException e) {
+                result = DumpType.JMX;
+            }
+            dumpType.compareAndSet(null, result);
+        }
+        return dumpType.get();
+    }
+
+    void configure(int newThreshold, int newCooldownSec, DumpType newDumpType) {
+        threshold.set(Math.max(newThreshold, 0));
+        cooldownSec.set(Math.max(newCooldownSec, 0));
+        dumpType.set(newDumpType);
+        ThreadDumpImpl.getPreferences().putInt("trigger." + key + ".threshold", threshold.get());
+        ThreadDumpImpl.getPreferences().putInt("trigger." + key + ".cooldownSec", cooldownSec.get());
+        ThreadDumpImpl.getPreferences().put("trigger." + key + ".dumpType", newDumpType.name());
+        ThreadDumpImpl.logger.log(Level.INFO, "Trigger {0} set to threshold {1} {2}, cooldown {3} sec, dump type {4}.",
+            new Object[] {this, threshold.get(), unit, cooldownSec.get(), newDumpType});
+    }
+
+    /**
+     * Учитывает срабатывание события.
+     *
+     * @return <code>false</code>, если с предыдущего срабатывания не прошел интервал
+     */
+    boolean fire() {
+        long now = System.nanoTime();
+        long allowed = nextAllowed.get();
+        if (allowed != 0 && now - allowed < 0) {
+            return false;
+        }
+        long next = now + TimeUnit.SECONDS.toNanos(getCooldownSec());
+        if (!nextAllowed.compareAndSet(allowed, next == 0 ? 1 : next)) {
+            return false;
+        }
+        firedCount.incrementAndGet();
+        return true;
+    }
+
+    long getFiredCount() {
+        return firedCount.get();
+    }
+
+    /**
+     * @return метка для имени файла дампа
+     */
+    String getTag() {
+        return name().toLowerCase().replace('_', '-');
+    }
+
+    /**
+     * @return строка вида <code>GC_PAUSE threshold=1000 ms cooldown=300 s type=JMX fired=0</code>
+     */
+    String getSummary() {
+        return String.format("%s threshold=%d %s cooldown=%d s type=%s fired=%d", this, getThreshold(), unit, getCooldownSec(), getDumpType(), firedCount.get());
+    }
+}
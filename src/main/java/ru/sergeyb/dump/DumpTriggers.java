@@ -0,0 +1,197 @@
+package ru.sergeyb.dump;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Сохранение дампов по событиям {@link DumpTrigger}. Паузы сборщика
+ * мусора и заполнение пулов памяти отслеживаются по уведомлениям JMX,
+ * загрузка процессора и количество потоков - периодическим опросом.
+ * Сам дамп снимается в потоке мониторинга, а не в потоке,
+ * доставившем уведомление.
+ *
+ * @author sergeyb
+ */
+class DumpTriggers {
+    private static final int CHECK_PERIOD_SEC = 2;
+    private static final AtomicReference<ScheduledExecutorService> pool = new AtomicReference<>();
+    private static final AtomicReference<ScheduledFuture<?>> checkTimer = new AtomicReference<>();
+    private static final List<NotificationEmitter> emitters = new ArrayList<>();
+    private static final NotificationListener listener;
+    private static final Runnable checker;
+
+    static {
+        listener = new NotificationListener() {
+            @Override
+            public void handleNotification(Notification notification, Object handback) {
+                try {
+                    if (notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                        gcNotification(GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData()));
+                    } else if (notification.getType().equals(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED)) {
+                        memoryNotification(MemoryNotificationInfo.from((CompositeData) notification.getUserData()));
+                    }
+                } catch (RuntimeException e) {
+                    ThreadDumpImpl.logger.log(Level.SEVERE, "Failed to handle notification {0}. Error = {1}", new Object[] {notification.getType(), e.toString()});
+                }
+            }
+        };
+        checker = new Runnable() {
+            @Override
+            public void run() {
+                check();
+            }
+        };
+    }
+
+    private DumpTriggers() {
+        // hidden constructor
+    }
+
+    /**
+     * Подписывается на уведомления и запускает периодический опрос.
+     *
+     * @param thePool пул, в котором выполняется мониторинг дампов
+     */
+    static synchronized void start(ScheduledExecutorService thePool) {
+        pool.set(thePool);
+        for (GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc instanceof NotificationEmitter) {
+                subscribe((NotificationEmitter) gc);
+            }
+        }
+        updateMemoryThresholds();
+        if (ManagementFactory.getMemoryMXBean() instanceof NotificationEmitter) {
+            subscribe((NotificationEmitter) ManagementFactory.getMemoryMXBean());
+        }
+        checkTimer.set(thePool.scheduleAtFixedRate(checker, CHECK_PERIOD_SEC, CHECK_PERIOD_SEC, TimeUnit.SECONDS));
+    }
+
+    static synchronized void stop() {
+        ScheduledFuture<?> theTimer = checkTimer.getAndSet(null);
+        if (theTimer != null) {
+            theTimer.cancel(false);
+        }
+        for (NotificationEmitter emitter: emitters) {
+            try {
+                emitter.removeNotificationListener(listener);
+            } catch (ListenerNotFoundException e) {
+                // уже отписан
+            }
+        }
+        emitters.clear();
+        pool.set(null);
+    }
+
+    private static void subscribe(NotificationEmitter emitter) {
+        emitter.addNotificationListener(listener, null, null);
+        emitters.add(emitter);
+    }
+
+    /**
+     * Меняет настройки события.
+     */
+    static void configure(DumpTrigger trigger, int threshold, int cooldownSec, DumpType dumpType) {
+        trigger.configure(threshold, cooldownSec, dumpType);
+        if (trigger == DumpTrigger.MEMORY) {
+            updateMemoryThresholds();
+        }
+    }
+
+    /**
+     * Выставляет порог заполнения после сборки мусора для пулов кучи,
+     * у которых задан максимальный размер.
+     */
+    private static void updateMemoryThresholds() {
+        int percent = Math.min(DumpTrigger.MEMORY.getThreshold(), 100);
+        for (MemoryPoolMXBean memoryPool: ManagementFactory.getMemoryPoolMXBeans()) {
+            if (memoryPool.getType() != MemoryType.HEAP || !memoryPool.isCollectionUsageThresholdSupported()) {
+                continue;
+            }
+            long max = memoryPool.getUsage().getMax();
+            if (max <= 0) {
+                continue;
+            }
+            memoryPool.setCollectionUsageThreshold(percent == 0 ? 0 : max / 100 * percent);
+        }
+    }
+
+    private static void gcNotification(GarbageCollectionNotificationInfo info) {
+        int threshold = DumpTrigger.GC_PAUSE.getThreshold();
+        String name = info.getGcName();
+        // у параллельных сборщиков длительность цикла не является паузой
+        if (threshold == 0 || name.contains("Concurrent") || name.contains("Cycles")) {
+            return;
+        }
+        long duration = info.getGcInfo().getDuration();
+        if (duration >= threshold) {
+            fire(DumpTrigger.GC_PAUSE, String.format("%s (%s, %s) paused for %d ms", name, info.getGcAction(), info.getGcCause(), duration));
+        }
+    }
+
+    private static void memoryNotification(MemoryNotificationInfo info) {
+        if (DumpTrigger.MEMORY.getThreshold() == 0) {
+            return;
+        }
+        long max = info.getUsage().getMax();
+        fire(DumpTrigger.MEMORY, String.format("%s is %d%% full after GC (%d of %d bytes)",
+            info.getPoolName(), max > 0 ? info.getUsage().getUsed() * 100 / max : 0, info.getUsage().getUsed(), max));
+    }
+
+    private static void check() {
+        try {
+            int cpu = DumpTrigger.CPU.getThreshold();
+            if (cpu > 0) {
+                double load = BurstSampler.getProcessCpuLoad();
+                if (load * 100 >= cpu) {
+                    fire(DumpTrigger.CPU, String.format("process CPU load is %.0f%%", load * 100));
+                }
+            }
+            int threads = DumpTrigger.THREADS.getThreshold();
+            if (threads > 0) {
+                int count = ManagementFactory.getThreadMXBean().getThreadCount();
+                if (count >= threads) {
+                    fire(DumpTrigger.THREADS, String.format("%d live threads", count));
+                }
+            }
+        } catch (RuntimeException e) {
+            ThreadDumpImpl.logger.log(Level.SEVERE, "Failed to check dump triggers. Error = {0}", new Object[] {e.toString()});
+        }
+    }
+
+    private static void fire(final DumpTrigger trigger, final String reason) {
+        ScheduledExecutorService thePool = pool.get();
+        if (thePool == null || !trigger.fire()) {
+            return;
+        }
+        ThreadDumpImpl.logger.log(Level.WARNING, "Saving thread dump triggered by {0}: {1}.", new Object[] {trigger, reason});
+        try {
+            thePool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ThreadDumpImpl.triggeredThreadDump(trigger, reason);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // мониторинг останавливается
+        }
+    }
+}
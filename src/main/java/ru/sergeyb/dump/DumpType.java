@@ -3,7 +3,9 @@ package ru.sergeyb.dump;
 enum DumpType {
     SIMPLE(new SimpleDumper()),
     JMX(new JMXDumper()),
-    HOTSPOT(new HotSpotVMDumper());
+    HOTSPOT(new HotSpotVMDumper()),
+    PROFILE(new ProfileDumper()),
+    VIRTUAL(new VirtualThreadDumper());
 
     private final Dumper dumper;
 
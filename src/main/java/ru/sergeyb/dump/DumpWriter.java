@@ -0,0 +1,222 @@
+package ru.sergeyb.dump;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+
+/**
+ * Запись дампов на диск в отдельном потоке. Поток мониторинга снимает
+ * дамп в память и ставит его в ограниченную очередь, поэтому медленный
+ * диск не задерживает снятие следующих дампов и не растягивает сам дамп.
+ * <p>
+ * Буферы с текстом дампов переиспользуются.
+ *
+ * @author sergeyb
+ */
+class DumpWriter {
+    private static final String THREAD_NAME = "ThreadDumpWriterR4t8wq1n";
+    private static final int MAXIMAL_CAPACITY = 64;
+    private static final int MAXIMAL_RETAINED_BUFFER = 16 * 1024 * 1024;
+    private static final long STOP_TIMEOUT_SEC = 10;
+    static final int DEFAULT_CAPACITY = 4;
+    private static final PendingDump STOP = new PendingDump(null, null, 0, false, null, null);
+    private static final AtomicReference<BlockingQueue<PendingDump>> queue = new AtomicReference<>();
+    private static final AtomicReference<Thread> thread = new AtomicReference<>();
+    private static final ConcurrentLinkedQueue<DumpBuffer> freeBuffers = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger freeBufferCount = new AtomicInteger(0);
+    private static final AtomicReference<Boolean> enabled = new AtomicReference<>();
+    private static final AtomicInteger capacity = new AtomicInteger(-1);
+    private static final AtomicReference<WriteQueuePolicy> policy = new AtomicReference<>();
+    private static final AtomicLong droppedCount = new AtomicLong(0);
+
+    private DumpWriter() {
+        // hidden constructor
+    }
+
+    static boolean isEnabled() {
+        if (enabled.get() == null) {
+            enabled.compareAndSet(null, ThreadDumpImpl.getPreferences().getBoolean("asyncWrite", true));
+        }
+        return enabled.get();
+    }
+
+    static void setEnabled(boolean value) {
+        enabled.set(value);
+        ThreadDumpImpl.getPreferences().putBoolean("asyncWrite", value);
+        ThreadDumpImpl.logger.log(Level.INFO, "Asynchronous thread dump writing is {0}.", new Object[] {value ? "enabled" : "disabled"});
+    }
+
+    static int getCapacity() {
+        if (capacity.get() < 0) {
+            capacity.compareAndSet(-1, Math.min(Math.max(ThreadDumpImpl.getPreferences().getInt("writeQueueCapacity", DEFAULT_CAPACITY), 1), MAXIMAL_CAPACITY));
+        }
+        return capacity.get();
+    }
+
+    static void setCapacity(int value) {
+        int newValue = value;
+        if (newValue < 1 || newValue > MAXIMAL_CAPACITY) {
+            ThreadDumpImpl.logger.log(Level.WARNING, "Invalid write queue capacity {0}. Capacity must be between 1 and {1}.", new Object[] {newValue, MAXIMAL_CAPACITY});
+            newValue = Math.min(Math.max(newValue, 1), MAXIMAL_CAPACITY);
+        }
+        capacity.set(newValue);
+        ThreadDumpImpl.getPreferences().putInt("writeQueueCapacity", newValue);
+    }
+
+    static WriteQueuePolicy getPolicy() {
+        if (policy.get() == null) {
+            WriteQueuePolicy result;
+            try {
+                result = WriteQueuePolicy.valueOf(ThreadDumpImpl.getPreferences().get("writeQueuePolicy", WriteQueuePolicy.BLOCK.name()));
+            } catch (IllegalArgumentException e) {
+                result = WriteQueuePolicy.BLOCK;
+            }
+            policy.compareAndSet(null, result);
+        }
+        return policy.get();
+    }
+
+    static void setPolicy(WriteQueuePolicy value) {
+        policy.set(value);
+        ThreadDumpImpl.getPreferences().put("writeQueuePolicy", value.name());
+    }
+
+    static int getQueueLength() {
+        BlockingQueue<PendingDump> theQueue = queue.get();
+        return theQueue == null ? 0 : theQueue.size();
+    }
+
+    static long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Запускает поток записи. Емкость очереди определяется при запуске.
+     */
+    static void start() {
+        if (thread.get() != null) {
+            return;
+        }
+        final BlockingQueue<PendingDump> theQueue = new ArrayBlockingQueue<>(getCapacity());
+        Thread theThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain(theQueue);
+            }
+        }, THREAD_NAME);
+        theThread.setDaemon(true);
+        queue.set(theQueue);
+        thread.set(theThread);
+        theThread.start();
+    }
+
+    /**
+     * Останавливает поток записи, дождавшись записи дампов из очереди.
+     */
+    static void stop() {
+        Thread theThread = thread.getAndSet(null);
+        BlockingQueue<PendingDump> theQueue = queue.getAndSet(null);
+        if (theThread == null) {
+            return;
+        }
+        try {
+            if (!theQueue.offer(STOP, STOP_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                theThread.interrupt();
+            }
+            theThread.join(TimeUnit.SECONDS.toMillis(STOP_TIMEOUT_SEC));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (theThread.isAlive()) {
+            ThreadDumpImpl.logger.log(Level.WARNING, "Thread dump writer did not stop in {0} sec.", new Object[] {STOP_TIMEOUT_SEC});
+            theThread.interrupt();
+        }
+        for (PendingDump dump = theQueue.poll(); dump != null; dump = theQueue.poll()) {
+            release(dump);
+        }
+    }
+
+    private static void drain(BlockingQueue<PendingDump> theQueue) {
+        try {
+            while (true) {
+                PendingDump dump = theQueue.take();
+                if (dump == STOP) {
+                    return;
+                }
+                ThreadDumpImpl.writeDump(dump);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Ставит дамп в очередь на запись.
+     *
+     * @return <code>false</code>, если запись в отдельном потоке выключена
+     *         или поток не запущен; тогда дамп нужно записать самостоятельно
+     */
+    static boolean submit(PendingDump dump) {
+        BlockingQueue<PendingDump> theQueue = queue.get();
+        if (theQueue == null || !isEnabled()) {
+            return false;
+        }
+        if (getPolicy() == WriteQueuePolicy.DROP_OLDEST) {
+            while (!theQueue.offer(dump)) {
+                PendingDump oldest = theQueue.poll();
+                if (oldest != null) {
+                    droppedCount.incrementAndGet();
+                    ThreadDumpImpl.logger.log(Level.WARNING, "Thread dump taken at {0} was dropped because write queue is full.", new Object[] {String.format("%1$tF %1$tT.%1$tL", oldest.getDate())});
+                    release(oldest);
+                }
+            }
+            return true;
+        }
+        try {
+            theQueue.put(dump);
+        } catch (InterruptedException e) {
+            // мониторинг останавливается
+            Thread.currentThread().interrupt();
+            droppedCount.incrementAndGet();
+            release(dump);
+        }
+        return true;
+    }
+
+    static DumpBuffer acquireBuffer() {
+        DumpBuffer result = freeBuffers.poll();
+        if (result == null) {
+            return new DumpBuffer();
+        }
+        freeBufferCount.decrementAndGet();
+        return result;
+    }
+
+    static void release(PendingDump dump) {
+        DumpBuffer buffer = dump.getBuffer();
+        if (buffer != null) {
+            releaseBuffer(buffer);
+        }
+    }
+
+    /**
+     * Возвращает буфер для повторного использования. Слишком большие
+     * буферы и буферы сверх емкости очереди не сохраняются.
+     */
+    static void releaseBuffer(DumpBuffer buffer) {
+        buffer.reset();
+        if (buffer.capacity() > MAXIMAL_RETAINED_BUFFER) {
+            return;
+        }
+        if (freeBufferCount.incrementAndGet() > getCapacity() + 1) {
+            freeBufferCount.decrementAndGet();
+            return;
+        }
+        freeBuffers.offer(buffer);
+    }
+}
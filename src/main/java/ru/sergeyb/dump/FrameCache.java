@@ -0,0 +1,71 @@
+package ru.sergeyb.dump;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Кеш строковых представлений кадров стека. Большинство кадров
+ * повторяется от дампа к дампу и от потока к потоку, поэтому повторное
+ * форматирование {@link StackTraceElement#toString()} дает лишнюю нагрузку на сборщик мусора.
+ * <p>
+ * Кеш состоит из двух поколений. Новые кадры добавляются в молодое поколение,
+ * а кадр, найденный в старом поколении, переносится в молодое. Когда молодое
+ * поколение заполняется, оно становится старым, а прежнее старое поколение
+ * отбрасывается вместе с кадрами, которые не встречались за время заполнения.
+ * Поэтому часто встречающиеся кадры не форматируются заново после переполнения,
+ * а в кеше хранится не больше двух поколений.
+ *
+ * @author sergeyb
+ */
+class FrameCache {
+    private static final int MAX_SIZE = 16384;
+    private static final AtomicReference<ConcurrentMap<StackTraceElement, String>> young = new AtomicReference<ConcurrentMap<StackTraceElement, String>>(new ConcurrentHashMap<StackTraceElement, String>(1024));
+    private static final AtomicReference<ConcurrentMap<StackTraceElement, String>> old = new AtomicReference<ConcurrentMap<StackTraceElement, String>>(new ConcurrentHashMap<StackTraceElement, String>());
+    private static final AtomicInteger size = new AtomicInteger(0);
+
+    private FrameCache() {
+        // no instances
+    }
+
+    static String toString(StackTraceElement element) {
+        ConcurrentMap<StackTraceElement, String> current = young.get();
+        String result = current.get(element);
+        if (result != null) {
+            return result;
+        }
+        result = old.get().get(element);
+        if (result == null) {
+            result = element.toString();
+        }
+        if (size.incrementAndGet() > MAX_SIZE) {
+            promote(current);
+            current = young.get();
+        }
+        String previous = current.putIfAbsent(element, result);
+        return previous == null ? result : previous;
+    }
+
+    /**
+     * Делает заполненное молодое поколение старым. Вызывается редко,
+     * поэтому смена поколений выполняется под блокировкой.
+     */
+    private static void promote(ConcurrentMap<StackTraceElement, String> full) {
+        synchronized (FrameCache.class) {
+            if (young.get() == full) {
+                old.set(full);
+                young.set(new ConcurrentHashMap<StackTraceElement, String>(1024));
+                size.set(0);
+            }
+        }
+    }
+
+    static String[] toStrings(StackTraceElement elements[]) {
+        String result[] = new String[elements.length];
+        for (int i = 0; i < elements.length; i++) {
+            result[i] = toString(elements[i]);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,133 @@
+package ru.sergeyb.dump;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Гистограмма значений с фиксированными границами корзин.
+ * Запись значения не блокирует потоки и не создает объектов.
+ *
+ * @author sergeyb
+ */
+class Histogram {
+    /**
+     * Границы корзин для длительностей в миллисекундах.
+     */
+    static final long MILLIS_BOUNDS[] = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+    private final long bounds[];
+    private final AtomicLongArray buckets;
+    private final AtomicLong count;
+    private final AtomicLong total;
+    private final AtomicLong max;
+    private final AtomicLong last;
+
+    /**
+     * @param bounds верхние границы корзин (включительно) по возрастанию;
+     *        значения больше последней границы попадают в отдельную корзину
+     */
+    Histogram(long bounds[]) {
+        this.bounds = bounds;
+        this.buckets = new AtomicLongArray(bounds.length + 1);
+        this.count = new AtomicLong(0);
+        this.total = new AtomicLong(0);
+        this.max = new AtomicLong(0);
+        this.last = new AtomicLong(0);
+    }
+
+    void record(long value) {
+        int i = 0;
+        while (i < bounds.length && value > bounds[i]) {
+            i++;
+        }
+        buckets.incrementAndGet(i);
+        count.incrementAndGet();
+        total.addAndGet(value);
+        last.set(value);
+        long theMax = max.get();
+        while (value > theMax && !max.compareAndSet(theMax, value)) {
+            theMax = max.get();
+        }
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    long getTotal() {
+        return total.get();
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+    long getLast() {
+        return last.get();
+    }
+
+    /**
+     * Оценивает процентиль по корзинам.
+     *
+     * @param percent процент от 0 до 100
+     * @return верхняя граница корзины, в которую попал процентиль, но не больше максимума;
+     *         0, если значений не было
+     */
+    long percentile(double percent) {
+        long n = 0;
+        long counts[] = new long[buckets.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+            n += counts[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max((long) Math.ceil(n * percent / 100), 1);
+        long theMax = max.get();
+        long seen = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(bounds[i], theMax);
+            }
+        }
+        return theMax;
+    }
+
+    void reset() {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+        last.set(0);
+    }
+
+    /**
+     * @return строка вида <code>count=3 total=7 max=4 last=1 [&lt;=1: 1, &lt;=2: 1, &lt;=5: 1]</code>,
+     *         пустые корзины не выводятся
+     */
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("count=").append(count.get()).append(" total=").append(total.get());
+        buf.append(" max=").append(max.get()).append(" last=").append(last.get()).append(" [");
+        String separator = "";
+        for (int i = 0; i < buckets.length(); i++) {
+            long n = buckets.get(i);
+            if (n == 0) {
+                continue;
+            }
+            buf.append(separator);
+            if (i < bounds.length) {
+                buf.append("<=").append(bounds[i]);
+            } else {
+                buf.append('>').append(bounds[bounds.length - 1]);
+            }
+            buf.append(": ").append(n);
+            separator = ", ";
+        }
+        return buf.append(']').toString();
+    }
+}
@@ -2,24 +2,35 @@ package ru.sergeyb.dump;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.file.Path;
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
 
+import ru.sergeyb.profile.AttachStatistics;
 import ru.sergeyb.profile.JVMTIDumper;
 
 public class HotSpotVMDumper implements Dumper {
+    static final String CACHE_DIR = "cache";
+    private static final String PREWARM_THREAD_NAME = "ThreadDumpPrewarmW5c1r6tq";
     private final AtomicBoolean initialized;
     private final Lock initLock;
     private final AtomicBoolean good;
+    private final AtomicBoolean prewarmStarted;
     private final JVMTIDumper jvmtiDumper;
+    private final AtomicLong fallbackCount;
 
     public HotSpotVMDumper() {
         this.initialized = new AtomicBoolean(false);
         this.initLock = new ReentrantLock();
         this.good = new AtomicBoolean(true);
+        this.prewarmStarted = new AtomicBoolean(false);
         this.jvmtiDumper = new JVMTIDumper();
+        this.fallbackCount = new AtomicLong(0);
     }
 
     @Override
@@ -28,6 +39,7 @@ public class HotSpotVMDumper implements Dumper {
             init();
         }
         if (!good.get()) {
+            fallbackCount.incrementAndGet();
             DumpType.JMX.dumper().threadDump(out, date);
             return;
         }
@@ -35,16 +47,22 @@ public class HotSpotVMDumper implements Dumper {
     }
 
     private void init() {
-        boolean ok = false;
         initLock.lock();
+        if (initialized.get()) {
+            // подготовку уже выполнил другой поток, например, поток прогрева
+            initLock.unlock();
+            return;
+        }
+        boolean ok = false;
         try {
-            if (initialized.get()) {
-                return;
+            Path parentDir = ThreadDumpImpl.getDumpParentDir();
+            if (parentDir != null) {
+                this.jvmtiDumper.setCacheDir(parentDir.resolve(CACHE_DIR));
             }
             this.jvmtiDumper.init();
             ok = true;
         } catch (Throwable e) {
-            e.printStackTrace();
+            ThreadDumpImpl.logger.log(Level.SEVERE, "Failed to prepare HOTSPOT thread dumps, JMX dumps are used instead.", e);
         } finally {
             initialized.set(true);
             good.set(ok);
@@ -52,6 +70,68 @@ public class HotSpotVMDumper implements Dumper {
         }
     }
 
+    /**
+     * Запускает подготовку к дампам в фоновом потоке с низким приоритетом:
+     * поиск Attach API, распаковку библиотек, загрузку классов
+     * и подключение к JVM, которое затем переиспользуется дампами.
+     * Дамп при этом не снимается. Без этого все это выполняется при первом дампе,
+     * то есть во время запуска приложения. Если первый дамп понадобится
+     * раньше, он дождется окончания подготовки, а не начнет ее заново.
+     */
+    void prewarm() {
+        if (initialized.get() || !prewarmStarted.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                init();
+                if (!good.get()) {
+                    return;
+                }
+                try {
+                    long warmupStart = System.nanoTime();
+                    jvmtiDumper.connect();
+                    getAttachStatistics().warmedUp(System.nanoTime() - warmupStart);
+                } catch (IOException e) {
+                    ThreadDumpImpl.logger.log(Level.WARNING, "Warm-up HOTSPOT attach failed. Error = {0}", new Object[] {e.toString()});
+                }
+                ThreadDumpImpl.logger.log(Level.INFO, "HOTSPOT thread dumps prepared in {0} ms ({1}).",
+                    new Object[] {TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), getAttachStatistics().getInitSummary()});
+            }
+        }, PREWARM_THREAD_NAME);
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Возвращает статистику длительного подключения к JVM, которое
+     * переиспользуется между дампами.
+     *
+     * @return статистика подключений
+     */
+    AttachStatistics getAttachStatistics() {
+        return jvmtiDumper.getStatistics();
+    }
+
+    /**
+     * @return количество дампов, вместо которых был сохранен дамп JMX,
+     *         потому что подключиться к JVM не удалось
+     */
+    long getFallbackCount() {
+        return fallbackCount.get();
+    }
+
+    /**
+     * Закрывает подключение к JVM из другого потока, не дожидаясь
+     * завершения зависшего дампа.
+     */
+    void abort() {
+        jvmtiDumper.abort();
+    }
+
     @Override
     public void destroy() {
         this.jvmtiDumper.close();
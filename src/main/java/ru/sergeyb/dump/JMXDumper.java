@@ -10,7 +10,8 @@ import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
 import java.util.Date;
 
-public class JMXDumper implements Dumper {
+public class JMXDumper implements StructuredDumper {
+    private static final int NO_MONITORS[] = new int[0];
     private final String host;
 
     public JMXDumper() {
@@ -19,73 +20,162 @@ public class JMXDumper implements Dumper {
 
     @Override
     public void threadDump(PrintWriter out, Date date) throws IOException {
-        out.printf("[%1$tY-%1$tm-%1$td %1$tT%1$tz] Thread dump at %2$s:%n%n", date, host);
+        write(out, capture(date));
+    }
+
+    @Override
+    public DumpRecord capture(Date date) {
         ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
-        ThreadInfo[] result = threadMXBean.dumpAllThreads(true, true);
-        for (ThreadInfo threadInfo: result) {
-            out.printf("%s%n", toString(threadInfo));
+        ThreadInfo[] threadInfos = threadMXBean.dumpAllThreads(true, true);
+        ThreadRecord threads[] = new ThreadRecord[threadInfos.length];
+        for (int i = 0; i < threadInfos.length; i++) {
+            threads[i] = toRecord(threadInfos[i]);
         }
+        return new DumpRecord(DumpType.JMX, date, host, threads);
     }
 
-    private static String toString(ThreadInfo threadInfo) {
-        StringBuilder buf = new StringBuilder();
+    @Override
+    public void write(PrintWriter out, DumpRecord dump) {
+        out.printf("[%1$tY-%1$tm-%1$td %1$tT%1$tz] Thread dump at %2$s:%n%n", dump.getDate(), dump.getHost());
+        ThreadCpuSampler.writeInterval(out, dump);
+        for (ThreadRecord thread: dump.getThreads()) {
+            write(out, thread);
+            out.println();
+        }
+        ThreadCpuSampler.writeHotThreads(out, dump);
+    }
+
+    static ThreadRecord toRecord(ThreadInfo threadInfo) {
+        String frames[] = FrameCache.toStrings(threadInfo.getStackTrace());
+        MonitorInfo[] monitors = threadInfo.getLockedMonitors();
+        int monitorDepths[] = new int[monitors.length];
+        String monitorNames[] = new String[monitors.length];
+        for (int i = 0; i < monitors.length; i++) {
+            monitorDepths[i] = monitors[i].getLockedStackDepth();
+            monitorNames[i] = monitors[i].toString();
+        }
+        LockInfo[] locks = threadInfo.getLockedSynchronizers();
+        String lockNames[] = new String[locks.length];
+        for (int i = 0; i < locks.length; i++) {
+            lockNames[i] = locks[i].toString();
+        }
+        return new ThreadRecord(threadInfo.getThreadId(), threadInfo.getThreadName(), threadInfo.getThreadState(),
+            threadInfo.getLockName(), threadInfo.getLockOwnerName(), threadInfo.getLockOwnerId(),
+            threadInfo.isSuspended(), threadInfo.isInNative(), frames, monitorDepths, monitorNames, lockNames);
+    }
 
-        String threadName = threadInfo.getThreadName();
-        long threadId = threadInfo.getThreadId();
-        State threadState = threadInfo.getThreadState();
+    /**
+     * Пишет поток сразу в <code>out</code> без промежуточных строк.
+     * Формат совпадает с {@link ThreadInfo#toString()}, но без ограничения глубины стека.
+     */
+    private static void write(PrintWriter out, ThreadRecord threadInfo) {
         String lockName = threadInfo.getLockName();
         String lockOwnerName = threadInfo.getLockOwnerName();
-        LockInfo lockInfo = threadInfo.getLockInfo();
+        State threadState = threadInfo.getState();
 
-        buf.append('"').append(threadName).append('"').append(" Id=").append(threadId).append(' ').append(threadState);
+        out.write('"');
+        out.write(threadInfo.getName());
+        out.write("\" Id=");
+        out.print(threadInfo.getId());
+        out.write(' ');
+        out.write(threadState.name());
         if (lockName != null) {
-            buf.append(" on ").append(lockName);
+            out.write(" on ");
+            out.write(lockName);
         }
         if (lockOwnerName != null) {
-            long lockOwnerId = threadInfo.getLockOwnerId();
-            buf.append(" owned by \"").append(lockOwnerName).append("\" Id=").append(lockOwnerId);
+            out.write(" owned by \"");
+            out.write(lockOwnerName);
+            out.write("\" Id=");
+            out.print(threadInfo.getLockOwnerId());
         }
         if (threadInfo.isSuspended()) {
-            buf.append(" (suspended)");
+            out.write(" (suspended)");
         }
         if (threadInfo.isInNative()) {
-            buf.append(" (in native)");
+            out.write(" (in native)");
         }
-        buf.append('\n');
+        if (threadInfo.getCpuTime() >= 0) {
+            out.write(" cpu=");
+            ThreadCpuSampler.writeMillis(out, threadInfo.getCpuTime());
+            if (threadInfo.getCpuTimeDelta() >= 0) {
+                out.write(" (+");
+                ThreadCpuSampler.writeMillis(out, threadInfo.getCpuTimeDelta());
+                out.write(')');
+            }
+        }
+        out.write('\n');
 
-        StackTraceElement[] stackTrace = threadInfo.getStackTrace();
+        String[] stackTrace = threadInfo.getFrames();
+        int[] monitorDepths = threadInfo.getLockedMonitorDepths();
+        String[] monitors = threadInfo.getLockedMonitors();
+        int[] order = orderByDepth(monitorDepths);
+        int next = 0;
         for (int i = 0; i < stackTrace.length; i++) {
-            StackTraceElement element = stackTrace[i];
-            buf.append("    at " + element.toString());
-            buf.append('\n');
-            if (i == 0 && lockInfo != null) {
+            out.write("    at ");
+            out.write(stackTrace[i]);
+            out.write('\n');
+            if (i == 0 && lockName != null) {
                 switch (threadState) {
                     case BLOCKED:
-                        buf.append("    -  blocked on ").append(lockInfo).append('\n');
+                        out.write("    -  blocked on ");
+                        out.write(lockName);
+                        out.write('\n');
                         break;
                     case WAITING:
                     case TIMED_WAITING:
-                        buf.append("    -  waiting on ").append(lockInfo).append('\n');
+                        out.write("    -  waiting on ");
+                        out.write(lockName);
+                        out.write('\n');
                         break;
                     default:
                         break;
                 }
             }
-            for (MonitorInfo monitorInfo: threadInfo.getLockedMonitors()) {
-                if (monitorInfo.getLockedStackDepth() == i) {
-                    buf.append("    -  locked ").append(monitorInfo).append('\n');
-                }
+            while (next < order.length && monitorDepths[order[next]] < i) {
+                next++;
+            }
+            while (next < order.length && monitorDepths[order[next]] == i) {
+                out.write("    -  locked ");
+                out.write(monitors[order[next++]]);
+                out.write('\n');
             }
         }
-        LockInfo[] locks = threadInfo.getLockedSynchronizers();
+        String[] locks = threadInfo.getLockedSynchronizers();
         if (locks.length > 0) {
-            buf.append("\n    Number of locked synchronizers = ").append(locks.length).append('\n');
-            for (LockInfo lock: locks) {
-                buf.append("    - ").append(lock).append('\n');
+            out.write("\n    Number of locked synchronizers = ");
+            out.print(locks.length);
+            out.write('\n');
+            for (String lock: locks) {
+                out.write("    - ");
+                out.write(lock);
+                out.write('\n');
+            }
+        }
+        out.write('\n');
+    }
+
+    /**
+     * Упорядочивает мониторы по глубине стека, сохраняя исходный порядок
+     * мониторов одной глубины, чтобы при выводе стека не перебирать
+     * все мониторы на каждом кадре.
+     *
+     * @return номера мониторов в порядке возрастания глубины
+     */
+    private static int[] orderByDepth(int depths[]) {
+        if (depths.length == 0) {
+            return NO_MONITORS;
+        }
+        int order[] = new int[depths.length];
+        for (int i = 0; i < order.length; i++) {
+            int j = i;
+            while (j > 0 && depths[order[j - 1]] > depths[i]) {
+                order[j] = order[j - 1];
+                j--;
             }
+            order[j] = i;
         }
-        buf.append('\n');
-        return buf.toString();
+        return order;
     }
 
     @Override
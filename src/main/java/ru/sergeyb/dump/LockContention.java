@@ -0,0 +1,438 @@
+package ru.sergeyb.dump;
+
+import java.lang.Thread.State;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+/**
+ * Статистика конкуренции за блокировки по дампам со сведениями
+ * о блокировках (JMX). Для каждого дампа строится граф ожидания:
+ * поток, ждущий монитор или синхронизатор, которым владеет другой поток,
+ * ссылается на владельца. По дампам за скользящее окно считается,
+ * какие блокировки чаще всего заняты, кто ими владеет и в каких кадрах
+ * стека их захватывают и ждут.
+ * <p>
+ * В памяти хранятся только блокировки, которых кто-то ждал,
+ * поэтому размер статистики не зависит от количества потоков.
+ * Раз в окно статистика сохраняется в файл отчета в каталоге дня.
+ *
+ * @author sergeyb
+ */
+class LockContention {
+    static final int DEFAULT_WINDOW_SEC = 600;
+    private static final int MAXIMAL_WINDOW_SEC = 86400;
+    private static final int TOP_LOCKS = 50;
+    private static final String REPORT_PREFIX = "lock-contention";
+    private static final String ITEMS[] = {"lock", "lockClass", "samples", "waiters", "maxWaiters", "owner", "ownerPercent", "ownerFrame", "waiterFrame"};
+    private static final TabularType TABULAR_TYPE;
+    private static final AtomicInteger windowSec = new AtomicInteger(-1);
+    private static final AtomicReference<ScheduledFuture<?>> reportTimer = new AtomicReference<>();
+    private static final Deque<Sample> samples = new ArrayDeque<>();
+    private static final Runnable reporter;
+
+    static {
+        try {
+            CompositeType rowType = new CompositeType("LockContention", "Contended lock", ITEMS,
+                new String[] {"Lock", "Class of the lock", "Dumps in which the lock had waiters", "Total waiters in all dumps",
+                    "Maximal waiters in one dump", "Most frequent owner", "Share of dumps with this owner, %",
+                    "Most frequent frame where the owner acquired the lock", "Most frequent frame where waiters block"},
+                new OpenType<?>[] {SimpleType.STRING, SimpleType.STRING, SimpleType.LONG, SimpleType.LONG, SimpleType.INTEGER,
+                    SimpleType.STRING, SimpleType.INTEGER, SimpleType.STRING, SimpleType.STRING});
+            TABULAR_TYPE = new TabularType("LockContentionTable", "Most contended locks", rowType, new String[] {"lock"});
+        } catch (OpenDataException e) {
+            throw new IllegalStateException(e);
+        }
+        reporter = new Runnable() {
+            @Override
+            public void run() {
+                saveReport();
+            }
+        };
+    }
+
+    private LockContention() {
+        // hidden constructor
+    }
+
+    /**
+     * @return длина окна в секундах, 0 - статистика не собирается
+     */
+    static int getWindowSec() {
+        if (windowSec.get() < 0) {
+            windowSec.compareAndSet(-1, Math.min(Math.max(ThreadDumpImpl.getPreferences().getInt("lockWindowSec", DEFAULT_WINDOW_SEC), 0), MAXIMAL_WINDOW_SEC));
+        }
+        return windowSec.get();
+    }
+
+    /**
+     * Устанавливает длину окна. Отчет сохраняется с тем же периодом,
+     * новый период действует после перезапуска мониторинга.
+     */
+    static void setWindowSec(int value) {
+        int newValue = value;
+        if (newValue < 0 || newValue > MAXIMAL_WINDOW_SEC) {
+            ThreadDumpImpl.logger.log(Level.WARNING, "Invalid lock contention window {0} sec. Window must be between 0 and {1} sec.", new Object[] {newValue, MAXIMAL_WINDOW_SEC});
+            newValue = Math.min(Math.max(newValue, 0), MAXIMAL_WINDOW_SEC);
+        }
+        windowSec.set(newValue);
+        ThreadDumpImpl.getPreferences().putInt("lockWindowSec", newValue);
+    }
+
+    /**
+     * Запускает периодическое сохранение отчета.
+     *
+     * @param thePool пул, в котором выполняется мониторинг дампов
+     */
+    static void start(ScheduledExecutorService thePool) {
+        int period = getWindowSec();
+        if (period > 0) {
+            reportTimer.set(thePool.scheduleAtFixedRate(reporter, period, period, TimeUnit.SECONDS));
+        }
+    }
+
+    static void stop() {
+        ScheduledFuture<?> theTimer = reportTimer.getAndSet(null);
+        if (theTimer != null) {
+            theTimer.cancel(false);
+        }
+    }
+
+    /**
+     * Учитывает только что снятый дамп.
+     */
+    static void analyze(DumpRecord dump) {
+        int window = getWindowSec();
+        if (window == 0) {
+            return;
+        }
+        Sample sample = buildSample(dump);
+        long now = dump.getDate().getTime();
+        synchronized (LockContention.class) {
+            samples.addLast(sample);
+            evict(now - TimeUnit.SECONDS.toMillis(window));
+        }
+    }
+
+    private static void evict(long before) {
+        while (!samples.isEmpty() && samples.peekFirst().time < before) {
+            samples.removeFirst();
+        }
+    }
+
+    /**
+     * Строит граф ожидания дампа и собирает по нему занятые блокировки.
+     */
+    private static Sample buildSample(DumpRecord dump) {
+        ThreadRecord threads[] = dump.getThreads();
+        Map<Long, ThreadRecord> byId = new HashMap<>(threads.length * 2);
+        for (ThreadRecord thread: threads) {
+            byId.put(thread.getId(), thread);
+        }
+        Map<Long, Long> waitsFor = new HashMap<>();
+        Map<String, LockSample> locks = new HashMap<>();
+        for (ThreadRecord waiter: threads) {
+            String lockName = waiter.getLockName();
+            if (lockName == null || waiter.getLockOwnerName() == null) {
+                // Object.wait() без владельца - это ожидание события, а не конкуренция
+                continue;
+            }
+            waitsFor.put(waiter.getId(), waiter.getLockOwnerId());
+            LockSample lock = locks.get(lockName);
+            if (lock == null) {
+                ThreadRecord owner = byId.get(waiter.getLockOwnerId());
+                lock = new LockSample(lockName, waiter.getLockOwnerName(), owner == null ? null : getOwnerFrame(owner, lockName));
+                locks.put(lockName, lock);
+            }
+            lock.waiters++;
+            String frame = getWaiterFrame(waiter);
+            if (frame != null) {
+                lock.waiterFrames.add(frame);
+            }
+        }
+        return new Sample(dump.getDate().getTime(), locks.values(), getLongestChain(waitsFor, byId));
+    }
+
+    /**
+     * @return кадр, в котором владелец захватил монитор, или верхний кадр владельца,
+     *         если блокировка - синхронизатор и место захвата неизвестно
+     */
+    private static String getOwnerFrame(ThreadRecord owner, String lockName) {
+        String frames[] = owner.getFrames();
+        String monitors[] = owner.getLockedMonitors();
+        int depths[] = owner.getLockedMonitorDepths();
+        for (int i = 0; i < monitors.length; i++) {
+            if (monitors[i].equals(lockName) && depths[i] >= 0 && depths[i] < frames.length) {
+                return frames[depths[i]];
+            }
+        }
+        return getCallerFrame(frames);
+    }
+
+    /**
+     * @return кадр, в котором поток ждет блокировку
+     */
+    private static String getWaiterFrame(ThreadRecord waiter) {
+        if (waiter.getState() == State.BLOCKED) {
+            return waiter.getFrames().length > 0 ? waiter.getFrames()[0] : null;
+        }
+        return getCallerFrame(waiter.getFrames());
+    }
+
+    /**
+     * @return первый кадр вне реализации блокировок
+     */
+    private static String getCallerFrame(String frames[]) {
+        for (String frame: frames) {
+            if (!frame.contains("java.util.concurrent.locks.") && !frame.contains(".Unsafe.park")) {
+                return frame;
+            }
+        }
+        return frames.length > 0 ? frames[0] : null;
+    }
+
+    /**
+     * @return имена потоков самой длинной цепочки ожидания, начиная с ждущего
+     */
+    private static List<String> getLongestChain(Map<Long, Long> waitsFor, Map<Long, ThreadRecord> byId) {
+        List<String> result = Collections.emptyList();
+        for (Long start: waitsFor.keySet()) {
+            List<String> chain = new ArrayList<>();
+            Set<Long> seen = new HashSet<>();
+            for (Long id = start; id != null && seen.add(id); id = waitsFor.get(id)) {
+                ThreadRecord thread = byId.get(id);
+                chain.add(thread == null ? "Id=" + id : thread.getName());
+            }
+            if (chain.size() > result.size()) {
+                result = chain;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Сводит статистику окна по блокировкам.
+     *
+     * @return блокировки по убыванию суммарного количества ожидающих
+     */
+    private static synchronized List<LockStatistics> aggregate() {
+        Map<String, LockStatistics> result = new HashMap<>();
+        for (Sample sample: samples) {
+            for (LockSample lock: sample.locks) {
+                LockStatistics statistics = result.get(lock.name);
+                if (statistics == null) {
+                    statistics = new LockStatistics(lock.name);
+                    result.put(lock.name, statistics);
+                }
+                statistics.add(lock);
+            }
+        }
+        List<LockStatistics> list = new ArrayList<>(result.values());
+        Collections.sort(list, new Comparator<LockStatistics>() {
+            @Override
+            public int compare(LockStatistics a, LockStatistics b) {
+                return Long.compare(b.waiters, a.waiters);
+            }
+        });
+        return list.size() > TOP_LOCKS ? list.subList(0, TOP_LOCKS) : list;
+    }
+
+    private static synchronized List<String> getLongestChain() {
+        List<String> result = Collections.emptyList();
+        for (Sample sample: samples) {
+            if (sample.longestChain.size() > result.size()) {
+                result = sample.longestChain;
+            }
+        }
+        return result;
+    }
+
+    private static synchronized int getSampleCount() {
+        return samples.size();
+    }
+
+    /**
+     * @return самые занятые блокировки окна в виде таблицы
+     */
+    static TabularData getTable() {
+        TabularData result = new TabularDataSupport(TABULAR_TYPE);
+        for (LockStatistics statistics: aggregate()) {
+            try {
+                result.put(new CompositeDataSupport(TABULAR_TYPE.getRowType(), ITEMS, new Object[] {statistics.name, getLockClass(statistics.name),
+                    statistics.samples, statistics.waiters, statistics.maxWaiters, nonNull(statistics.owners.getTop()),
+                    (int) (statistics.owners.getTopCount() * 100 / statistics.samples), nonNull(statistics.ownerFrames.getTop()),
+                    nonNull(statistics.waiterFrames.getTop())}));
+            } catch (OpenDataException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return текст отчета за окно
+     */
+    static String getReport() {
+        StringBuilder buf = new StringBuilder();
+        List<LockStatistics> list = aggregate();
+        buf.append(String.format("Lock contention in %d dumps of last %d sec:%n", getSampleCount(), getWindowSec()));
+        for (LockStatistics statistics: list) {
+            buf.append(String.format("%n%s: waiters=%d in %d dumps, max=%d%n", statistics.name, statistics.waiters, statistics.samples, statistics.maxWaiters));
+            buf.append(String.format("    owned by \"%s\" in %d%% of dumps%n", statistics.owners.getTop(), statistics.owners.getTopCount() * 100 / statistics.samples));
+            if (statistics.ownerFrames.getTop() != null) {
+                buf.append(String.format("    acquired at %s%n", statistics.ownerFrames.getTop()));
+            }
+            if (statistics.waiterFrames.getTop() != null) {
+                buf.append(String.format("    waited at %s%n", statistics.waiterFrames.getTop()));
+            }
+        }
+        List<String> chain = getLongestChain();
+        if (chain.size() > 1) {
+            buf.append(String.format("%nLongest wait chain (%d threads): ", chain.size()));
+            String separator = "";
+            for (String name: chain) {
+                buf.append(separator).append('"').append(name).append('"');
+                separator = " -> ";
+            }
+            buf.append(String.format("%n"));
+        }
+        return buf.toString();
+    }
+
+    private static void saveReport() {
+        try {
+            synchronized (LockContention.class) {
+                evict(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(getWindowSec()));
+            }
+            if (aggregate().isEmpty()) {
+                return;
+            }
+            ThreadDumpImpl.saveReport(REPORT_PREFIX, Calendar.getInstance().getTime(), getReport());
+        } catch (RuntimeException e) {
+            ThreadDumpImpl.logger.log(Level.SEVERE, "Failed to save lock contention report. Error = {0}", new Object[] {e.toString()});
+        }
+    }
+
+    private static String getLockClass(String lockName) {
+        int i = lockName.lastIndexOf('@');
+        return i < 0 ? lockName : lockName.substring(0, i);
+    }
+
+    private static String nonNull(String s) {
+        return s == null ? "" : s;
+    }
+
+    /**
+     * Занятые блокировки одного дампа.
+     */
+    private static final class Sample {
+        final long time;
+        final List<LockSample> locks;
+        final List<String> longestChain;
+
+        Sample(long time, Collection<LockSample> locks, List<String> longestChain) {
+            this.time = time;
+            this.locks = new ArrayList<>(locks);
+            this.longestChain = longestChain;
+        }
+    }
+
+    private static final class LockSample {
+        final String name;
+        final String owner;
+        final String ownerFrame;
+        final List<String> waiterFrames;
+        int waiters;
+
+        LockSample(String name, String owner, String ownerFrame) {
+            this.name = name;
+            this.owner = owner;
+            this.ownerFrame = ownerFrame;
+            this.waiterFrames = new ArrayList<>(1);
+        }
+    }
+
+    private static final class LockStatistics {
+        final String name;
+        final Counter owners;
+        final Counter ownerFrames;
+        final Counter waiterFrames;
+        long samples;
+        long waiters;
+        int maxWaiters;
+
+        LockStatistics(String name) {
+            this.name = name;
+            this.owners = new Counter();
+            this.ownerFrames = new Counter();
+            this.waiterFrames = new Counter();
+        }
+
+        void add(LockSample lock) {
+            samples++;
+            waiters += lock.waiters;
+            maxWaiters = Math.max(maxWaiters, lock.waiters);
+            owners.add(lock.owner);
+            ownerFrames.add(lock.ownerFrame);
+            for (String frame: lock.waiterFrames) {
+                waiterFrames.add(frame);
+            }
+        }
+    }
+
+    /**
+     * Счетчик строк с самой частой строкой.
+     */
+    private static final class Counter {
+        private final Map<String, int[]> counts = new HashMap<>();
+        private String top;
+        private int topCount;
+
+        void add(String s) {
+            if (s == null) {
+                return;
+            }
+            int count[] = counts.get(s);
+            if (count == null) {
+                count = new int[1];
+                counts.put(s, count);
+            }
+            if (++count[0] > topCount) {
+                topCount = count[0];
+                top = s;
+            }
+        }
+
+        String getTop() {
+            return top;
+        }
+
+        long getTopCount() {
+            return topCount;
+        }
+    }
+}
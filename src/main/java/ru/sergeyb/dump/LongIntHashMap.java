@@ -0,0 +1,87 @@
+package ru.sergeyb.dump;
+
+import java.util.Arrays;
+
+/**
+ * Хеш-таблица с открытой адресацией, отображающая <code>long</code>
+ * в неотрицательные <code>int</code> без упаковки в объекты.
+ *
+ * @author sergeyb
+ */
+class LongIntHashMap {
+    private static final int NO_VALUE = -1;
+    private long keys[];
+    private int values[];
+    private int size;
+
+    LongIntHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1;
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+        Arrays.fill(values, NO_VALUE);
+        this.size = 0;
+    }
+
+    /**
+     * @return значение для ключа или -1, если ключ отсутствует
+     */
+    int get(long key) {
+        int mask = keys.length - 1;
+        for (int i = index(key, mask); ; i = (i + 1) & mask) {
+            int value = values[i];
+            if (value == NO_VALUE || keys[i] == key) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Сохраняет неотрицательное значение для ключа.
+     */
+    void put(long key, int value) {
+        if ((size + 1) * 2 > keys.length) {
+            resize();
+        }
+        int mask = keys.length - 1;
+        for (int i = index(key, mask); ; i = (i + 1) & mask) {
+            if (values[i] == NO_VALUE) {
+                keys[i] = key;
+                values[i] = value;
+                size++;
+                return;
+            }
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        Arrays.fill(values, NO_VALUE);
+        size = 0;
+    }
+
+    private void resize() {
+        long oldKeys[] = keys;
+        int oldValues[] = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        Arrays.fill(values, NO_VALUE);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != NO_VALUE) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    private static int index(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,224 @@
+package ru.sergeyb.dump;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+
+/**
+ * Снятие дампов по запросу HTTP. Дамп снимается только в память.
+ * Запросы, пришедшие, пока дамп того же типа снимается, не снимают
+ * свой дамп, а получают тот же результат, поэтому серия запросов
+ * не вызывает серию остановок JVM. Количество одновременно
+ * обслуживаемых запросов ограничено.
+ * <p>
+ * По умолчанию дампы по HTTP отключены: ответ содержит имена потоков,
+ * стеки и сведения о сервере, а запрос нового дампа останавливает JVM.
+ * Включать их следует, только если адрес сервлета закрыт средствами
+ * безопасности контейнера (security-constraint в web.xml приложения
+ * или ограничение доступа на уровне сервера).
+ *
+ * @author sergeyb
+ */
+class OnDemandCapture {
+    static final int DEFAULT_MAX_REQUESTS = 4;
+    private static final int MAXIMAL_MAX_REQUESTS = 100;
+    private static final AtomicReference<Boolean> enabled = new AtomicReference<>();
+    private static final AtomicInteger maxRequests = new AtomicInteger(-1);
+    private static final AtomicInteger activeRequests = new AtomicInteger(0);
+    private static final AtomicLong rejectedCount = new AtomicLong(0);
+    private static final AtomicLong coalescedCount = new AtomicLong(0);
+    private static final ConcurrentMap<DumpType, FutureTask<Result>> inFlight = new ConcurrentHashMap<>();
+
+    private OnDemandCapture() {
+        // hidden constructor
+    }
+
+    static boolean isEnabled() {
+        if (enabled.get() == null) {
+            enabled.compareAndSet(null, ThreadDumpImpl.getPreferences().getBoolean("httpEnabled", false));
+        }
+        return enabled.get();
+    }
+
+    static void setEnabled(boolean value) {
+        enabled.set(value);
+        ThreadDumpImpl.getPreferences().putBoolean("httpEnabled", value);
+        ThreadDumpImpl.logger.log(Level.INFO, "Thread dumps over HTTP {0}.", new Object[] {value ? "enabled" : "disabled"});
+    }
+
+    static int getMaxRequests() {
+        if (maxRequests.get() < 0) {
+            maxRequests.compareAndSet(-1, Math.min(Math.max(ThreadDumpImpl.getPreferences().getInt("httpMaxRequests", DEFAULT_MAX_REQUESTS), 1), MAXIMAL_MAX_REQUESTS));
+        }
+        return maxRequests.get();
+    }
+
+    static void setMaxRequests(int value) {
+        int newValue = value;
+        if (newValue < 1 || newValue > MAXIMAL_MAX_REQUESTS) {
+            ThreadDumpImpl.logger.log(Level.WARNING, "Invalid HTTP request limit {0}. Limit must be between 1 and {1}.", new Object[] {newValue, MAXIMAL_MAX_REQUESTS});
+            newValue = Math.min(Math.max(newValue, 1), MAXIMAL_MAX_REQUESTS);
+        }
+        maxRequests.set(newValue);
+        ThreadDumpImpl.getPreferences().putInt("httpMaxRequests", newValue);
+    }
+
+    static long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    static long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    static void resetCounters() {
+        rejectedCount.set(0);
+        coalescedCount.set(0);
+    }
+
+    /**
+     * Занимает место для запроса.
+     *
+     * @return <code>false</code>, если обслуживается максимальное количество запросов
+     */
+    static boolean acquire() {
+        int limit = getMaxRequests();
+        for (;;) {
+            int active = activeRequests.get();
+            if (active >= limit) {
+                rejectedCount.incrementAndGet();
+                return false;
+            }
+            if (activeRequests.compareAndSet(active, active + 1)) {
+                return true;
+            }
+        }
+    }
+
+    static void release() {
+        activeRequests.decrementAndGet();
+    }
+
+    /**
+     * Снимает дамп или ждет дамп того же типа, который уже снимается.
+     * Профиль не снимается заново, а копируется из накапливаемого,
+     * чтобы не сбрасывать выборки сохраняемого профиля.
+     * Результат нужно освободить через {@link Result#release()}.
+     */
+    static Result capture(final DumpType type) throws IOException {
+        for (;;) {
+            FutureTask<Result> task = new FutureTask<>(new Callable<Result>() {
+                @Override
+                public Result call() throws IOException {
+                    if (type == DumpType.PROFILE) {
+                        return new Result(null, snapshot());
+                    }
+                    PendingDump dump = ThreadDumpImpl.captureDump(type, ThreadCpuSampler.ON_DEMAND);
+                    return new Result(dump.getRecord(), dump.getBuffer());
+                }
+            });
+            FutureTask<Result> running = inFlight.putIfAbsent(type, task);
+            if (running == null) {
+                try {
+                    task.run();
+                } finally {
+                    inFlight.remove(type, task);
+                }
+                return get(task);
+            }
+            coalescedCount.incrementAndGet();
+            Result result = get(running);
+            if (result.retain()) {
+                return result;
+            }
+            // дамп уже отдан всем и освобожден, снимаем новый
+        }
+    }
+
+    private static DumpBuffer snapshot() {
+        DumpBuffer buffer = DumpWriter.acquireBuffer();
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(buffer, StandardCharsets.UTF_8));
+        ((ProfileDumper) DumpType.PROFILE.dumper()).snapshot(out, new Date());
+        out.flush();
+        return buffer;
+    }
+
+    private static Result get(FutureTask<Result> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for thread dump", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Снятый дамп: в структурированном виде или текстом, если дампер
+     * не умеет снимать структурированный дамп. Текст не копируется,
+     * а передается клиентам из буфера, который возвращается для повторного
+     * использования, когда дамп отдан всем ожидавшим его запросам.
+     */
+    static final class Result {
+        private final DumpRecord record;
+        private final DumpBuffer text;
+        private final AtomicInteger references;
+
+        Result(DumpRecord record, DumpBuffer text) {
+            this.record = record;
+            this.text = text;
+            this.references = new AtomicInteger(1);
+        }
+
+        DumpRecord getRecord() {
+            return record;
+        }
+
+        /**
+         * Передает текст дампа в поток без промежуточного копирования.
+         */
+        void writeTo(OutputStream out) throws IOException {
+            text.writeTo(out);
+        }
+
+        /**
+         * @return <code>false</code>, если результат уже освобожден
+         */
+        boolean retain() {
+            for (;;) {
+                int count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0 && text != null) {
+                DumpWriter.releaseBuffer(text);
+            }
+        }
+    }
+}
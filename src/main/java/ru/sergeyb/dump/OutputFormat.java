@@ -0,0 +1,18 @@
+package ru.sergeyb.dump;
+
+/**
+ * Способ сохранения дампов, создаваемых по расписанию.
+ *
+ * @author sergeyb
+ */
+enum OutputFormat {
+    /**
+     * Каждый дамп в отдельном текстовом файле.
+     */
+    TEXT,
+    /**
+     * Дампы типов SIMPLE и JMX дописываются в хранилище с дедупликацией
+     * стеков {@link StackStore}, остальные сохраняются как TEXT.
+     */
+    STORE
+}
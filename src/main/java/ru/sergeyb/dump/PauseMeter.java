@@ -0,0 +1,239 @@
+package ru.sergeyb.dump;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Учет остановок JVM, вызванных снятием дампов. Каждый способ снятия
+ * дампа переводит JVM в safepoint, поэтому длительность остановки
+ * оценивается по счетчикам HotSpot (<code>sun.management.HotspotRuntimeMBean</code>).
+ * Если счетчики недоступны, вместо остановки учитывается полное время
+ * снятия дампа, которое ее заведомо не меньше.
+ * <p>
+ * Счетчики общие для всей JVM, поэтому в остановку дампа попадают и другие
+ * safepoint, например сборка мусора, которые пришлись на время снятия дампа.
+ * <p>
+ * Если остановка превысила бюджет, пишется предупреждение. При включенном
+ * отступлении после каждого превышения пропускается вдвое больше плановых
+ * дампов, чем в прошлый раз, а после каждого дампа в пределах бюджета вдвое меньше.
+ *
+ * @author sergeyb
+ */
+class PauseMeter {
+    private static final int MAXIMAL_BACKOFF_FACTOR = 32;
+    private static final Object runtime;
+    private static final Method totalSafepointTime;
+    private static final Method safepointSyncTime;
+    private static final Map<DumpType, Histogram> histograms;
+    private static final AtomicInteger budgetMs = new AtomicInteger(-1);
+    private static final AtomicInteger backoff = new AtomicInteger(-1);
+    private static final AtomicInteger backoffFactor = new AtomicInteger(1);
+    private static final AtomicInteger skipRemaining = new AtomicInteger(0);
+    private static final AtomicLong overBudgetCount = new AtomicLong(0);
+    private static final AtomicLong skippedCount = new AtomicLong(0);
+    private static final AtomicLong syncTimeMs = new AtomicLong(0);
+
+    static {
+        Object theRuntime = null;
+        Method theTotalSafepointTime = null;
+        Method theSafepointSyncTime = null;
+        try {
+            Class<?> helper = Class.forName("sun.management.ManagementFactoryHelper");
+            Class<?> runtimeClass = Class.forName("sun.management.HotspotRuntimeMBean");
+            theTotalSafepointTime = runtimeClass.getMethod("getTotalSafepointTime");
+            theSafepointSyncTime = runtimeClass.getMethod("getSafepointSyncTime");
+            theRuntime = helper.getMethod("getHotspotRuntimeMBean").invoke(null);
+            theTotalSafepointTime.invoke(theRuntime);
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException | InvocationTargetException | RuntimeException e) {
+            ThreadDumpImpl.logger.log(Level.INFO, "HotSpot safepoint counters are not available, dump pause is estimated by dump time. Error = {0}", new Object[] {e.toString()});
+            theRuntime = null;
+        }
+        runtime = theRuntime;
+        totalSafepointTime = theTotalSafepointTime;
+        safepointSyncTime = theSafepointSyncTime;
+        Map<DumpType, Histogram> theHistograms = new EnumMap<>(DumpType.class);
+        for (DumpType dumpType: DumpType.values()) {
+            theHistograms.put(dumpType, new Histogram(Histogram.MILLIS_BOUNDS));
+        }
+        histograms = theHistograms;
+    }
+
+    /**
+     * Состояние счетчиков в начале снятия дампа.
+     */
+    static class Sample {
+        private final long startNanos;
+        private final long safepointTimeMs;
+        private final long syncTimeMs;
+
+        private Sample(long startNanos, long safepointTimeMs, long syncTimeMs) {
+            this.startNanos = startNanos;
+            this.safepointTimeMs = safepointTimeMs;
+            this.syncTimeMs = syncTimeMs;
+        }
+
+        long getStartNanos() {
+            return startNanos;
+        }
+    }
+
+    private PauseMeter() {
+        // hidden constructor
+    }
+
+    /**
+     * @return <code>true</code>, если остановка измеряется по счетчикам safepoint
+     */
+    static boolean isMeasured() {
+        return runtime != null;
+    }
+
+    static Sample start() {
+        return new Sample(System.nanoTime(), counter(totalSafepointTime), counter(safepointSyncTime));
+    }
+
+    /**
+     * Учитывает остановку, вызванную дампом, и проверяет бюджет.
+     *
+     * @return длительность остановки в миллисекундах
+     */
+    static long stop(DumpType dumpType, Sample sample) {
+        long pauseMs;
+        if (runtime != null) {
+            pauseMs = Math.max(counter(totalSafepointTime) - sample.safepointTimeMs, 0);
+            syncTimeMs.addAndGet(Math.max(counter(safepointSyncTime) - sample.syncTimeMs, 0));
+        } else {
+            pauseMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sample.startNanos);
+        }
+        histograms.get(dumpType).record(pauseMs);
+        checkBudget(dumpType, pauseMs);
+        return pauseMs;
+    }
+
+    private static void checkBudget(DumpType dumpType, long pauseMs) {
+        int budget = getBudgetMs();
+        if (budget <= 0) {
+            return;
+        }
+        if (pauseMs <= budget) {
+            int factor = backoffFactor.get();
+            if (factor > 1) {
+                backoffFactor.compareAndSet(factor, factor / 2);
+            }
+            return;
+        }
+        overBudgetCount.incrementAndGet();
+        if (!isBackoff()) {
+            ThreadDumpImpl.logger.log(Level.WARNING, "Thread dump {0} paused JVM for {1} ms, budget is {2} ms", new Object[] {dumpType, pauseMs, budget});
+            return;
+        }
+        int factor = Math.min(backoffFactor.get() * 2, MAXIMAL_BACKOFF_FACTOR);
+        backoffFactor.set(factor);
+        skipRemaining.set(factor - 1);
+        ThreadDumpImpl.logger.log(Level.WARNING, "Thread dump {0} paused JVM for {1} ms, budget is {2} ms. Skipping next {3} dumps.", new Object[] {dumpType, pauseMs, budget, factor - 1});
+    }
+
+    /**
+     * Вызывается перед плановым дампом.
+     *
+     * @return <code>true</code>, если дамп нужно пропустить из-за превышения бюджета
+     */
+    static boolean shouldSkip() {
+        while (true) {
+            int remaining = skipRemaining.get();
+            if (remaining <= 0) {
+                return false;
+            }
+            if (skipRemaining.compareAndSet(remaining, remaining - 1)) {
+                skippedCount.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    private static long counter(Method method) {
+        if (runtime == null) {
+            return 0;
+        }
+        try {
+            return ((Number) method.invoke(runtime)).longValue();
+        } catch (IllegalAccessException | InvocationTargetException | RuntimeException e) {
+            return 0;
+        }
+    }
+
+    static int getBudgetMs() {
+        if (budgetMs.get() < 0) {
+            budgetMs.compareAndSet(-1, Math.max(ThreadDumpImpl.getPreferences().getInt("pauseBudgetMs", 0), 0));
+        }
+        return budgetMs.get();
+    }
+
+    static void setBudgetMs(int value) {
+        budgetMs.set(Math.max(value, 0));
+        ThreadDumpImpl.getPreferences().putInt("pauseBudgetMs", budgetMs.get());
+        if (budgetMs.get() == 0) {
+            backoffFactor.set(1);
+            skipRemaining.set(0);
+        }
+    }
+
+    static boolean isBackoff() {
+        if (backoff.get() < 0) {
+            backoff.compareAndSet(-1, ThreadDumpImpl.getPreferences().getBoolean("pauseBackoff", false) ? 1 : 0);
+        }
+        return backoff.get() == 1;
+    }
+
+    static void setBackoff(boolean value) {
+        backoff.set(value ? 1 : 0);
+        ThreadDumpImpl.getPreferences().putBoolean("pauseBackoff", value);
+        if (!value) {
+            backoffFactor.set(1);
+            skipRemaining.set(0);
+        }
+    }
+
+    static long getOverBudgetCount() {
+        return overBudgetCount.get();
+    }
+
+    static long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    static long getSyncTimeMs() {
+        return syncTimeMs.get();
+    }
+
+    /**
+     * @return гистограммы остановок по способам снятия дампа,
+     *         по одной строке на способ, которым снимались дампы
+     */
+    static String[] getHistograms() {
+        String result[] = new String[histograms.size()];
+        int i = 0;
+        for (Map.Entry<DumpType, Histogram> entry: histograms.entrySet()) {
+            if (entry.getValue().getCount() > 0) {
+                result[i++] = entry.getKey() + ": " + entry.getValue();
+            }
+        }
+        return Arrays.copyOf(result, i);
+    }
+
+    static void reset() {
+        for (Histogram histogram: histograms.values()) {
+            histogram.reset();
+        }
+        overBudgetCount.set(0);
+        skippedCount.set(0);
+        syncTimeMs.set(0);
+    }
+}
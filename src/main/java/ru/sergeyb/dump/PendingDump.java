@@ -0,0 +1,96 @@
+package ru.sergeyb.dump;
+
+import java.util.Date;
+
+/**
+ * Дамп, снятый в память и ожидающий записи на диск. Содержит либо
+ * дамп в структурированном виде, либо его текст в буфере.
+ *
+ * @author sergeyb
+ */
+class PendingDump {
+    private final DumpType type;
+    private final Date date;
+    private final long startNanos;
+    private final boolean burst;
+    private final DumpRecord record;
+    private final DumpBuffer buffer;
+    private final DumpTrigger trigger;
+    private final String reason;
+
+    PendingDump(DumpType type, Date date, long startNanos, boolean burst, DumpRecord record, DumpBuffer buffer) {
+        this(type, date, startNanos, burst, record, buffer, null, null);
+    }
+
+    PendingDump(DumpType type, Date date, long startNanos, boolean burst, DumpRecord record, DumpBuffer buffer,
+            DumpTrigger trigger, String reason) {
+        this.type = type;
+        this.date = date;
+        this.startNanos = startNanos;
+        this.burst = burst;
+        this.record = record;
+        this.buffer = buffer;
+        this.trigger = trigger;
+        this.reason = reason;
+    }
+
+    DumpType getType() {
+        return type;
+    }
+
+    /**
+     * @return время снятия дампа, а не записи
+     */
+    Date getDate() {
+        return date;
+    }
+
+    /**
+     * @return значение {@link System#nanoTime()} в начале снятия дампа
+     */
+    long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * @return <code>true</code>, если дамп снят в режиме учащенного сохранения
+     */
+    boolean isBurst() {
+        return burst;
+    }
+
+    /**
+     * @return дамп в структурированном виде или <code>null</code>, если дамп снят в буфер
+     */
+    DumpRecord getRecord() {
+        return record;
+    }
+
+    /**
+     * @return текст дампа или <code>null</code>, если дамп снят в структурированном виде
+     */
+    DumpBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return событие, по которому снят дамп, или <code>null</code> для обычного дампа
+     */
+    DumpTrigger getTrigger() {
+        return trigger;
+    }
+
+    /**
+     * @return описание события, по которому снят дамп, или <code>null</code>
+     */
+    String getReason() {
+        return reason;
+    }
+
+    /**
+     * @return количество потоков в дампе или -1, если оно неизвестно
+     */
+    int getThreadCount() {
+        return record == null ? -1 : record.getThreads().length;
+    }
+}
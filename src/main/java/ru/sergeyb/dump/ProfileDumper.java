@@ -0,0 +1,184 @@
+package ru.sergeyb.dump;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.Thread.State;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+
+/**
+ * Семплирующий профилировщик. В фоновом потоке с небольшим интервалом
+ * снимает стеки выполняющихся потоков и сливает их в дерево вызовов.
+ * Сначала без стеков определяются выполняющиеся потоки, затем только
+ * у них снимаются верхние 256 кадров стека, так что каждая выборка
+ * не обходит полные стеки всех потоков.
+ * При каждом сохранении дампа записывает накопленные с прошлого сохранения
+ * данные в формате collapsed stacks (для построения flame graph)
+ * и начинает накопление заново. Семплирование запускается и останавливается
+ * вместе с мониторингом, если выбран этот тип дампа.
+ *
+ * @author sergeyb
+ */
+public class ProfileDumper implements Dumper {
+    private static final String THREAD_NAME = "ThreadDumpProfilerQ7m2kx4c";
+    private static final int MAX_NODES = 200_000;
+    private static final int MAX_DEPTH = 256;
+    static final int MINIMAL_INTERVAL_MS = 10;
+    static final int MAXIMAL_INTERVAL_MS = 50;
+    static final int DEFAULT_INTERVAL_MS = 20;
+    private final String host;
+    private final AtomicInteger intervalMs;
+    private final AtomicReference<ScheduledExecutorService> sampler;
+    private final Runnable worker;
+    private final Object writeLock;
+    private CallTree tree;
+    private CallTree spare;
+    private long since;
+
+    public ProfileDumper() {
+        this.host = HostHelper.getHost();
+        this.intervalMs = new AtomicInteger(DEFAULT_INTERVAL_MS);
+        this.sampler = new AtomicReference<>();
+        this.writeLock = new Object();
+        this.tree = new CallTree(MAX_NODES);
+        this.spare = new CallTree(MAX_NODES);
+        this.since = System.currentTimeMillis();
+        this.worker = new Runnable() {
+            @Override
+            public void run() {
+                sample();
+            }
+        };
+    }
+
+    @Override
+    public void threadDump(PrintWriter out, Date date) throws IOException {
+        synchronized (writeLock) {
+            CallTree profile;
+            long from;
+            synchronized (this) {
+                profile = tree;
+                tree = spare;
+                spare = profile;
+                from = since;
+                since = date.getTime();
+            }
+            // пока пишется этот профиль, выборки накапливаются во втором дереве
+            out.printf("[%1$tY-%1$tm-%1$td %1$tT%1$tz] Profile at %2$s: %3$d samples of running threads in %4$d sec, interval %5$d ms%n%n",
+                date, host, profile.getSamples(), Math.max(date.getTime() - from, 0) / 1000, intervalMs.get());
+            profile.write(out);
+            profile.reset();
+        }
+    }
+
+    /**
+     * Записывает выборки, накопленные с прошлого сохранения профиля,
+     * не начиная накопление заново, поэтому профиль, снятый по запросу,
+     * не отнимает выборки у сохраняемого профиля. Дерево пишется
+     * под блокировкой семплирования, поэтому писать следует в память.
+     */
+    void snapshot(PrintWriter out, Date date) {
+        synchronized (this) {
+            out.printf("[%1$tY-%1$tm-%1$td %1$tT%1$tz] Profile snapshot at %2$s: %3$d samples of running threads in %4$d sec, interval %5$d ms%n%n",
+                date, host, tree.getSamples(), Math.max(date.getTime() - since, 0) / 1000, intervalMs.get());
+            tree.write(out);
+        }
+    }
+
+    int getIntervalMs() {
+        return intervalMs.get();
+    }
+
+    void setIntervalMs(int value) {
+        int newValue = Math.min(Math.max(value, MINIMAL_INTERVAL_MS), MAXIMAL_INTERVAL_MS);
+        if (intervalMs.getAndSet(newValue) != newValue && sampler.get() != null) {
+            stop();
+            start();
+        }
+    }
+
+    /**
+     * Запускает фоновое семплирование, если оно еще не запущено.
+     */
+    void start() {
+        if (sampler.get() != null) {
+            return;
+        }
+        ScheduledExecutorService thePool = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable target) {
+                Thread result = new Thread(target, THREAD_NAME);
+                result.setDaemon(true);
+                return result;
+            }
+        });
+        if (!sampler.compareAndSet(null, thePool)) {
+            thePool.shutdown();
+            return;
+        }
+        synchronized (this) {
+            since = System.currentTimeMillis();
+        }
+        thePool.scheduleAtFixedRate(worker, intervalMs.get(), intervalMs.get(), TimeUnit.MILLISECONDS);
+        ThreadDumpImpl.logger.log(Level.INFO, "Profiler started with interval {0} ms.", new Object[] {intervalMs.get()});
+    }
+
+    /**
+     * Останавливает фоновое семплирование и сбрасывает накопленные данные.
+     */
+    void stop() {
+        ScheduledExecutorService thePool = sampler.getAndSet(null);
+        if (thePool == null) {
+            return;
+        }
+        thePool.shutdownNow();
+        synchronized (this) {
+            tree.reset();
+        }
+        ThreadDumpImpl.logger.log(Level.INFO, "Profiler stopped.");
+    }
+
+    private void sample() {
+        try {
+            ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+            // состояния без стеков, затем стеки только выполняющихся потоков
+            ThreadInfo states[] = threadMXBean.getThreadInfo(threadMXBean.getAllThreadIds(), 0);
+            long self = Thread.currentThread().getId();
+            long ids[] = new long[states.length];
+            int count = 0;
+            for (ThreadInfo threadInfo: states) {
+                if (threadInfo != null && threadInfo.getThreadState() == State.RUNNABLE && threadInfo.getThreadId() != self) {
+                    ids[count++] = threadInfo.getThreadId();
+                }
+            }
+            if (count == 0) {
+                return;
+            }
+            ThreadInfo threadInfos[] = threadMXBean.getThreadInfo(Arrays.copyOf(ids, count), MAX_DEPTH);
+            synchronized (this) {
+                for (ThreadInfo threadInfo: threadInfos) {
+                    if (threadInfo != null && threadInfo.getThreadState() == State.RUNNABLE && threadInfo.getThreadId() != self) {
+                        tree.add(threadInfo.getStackTrace());
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            ThreadDumpImpl.logger.log(Level.SEVERE, "Failed to sample threads. Error = {0}", new Object[] {e.toString()});
+        }
+    }
+
+    @Override
+    public void destroy() {
+        stop();
+    }
+}
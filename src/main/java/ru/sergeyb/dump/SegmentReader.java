@@ -0,0 +1,394 @@
+package ru.sergeyb.dump;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Чтение дампов из хранилища {@link StackStore} за один день
+ * с использованием индексов. Индексы и словари дня читаются в память
+ * один раз и кэшируются, пока файлы индексов не изменились; поиск дампа
+ * по времени и по имени выполняется двоичным поиском по индексу дампов,
+ * а поиск по имени потока - двоичным поиском по отсортированным событиям
+ * индекса потоков. Сами дампы читаются из файла хранилища позиционным
+ * чтением без отображения файла в память, поэтому открытый читатель
+ * не мешает удалить или упаковать каталог дня.
+ * <p>
+ * Читатель видит только дампы, подтвержденные в индексе на момент открытия.
+ * Разностные дампы при чтении восстанавливаются от ближайшего
+ * предыдущего полного дампа.
+ *
+ * @author sergeyb
+ */
+class SegmentReader implements Closeable {
+    private static final int MAX_CACHED_DAYS = 8;
+    private static final String NAME_PATTERN = "'thread-dump-'yyyy-MM-dd-HH-mm-ss-SSS'.txt'";
+    private static final long NAME_TIME_TOLERANCE_MS = TimeUnit.HOURS.toMillis(1);
+    private static final Map<Path, Segment> cache = new LinkedHashMap<Path, Segment>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Segment> eldest) {
+            return size() > MAX_CACHED_DAYS;
+        }
+    };
+    private final FileChannel channel;
+    private final Segment segment;
+
+    private SegmentReader(FileChannel channel, Segment segment) {
+        this.channel = channel;
+        this.segment = segment;
+    }
+
+    /**
+     * Открывает хранилище в каталоге дня.
+     *
+     * @return читатель или <code>null</code>, если в каталоге нет хранилища с индексом
+     */
+    static SegmentReader open(Path dayDir) throws IOException {
+        Path file = dayDir.resolve(StackStore.FILE_NAME);
+        Path indexFile = dayDir.resolve(StackStore.INDEX_FILE_NAME);
+        Path threadIndexFile = dayDir.resolve(StackStore.THREAD_INDEX_FILE_NAME);
+        if (!Files.isRegularFile(file) || !Files.isRegularFile(indexFile)) {
+            return null;
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new SegmentReader(channel, getSegment(dayDir.toAbsolutePath().normalize(), channel, indexFile, threadIndexFile));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Удаляет из кэша индексы дня. Вызывается перед удалением
+     * или упаковкой каталога дня.
+     */
+    static void release(Path dayDir) {
+        synchronized (cache) {
+            cache.remove(dayDir.toAbsolutePath().normalize());
+        }
+    }
+
+    private static Segment getSegment(Path key, FileChannel channel, Path indexFile, Path threadIndexFile) throws IOException {
+        long indexSize = Files.size(indexFile);
+        long indexModified = Files.getLastModifiedTime(indexFile).toMillis();
+        long threadIndexSize = Files.isRegularFile(threadIndexFile) ? Files.size(threadIndexFile) : 0;
+        synchronized (cache) {
+            Segment result = cache.get(key);
+            if (result != null && result.matches(indexSize, indexModified, threadIndexSize)) {
+                return result;
+            }
+        }
+        Segment result = new Segment(channel, indexFile, threadIndexFile, indexSize, indexModified, threadIndexSize);
+        synchronized (cache) {
+            cache.put(key, result);
+        }
+        return result;
+    }
+
+    int size() {
+        return segment.count;
+    }
+
+    long getTime(int ordinal) {
+        return segment.times[ordinal];
+    }
+
+    /**
+     * @return номер первого дампа, снятого не раньше указанного времени, или {@link #size()}
+     */
+    int ceiling(long time) {
+        int lo = 0;
+        int hi = segment.count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (getTime(mid) < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return номер последнего дампа, снятого не позже указанного времени, или -1
+     */
+    int floor(long time) {
+        return ceiling(time + 1) - 1;
+    }
+
+    /**
+     * Читает имя дампа из начала блока, не читая дамп целиком.
+     */
+    String getName(int ordinal) throws IOException {
+        long offset = segment.offsets[ordinal] + StackStore.BLOCK_HEADER_SIZE + 8;
+        ByteBuffer length = read(channel, offset, 2, segment.end);
+        int size = length.getShort(0) & 0xffff;
+        ByteBuffer name = ByteBuffer.allocate(2 + size);
+        name.put(length);
+        name.put(read(channel, offset + 2, size, segment.end));
+        return new DataInputStream(new ByteArrayInputStream(name.array())).readUTF();
+    }
+
+    /**
+     * Читает дамп, восстанавливая разностный дамп до полного.
+     */
+    DumpRecord read(int ordinal) throws IOException {
+        segment.loadDictionaries(channel);
+        int keyframe = ordinal;
+        while (keyframe > 0 && getType(keyframe) == StackStore.DELTA) {
+            keyframe--;
+        }
+        DumpRecord result = null;
+        for (int i = keyframe; i <= ordinal; i++) {
+            result = StackStore.reconstruct(result, readStored(i));
+        }
+        return result;
+    }
+
+    /**
+     * Читает дамп в том виде, в каком он записан: разностный дамп
+     * содержит только изменившиеся потоки.
+     */
+    DumpRecord readStored(int ordinal) throws IOException {
+        segment.loadDictionaries(channel);
+        if (getType(ordinal) == StackStore.DELTA) {
+            return StackStore.readDelta(payload(ordinal), segment.strings, segment.stacks, ordinal > 0 ? getName(ordinal - 1) : "");
+        }
+        return StackStore.readDump(payload(ordinal), segment.strings, segment.stacks);
+    }
+
+    private byte getType(int ordinal) throws IOException {
+        return read(channel, segment.offsets[ordinal], StackStore.BLOCK_HEADER_SIZE, segment.end).get(4);
+    }
+
+    /**
+     * Имя дампа в хранилище получено из времени его снятия, поэтому дамп
+     * ищется двоичным поиском по времени. Проверяются только дампы в пределах
+     * часа от времени из имени, что покрывает перевод часов.
+     *
+     * @return номер дампа с указанным именем или -1
+     */
+    int find(String name) throws IOException {
+        long time;
+        try {
+            SimpleDateFormat format = new SimpleDateFormat(NAME_PATTERN);
+            format.setLenient(false);
+            time = format.parse(name).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+        int last = floor(time + NAME_TIME_TOLERANCE_MS);
+        for (int i = ceiling(time - NAME_TIME_TOLERANCE_MS); i <= last; i++) {
+            if (getName(i).equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Возвращает номера дампов из диапазона, в которых есть поток
+     * с указанным именем.
+     *
+     * @param from номер первого дампа диапазона
+     * @param to номер последнего дампа диапазона
+     */
+    List<Integer> findThread(String threadName, int from, int to) throws IOException {
+        List<Integer> result = new ArrayList<>();
+        segment.loadDictionaries(channel);
+        Integer nameId = segment.stringIds.get(threadName);
+        if (nameId == null || from > to) {
+            return result;
+        }
+        int names[] = segment.eventNames;
+        int ordinals[] = segment.eventOrdinals;
+        int lo = 0;
+        int hi = names.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (names[mid] < nameId) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int runStart = -1;
+        for (int i = lo; i < names.length && names[i] == nameId; i++) {
+            int ordinal = ordinals[i];
+            if (ordinal >= segment.count) {
+                // событие дампа, еще не подтвержденного в индексе
+                break;
+            }
+            if (ordinal >= 0) {
+                runStart = ordinal;
+            } else if (runStart >= 0) {
+                addRun(result, runStart, -ordinal - 1, from, to);
+                runStart = -1;
+            }
+        }
+        if (runStart >= 0) {
+            addRun(result, runStart, segment.count - 1, from, to);
+        }
+        return result;
+    }
+
+    private static void addRun(List<Integer> result, int start, int last, int from, int to) {
+        for (int i = Math.max(start, from); i <= Math.min(last, to); i++) {
+            result.add(i);
+        }
+    }
+
+    private DataInputStream payload(int ordinal) throws IOException {
+        long offset = segment.offsets[ordinal];
+        int length = read(channel, offset, StackStore.BLOCK_HEADER_SIZE, segment.end).getInt(0);
+        return new DataInputStream(new ByteArrayInputStream(read(channel, offset + StackStore.BLOCK_HEADER_SIZE, length, segment.end).array()));
+    }
+
+    private static ByteBuffer read(FileChannel channel, long offset, int length, long end) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > end) {
+            throw new IOException("Corrupted thread dump store index");
+        }
+        return readFully(channel, offset, length);
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer result = ByteBuffer.allocate(length);
+        while (result.hasRemaining()) {
+            if (channel.read(result, offset + result.position()) < 0) {
+                throw new EOFException("Unexpected end of thread dump store");
+            }
+        }
+        result.flip();
+        return result;
+    }
+
+    private static ByteBuffer readFile(Path file, int entrySize) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return ByteBuffer.allocate(0);
+        }
+        try (FileChannel c = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = c.size() / entrySize * entrySize;
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(String.format("%s is too large", file));
+            }
+            return readFully(c, 0, (int) size);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Индексы и словари одного дня в памяти. Словари и отсортированные
+     * события индекса потоков строятся при первом обращении.
+     */
+    private static final class Segment {
+        private final long indexSize;
+        private final long indexModified;
+        private final long threadIndexSize;
+        private final Path threadIndexFile;
+        private final int count;
+        private final long times[];
+        private final long offsets[];
+        private final long end;
+        private List<String> strings;
+        private Map<String, Integer> stringIds;
+        private List<int[]> stacks;
+        private int eventNames[];
+        private int eventOrdinals[];
+
+        Segment(FileChannel channel, Path indexFile, Path threadIndexFile, long indexSize, long indexModified, long threadIndexSize) throws IOException {
+            this.indexSize = indexSize;
+            this.indexModified = indexModified;
+            this.threadIndexSize = threadIndexSize;
+            this.threadIndexFile = threadIndexFile;
+            ByteBuffer index = readFile(indexFile, StackStore.INDEX_ENTRY_SIZE);
+            this.count = index.capacity() / StackStore.INDEX_ENTRY_SIZE;
+            this.times = new long[count];
+            this.offsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                times[i] = index.getLong(i * StackStore.INDEX_ENTRY_SIZE);
+                offsets[i] = index.getLong(i * StackStore.INDEX_ENTRY_SIZE + 8);
+            }
+            long theEnd = StackStore.HEADER_SIZE;
+            if (count > 0) {
+                long offset = offsets[count - 1];
+                theEnd = offset + StackStore.BLOCK_HEADER_SIZE + readFully(channel, offset, 4).getInt(0);
+            }
+            this.end = theEnd;
+        }
+
+        boolean matches(long theIndexSize, long theIndexModified, long theThreadIndexSize) {
+            return indexSize == theIndexSize && indexModified == theIndexModified && threadIndexSize == theThreadIndexSize;
+        }
+
+        /**
+         * Загружает словари, переходя от блока к блоку по заголовкам
+         * и пропуская блоки дампов, и сортирует события индекса потоков
+         * по номеру имени с сохранением порядка дампов.
+         */
+        synchronized void loadDictionaries(FileChannel channel) throws IOException {
+            if (strings != null) {
+                return;
+            }
+            List<String> stringList = new ArrayList<>();
+            List<int[]> stackList = new ArrayList<>();
+            long offset = StackStore.HEADER_SIZE;
+            while (offset + StackStore.BLOCK_HEADER_SIZE <= end) {
+                ByteBuffer header = read(channel, offset, StackStore.BLOCK_HEADER_SIZE, end);
+                int length = header.getInt();
+                byte type = header.get();
+                if (type == StackStore.DICTIONARY) {
+                    byte payload[] = read(channel, offset + StackStore.BLOCK_HEADER_SIZE, length, end).array();
+                    StackStore.readDictionary(new DataInputStream(new ByteArrayInputStream(payload)), stringList, stackList);
+                }
+                offset += StackStore.BLOCK_HEADER_SIZE + length;
+            }
+            Map<String, Integer> ids = new HashMap<>(stringList.size() * 2);
+            for (int i = stringList.size() - 1; i >= 0; i--) {
+                ids.put(stringList.get(i), i);
+            }
+            ByteBuffer threadIndex = readFile(threadIndexFile, StackStore.THREAD_INDEX_ENTRY_SIZE);
+            int entries = (int) Math.min(threadIndex.capacity(), threadIndexSize) / StackStore.THREAD_INDEX_ENTRY_SIZE;
+            long keys[] = new long[entries];
+            for (int i = 0; i < entries; i++) {
+                keys[i] = ((long) threadIndex.getInt(i * StackStore.THREAD_INDEX_ENTRY_SIZE) << 32) | i;
+            }
+            Arrays.sort(keys);
+            int names[] = new int[entries];
+            int ordinals[] = new int[entries];
+            for (int i = 0; i < entries; i++) {
+                int position = (int) keys[i];
+                names[i] = (int) (keys[i] >> 32);
+                ordinals[i] = threadIndex.getInt(position * StackStore.THREAD_INDEX_ENTRY_SIZE + 4);
+            }
+            this.stacks = stackList;
+            this.stringIds = ids;
+            this.eventNames = names;
+            this.eventOrdinals = ordinals;
+            this.strings = stringList;
+        }
+    }
+}
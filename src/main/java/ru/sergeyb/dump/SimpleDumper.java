@@ -5,7 +5,7 @@ import java.io.PrintWriter;
 import java.util.Date;
 import java.util.Map;
 
-public class SimpleDumper implements Dumper {
+public class SimpleDumper implements StructuredDumper {
     private final String host;
 
     public SimpleDumper() {
@@ -14,16 +14,48 @@ public class SimpleDumper implements Dumper {
 
     @Override
     public void threadDump(PrintWriter out, Date date) throws IOException {
-        out.printf("[%1$tY-%1$tm-%1$td %1$tT%1$tz] Thread dump at %2$s:%n%n", date, host);
+        write(out, capture(date));
+    }
+
+    @Override
+    public DumpRecord capture(Date date) {
         Map<Thread, StackTraceElement[]> stackTraces = Thread.getAllStackTraces();
+        ThreadRecord threads[] = new ThreadRecord[stackTraces.size()];
+        int i = 0;
         for (Map.Entry<Thread, StackTraceElement[]> stackTrace: stackTraces.entrySet()) {
             Thread thread = stackTrace.getKey();
-            out.printf("Thread %s: (state = %s)%n", thread.getName(), thread.getState().toString());
-            for (StackTraceElement element: stackTrace.getValue()) {
-                out.printf(" - %s%n", element.toString());
+            StackTraceElement elements[] = stackTrace.getValue();
+            threads[i++] = new ThreadRecord(thread.getId(), thread.getName(), thread.getState(), FrameCache.toStrings(elements));
+        }
+        return new DumpRecord(DumpType.SIMPLE, date, host, threads);
+    }
+
+    @Override
+    public void write(PrintWriter out, DumpRecord dump) {
+        out.printf("[%1$tY-%1$tm-%1$td %1$tT%1$tz] Thread dump at %2$s:%n%n", dump.getDate(), dump.getHost());
+        ThreadCpuSampler.writeInterval(out, dump);
+        for (ThreadRecord thread: dump.getThreads()) {
+            out.write("Thread ");
+            out.write(thread.getName());
+            out.write(": (state = ");
+            out.write(thread.getState().name());
+            if (thread.getCpuTime() >= 0) {
+                out.write(", cpu = ");
+                ThreadCpuSampler.writeMillis(out, thread.getCpuTime());
+                if (thread.getCpuTimeDelta() >= 0) {
+                    out.write(" (+");
+                    ThreadCpuSampler.writeMillis(out, thread.getCpuTimeDelta());
+                    out.write(')');
+                }
+            }
+            out.println(')');
+            for (String frame: thread.getFrames()) {
+                out.write(" - ");
+                out.println(frame);
             }
-            out.printf("%n");
+            out.println();
         }
+        ThreadCpuSampler.writeHotThreads(out, dump);
     }
 
     @Override
@@ -0,0 +1,789 @@
+package ru.sergeyb.dump;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.Thread.State;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+/**
+ * Хранилище дампов с дедупликацией. Файл хранилища пополняется только
+ * дописыванием в конец и состоит из блоков трех видов:
+ * <ul>
+ * <li>словарь - новые строки (имена потоков, кадры стека, блокировки)
+ * и новые стеки в виде списков номеров строк;</li>
+ * <li>дамп - для каждого потока только идентификатор, состояние,
+ * сведения о блокировках и номер стека;</li>
+ * <li>разностный дамп - только потоки, которые появились или изменились
+ * после предыдущего дампа, и идентификаторы завершившихся потоков.</li>
+ * </ul>
+ * Разностные дампы пишутся, если задан интервал между полными дампами
+ * ({@link #setKeyframeInterval(int)}). Первый дамп после открытия
+ * хранилища всегда полный, поэтому для восстановления разностного дампа
+ * достаточно применить к ближайшему предыдущему полному дампу все
+ * разностные дампы после него.
+ * Номера строк и стеков назначаются по порядку появления в файле,
+ * поэтому каждый файл самодостаточен. Блок словаря всегда записывается
+ * вместе с дампом, который на него ссылается.
+ * <p>
+ * Формат блока: длина (int), тип (byte), содержимое.
+ * <p>
+ * Рядом с файлом хранилища ведутся два индекса:
+ * <ul>
+ * <li>{@link #INDEX_FILE_NAME} - для каждого дампа время (long) и смещение
+ * блока (long), записи идут в порядке записи дампов; запись в индекс
+ * делается последней и подтверждает дамп;</li>
+ * <li>{@link #THREAD_INDEX_FILE_NAME} - события появления и исчезновения
+ * имени потока: номер строки с именем (int) и порядковый номер дампа (int),
+ * для исчезновения записывается <code>-(номер последнего дампа с потоком) - 1</code>.</li>
+ * </ul>
+ * Если индексы не соответствуют файлу хранилища, они перестраиваются при открытии.
+ * Чтение с использованием индексов выполняет {@link SegmentReader}.
+ *
+ * @author sergeyb
+ */
+class StackStore implements Closeable {
+    static final String FILE_NAME = "thread-dumps.bin";
+    static final String INDEX_FILE_NAME = "thread-dumps.idx";
+    static final String THREAD_INDEX_FILE_NAME = "thread-dumps.tdx";
+    static final int INDEX_ENTRY_SIZE = 16;
+    static final int THREAD_INDEX_ENTRY_SIZE = 8;
+    private static final int MAGIC = 0x54445331;
+    static final int HEADER_SIZE = 4;
+    static final int BLOCK_HEADER_SIZE = 5;
+    static final byte DICTIONARY = 'D';
+    static final byte DUMP = 'T';
+    static final byte DELTA = 'U';
+    private static final int FLAG_SUSPENDED = 1;
+    private static final int FLAG_IN_NATIVE = 2;
+    private static final int FLAG_LOCK = 4;
+    private static final int FLAG_LOCK_OWNER = 8;
+    private static final State STATES[] = State.values();
+    private final Path file;
+    private final FileChannel channel;
+    private final FileChannel indexChannel;
+    private final FileChannel threadIndexChannel;
+    private final Set<Integer> openNames;
+    private int dumpCount;
+    private final Map<String, Integer> strings;
+    private final Map<StackKey, Integer> stacks;
+    private final List<String> newStrings;
+    private final List<int[]> newStacks;
+    private long size;
+    private int keyframeInterval;
+    private int sinceKeyframe;
+    private DumpType previousType;
+    private Map<Long, byte[]> previousThreads;
+
+    private StackStore(Path file, FileChannel channel, FileChannel indexChannel, FileChannel threadIndexChannel) {
+        this.file = file;
+        this.channel = channel;
+        this.indexChannel = indexChannel;
+        this.threadIndexChannel = threadIndexChannel;
+        this.openNames = new HashSet<>();
+        this.dumpCount = 0;
+        this.strings = new HashMap<>();
+        this.stacks = new HashMap<>();
+        this.newStrings = new ArrayList<>();
+        this.newStacks = new ArrayList<>();
+    }
+
+    /**
+     * Открывает хранилище для дописывания. Словари существующего файла
+     * загружаются в память, недописанный последний блок отбрасывается.
+     */
+    static StackStore open(Path file) throws IOException {
+        FileChannel channel = null;
+        FileChannel indexChannel = null;
+        FileChannel threadIndexChannel = null;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            indexChannel = FileChannel.open(file.resolveSibling(INDEX_FILE_NAME), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            threadIndexChannel = FileChannel.open(file.resolveSibling(THREAD_INDEX_FILE_NAME), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            StackStore result = new StackStore(file, channel, indexChannel, threadIndexChannel);
+            result.load();
+            return result;
+        } catch (IOException | RuntimeException e) {
+            for (FileChannel c: new FileChannel[] {channel, indexChannel, threadIndexChannel}) {
+                if (c != null) {
+                    c.close();
+                }
+            }
+            throw e;
+        }
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    long size() {
+        return size;
+    }
+
+    private void load() throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC);
+            header.flip();
+            channel.truncate(0);
+            channel.write(header, 0);
+            size = HEADER_SIZE;
+            indexChannel.truncate(0);
+            threadIndexChannel.truncate(0);
+            return;
+        }
+        final List<String> stringList = new ArrayList<>();
+        final List<int[]> stackList = new ArrayList<>();
+        final List<long[]> dumps = new ArrayList<>();
+        long good = scan(new BufferedInputStream(Files.newInputStream(file), 65536), new BlockVisitor() {
+            @Override
+            public boolean visit(byte type, DataInputStream in, int length, long offset) throws IOException {
+                if (type == DICTIONARY) {
+                    readDictionary(in, stringList, stackList);
+                    return true;
+                }
+                if (type == DUMP || type == DELTA) {
+                    DataInputStream dump = readPayload(in, length);
+                    dumps.add(new long[] {dump.readLong(), offset});
+                    return true;
+                }
+                return false;
+            }
+        });
+        for (int i = 0; i < stringList.size(); i++) {
+            strings.put(stringList.get(i), i);
+        }
+        for (int i = 0; i < stackList.size(); i++) {
+            stacks.put(new StackKey(stackList.get(i)), i);
+        }
+        if (good < fileSize) {
+            ThreadDumpImpl.logger.log(Level.WARNING, "Truncating incomplete record at offset {0} of {1}", new Object[] {good, file});
+            channel.truncate(good);
+        }
+        size = good;
+        dumpCount = dumps.size();
+        if (!isIndexValid(dumps)) {
+            ThreadDumpImpl.logger.log(Level.WARNING, "Rebuilding index of {0}", new Object[] {file});
+            rebuildIndex(dumps);
+        } else {
+            loadThreadIndex();
+        }
+    }
+
+    /**
+     * Проверяет, что индекс содержит ровно все дампы файла хранилища.
+     */
+    private boolean isIndexValid(List<long[]> dumps) throws IOException {
+        if (indexChannel.size() != (long) dumps.size() * INDEX_ENTRY_SIZE) {
+            return false;
+        }
+        if (dumps.isEmpty()) {
+            return true;
+        }
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        readFully(indexChannel, entry, indexChannel.size() - INDEX_ENTRY_SIZE);
+        long last[] = dumps.get(dumps.size() - 1);
+        return entry.getLong(0) == last[0] && entry.getLong(8) == last[1];
+    }
+
+    private void rebuildIndex(List<long[]> dumps) throws IOException {
+        indexChannel.truncate(0);
+        threadIndexChannel.truncate(0);
+        ByteBuffer entries = ByteBuffer.allocate(dumps.size() * INDEX_ENTRY_SIZE);
+        for (long dump[]: dumps) {
+            entries.putLong(dump[0]).putLong(dump[1]);
+        }
+        entries.flip();
+        writeFully(indexChannel, entries, 0);
+        final List<String> stringList = new ArrayList<>();
+        final List<int[]> stackList = new ArrayList<>();
+        final ByteArrayOutputStream events = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(events);
+        final int ordinal[] = new int[1];
+        final DumpRecord state[] = new DumpRecord[1];
+        scan(new BufferedInputStream(Files.newInputStream(file), 65536), new BlockVisitor() {
+            @Override
+            public boolean visit(byte type, DataInputStream in, int length, long offset) throws IOException {
+                if (type == DICTIONARY) {
+                    readDictionary(in, stringList, stackList);
+                    return true;
+                }
+                if ((type == DUMP || type == DELTA) && ordinal[0] < dumpCount) {
+                    DataInputStream payload = readPayload(in, length);
+                    DumpRecord dump = type == DUMP ? readDump(payload, stringList, stackList) : readDelta(payload, stringList, stackList, "");
+                    state[0] = reconstruct(state[0], dump);
+                    Set<Integer> names = new HashSet<>();
+                    for (ThreadRecord thread: state[0].getThreads()) {
+                        names.add(strings.get(thread.getName()));
+                    }
+                    writeThreadEvents(out, names, ordinal[0]++);
+                    return true;
+                }
+                return false;
+            }
+        });
+        out.flush();
+        writeFully(threadIndexChannel, ByteBuffer.wrap(events.toByteArray()), 0);
+    }
+
+    /**
+     * Восстанавливает множество потоков последнего дампа по индексу потоков.
+     * События, относящиеся к неподтвержденным дампам, отбрасываются.
+     */
+    private void loadThreadIndex() throws IOException {
+        long indexSize = threadIndexChannel.size() / THREAD_INDEX_ENTRY_SIZE * THREAD_INDEX_ENTRY_SIZE;
+        ByteBuffer events = ByteBuffer.allocate((int) indexSize);
+        readFully(threadIndexChannel, events, 0);
+        events.flip();
+        long good = 0;
+        while (events.remaining() >= THREAD_INDEX_ENTRY_SIZE) {
+            int nameId = events.getInt();
+            int ordinal = events.getInt();
+            if (ordinal >= 0 ? ordinal >= dumpCount : -ordinal >= dumpCount) {
+                break;
+            }
+            if (ordinal >= 0) {
+                openNames.add(nameId);
+            } else {
+                openNames.remove(nameId);
+            }
+            good += THREAD_INDEX_ENTRY_SIZE;
+        }
+        if (good < threadIndexChannel.size()) {
+            threadIndexChannel.truncate(good);
+        }
+    }
+
+    /**
+     * Записывает события появления и исчезновения потоков для дампа
+     * с указанным порядковым номером и запоминает потоки этого дампа.
+     */
+    private void writeThreadEvents(DataOutputStream out, Set<Integer> names, int ordinal) throws IOException {
+        for (Integer nameId: names) {
+            if (!openNames.contains(nameId)) {
+                out.writeInt(nameId);
+                out.writeInt(ordinal);
+            }
+        }
+        for (Integer nameId: openNames) {
+            if (!names.contains(nameId)) {
+                out.writeInt(nameId);
+                out.writeInt(-ordinal);
+            }
+        }
+        openNames.clear();
+        openNames.addAll(names);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long p = position;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, p);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            p += n;
+        }
+    }
+
+    private static long writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long p = position;
+        while (buffer.hasRemaining()) {
+            p += channel.write(buffer, p);
+        }
+        return p;
+    }
+
+    /**
+     * Задает интервал между полными дампами.
+     *
+     * @param interval каждый какой дамп записывается полностью;
+     *        0 или 1 - все дампы полные
+     */
+    synchronized void setKeyframeInterval(int interval) {
+        if (interval <= 1) {
+            previousThreads = null;
+        }
+        keyframeInterval = interval;
+    }
+
+    /**
+     * Дописывает дамп в хранилище. Если включены разностные дампы
+     * и с последнего полного дампа записано меньше дампов, чем задано
+     * интервалом, записываются только изменившиеся потоки. Поток считается
+     * изменившимся, если отличается его состояние, блокировки или стек.
+     *
+     * @param name имя дампа, по которому его можно будет прочитать
+     * @param dump дамп
+     * @return количество записанных байт
+     */
+    synchronized long append(String name, DumpRecord dump) throws IOException {
+        newStrings.clear();
+        newStacks.clear();
+        try {
+            ByteArrayOutputStream dumpBytes = new ByteArrayOutputStream(8192);
+            DataOutputStream out = new DataOutputStream(dumpBytes);
+            out.writeLong(dump.getDate().getTime());
+            out.writeUTF(name);
+            out.writeUTF(dump.getType().name());
+            out.writeInt(stringId(dump.getHost()));
+            ThreadRecord threads[] = dump.getThreads();
+            Set<Integer> names = new HashSet<>();
+            Map<Long, byte[]> currentThreads = null;
+            boolean delta = false;
+            if (keyframeInterval > 1) {
+                currentThreads = new HashMap<>(threads.length * 2);
+                delta = previousThreads != null && dump.getType() == previousType && sinceKeyframe + 1 < keyframeInterval;
+            }
+            if (currentThreads == null) {
+                out.writeInt(threads.length);
+                for (ThreadRecord thread: threads) {
+                    names.add(writeThread(out, thread));
+                }
+            } else {
+                ByteArrayOutputStream threadBytes = new ByteArrayOutputStream(256);
+                DataOutputStream threadOut = new DataOutputStream(threadBytes);
+                List<byte[]> changed = new ArrayList<>();
+                for (ThreadRecord thread: threads) {
+                    threadBytes.reset();
+                    names.add(writeThread(threadOut, thread));
+                    threadOut.flush();
+                    byte encoded[] = threadBytes.toByteArray();
+                    currentThreads.put(thread.getId(), encoded);
+                    if (!delta || !Arrays.equals(encoded, previousThreads.get(thread.getId()))) {
+                        changed.add(encoded);
+                    }
+                }
+                out.writeInt(changed.size());
+                for (byte encoded[]: changed) {
+                    out.write(encoded);
+                }
+                if (delta) {
+                    List<byte[]> ended = new ArrayList<>();
+                    for (Map.Entry<Long, byte[]> entry: previousThreads.entrySet()) {
+                        if (!currentThreads.containsKey(entry.getKey())) {
+                            ended.add(entry.getValue());
+                        }
+                    }
+                    out.writeInt(ended.size());
+                    for (byte encoded[]: ended) {
+                        // идентификатор и номер имени - начало записи потока
+                        out.write(encoded, 0, 12);
+                    }
+                }
+            }
+            out.flush();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(dumpBytes.size() + 1024);
+            DataOutputStream block = new DataOutputStream(bytes);
+            if (!newStrings.isEmpty() || !newStacks.isEmpty()) {
+                ByteArrayOutputStream dictionaryBytes = new ByteArrayOutputStream();
+                writeDictionary(new DataOutputStream(dictionaryBytes));
+                writeBlock(block, DICTIONARY, dictionaryBytes);
+            }
+            writeBlock(block, delta ? DELTA : DUMP, dumpBytes);
+            block.flush();
+            long offset = size + bytes.size() - dumpBytes.size() - BLOCK_HEADER_SIZE;
+            size = writeFully(channel, ByteBuffer.wrap(bytes.toByteArray()), size);
+            ByteArrayOutputStream events = new ByteArrayOutputStream();
+            DataOutputStream eventsOut = new DataOutputStream(events);
+            writeThreadEvents(eventsOut, names, dumpCount);
+            eventsOut.flush();
+            writeFully(threadIndexChannel, ByteBuffer.wrap(events.toByteArray()), threadIndexChannel.size());
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+            entry.putLong(dump.getDate().getTime()).putLong(offset);
+            entry.flip();
+            writeFully(indexChannel, entry, (long) dumpCount * INDEX_ENTRY_SIZE);
+            dumpCount++;
+            previousThreads = currentThreads;
+            previousType = dump.getType();
+            sinceKeyframe = delta ? sinceKeyframe + 1 : 0;
+            return bytes.size();
+        } catch (IOException | RuntimeException e) {
+            rollback();
+            try {
+                channel.truncate(size);
+            } catch (IOException e2) {
+                // ignore
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return номер строки с именем потока
+     */
+    private int writeThread(DataOutputStream out, ThreadRecord thread) throws IOException {
+        int nameId = stringId(thread.getName());
+        out.writeLong(thread.getId());
+        out.writeInt(nameId);
+        out.writeByte(thread.getState() == null ? 0 : thread.getState().ordinal() + 1);
+        int flags = (thread.isSuspended() ? FLAG_SUSPENDED : 0) | (thread.isInNative() ? FLAG_IN_NATIVE : 0)
+            | (thread.getLockName() != null ? FLAG_LOCK : 0) | (thread.getLockOwnerName() != null ? FLAG_LOCK_OWNER : 0);
+        out.writeByte(flags);
+        if (thread.getLockName() != null) {
+            out.writeInt(stringId(thread.getLockName()));
+        }
+        if (thread.getLockOwnerName() != null) {
+            out.writeInt(stringId(thread.getLockOwnerName()));
+            out.writeLong(thread.getLockOwnerId());
+        }
+        out.writeInt(stackId(thread.getFrames()));
+        int depths[] = thread.getLockedMonitorDepths();
+        String monitors[] = thread.getLockedMonitors();
+        out.writeInt(monitors.length);
+        for (int i = 0; i < monitors.length; i++) {
+            out.writeInt(depths[i]);
+            out.writeInt(stringId(monitors[i]));
+        }
+        String synchronizers[] = thread.getLockedSynchronizers();
+        out.writeInt(synchronizers.length);
+        for (String synchronizer: synchronizers) {
+            out.writeInt(stringId(synchronizer));
+        }
+        return nameId;
+    }
+
+    /**
+     * Убирает из словарей записи, которые не попали в файл.
+     */
+    private void rollback() {
+        for (String s: newStrings) {
+            strings.remove(s);
+        }
+        for (int[] stack: newStacks) {
+            stacks.remove(new StackKey(stack));
+        }
+        newStrings.clear();
+        newStacks.clear();
+    }
+
+    private int stringId(String s) {
+        Integer id = strings.get(s);
+        if (id == null) {
+            id = strings.size();
+            strings.put(s, id);
+            newStrings.add(s);
+        }
+        return id;
+    }
+
+    private int stackId(String frames[]) {
+        int ids[] = new int[frames.length];
+        for (int i = 0; i < frames.length; i++) {
+            ids[i] = stringId(frames[i]);
+        }
+        StackKey key = new StackKey(ids);
+        Integer id = stacks.get(key);
+        if (id == null) {
+            id = stacks.size();
+            stacks.put(key, id);
+            newStacks.add(ids);
+        }
+        return id;
+    }
+
+    private void writeDictionary(DataOutputStream out) throws IOException {
+        out.writeInt(newStrings.size());
+        for (String s: newStrings) {
+            out.writeUTF(s);
+        }
+        out.writeInt(newStacks.size());
+        for (int[] stack: newStacks) {
+            out.writeInt(stack.length);
+            for (int id: stack) {
+                out.writeInt(id);
+            }
+        }
+        out.flush();
+    }
+
+    private static void writeBlock(DataOutputStream out, byte type, ByteArrayOutputStream payload) throws IOException {
+        out.writeInt(payload.size());
+        out.writeByte(type);
+        payload.writeTo(out);
+    }
+
+    /**
+     * Читает блок словаря. Словари пополняются, только если блок прочитан целиком.
+     */
+    static void readDictionary(DataInputStream in, List<String> stringList, List<int[]> stackList) throws IOException {
+        String newStrings[] = new String[in.readInt()];
+        for (int i = 0; i < newStrings.length; i++) {
+            newStrings[i] = in.readUTF();
+        }
+        int newStacks[][] = new int[in.readInt()][];
+        for (int i = 0; i < newStacks.length; i++) {
+            int stack[] = new int[in.readInt()];
+            for (int j = 0; j < stack.length; j++) {
+                stack[j] = in.readInt();
+            }
+            newStacks[i] = stack;
+        }
+        stringList.addAll(Arrays.asList(newStrings));
+        stackList.addAll(Arrays.asList(newStacks));
+    }
+
+    static DumpRecord readDump(DataInputStream in, List<String> stringList, List<int[]> stackList) throws IOException {
+        Date date = new Date(in.readLong());
+        in.readUTF();
+        DumpType type = DumpType.valueOf(in.readUTF());
+        String host = stringList.get(in.readInt());
+        return new DumpRecord(type, date, host, readThreads(in, stringList, stackList));
+    }
+
+    /**
+     * Читает разностный дамп.
+     *
+     * @param base имя предыдущего дампа
+     */
+    static DumpRecord readDelta(DataInputStream in, List<String> stringList, List<int[]> stackList, String base) throws IOException {
+        Date date = new Date(in.readLong());
+        in.readUTF();
+        DumpType type = DumpType.valueOf(in.readUTF());
+        String host = stringList.get(in.readInt());
+        ThreadRecord threads[] = readThreads(in, stringList, stackList);
+        ThreadRecord ended[] = new ThreadRecord[in.readInt()];
+        for (int i = 0; i < ended.length; i++) {
+            long id = in.readLong();
+            ended[i] = new ThreadRecord(id, stringList.get(in.readInt()), null, new String[0]);
+        }
+        return new DumpRecord(type, date, host, threads, base, ended);
+    }
+
+    /**
+     * Применяет прочитанный дамп к предыдущему полному дампу.
+     *
+     * @param previous полный предыдущий дамп или <code>null</code>
+     * @return полный дамп
+     */
+    static DumpRecord reconstruct(DumpRecord previous, DumpRecord dump) {
+        if (!dump.isDelta()) {
+            return dump;
+        }
+        DumpRecord base = previous;
+        if (base == null) {
+            // полный дамп потерян, восстанавливается то, что есть
+            base = new DumpRecord(dump.getType(), dump.getDate(), dump.getHost(), new ThreadRecord[0]);
+        }
+        return base.applyDelta(dump);
+    }
+
+    private static ThreadRecord[] readThreads(DataInputStream in, List<String> stringList, List<int[]> stackList) throws IOException {
+        ThreadRecord threads[] = new ThreadRecord[in.readInt()];
+        for (int i = 0; i < threads.length; i++) {
+            long id = in.readLong();
+            String name = stringList.get(in.readInt());
+            int state = in.readUnsignedByte();
+            int flags = in.readUnsignedByte();
+            String lockName = null;
+            String lockOwnerName = null;
+            long lockOwnerId = -1;
+            if ((flags & FLAG_LOCK) != 0) {
+                lockName = stringList.get(in.readInt());
+            }
+            if ((flags & FLAG_LOCK_OWNER) != 0) {
+                lockOwnerName = stringList.get(in.readInt());
+                lockOwnerId = in.readLong();
+            }
+            int stack[] = stackList.get(in.readInt());
+            String frames[] = new String[stack.length];
+            for (int j = 0; j < stack.length; j++) {
+                frames[j] = stringList.get(stack[j]);
+            }
+            int depths[] = new int[in.readInt()];
+            String monitors[] = new String[depths.length];
+            for (int j = 0; j < depths.length; j++) {
+                depths[j] = in.readInt();
+                monitors[j] = stringList.get(in.readInt());
+            }
+            String synchronizers[] = new String[in.readInt()];
+            for (int j = 0; j < synchronizers.length; j++) {
+                synchronizers[j] = stringList.get(in.readInt());
+            }
+            threads[i] = new ThreadRecord(id, name, state == 0 ? null : STATES[state - 1], lockName, lockOwnerName, lockOwnerId,
+                (flags & FLAG_SUSPENDED) != 0, (flags & FLAG_IN_NATIVE) != 0, frames, depths, monitors, synchronizers);
+        }
+        return threads;
+    }
+
+    /**
+     * Возвращает имена дампов, записанных в хранилище.
+     */
+    static List<String> list(InputStream input) throws IOException {
+        final List<String> result = new ArrayList<>();
+        scan(input, new BlockVisitor() {
+            @Override
+            public boolean visit(byte type, DataInputStream in, int length, long offset) throws IOException {
+                if (type == DUMP || type == DELTA) {
+                    DataInputStream dump = readPayload(in, length);
+                    dump.readLong();
+                    result.add(dump.readUTF());
+                    return true;
+                }
+                return false;
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Читает дамп с указанным именем. Если дампов с таким именем
+     * несколько, возвращается последний.
+     *
+     * @param reconstruct восстанавливать ли разностный дамп до полного
+     * @return дамп или <code>null</code>, если он не найден
+     */
+    static DumpRecord read(InputStream input, final String name, final boolean reconstruct) throws IOException {
+        final List<String> stringList = new ArrayList<>();
+        final List<int[]> stackList = new ArrayList<>();
+        final DumpRecord result[] = new DumpRecord[1];
+        final DumpRecord state[] = new DumpRecord[1];
+        final String previousName[] = new String[1];
+        scan(input, new BlockVisitor() {
+            @Override
+            public boolean visit(byte type, DataInputStream in, int length, long offset) throws IOException {
+                if (type == DICTIONARY) {
+                    readDictionary(in, stringList, stackList);
+                    return true;
+                }
+                if (type == DUMP || type == DELTA) {
+                    DataInputStream dump = readPayload(in, length);
+                    dump.mark(length);
+                    dump.readLong();
+                    String dumpName = dump.readUTF();
+                    boolean found = dumpName.equals(name);
+                    if (found || reconstruct) {
+                        dump.reset();
+                        DumpRecord record = type == DUMP ? readDump(dump, stringList, stackList) : readDelta(dump, stringList, stackList, previousName[0]);
+                        if (reconstruct) {
+                            state[0] = reconstruct(state[0], record);
+                            record = state[0];
+                        }
+                        if (found) {
+                            result[0] = record;
+                        }
+                    }
+                    previousName[0] = dumpName;
+                    return true;
+                }
+                return false;
+            }
+        });
+        return result[0];
+    }
+
+    private static DataInputStream readPayload(DataInputStream in, int length) throws IOException {
+        byte payload[] = new byte[length];
+        in.readFully(payload);
+        return new DataInputStream(new ByteArrayInputStream(payload));
+    }
+
+    /**
+     * Обходит блоки хранилища.
+     *
+     * @return смещение конца последнего целого блока
+     */
+    private static long scan(InputStream input, BlockVisitor visitor) throws IOException {
+        try (DataInputStream in = new DataInputStream(input instanceof BufferedInputStream ? input : new BufferedInputStream(input, 65536))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a thread dump store");
+            }
+            long offset = HEADER_SIZE;
+            while (true) {
+                int length;
+                byte type;
+                try {
+                    length = in.readInt();
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    return offset;
+                }
+                if (length < 0) {
+                    return offset;
+                }
+                try {
+                    if (!visitor.visit(type, in, length, offset)) {
+                        skipFully(in, length);
+                    }
+                } catch (EOFException e) {
+                    return offset;
+                }
+                offset += BLOCK_HEADER_SIZE + length;
+            }
+        } catch (EOFException e) {
+            return 0;
+        }
+    }
+
+    private static void skipFully(DataInputStream in, int length) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            int skipped = in.skipBytes(remaining);
+            if (skipped <= 0) {
+                in.readByte();
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            try {
+                indexChannel.close();
+            } finally {
+                threadIndexChannel.close();
+            }
+        }
+    }
+
+    private interface BlockVisitor {
+        /**
+         * @return <code>true</code>, если содержимое блока прочитано полностью
+         */
+        boolean visit(byte type, DataInputStream in, int length, long offset) throws IOException;
+    }
+
+    private static final class StackKey {
+        private final int ids[];
+        private final int hash;
+
+        StackKey(int ids[]) {
+            this.ids = ids;
+            this.hash = Arrays.hashCode(ids);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof StackKey && Arrays.equals(ids, ((StackKey) obj).ids);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package ru.sergeyb.dump;
+
+import java.io.PrintWriter;
+import java.util.Date;
+
+/**
+ * Дампер, который умеет отдельно снимать дамп в структурированном виде
+ * и форматировать его в текст. Текст, полученный через
+ * {@link Dumper#threadDump(PrintWriter, Date)}, совпадает
+ * с результатом {@link #write(PrintWriter, DumpRecord)}.
+ *
+ * @author sergeyb
+ */
+interface StructuredDumper extends Dumper {
+
+    DumpRecord capture(Date date);
+
+    void write(PrintWriter out, DumpRecord dump);
+
+}
@@ -0,0 +1,176 @@
+package ru.sergeyb.dump;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Замер процессорного времени потоков при снятии дампа. Время всех
+ * потоков запрашивается одним вызовом, если это позволяет JVM.
+ * Предыдущий замер хранится в таблице без упаковки в объекты, поэтому
+ * для каждого потока известно время с предыдущего дампа того же потока
+ * дампов: плановые дампы, дампы учащенного режима, дампы кольцевого буфера
+ * и остальные дампы сравниваются каждый со своим предыдущим замером,
+ * иначе частые дампы сокращали бы интервал плановых дампов.
+ * <p>
+ * По этим данным в начало дампа выводится длина интервала, а в конец
+ * дампа - самые загруженные потоки.
+ *
+ * @author sergeyb
+ */
+class ThreadCpuSampler {
+    static final int DEFAULT_HOT_THREADS = 10;
+    private static final int MAXIMAL_HOT_THREADS = 1000;
+    private static final int HOT_THREAD_FRAMES = 10;
+    private static final AtomicInteger hotThreads = new AtomicInteger(-1);
+    /** Плановые дампы. */
+    static final ThreadCpuSampler SCHEDULED = new ThreadCpuSampler();
+    /** Дампы учащенного режима. */
+    static final ThreadCpuSampler BURST = new ThreadCpuSampler();
+    /** Дампы кольцевого буфера. */
+    static final ThreadCpuSampler RING = new ThreadCpuSampler();
+    /** Дампы по событию и по запросу. */
+    static final ThreadCpuSampler ON_DEMAND = new ThreadCpuSampler();
+    private LongLongHashMap previous = new LongLongHashMap(1024);
+    private LongLongHashMap current = new LongLongHashMap(1024);
+    private long previousNanos;
+
+    private ThreadCpuSampler() {
+        // hidden constructor
+    }
+
+    static int getHotThreads() {
+        if (hotThreads.get() < 0) {
+            hotThreads.compareAndSet(-1, Math.min(Math.max(ThreadDumpImpl.getPreferences().getInt("hotThreads", DEFAULT_HOT_THREADS), 0), MAXIMAL_HOT_THREADS));
+        }
+        return hotThreads.get();
+    }
+
+    static void setHotThreads(int value) {
+        int newValue = value;
+        if (newValue < 0 || newValue > MAXIMAL_HOT_THREADS) {
+            ThreadDumpImpl.logger.log(Level.WARNING, "Invalid hot threads count {0}. Count must be between 0 and {1}.", new Object[] {newValue, MAXIMAL_HOT_THREADS});
+            newValue = Math.min(Math.max(newValue, 0), MAXIMAL_HOT_THREADS);
+        }
+        hotThreads.set(newValue);
+        ThreadDumpImpl.getPreferences().putInt("hotThreads", newValue);
+    }
+
+    /**
+     * Заполняет процессорное время потоков только что снятого дампа
+     * относительно предыдущего дампа этого потока дампов.
+     */
+    synchronized void sample(DumpRecord dump) {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (!threadMXBean.isThreadCpuTimeSupported() || !threadMXBean.isThreadCpuTimeEnabled()) {
+            return;
+        }
+        ThreadRecord threads[] = dump.getThreads();
+        long times[] = getThreadCpuTime(threadMXBean, threads);
+        long now = System.nanoTime();
+        boolean hasPrevious = previous.size() > 0;
+        current.clear();
+        for (int i = 0; i < threads.length; i++) {
+            long time = times[i];
+            if (time < 0) {
+                continue;
+            }
+            long previousTime = hasPrevious ? previous.get(threads[i].getId()) : -1;
+            threads[i].setCpuTime(time, previousTime >= 0 && time >= previousTime ? time - previousTime : -1);
+            current.put(threads[i].getId(), time);
+        }
+        if (hasPrevious) {
+            dump.setCpuInterval(now - previousNanos);
+        }
+        LongLongHashMap swap = previous;
+        previous = current;
+        current = swap;
+        previousNanos = now;
+    }
+
+    private static long[] getThreadCpuTime(ThreadMXBean threadMXBean, ThreadRecord threads[]) {
+        long ids[] = new long[threads.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = threads[i].getId();
+        }
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadCpuTime(ids);
+        }
+        long result[] = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            result[i] = threadMXBean.getThreadCpuTime(ids[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Выводит длину интервала, за который указан прирост процессорного
+     * времени потоков.
+     */
+    static void writeInterval(PrintWriter out, DumpRecord dump) {
+        long interval = dump.getCpuInterval();
+        if (interval > 0) {
+            out.printf("CPU time increments are for the last %.3f s.%n%n", interval / 1e9);
+        }
+    }
+
+    /**
+     * Выводит потоки, потратившие больше всего процессорного времени
+     * с предыдущего дампа, с долей одного ядра и верхними кадрами стека.
+     */
+    static void writeHotThreads(PrintWriter out, DumpRecord dump) {
+        int n = getHotThreads();
+        long interval = dump.getCpuInterval();
+        if (n == 0 || interval <= 0) {
+            return;
+        }
+        ThreadRecord threads[] = dump.getThreads();
+        ThreadRecord top[] = new ThreadRecord[Math.min(n, threads.length)];
+        int count = 0;
+        for (ThreadRecord thread: threads) {
+            long delta = thread.getCpuTimeDelta();
+            if (delta <= 0 || count == top.length && delta <= top[count - 1].getCpuTimeDelta()) {
+                continue;
+            }
+            int j = count < top.length ? count++ : count - 1;
+            while (j > 0 && top[j - 1].getCpuTimeDelta() < delta) {
+                top[j] = top[j - 1];
+                j--;
+            }
+            top[j] = thread;
+        }
+        if (count == 0) {
+            return;
+        }
+        out.printf("Hot threads (top %d by CPU time in last %.3f s):%n%n", n, interval / 1e9);
+        for (int i = 0; i < count; i++) {
+            ThreadRecord thread = top[i];
+            out.printf("%6.1f%% \"%s\" Id=%d %s%n", thread.getCpuTimeDelta() * 100.0 / interval, thread.getName(), thread.getId(), thread.getState());
+            String frames[] = thread.getFrames();
+            for (int j = 0; j < frames.length && j < HOT_THREAD_FRAMES; j++) {
+                out.write("    at ");
+                out.println(frames[j]);
+            }
+            if (frames.length > HOT_THREAD_FRAMES) {
+                out.println("    ...");
+            }
+            out.println();
+        }
+    }
+
+    /**
+     * Пишет время в миллисекундах с двумя знаками после точки без форматирования строк.
+     */
+    static void writeMillis(PrintWriter out, long nanos) {
+        out.print(nanos / 1000000);
+        out.write('.');
+        int fraction = (int) (nanos / 10000 % 100);
+        if (fraction < 10) {
+            out.write('0');
+        }
+        out.print(fraction);
+        out.write("ms");
+    }
+}
@@ -1,10 +1,28 @@
 package ru.sergeyb.dump;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.DataFormatException;
 
-public class ThreadDump implements ThreadDumpMBean {
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanNotificationInfo;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.TabularData;
+
+public class ThreadDump implements ThreadDumpMBean, NotificationEmitter {
+    private static final String TIME_FORMAT = "yyyy-MM-dd HH:mm:ss";
+    private static final int SEARCH_LIMIT = 1000;
 
     @Override
     public int getPeriodSec() {
@@ -53,7 +71,7 @@ public class ThreadDump implements ThreadDumpMBean {
 
     @Override
     public void threadDump() {
-        ThreadDumpImpl.threadDump();
+        ThreadDumpImpl.threadDump(ThreadCpuSampler.ON_DEMAND);
     }
 
     @Override
@@ -115,4 +133,548 @@ public class ThreadDump implements ThreadDumpMBean {
     public void rotate() {
         ThreadDumpImpl.rotateInternal(Calendar.getInstance().getTime());
     }
+
+    @Override
+    public long getHotSpotAttachCount() {
+        return ThreadDumpImpl.getAttachStatistics().getAttachCount();
+    }
+
+    @Override
+    public long getHotSpotAttachTimeMs() {
+        return ThreadDumpImpl.getAttachStatistics().getAttachTimeMs();
+    }
+
+    @Override
+    public long getHotSpotDumpCount() {
+        return ThreadDumpImpl.getAttachStatistics().getDumpCount();
+    }
+
+    @Override
+    public long getHotSpotDumpTimeMs() {
+        return ThreadDumpImpl.getAttachStatistics().getDumpTimeMs();
+    }
+
+    @Override
+    public long getHotSpotReconnectCount() {
+        return ThreadDumpImpl.getAttachStatistics().getReconnectCount();
+    }
+
+    @Override
+    public int getBurstBlockedThreads() {
+        return BurstSampler.getBlockedThreads();
+    }
+
+    @Override
+    public void setBurstBlockedThreads(int blockedThreads) {
+        BurstSampler.setBlockedThreads(blockedThreads);
+    }
+
+    @Override
+    public int getBurstCpuLoadPercent() {
+        return BurstSampler.getCpuLoadPercent();
+    }
+
+    @Override
+    public void setBurstCpuLoadPercent(int cpuLoadPercent) {
+        BurstSampler.setCpuLoadPercent(cpuLoadPercent);
+    }
+
+    @Override
+    public int getBurstThreadGrowth() {
+        return BurstSampler.getThreadGrowth();
+    }
+
+    @Override
+    public void setBurstThreadGrowth(int threadGrowth) {
+        BurstSampler.setThreadGrowth(threadGrowth);
+    }
+
+    @Override
+    public int getBurstWindowSec() {
+        return BurstSampler.getWindowSec();
+    }
+
+    @Override
+    public void setBurstWindowSec(int windowSec) {
+        BurstSampler.setWindowSec(windowSec);
+    }
+
+    @Override
+    public int getBurstPeriodMs() {
+        return BurstSampler.getPeriodMs();
+    }
+
+    @Override
+    public void setBurstPeriodMs(int periodMs) {
+        BurstSampler.setPeriodMs(periodMs);
+    }
+
+    @Override
+    public boolean isBurstActive() {
+        return BurstSampler.isActive();
+    }
+
+    @Override
+    public long getBurstCount() {
+        return BurstSampler.getBurstCount();
+    }
+
+    @Override
+    public int getProfileIntervalMs() {
+        return ThreadDumpImpl.getProfileIntervalMs();
+    }
+
+    @Override
+    public void setProfileIntervalMs(int profileIntervalMs) {
+        ThreadDumpImpl.setProfileIntervalMs(profileIntervalMs);
+    }
+
+    @Override
+    public boolean isCompress() {
+        return ThreadDumpImpl.isCompress();
+    }
+
+    @Override
+    public void setCompress(boolean compress) {
+        ThreadDumpImpl.setCompress(compress);
+    }
+
+    @Override
+    public String[] listDumps(String day) throws IOException {
+        List<String> result = ThreadDumpImpl.listDumps(day);
+        return result.toArray(new String[result.size()]);
+    }
+
+    @Override
+    public String readDump(String name) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ThreadDumpImpl.readDump(name, out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void exportDump(String name, String file) throws IOException {
+        try (OutputStream out = Files.newOutputStream(Paths.get(file))) {
+            ThreadDumpImpl.reconstructDump(name, out);
+        }
+    }
+
+    @Override
+    public String reconstructDump(String name) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ThreadDumpImpl.reconstructDump(name, out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String getOutputFormat() {
+        return ThreadDumpImpl.getOutputFormat().name();
+    }
+
+    @Override
+    public void setOutputFormat(String outputFormat) {
+        ThreadDumpImpl.setOutputFormat(OutputFormat.valueOf(outputFormat));
+    }
+
+    @Override
+    public String[] findDumps(String from, String to, String threadName) throws IOException {
+        String name = threadName == null || threadName.isEmpty() ? null : threadName;
+        List<String> result = ThreadDumpImpl.findDumps(parseTime(from), parseTime(to), name);
+        return result.toArray(new String[result.size()]);
+    }
+
+    @Override
+    public String readDumpAt(String time) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!ThreadDumpImpl.readDumpAt(parseTime(time), out)) {
+            throw new IOException(String.format("No dump found at %s", time));
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String[] getPauseHistograms() {
+        return PauseMeter.getHistograms();
+    }
+
+    @Override
+    public boolean isPauseMeasured() {
+        return PauseMeter.isMeasured();
+    }
+
+    @Override
+    public long getPauseSyncTimeMs() {
+        return PauseMeter.getSyncTimeMs();
+    }
+
+    @Override
+    public int getPauseBudgetMs() {
+        return PauseMeter.getBudgetMs();
+    }
+
+    @Override
+    public void setPauseBudgetMs(int pauseBudgetMs) {
+        PauseMeter.setBudgetMs(pauseBudgetMs);
+    }
+
+    @Override
+    public boolean isPauseBackoff() {
+        return PauseMeter.isBackoff();
+    }
+
+    @Override
+    public void setPauseBackoff(boolean pauseBackoff) {
+        PauseMeter.setBackoff(pauseBackoff);
+    }
+
+    @Override
+    public long getPauseOverBudgetCount() {
+        return PauseMeter.getOverBudgetCount();
+    }
+
+    @Override
+    public long getPauseSkippedCount() {
+        return PauseMeter.getSkippedCount();
+    }
+
+    @Override
+    public void resetPauseStatistics() {
+        PauseMeter.reset();
+    }
+
+    @Override
+    public boolean isAsyncWrite() {
+        return DumpWriter.isEnabled();
+    }
+
+    @Override
+    public void setAsyncWrite(boolean asyncWrite) {
+        DumpWriter.setEnabled(asyncWrite);
+    }
+
+    @Override
+    public int getWriteQueueCapacity() {
+        return DumpWriter.getCapacity();
+    }
+
+    @Override
+    public void setWriteQueueCapacity(int writeQueueCapacity) {
+        DumpWriter.setCapacity(writeQueueCapacity);
+    }
+
+    @Override
+    public String getWriteQueuePolicy() {
+        return DumpWriter.getPolicy().name();
+    }
+
+    @Override
+    public void setWriteQueuePolicy(String writeQueuePolicy) {
+        DumpWriter.setPolicy(WriteQueuePolicy.valueOf(writeQueuePolicy));
+    }
+
+    @Override
+    public int getDeltaKeyframeInterval() {
+        return ThreadDumpImpl.getDeltaKeyframeInterval();
+    }
+
+    @Override
+    public void setDeltaKeyframeInterval(int deltaKeyframeInterval) {
+        ThreadDumpImpl.setDeltaKeyframeInterval(deltaKeyframeInterval);
+    }
+
+    @Override
+    public int getDeadlockCheckPeriodSec() {
+        return DeadlockWatchdog.getCheckPeriodSec();
+    }
+
+    @Override
+    public void setDeadlockCheckPeriodSec(int deadlockCheckPeriodSec) {
+        DeadlockWatchdog.setCheckPeriodSec(deadlockCheckPeriodSec);
+    }
+
+    @Override
+    public long getDeadlockCount() {
+        return DeadlockWatchdog.getDeadlockCount();
+    }
+
+    @Override
+    public String getLastDeadlockReport() {
+        return DeadlockWatchdog.getLastReport();
+    }
+
+    @Override
+    public void addNotificationListener(NotificationListener listener, NotificationFilter filter, Object handback) {
+        DeadlockWatchdog.getBroadcaster().addNotificationListener(listener, filter, handback);
+    }
+
+    @Override
+    public void removeNotificationListener(NotificationListener listener) throws ListenerNotFoundException {
+        DeadlockWatchdog.getBroadcaster().removeNotificationListener(listener);
+    }
+
+    @Override
+    public void removeNotificationListener(NotificationListener listener, NotificationFilter filter, Object handback) throws ListenerNotFoundException {
+        DeadlockWatchdog.getBroadcaster().removeNotificationListener(listener, filter, handback);
+    }
+
+    @Override
+    public MBeanNotificationInfo[] getNotificationInfo() {
+        return DeadlockWatchdog.getBroadcaster().getNotificationInfo();
+    }
+
+    @Override
+    public int getHotThreads() {
+        return ThreadCpuSampler.getHotThreads();
+    }
+
+    @Override
+    public void setHotThreads(int hotThreads) {
+        ThreadCpuSampler.setHotThreads(hotThreads);
+    }
+
+    @Override
+    public String[] getTriggers() {
+        DumpTrigger triggers[] = DumpTrigger.values();
+        String result[] = new String[triggers.length];
+        for (int i = 0; i < triggers.length; i++) {
+            result[i] = triggers[i].getSummary();
+        }
+        return result;
+    }
+
+    @Override
+    public void configureTrigger(String trigger, int threshold, int cooldownSec, String dumpType) {
+        DumpTriggers.configure(DumpTrigger.valueOf(trigger), threshold, cooldownSec, DumpType.valueOf(dumpType));
+    }
+
+    @Override
+    public TabularData getLockContention() {
+        return LockContention.getTable();
+    }
+
+    @Override
+    public String getLockContentionReport() {
+        return LockContention.getReport();
+    }
+
+    @Override
+    public int getLockWindowSec() {
+        return LockContention.getWindowSec();
+    }
+
+    @Override
+    public void setLockWindowSec(int lockWindowSec) {
+        LockContention.setWindowSec(lockWindowSec);
+    }
+
+    @Override
+    public boolean isHttpEnabled() {
+        return OnDemandCapture.isEnabled();
+    }
+
+    @Override
+    public void setHttpEnabled(boolean httpEnabled) {
+        OnDemandCapture.setEnabled(httpEnabled);
+    }
+
+    @Override
+    public int getHttpMaxRequests() {
+        return OnDemandCapture.getMaxRequests();
+    }
+
+    @Override
+    public void setHttpMaxRequests(int httpMaxRequests) {
+        OnDemandCapture.setMaxRequests(httpMaxRequests);
+    }
+
+    @Override
+    public String[] searchDumps(String from, String to, String query) throws IOException {
+        List<String> result = ThreadDumpImpl.searchDumps(parseTime(from), parseTime(to), query, SEARCH_LIMIT);
+        return result.toArray(new String[result.size()]);
+    }
+
+    @Override
+    public String[] listRingDumps() {
+        List<String> result = DumpRing.list();
+        return result.toArray(new String[result.size()]);
+    }
+
+    @Override
+    public String readRingDump(long id) throws IOException {
+        try {
+            String result = DumpRing.read(id);
+            if (result == null) {
+                throw new IOException(String.format("Ring dump %d not found", id));
+            }
+            return result;
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void exportRingDump(long id, String file) throws IOException {
+        Files.write(Paths.get(file), readRingDump(id).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public int getRingSizeMb() {
+        return DumpRing.getSizeMb();
+    }
+
+    @Override
+    public void setRingSizeMb(int ringSizeMb) {
+        DumpRing.setSizeMb(ringSizeMb);
+    }
+
+    @Override
+    public long getRingUsedBytes() {
+        return DumpRing.getUsedBytes();
+    }
+
+    @Override
+    public int getRingMaxAgeSec() {
+        return DumpRing.getMaxAgeSec();
+    }
+
+    @Override
+    public void setRingMaxAgeSec(int ringMaxAgeSec) {
+        DumpRing.setMaxAgeSec(ringMaxAgeSec);
+    }
+
+    @Override
+    public int getRingPeriodMs() {
+        return DumpRing.getPeriodMs();
+    }
+
+    @Override
+    public void setRingPeriodMs(int ringPeriodMs) {
+        DumpRing.setPeriodMs(ringPeriodMs);
+    }
+
+    @Override
+    public int getRetentionMaxTotalMb() {
+        return DumpRetention.getMaxTotalMb();
+    }
+
+    @Override
+    public void setRetentionMaxTotalMb(int retentionMaxTotalMb) {
+        DumpRetention.setMaxTotalMb(retentionMaxTotalMb);
+    }
+
+    @Override
+    public int getRetentionMinFreeMb() {
+        return DumpRetention.getMinFreeMb();
+    }
+
+    @Override
+    public void setRetentionMinFreeMb(int retentionMinFreeMb) {
+        DumpRetention.setMinFreeMb(retentionMinFreeMb);
+    }
+
+    @Override
+    public long getRetainedBytes() {
+        return DumpRetention.getTotalBytes();
+    }
+
+    @Override
+    public String[] listRetainedDays() {
+        List<String> result = DumpRetention.list();
+        return result.toArray(new String[result.size()]);
+    }
+
+    @Override
+    public int getCompactMbPerSec() {
+        return DumpCompactor.getMbPerSec();
+    }
+
+    @Override
+    public void setCompactMbPerSec(int compactMbPerSec) {
+        DumpCompactor.setMbPerSec(compactMbPerSec);
+    }
+
+    @Override
+    public void compact() {
+        ThreadDumpImpl.compactDumps();
+    }
+
+    @Override
+    public String getTargetPids() {
+        return DumpTargets.getPids();
+    }
+
+    @Override
+    public void setTargetPids(String targetPids) {
+        DumpTargets.setPids(targetPids);
+    }
+
+    @Override
+    public String getTargetPatterns() {
+        return DumpTargets.getPatterns();
+    }
+
+    @Override
+    public void setTargetPatterns(String targetPatterns) {
+        DumpTargets.setPatterns(targetPatterns);
+    }
+
+    @Override
+    public int getTargetTimeoutSec() {
+        return DumpTargets.getTimeoutSec();
+    }
+
+    @Override
+    public void setTargetTimeoutSec(int targetTimeoutSec) {
+        DumpTargets.setTimeoutSec(targetTimeoutSec);
+    }
+
+    @Override
+    public int getTargetThreads() {
+        return DumpTargets.getThreads();
+    }
+
+    @Override
+    public void setTargetThreads(int targetThreads) {
+        DumpTargets.setThreads(targetThreads);
+    }
+
+    @Override
+    public String[] listTargets() {
+        List<String> result = DumpTargets.list();
+        return result.toArray(new String[result.size()]);
+    }
+
+    @Override
+    public String[] listVirtualMachines() {
+        List<String> result = DumpTargets.listVirtualMachines();
+        return result.toArray(new String[result.size()]);
+    }
+
+    @Override
+    public int getDumpTimeoutSec() {
+        return DumpDeadline.getTimeoutSec();
+    }
+
+    @Override
+    public void setDumpTimeoutSec(int dumpTimeoutSec) {
+        DumpDeadline.setTimeoutSec(dumpTimeoutSec);
+    }
+
+    @Override
+    public long getHotSpotInitTimeMs() {
+        return ThreadDumpImpl.getAttachStatistics().getInitTimeMs();
+    }
+
+    @Override
+    public String getHotSpotInitSummary() {
+        return ThreadDumpImpl.getAttachStatistics().getInitSummary();
+    }
+
+    static Date parseTime(String time) {
+        try {
+            return new SimpleDateFormat(TIME_FORMAT).parse(time);
+        } catch (ParseException e) {
+            throw new IllegalArgumentException(String.format("Invalid time %s, expected %s", time, TIME_FORMAT));
+        }
+    }
 }
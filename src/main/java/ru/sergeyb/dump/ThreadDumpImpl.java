@@ -4,16 +4,14 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.nio.file.FileVisitResult;
-import java.nio.file.FileVisitor;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
@@ -26,6 +24,9 @@ import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.prefs.Preferences;
+import java.util.zip.GZIPOutputStream;
+
+import ru.sergeyb.profile.AttachStatistics;
 
 /**
  * Класс, который обеспечивает мониторинг дампов потоков.
@@ -36,6 +37,9 @@ class ThreadDumpImpl {
     private static final int MINIMAL_ROTATE_PERIOD_SEC = 3600;
     private static final String THREAD_NAME = "ThreadDumpMonitorDh1e5j8r";
     private static final int MINIMAL_PERIOD_SEC = 60; // не меньше 1 минуты
+    static final String FILE_NAME = "thread-dump-%1$tY-%1$tm-%1$td-%1$tH-%1$tM.txt";
+    static final String PRECISE_FILE_NAME = "thread-dump-%1$tY-%1$tm-%1$td-%1$tH-%1$tM-%1$tS-%1$tL.txt";
+    private static final String TAGGED_FILE_NAME = "thread-dump-%1$tY-%1$tm-%1$td-%1$tH-%1$tM-%1$tS-%1$tL-%2$s.txt";
     private static final AtomicBoolean monitoringStarted = new AtomicBoolean(false);
     private static final Runnable worker;
     private static final DumpType defaultDumpType = DumpType.HOTSPOT;
@@ -43,14 +47,22 @@ class ThreadDumpImpl {
     private static final AtomicReference<ScheduledExecutorService> pool = new AtomicReference<>();
     private static final AtomicReference<Path> dumpParentDir = new AtomicReference<>();
     private static final AtomicInteger periodSec = new AtomicInteger(-1);
+    private static final AtomicLong nextFireNanos = new AtomicLong(0);
+    private static final AtomicLong schedulePeriodNanos = new AtomicLong(0);
     private static final AtomicReference<DumpType> dumpType = new AtomicReference<>();
     private static final AtomicReference<Preferences> preferences = new AtomicReference<>();
     private static final AtomicInteger rotatePeriodSec = new AtomicInteger(-1);
     private static final AtomicInteger rotateDays = new AtomicInteger(-1);
     private static final AtomicLong lastRotate = new AtomicLong(0);
+    private static final AtomicReference<Boolean> compress = new AtomicReference<>();
+    private static final AtomicReference<String> lastArchiveDay = new AtomicReference<>("");
+    private static final AtomicReference<OutputFormat> outputFormat = new AtomicReference<>();
+    private static final AtomicReference<StackStore> stackStore = new AtomicReference<>();
+    private static final AtomicInteger deltaKeyframeInterval = new AtomicInteger(-1);
+    private static final Object stackStoreLock = new Object();
     static final String JMX_NAME = "ru.sergeyb:type=ThreadDump";
     static final int DEFAULT_PERIOD_SEC = 300;
-    static final int DEFAULT_ROTATE_PERIOD_SEC = 86_400_000;
+    static final int DEFAULT_ROTATE_PERIOD_SEC = 86_400;
     static final int DEFAULT_ROTATE_DAYS = 7;
     static final Logger logger = Logger.getLogger(ThreadDumpImpl.class.getName());
 
@@ -58,12 +70,55 @@ class ThreadDumpImpl {
         worker = new Runnable() {
             @Override
             public void run() {
-                threadDump();
+                if (!fired()) {
+                    logger.log(Level.FINE, "Missed thread dump tick coalesced.");
+                    return;
+                }
+                if (PauseMeter.shouldSkip()) {
+                    logger.log(Level.INFO, "Thread dump skipped because previous dump exceeded pause budget.");
+                    return;
+                }
+                threadDump(ThreadCpuSampler.SCHEDULED);
             }
         };
     }
 
-    private static Preferences getPreferences() {
+    /**
+     * Запоминает расписание плановых дампов.
+     *
+     * @param delayMs задержка до первого дампа
+     * @param periodMs период
+     */
+    private static void scheduled(long delayMs, long periodMs) {
+        schedulePeriodNanos.set(TimeUnit.MILLISECONDS.toNanos(periodMs));
+        nextFireNanos.set(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs));
+    }
+
+    /**
+     * Вызывается при срабатывании планового дампа. После долгого дампа
+     * планировщик с фиксированной частотой выполняет пропущенные
+     * срабатывания подряд; из них выполняется только последнее.
+     *
+     * @return <code>false</code>, если уже наступило время следующего
+     *         срабатывания и это срабатывание нужно пропустить
+     */
+    private static boolean fired() {
+        long now = System.nanoTime();
+        long planned = nextFireNanos.get();
+        if (planned == 0) {
+            return true;
+        }
+        long period = schedulePeriodNanos.get();
+        nextFireNanos.compareAndSet(planned, planned + period);
+        if (period > 0 && now - planned >= period) {
+            DumpMetrics.tickCoalesced();
+            return false;
+        }
+        DumpMetrics.tickFired(TimeUnit.NANOSECONDS.toMillis(Math.max(now - planned, 0)));
+        return true;
+    }
+
+    static Preferences getPreferences() {
         if (preferences.get() == null) {
             preferences.compareAndSet(null, Preferences.userRoot().node("/ru/sergeyb/dump/thread-dump"));
         }
@@ -116,6 +171,90 @@ class ThreadDumpImpl {
     static void setDumpType(DumpType dumpType) {
         ThreadDumpImpl.dumpType.set(dumpType);
         getPreferences().put("dumpType", dumpType.name());
+        updateProfiler();
+        prewarm();
+    }
+
+    static boolean isCompress() {
+        Boolean result = compress.get();
+        return result != null && result;
+    }
+
+    static void setCompress(boolean compress) {
+        ThreadDumpImpl.compress.set(compress);
+        getPreferences().putBoolean("compress", compress);
+        logger.log(Level.INFO, "Thread dump compression is {0}.", new Object[] {compress ? "enabled" : "disabled"});
+    }
+
+    static OutputFormat getOutputFormat() {
+        OutputFormat result = outputFormat.get();
+        return result == null ? OutputFormat.TEXT : result;
+    }
+
+    static void setOutputFormat(OutputFormat outputFormat) {
+        ThreadDumpImpl.outputFormat.set(outputFormat);
+        getPreferences().put("outputFormat", outputFormat.name());
+        if (outputFormat != OutputFormat.STORE) {
+            closeStackStore();
+        }
+        logger.log(Level.INFO, "Output format set to {0}.", new Object[] {outputFormat});
+    }
+
+    private static OutputFormat getDefaultOutputFormat() {
+        try {
+            return OutputFormat.valueOf(getPreferences().get("outputFormat", OutputFormat.TEXT.name()));
+        } catch (IllegalArgumentException e) {
+            return OutputFormat.TEXT;
+        }
+    }
+
+    static int getProfileIntervalMs() {
+        return getProfiler().getIntervalMs();
+    }
+
+    static void setProfileIntervalMs(int profileIntervalMs) {
+        getProfiler().setIntervalMs(profileIntervalMs);
+        getPreferences().putInt("profileIntervalMs", getProfiler().getIntervalMs());
+    }
+
+    static int getDeltaKeyframeInterval() {
+        if (deltaKeyframeInterval.get() < 0) {
+            deltaKeyframeInterval.compareAndSet(-1, Math.max(getPreferences().getInt("deltaKeyframeInterval", 0), 0));
+        }
+        return deltaKeyframeInterval.get();
+    }
+
+    static void setDeltaKeyframeInterval(int interval) {
+        int newValue = Math.max(interval, 0);
+        deltaKeyframeInterval.set(newValue);
+        getPreferences().putInt("deltaKeyframeInterval", newValue);
+        logger.log(Level.INFO, "Delta dump keyframe interval set to {0}.", new Object[] {newValue});
+    }
+
+    private static ProfileDumper getProfiler() {
+        return (ProfileDumper) DumpType.PROFILE.dumper();
+    }
+
+    /**
+     * Фоновое семплирование работает, только пока запущен мониторинг
+     * и выбран тип дампа PROFILE.
+     */
+    private static void updateProfiler() {
+        if (monitoringStarted.get() && dumpType.get() == DumpType.PROFILE) {
+            getProfiler().start();
+        } else {
+            getProfiler().stop();
+        }
+    }
+
+    /**
+     * Готовит дампы HOTSPOT в фоне, чтобы первый дамп не выполнял
+     * распаковку библиотек и подключение к JVM во время запуска приложения.
+     */
+    private static void prewarm() {
+        if (monitoringStarted.get() && dumpType.get() == DumpType.HOTSPOT) {
+            ((HotSpotVMDumper) DumpType.HOTSPOT.dumper()).prewarm();
+        }
     }
 
     static DumpType getDumpType() {
@@ -176,6 +315,7 @@ class ThreadDumpImpl {
         long delayMs = Math.max(newPeriodMs - oldPeriodMs + remainingMs, 1000);
         logger.log(Level.FINE, "oldPeriodMs = {0}; remainingMs = {1}; periodMs = {2}; delayMs = {3}", new Object[] {oldPeriodMs, remainingMs, newPeriodMs, delayMs});
         timer.set(pool.get().scheduleAtFixedRate(worker, delayMs, newPeriodMs, TimeUnit.MILLISECONDS));
+        scheduled(delayMs, newPeriodMs);
         logger.log(Level.INFO, "Thread dump monitoring was rescheduled.");
     }
 
@@ -202,6 +342,10 @@ class ThreadDumpImpl {
         return result;
     }
 
+    static AttachStatistics getAttachStatistics() {
+        return ((HotSpotVMDumper) DumpType.HOTSPOT.dumper()).getAttachStatistics();
+    }
+
     static boolean isStarted() {
         return monitoringStarted.get();
     }
@@ -237,102 +381,385 @@ class ThreadDumpImpl {
 
     /**
      * Метод, который сохраняет дамп и обрабатывает ошибки.
+     * Если запущен поток записи, дамп только снимается в память, а запись
+     * выполняется в потоке записи.
+     *
+     * @param cpuSampler предыдущий замер процессорного времени потоков для этого дампа
+     */
+    static void threadDump(ThreadCpuSampler cpuSampler) {
+        dump(false, cpuSampler);
+    }
+
+    /**
+     * Метод, который сохраняет дамп в режиме учащенного сохранения.
+     * Имя файла содержит миллисекунды, ротация не выполняется.
+     */
+    static void burstThreadDump() {
+        dump(true, ThreadCpuSampler.BURST);
+    }
+
+    /**
+     * Метод, который сохраняет дамп по событию. Описание события
+     * выводится перед дампом, метка события добавляется в имя файла.
      */
-    static void threadDump() {
+    static void triggeredThreadDump(DumpTrigger trigger, String reason) {
+        PendingDump dump;
         try {
-            Date date = Calendar.getInstance().getTime();
-            Path file = getDumpDir(date).resolve(String.format("thread-dump-%1$tY-%1$tm-%1$td-%1$tH-%1$tM.txt", date));
-            threadDump(file, date);
-            rotate(date);
+            dump = captureDump(trigger.getDumpType(), Calendar.getInstance().getTime(), false, trigger, reason, ThreadCpuSampler.ON_DEMAND);
         } catch (IOException e) {
             logger.log(Level.SEVERE, "Failed to generate thread dump. Error = {0}", new Object[] {e.toString()});
+            return;
         } catch (RuntimeException e) {
             logger.log(Level.SEVERE, "Failed to generate thread dump. Error = {0}", new Object[] {e.toString()});
+            return;
+        }
+        if (!DumpWriter.submit(dump)) {
+            writeDump(dump);
         }
     }
 
-    private static void rotate(Date date) {
-        int rp = rotatePeriodSec.get();
-        int rd = rotateDays.get();
-        if (rp == 0 || rd == 0) {
+    private static void dump(boolean burst, ThreadCpuSampler cpuSampler) {
+        PendingDump dump;
+        try {
+            dump = captureDump(dumpType.get(), Calendar.getInstance().getTime(), burst, null, null, cpuSampler);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to generate thread dump. Error = {0}", new Object[] {e.toString()});
             return;
-        }
-        long lr = lastRotate.get();
-        if (date.getTime() - lr < rp) {
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Failed to generate thread dump. Error = {0}", new Object[] {e.toString()});
             return;
         }
-        rotateInternal(date);
+        try {
+            DumpRing.add(dump);
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Failed to add thread dump to ring. Error = {0}", new Object[] {e.toString()});
+        }
+        if (!DumpWriter.submit(dump)) {
+            writeDump(dump);
+        }
     }
 
-    static void rotateInternal(final Date date) {
-        lastRotate.set(date.getTime());
-        final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-        Path dumpDir = ThreadDumpImpl.dumpParentDir.get();
-        FileVisitor<Path> visitor = new FileVisitor<Path>() {
-            private int depth = -1;
+    /**
+     * Снимает дамп в память с ограничением времени {@link DumpDeadline}.
+     * Тип снятого дампа может отличаться от запрошенного, если дамп
+     * запрошенного типа не был снят вовремя. Процессорное время потоков
+     * замеряется относительно предыдущего дампа того же потока дампов.
+     */
+    private static PendingDump captureDump(DumpType type, Date date, boolean burst, DumpTrigger trigger, String reason, ThreadCpuSampler cpuSampler) throws IOException {
+        PendingDump result = DumpDeadline.capture(type, date, burst, trigger, reason);
+        if (result.getRecord() != null) {
+            cpuSampler.sample(result.getRecord());
+        }
+        return result;
+    }
 
-            @Override
-            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                if (depth == 0) {
-                    String name = dir.getFileName().toString();
-                    try {
-                        Date dt = dateFormat.parse(name);
-                        Calendar calendar = Calendar.getInstance();
-                        calendar.setTime(dt);
-                        calendar.add(Calendar.DATE, getRotateDays());
-                        Calendar today = Calendar.getInstance();
-                        today.setTime(date);
-                        if (today.compareTo(calendar) > 0) {
-                            depth++;
-                            return FileVisitResult.CONTINUE;
-                        }
-                    } catch (ParseException e) {
-                        return FileVisitResult.SKIP_SUBTREE;
-                    }
-                    return FileVisitResult.SKIP_SUBTREE;
-                } else if (depth < 0) {
-                    depth++;
-                    return FileVisitResult.CONTINUE;
-                } else {
-                    return FileVisitResult.SKIP_SUBTREE;
+    /**
+     * Снимает дамп в память в текущем потоке. Структурированные дамперы
+     * дают {@link DumpRecord}, остальные пишут текст в буфер.
+     */
+    static PendingDump captureNow(DumpType type, Date date, boolean burst, DumpTrigger trigger, String reason) throws IOException {
+        Dumper dumper = type.dumper();
+        long start = System.nanoTime();
+        try {
+            if (dumper instanceof StructuredDumper) {
+                return new PendingDump(type, date, start, burst, capture(type, (StructuredDumper) dumper, date), null, trigger, reason);
+            }
+            DumpBuffer buffer = DumpWriter.acquireBuffer();
+            boolean ok = false;
+            try {
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(buffer, StandardCharsets.UTF_8));
+                PauseMeter.Sample sample = PauseMeter.start();
+                try {
+                    dumper.threadDump(out, date);
+                } finally {
+                    PauseMeter.stop(type, sample);
+                }
+                out.flush();
+                DumpMetrics.of(type).captured(System.nanoTime() - start);
+                ok = true;
+                return new PendingDump(type, date, start, burst, null, buffer, trigger, reason);
+            } finally {
+                if (!ok) {
+                    DumpWriter.releaseBuffer(buffer);
                 }
             }
+        } catch (IOException | RuntimeException e) {
+            DumpMetrics.of(type).failed();
+            throw e;
+        }
+    }
 
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                if (depth == 1) {
-                    try {
-                        Files.delete(file);
-                    } catch (IOException e) {
-                        logger.log(Level.SEVERE, e.getMessage(), e);
+    /**
+     * Снимает дамп в память по запросу, не записывая его в каталог дампов.
+     * Буфер текстового дампа нужно вернуть через {@link DumpWriter#release(PendingDump)}.
+     */
+    static PendingDump captureDump(DumpType type, ThreadCpuSampler cpuSampler) throws IOException {
+        return captureDump(type, Calendar.getInstance().getTime(), false, null, null, cpuSampler);
+    }
+
+    /**
+     * Снимает дамп в структурированном виде с учетом вызванной им остановки JVM.
+     */
+    private static DumpRecord capture(DumpType type, StructuredDumper dumper, Date date) {
+        PauseMeter.Sample sample = PauseMeter.start();
+        DumpRecord result;
+        try {
+            result = dumper.capture(date);
+        } finally {
+            PauseMeter.stop(type, sample);
+        }
+        LockContention.analyze(result);
+        DumpMetrics.of(type).captured(System.nanoTime() - sample.getStartNanos());
+        return result;
+    }
+
+    /**
+     * Записывает снятый дамп в каталог дня, после чего выполняет
+     * упаковку и ротацию. Имя файла выбирается в момент записи, а время
+     * в имени - время снятия дампа.
+     */
+    static void writeDump(PendingDump dump) {
+        DumpMetrics metrics = DumpMetrics.of(dump.getType());
+        Date date = dump.getDate();
+        long writeStart = System.nanoTime();
+        try {
+            Path dumpDir = getDumpDir(date);
+            long size;
+            String name;
+            if (!dump.isBurst() && dump.getTrigger() == null && dump.getRecord() != null && getOutputFormat() == OutputFormat.STORE) {
+                name = String.format(PRECISE_FILE_NAME, date);
+                size = storeDump(dumpDir, name, dump.getRecord());
+            } else {
+                Path file;
+                if (dump.getTrigger() != null) {
+                    file = dumpDir.resolve(String.format(TAGGED_FILE_NAME, date, dump.getTrigger().getTag()) + getSuffix());
+                } else if (dump.isBurst()) {
+                    file = dumpDir.resolve(String.format(PRECISE_FILE_NAME, date) + getSuffix());
+                } else {
+                    file = dumpDir.resolve(String.format(FILE_NAME, date) + getSuffix());
+                    if (Files.exists(file)) {
+                        // второй дамп за ту же минуту не должен затирать первый
+                        file = dumpDir.resolve(String.format(PRECISE_FILE_NAME, date) + getSuffix());
                     }
                 }
-                return FileVisitResult.CONTINUE;
+                size = writeText(file, dump, null);
+                name = file.getFileName().toString();
+                if (name.endsWith(DumpArchive.GZIP_SUFFIX)) {
+                    name = name.substring(0, name.length() - DumpArchive.GZIP_SUFFIX.length());
+                }
             }
+            written(metrics, dump, writeStart, size);
+            DumpRetention.added(dumpParentDir.get(), date, size);
+            if (dump.getRecord() != null) {
+                indexDump(dumpDir, name, dump.getRecord());
+            }
+            if (!dump.isBurst()) {
+                archive(date);
+                rotate(date);
+            }
+        } catch (IOException e) {
+            metrics.failed();
+            logger.log(Level.SEVERE, "Failed to generate thread dump. Error = {0}", new Object[] {e.toString()});
+        } catch (RuntimeException e) {
+            metrics.failed();
+            logger.log(Level.SEVERE, "Failed to generate thread dump. Error = {0}", new Object[] {e.toString()});
+        } finally {
+            DumpWriter.release(dump);
+        }
+    }
 
-            @Override
-            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
-                return FileVisitResult.CONTINUE;
+    private static void written(DumpMetrics metrics, PendingDump dump, long writeStart, long size) {
+        long end = System.nanoTime();
+        metrics.written(end - writeStart);
+        metrics.dumped(end - dump.getStartNanos(), size, dump.getThreadCount());
+    }
+
+    /**
+     * Пишет снятый дамп в текстовый файл.
+     *
+     * @param header текст перед дампом или <code>null</code>
+     * @return размер файла
+     */
+    private static long writeText(Path file, PendingDump dump, String header) throws IOException {
+        try (OutputStream output = newOutputStream(file)) {
+            logger.log(Level.INFO, "Saving thread dump to {0}...", new Object[] {file});
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+            if (header != null) {
+                out.println(header);
+            }
+            if (dump.getTrigger() != null) {
+                out.printf("Triggered by %s: %s%n%n", dump.getTrigger(), dump.getReason());
             }
+            if (dump.getRecord() != null) {
+                ((StructuredDumper) dump.getType().dumper()).write(out, dump.getRecord());
+            } else {
+                out.flush();
+                dump.getBuffer().writeTo(output);
+            }
+            if (out.checkError()) {
+                throw new IOException(String.format("Failed to write %s", file));
+            }
+        }
+        return Files.size(file);
+    }
 
-            @Override
-            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-                if (depth == 1) {
-                    try {
-                        Files.delete(dir);
-                    } catch (IOException e) {
-                        logger.log(Level.SEVERE, "postVisitDirectory", e);
-                    }
-                }
-                depth--;
-                return FileVisitResult.CONTINUE;
+    /**
+     * Сохраняет отчет о взаимной блокировке и сразу за ним полный дамп HOTSPOT
+     * в отдельный файл каталога дня. Дамп снимается синхронно, чтобы
+     * застать потоки цикла в том же состоянии, но с ограничением времени
+     * {@link DumpDeadline}: если дамп HOTSPOT не снят вовремя, к отчету
+     * добавляется дамп следующего способа в цепочке.
+     */
+    static void deadlockDump(String report, Date date) {
+        PendingDump dump;
+        try {
+            dump = captureDump(DumpType.HOTSPOT, date, false, null, null, ThreadCpuSampler.ON_DEMAND);
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.SEVERE, "Failed to generate deadlock thread dump. Error = {0}", new Object[] {e.toString()});
+            saveReport("deadlock", date, report);
+            return;
+        }
+        DumpMetrics metrics = DumpMetrics.of(dump.getType());
+        long writeStart = System.nanoTime();
+        try {
+            Path file = getDumpDir(date).resolve(String.format(TAGGED_FILE_NAME, date, "deadlock") + getSuffix());
+            long size = writeText(file, dump, report);
+            written(metrics, dump, writeStart, size);
+            DumpRetention.added(dumpParentDir.get(), date, size);
+        } catch (IOException e) {
+            metrics.failed();
+            logger.log(Level.SEVERE, "Failed to generate deadlock thread dump. Error = {0}", new Object[] {e.toString()});
+        } catch (RuntimeException e) {
+            metrics.failed();
+            logger.log(Level.SEVERE, "Failed to generate deadlock thread dump. Error = {0}", new Object[] {e.toString()});
+        } finally {
+            DumpWriter.release(dump);
+        }
+    }
+
+    /**
+     * Сохраняет текстовый отчет в отдельный файл каталога дня.
+     *
+     * @param prefix начало имени файла, за ним следует время с точностью до минуты
+     */
+    static void saveReport(String prefix, Date date, String report) {
+        Path file = getDumpDir(date).resolve(String.format("%1$s-%2$tY-%2$tm-%2$td-%2$tH-%2$tM.txt", prefix, date) + getSuffix());
+        try (OutputStream output = newOutputStream(file)) {
+            logger.log(Level.INFO, "Saving report to {0}...", new Object[] {file});
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+            out.print(report);
+            if (out.checkError()) {
+                throw new IOException(String.format("Failed to write %s", file));
             }
-        };
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to save report {0}. Error = {1}", new Object[] {file, e.toString()});
+        }
+    }
+
+    /**
+     * Добавляет записанный дамп в индекс поиска каталога дня.
+     * Ошибка индексации не считается ошибкой сохранения дампа.
+     */
+    private static void indexDump(Path dumpDir, String name, DumpRecord dump) {
         try {
-            Files.walkFileTree(dumpDir, visitor);
+            DumpIndex.add(dumpDir, name, dump);
         } catch (IOException e) {
-            logger.log(Level.SEVERE, e.getMessage(), e);
+            logger.log(Level.SEVERE, "Failed to index thread dump {0}. Error = {1}", new Object[] {name, e.toString()});
+        }
+    }
+
+    /**
+     * Дописывает дамп в хранилище каталога дня. При смене дня
+     * хранилище предыдущего дня закрывается.
+     */
+    private static long storeDump(Path dumpDir, String name, DumpRecord dump) throws IOException {
+        synchronized (stackStoreLock) {
+            Path file = dumpDir.resolve(StackStore.FILE_NAME);
+            StackStore store = stackStore.get();
+            if (store != null && !store.getFile().equals(file)) {
+                closeStackStore();
+                store = null;
+            }
+            if (store == null) {
+                store = StackStore.open(file);
+                stackStore.set(store);
+            }
+            logger.log(Level.INFO, "Saving thread dump {0} to {1}...", new Object[] {name, file});
+            try {
+                store.setKeyframeInterval(getDeltaKeyframeInterval());
+                return store.append(name, dump);
+            } catch (IOException e) {
+                closeStackStore();
+                throw e;
+            }
+        }
+    }
+
+    private static void closeStackStore() {
+        synchronized (stackStoreLock) {
+            StackStore store = stackStore.getAndSet(null);
+            if (store != null) {
+                try {
+                    store.close();
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    static String getSuffix() {
+        return isCompress() ? DumpArchive.GZIP_SUFFIX : "";
+    }
+
+    /**
+     * При включенном сжатии после смены дня ставит в очередь фоновую
+     * упаковку каталогов прошедших дней в архивы.
+     */
+    private static void archive(Date date) {
+        if (!isCompress()) {
+            return;
+        }
+        String today = String.format("%1$tY-%1$tm-%1$td", date);
+        String last = lastArchiveDay.get();
+        if (today.equals(last) || !lastArchiveDay.compareAndSet(last, today)) {
+            return;
+        }
+        // индекс прошедшего дня мог остаться открытым, если после смены дня еще не было структурированных дампов
+        DumpIndex.closeWriter();
+        DumpCompactor.compact(dumpParentDir.get(), today);
+    }
+
+    /**
+     * Удаляет старые дни по каталогу {@link DumpRetention}. Раз в период
+     * ротации каталог перестраивается по диску, чтобы учесть файлы,
+     * измененные или удаленные не через монитор.
+     */
+    private static void rotate(Date date) {
+        int rp = rotatePeriodSec.get();
+        if (rp == 0) {
+            return;
+        }
+        long lr = lastRotate.get();
+        if (date.getTime() - lr >= TimeUnit.SECONDS.toMillis(rp) && lastRotate.compareAndSet(lr, date.getTime())) {
+            DumpRetention.scan(dumpParentDir.get());
         }
+        DumpRetention.enforce(dumpParentDir.get(), date, rotateDays.get());
+    }
+
+    static void rotateInternal(Date date) {
+        lastRotate.set(date.getTime());
+        DumpRetention.scan(dumpParentDir.get());
+        DumpRetention.enforce(dumpParentDir.get(), date, getRotateDays());
+    }
+
+    /**
+     * Ставит в очередь упаковку каталогов всех прошедших дней независимо
+     * от настройки сжатия.
+     */
+    static void compactDumps() {
+        DumpIndex.closeWriter();
+        DumpCompactor.compact(dumpParentDir.get(), String.format("%1$tY-%1$tm-%1$td", new Date()));
     }
 
     /**
@@ -341,14 +768,136 @@ class ThreadDumpImpl {
      * @param date
      */
     static void threadDump(Path file, Date date) throws IOException {
-        try (
-            OutputStream output = Files.newOutputStream(file);
-            OutputStreamWriter writer = new OutputStreamWriter(output, "UTF-8");
-            PrintWriter out = new PrintWriter(writer);
-        ) {
-            logger.log(Level.INFO, "Saving thread dump to {0}...", new Object[] {file});
-            dumpType.get().dumper().threadDump(out, date);
-            out.flush();
+        PendingDump dump = captureDump(dumpType.get(), date, false, null, null, ThreadCpuSampler.ON_DEMAND);
+        DumpMetrics metrics = DumpMetrics.of(dump.getType());
+        long writeStart = System.nanoTime();
+        try {
+            written(metrics, dump, writeStart, writeText(file, dump, null));
+        } catch (IOException | RuntimeException e) {
+            metrics.failed();
+            throw e;
+        } finally {
+            DumpWriter.release(dump);
+        }
+    }
+
+    /**
+     * Открывает файл для записи дампа. Если имя файла оканчивается
+     * на <code>.gz</code>, данные сжимаются по мере записи.
+     */
+    static OutputStream newOutputStream(Path file) throws IOException {
+        OutputStream output = Files.newOutputStream(file);
+        if (file.getFileName().toString().endsWith(DumpArchive.GZIP_SUFFIX)) {
+            try {
+                return new GZIPOutputStream(output, 65536);
+            } catch (IOException e) {
+                output.close();
+                throw e;
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Возвращает имена сохраненных дампов за день.
+     *
+     * @param day день в формате yyyy-MM-dd
+     */
+    static List<String> listDumps(String day) throws IOException {
+        if (!DumpArchive.isDay(day)) {
+            throw new IOException(String.format("Invalid day %s", day));
+        }
+        return DumpArchive.list(dumpParentDir.get(), day);
+    }
+
+    /**
+     * Копирует сохраненный дамп в поток, распаковывая его при необходимости.
+     * Разностный дамп выводится в том виде, в каком он записан.
+     *
+     * @param name имя дампа вида yyyy-MM-dd/thread-dump-...txt
+     */
+    static void readDump(String name, OutputStream out) throws IOException {
+        DumpArchive.read(dumpParentDir.get(), name, out, false);
+    }
+
+    /**
+     * Копирует сохраненный дамп в поток, восстанавливая разностный дамп до полного.
+     *
+     * @param name имя дампа вида yyyy-MM-dd/thread-dump-...txt
+     */
+    static void reconstructDump(String name, OutputStream out) throws IOException {
+        DumpArchive.read(dumpParentDir.get(), name, out, true);
+    }
+
+    /**
+     * Читает дамп из хранилища в структурированном виде.
+     *
+     * @param name имя дампа вида yyyy-MM-dd/thread-dump-...txt
+     * @return <code>null</code>, если дамп сохранен текстом
+     */
+    static DumpRecord loadDump(String name) throws IOException {
+        return DumpArchive.load(dumpParentDir.get(), name);
+    }
+
+    /**
+     * Возвращает имена дампов из хранилищ, снятых в указанном интервале времени.
+     * Поиск по времени выполняется по индексу хранилища каждого дня.
+     *
+     * @param from начало интервала
+     * @param to конец интервала включительно
+     * @param threadName если не <code>null</code>, только дампы, в которых есть поток с таким именем
+     */
+    static List<String> findDumps(Date from, Date to, String threadName) throws IOException {
+        List<String> result = new ArrayList<>();
+        Calendar day = Calendar.getInstance();
+        day.setTime(from);
+        String lastDay = String.format("%1$tY-%1$tm-%1$td", to);
+        for (String name = String.format("%1$tY-%1$tm-%1$td", day); name.compareTo(lastDay) <= 0; name = String.format("%1$tY-%1$tm-%1$td", day)) {
+            try (SegmentReader reader = SegmentReader.open(dumpParentDir.get().resolve(name))) {
+                if (reader != null) {
+                    int first = reader.ceiling(from.getTime());
+                    int last = reader.floor(to.getTime());
+                    if (threadName == null) {
+                        for (int i = first; i <= last; i++) {
+                            result.add(name + "/" + reader.getName(i));
+                        }
+                    } else {
+                        for (int i: reader.findThread(threadName, first, last)) {
+                            result.add(name + "/" + reader.getName(i));
+                        }
+                    }
+                }
+            }
+            day.add(Calendar.DATE, 1);
+        }
+        return result;
+    }
+
+    /**
+     * Ищет потоки в дампах интервала времени по индексу поиска.
+     *
+     * @param query условия вида поле:значение, см. {@link DumpIndex}
+     * @param limit максимальное количество результатов
+     */
+    static List<String> searchDumps(Date from, Date to, String query, int limit) throws IOException {
+        return DumpIndex.search(dumpParentDir.get(), from, to, query, limit);
+    }
+
+    /**
+     * Копирует в поток последний дамп из хранилища, снятый не позже указанного времени.
+     *
+     * @return <code>false</code>, если за этот день нет такого дампа
+     */
+    static boolean readDumpAt(Date time, OutputStream out) throws IOException {
+        try (SegmentReader reader = SegmentReader.open(dumpParentDir.get().resolve(String.format("%1$tY-%1$tm-%1$td", time)))) {
+            if (reader == null) {
+                return false;
+            }
+            int i = reader.floor(time.getTime());
+            if (i < 0) {
+                return false;
+            }
+            return DumpArchive.write(reader.read(i), out);
         }
     }
 
@@ -395,6 +944,13 @@ class ThreadDumpImpl {
         if (rotateDays.get() < 0) {
             rotateDays.set(getDefaultRotateDays());
         }
+        if (compress.get() == null) {
+            compress.set(getPreferences().getBoolean("compress", false));
+        }
+        if (outputFormat.get() == null) {
+            outputFormat.set(getDefaultOutputFormat());
+        }
+        getProfiler().setIntervalMs(getPreferences().getInt("profileIntervalMs", ProfileDumper.DEFAULT_INTERVAL_MS));
         ScheduledExecutorService thePool = Executors.newScheduledThreadPool(1, new ThreadFactory() {
             @Override
             public Thread newThread(Runnable target) {
@@ -404,12 +960,28 @@ class ThreadDumpImpl {
             }
         });
         pool.set(thePool);
+        DumpWriter.start();
         timer.set(thePool.scheduleAtFixedRate(worker, 1, periodSec.get(), TimeUnit.SECONDS));
+        scheduled(TimeUnit.SECONDS.toMillis(1), TimeUnit.SECONDS.toMillis(periodSec.get()));
+        BurstSampler.start(thePool);
+        DumpTriggers.start(thePool);
+        DeadlockWatchdog.start(thePool);
+        LockContention.start(thePool);
+        DumpRing.start(thePool);
+        DumpCompactor.start();
+        DumpTargets.start(periodSec.get());
+        updateProfiler();
+        prewarm();
         logger.log(Level.INFO, "Thread dump monitoring initialized.");
     }
 
     private static int getDefaultRotatePeriodSec() {
-        return getPreferences().getInt("rotatePeriodSec", DEFAULT_ROTATE_PERIOD_SEC);
+        int result = getPreferences().getInt("rotatePeriodSec", DEFAULT_ROTATE_PERIOD_SEC);
+        if (result == 86_400_000) {
+            // прежнее значение по умолчанию, ошибочно заданное в миллисекундах
+            result = DEFAULT_ROTATE_PERIOD_SEC;
+        }
+        return result;
     }
 
     private static boolean thereIsAnotherMonitor() {
@@ -433,11 +1005,23 @@ class ThreadDumpImpl {
             theTimer.cancel(false);
             timer.set(null);
         }
+        BurstSampler.stop();
+        DumpTriggers.stop();
+        DeadlockWatchdog.stop();
+        LockContention.stop();
+        DumpRing.stop();
+        DumpCompactor.stop();
+        DumpTargets.stop();
+        DumpDeadline.stop();
         ScheduledExecutorService thePool = pool.get();
         if (thePool != null) {
             thePool.shutdownNow();
             pool.set(null);
         }
+        DumpWriter.stop();
+        updateProfiler();
+        closeStackStore();
+        DumpIndex.closeWriter();
         logger.log(Level.INFO, "Thread dump monitoring stopped.");
     }
 }
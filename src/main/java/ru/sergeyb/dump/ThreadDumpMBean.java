@@ -2,6 +2,8 @@ package ru.sergeyb.dump;
 
 import java.io.IOException;
 
+import javax.management.openmbean.TabularData;
+
 /**
  * JMX интерфейс сервиса, записывающего дампы потоков
  *
@@ -74,8 +76,12 @@ public interface ThreadDumpMBean {
 
     /**
      * Устанавливает количество дней, после которых дампы подлежат удалению.
+     * Дампы дня d удаляются, начиная с дня d + rotateDays. Значение 0,
+     * как и прежде, выключает удаление по возрасту; ограничения
+     * RetentionMaxTotalMb и RetentionMinFreeMb действуют независимо от него
+     * и по умолчанию выключены.
      *
-     * @param rotateDays количество дней, после которых дампы подлежат удалению
+     * @param rotateDays количество дней, после которых дампы подлежат удалению, 0 - не удалять по возрасту
      */
     void setRotateDays(int rotateDays);
 
@@ -141,4 +147,747 @@ public interface ThreadDumpMBean {
      */
     void rotate();
 
+    /**
+     * Возвращает количество подключений к JVM через Attach API для дампов типа HOTSPOT.
+     *
+     * @return количество подключений
+     */
+    long getHotSpotAttachCount();
+
+    /**
+     * Возвращает суммарное время подключений к JVM в миллисекундах.
+     *
+     * @return суммарное время подключений в миллисекундах
+     */
+    long getHotSpotAttachTimeMs();
+
+    /**
+     * Возвращает количество дампов, полученных через Attach API.
+     *
+     * @return количество дампов
+     */
+    long getHotSpotDumpCount();
+
+    /**
+     * Возвращает суммарное время получения дампов через Attach API
+     * в миллисекундах, без учета времени подключения.
+     *
+     * @return суммарное время получения дампов в миллисекундах
+     */
+    long getHotSpotDumpTimeMs();
+
+    /**
+     * Возвращает количество повторных подключений после разрыва соединения.
+     *
+     * @return количество повторных подключений
+     */
+    long getHotSpotReconnectCount();
+
+    /**
+     * Возвращает количество заблокированных потоков, при котором включается
+     * режим учащенного сохранения дампов. 0 - признак не проверяется.
+     *
+     * @return порог количества заблокированных потоков
+     */
+    int getBurstBlockedThreads();
+
+    /**
+     * Устанавливает количество заблокированных потоков, при котором включается
+     * режим учащенного сохранения дампов. 0 - признак не проверяется.
+     *
+     * @param blockedThreads порог количества заблокированных потоков
+     */
+    void setBurstBlockedThreads(int blockedThreads);
+
+    /**
+     * Возвращает загрузку процессора процессом в процентах, при которой включается
+     * режим учащенного сохранения дампов. 0 - признак не проверяется.
+     *
+     * @return порог загрузки процессора в процентах
+     */
+    int getBurstCpuLoadPercent();
+
+    /**
+     * Устанавливает загрузку процессора процессом в процентах, при которой включается
+     * режим учащенного сохранения дампов. 0 - признак не проверяется.
+     *
+     * @param cpuLoadPercent порог загрузки процессора в процентах
+     */
+    void setBurstCpuLoadPercent(int cpuLoadPercent);
+
+    /**
+     * Возвращает прирост количества потоков между проверками, при котором включается
+     * режим учащенного сохранения дампов. 0 - признак не проверяется.
+     *
+     * @return порог прироста количества потоков
+     */
+    int getBurstThreadGrowth();
+
+    /**
+     * Устанавливает прирост количества потоков между проверками, при котором включается
+     * режим учащенного сохранения дампов. 0 - признак не проверяется.
+     *
+     * @param threadGrowth порог прироста количества потоков
+     */
+    void setBurstThreadGrowth(int threadGrowth);
+
+    /**
+     * Возвращает длительность режима учащенного сохранения дампов в секундах.
+     * 0 - режим отключен, по умолчанию режим отключен.
+     *
+     * @return длительность режима в секундах
+     */
+    int getBurstWindowSec();
+
+    /**
+     * Устанавливает длительность режима учащенного сохранения дампов в секундах.
+     * 0 - режим отключен. Первые две минуты работы JVM режим не включается.
+     *
+     * @param windowSec длительность режима в секундах
+     */
+    void setBurstWindowSec(int windowSec);
+
+    /**
+     * Возвращает период сохранения дампов в режиме учащенного сохранения в миллисекундах.
+     *
+     * @return период сохранения дампов в миллисекундах
+     */
+    int getBurstPeriodMs();
+
+    /**
+     * Устанавливает период сохранения дампов в режиме учащенного сохранения в миллисекундах.
+     *
+     * @param periodMs период сохранения дампов в миллисекундах
+     */
+    void setBurstPeriodMs(int periodMs);
+
+    /**
+     * Возвращает <code>true</code>, если включен режим учащенного сохранения дампов.
+     *
+     * @return <code>true</code>, если включен режим учащенного сохранения дампов
+     */
+    boolean isBurstActive();
+
+    /**
+     * Возвращает количество включений режима учащенного сохранения дампов.
+     *
+     * @return количество включений режима
+     */
+    long getBurstCount();
+
+    /**
+     * Возвращает интервал семплирования стеков для типа дампа PROFILE в миллисекундах.
+     *
+     * @return интервал семплирования в миллисекундах
+     */
+    int getProfileIntervalMs();
+
+    /**
+     * Устанавливает интервал семплирования стеков для типа дампа PROFILE
+     * в миллисекундах (от 10 до 50).
+     *
+     * @param profileIntervalMs интервал семплирования в миллисекундах
+     */
+    void setProfileIntervalMs(int profileIntervalMs);
+
+    /**
+     * Возвращает <code>true</code>, если дампы сжимаются при записи,
+     * а каталоги прошедших дней упаковываются в архивы.
+     *
+     * @return <code>true</code>, если включено сжатие дампов
+     */
+    boolean isCompress();
+
+    /**
+     * Включает или выключает сжатие дампов при записи и упаковку
+     * каталогов прошедших дней в архивы.
+     *
+     * @param compress <code>true</code>, чтобы включить сжатие
+     */
+    void setCompress(boolean compress);
+
+    /**
+     * Возвращает имена сохраненных дампов за день, как сжатых, так и нет.
+     *
+     * @param day день в формате yyyy-MM-dd
+     * @return имена дампов вида yyyy-MM-dd/thread-dump-...txt
+     * @throws IOException в случае ошибки чтения каталога или архива
+     */
+    String[] listDumps(String day) throws IOException;
+
+    /**
+     * Возвращает текст сохраненного дампа. Для разностного дампа
+     * возвращаются только изменившиеся и завершившиеся потоки.
+     *
+     * @param name имя дампа вида yyyy-MM-dd/thread-dump-...txt
+     * @return текст дампа
+     * @throws IOException в случае ошибки чтения дампа
+     */
+    String readDump(String name) throws IOException;
+
+    /**
+     * Выгружает сохраненный дамп в несжатом виде в указанный файл.
+     *
+     * @param name имя дампа вида yyyy-MM-dd/thread-dump-...txt
+     * @param file имя файла, в который будет выгружен дамп
+     * @throws IOException в случае ошибки чтения дампа или записи в файл
+     */
+    void exportDump(String name, String file) throws IOException;
+
+    /**
+     * Возвращает полный текст сохраненного дампа. Разностный дамп
+     * восстанавливается по предыдущим дампам.
+     *
+     * @param name имя дампа вида yyyy-MM-dd/thread-dump-...txt
+     * @return текст дампа
+     * @throws IOException в случае ошибки чтения дампа
+     */
+    String reconstructDump(String name) throws IOException;
+
+    /**
+     * Возвращает способ сохранения дампов: TEXT - отдельные текстовые файлы,
+     * STORE - хранилище с дедупликацией стеков для типов SIMPLE и JMX.
+     *
+     * @return способ сохранения дампов
+     */
+    String getOutputFormat();
+
+    /**
+     * Устанавливает способ сохранения дампов: TEXT или STORE.
+     *
+     * @param outputFormat способ сохранения дампов
+     */
+    void setOutputFormat(String outputFormat);
+
+    /**
+     * Возвращает имена дампов из хранилищ (формат STORE), снятых в указанном
+     * интервале времени. Поиск выполняется по индексам хранилищ.
+     *
+     * @param from начало интервала в формате yyyy-MM-dd HH:mm:ss
+     * @param to конец интервала в формате yyyy-MM-dd HH:mm:ss
+     * @param threadName если не пусто, только дампы, в которых есть поток с таким именем
+     * @return имена дампов вида yyyy-MM-dd/thread-dump-...txt
+     * @throws IOException в случае ошибки чтения хранилища
+     */
+    String[] findDumps(String from, String to, String threadName) throws IOException;
+
+    /**
+     * Возвращает текст последнего дампа из хранилища, снятого не позже указанного времени.
+     *
+     * @param time время в формате yyyy-MM-dd HH:mm:ss
+     * @return текст дампа
+     * @throws IOException если дамп не найден или в случае ошибки чтения хранилища
+     */
+    String readDumpAt(String time) throws IOException;
+
+    /**
+     * Ищет потоки в дампах интервала времени по индексу, который пополняется
+     * при записи дампов SIMPLE и JMX. Условия разделяются пробелами и должны
+     * выполняться для одного потока: thread:имя, state:BLOCKED, frame:класс.метод,
+     * class:класс, lock:ожидаемая блокировка, owner:владелец ожидаемой блокировки,
+     * holds:захваченная блокировка. Звездочка в конце значения задает префикс,
+     * значение с пробелами заключается в кавычки, например
+     * <code>thread:http-nio* state:BLOCKED class:com.foo.Dao</code>.
+     *
+     * @param from начало интервала в формате yyyy-MM-dd HH:mm:ss
+     * @param to конец интервала в формате yyyy-MM-dd HH:mm:ss
+     * @param query условия поиска
+     * @return не более 1000 строк вида yyyy-MM-dd/thread-dump-...txt "имя потока" Id=1 BLOCKED
+     * @throws IOException в случае ошибки чтения индекса
+     */
+    String[] searchDumps(String from, String to, String query) throws IOException;
+
+
+    /**
+     * Возвращает гистограммы остановок JVM, вызванных дампами, по способам снятия дампа.
+     * Значения в миллисекундах.
+     *
+     * @return строки вида JMX: count=... total=... max=... last=... [&lt;=1: ..., &lt;=2: ...]
+     */
+    String[] getPauseHistograms();
+
+    /**
+     * @return <code>true</code>, если остановка измеряется по счетчикам safepoint HotSpot,
+     *         <code>false</code>, если вместо нее учитывается время снятия дампа
+     */
+    boolean isPauseMeasured();
+
+    /**
+     * @return суммарное время, за которое потоки дошли до safepoint при снятии дампов, в миллисекундах
+     */
+    long getPauseSyncTimeMs();
+
+    /**
+     * @return допустимая остановка JVM при снятии дампа в миллисекундах, 0 - без ограничения
+     */
+    int getPauseBudgetMs();
+
+    /**
+     * Устанавливает допустимую остановку JVM при снятии дампа.
+     * При превышении в журнал пишется предупреждение.
+     *
+     * @param pauseBudgetMs остановка в миллисекундах, 0 - без ограничения
+     */
+    void setPauseBudgetMs(int pauseBudgetMs);
+
+    /**
+     * @return <code>true</code>, если при превышении бюджета остановки плановые дампы пропускаются
+     */
+    boolean isPauseBackoff();
+
+    /**
+     * Включает или выключает пропуск плановых дампов при превышении бюджета остановки.
+     * После каждого превышения пропускается вдвое больше дампов, чем в прошлый раз (до 31).
+     *
+     * @param pauseBackoff <code>true</code>, чтобы пропускать дампы
+     */
+    void setPauseBackoff(boolean pauseBackoff);
+
+    /**
+     * @return количество дампов, остановка от которых превысила бюджет
+     */
+    long getPauseOverBudgetCount();
+
+    /**
+     * @return количество дампов, пропущенных из-за превышения бюджета остановки
+     */
+    long getPauseSkippedCount();
+
+    /**
+     * Сбрасывает гистограммы и счетчики остановок.
+     */
+    void resetPauseStatistics();
+
+    /**
+     * @return <code>true</code>, если плановые дампы записываются на диск в отдельном потоке
+     */
+    boolean isAsyncWrite();
+
+    /**
+     * Включает или выключает запись плановых дампов на диск в отдельном потоке.
+     * Если запись выключена, дамп записывается в потоке мониторинга сразу после снятия.
+     *
+     * @param asyncWrite <code>true</code>, чтобы записывать в отдельном потоке
+     */
+    void setAsyncWrite(boolean asyncWrite);
+
+    /**
+     * @return количество дампов, которые могут ожидать записи на диск
+     */
+    int getWriteQueueCapacity();
+
+    /**
+     * Устанавливает количество дампов, которые могут ожидать записи на диск.
+     * Новое значение действует после перезапуска мониторинга.
+     *
+     * @param writeQueueCapacity количество дампов от 1 до 64
+     */
+    void setWriteQueueCapacity(int writeQueueCapacity);
+
+    /**
+     * @return поведение при заполнении очереди записи: BLOCK или DROP_OLDEST
+     */
+    String getWriteQueuePolicy();
+
+    /**
+     * Устанавливает поведение при заполнении очереди записи.
+     * BLOCK - следующий дамп ждет места в очереди, DROP_OLDEST - самый старый дамп отбрасывается.
+     *
+     * @param writeQueuePolicy BLOCK или DROP_OLDEST
+     */
+    void setWriteQueuePolicy(String writeQueuePolicy);
+
+    /**
+     * Возвращает интервал между полными дампами в хранилище (формат STORE).
+     * Между полными дампами записываются разностные дампы, в которых
+     * есть только новые, завершившиеся и изменившиеся потоки.
+     *
+     * @return каждый какой дамп записывается полностью, 0 - разностные дампы не пишутся
+     */
+    int getDeltaKeyframeInterval();
+
+    /**
+     * Устанавливает интервал между полными дампами в хранилище.
+     *
+     * @param deltaKeyframeInterval каждый какой дамп записывается полностью, 0 - разностные дампы не пишутся
+     */
+    void setDeltaKeyframeInterval(int deltaKeyframeInterval);
+
+    /**
+     * Возвращает период проверки взаимных блокировок потоков. При обнаружении
+     * новой взаимной блокировки сохраняется отчет с полным дампом HOTSPOT
+     * и отправляется уведомление типа ru.sergeyb.dump.deadlock.
+     *
+     * @return период в секундах, 0 - проверка выключена
+     */
+    int getDeadlockCheckPeriodSec();
+
+    /**
+     * Устанавливает период проверки взаимных блокировок потоков.
+     *
+     * @param deadlockCheckPeriodSec период в секундах, 0 - проверка выключена
+     */
+    void setDeadlockCheckPeriodSec(int deadlockCheckPeriodSec);
+
+    /**
+     * @return количество обнаруженных взаимных блокировок
+     */
+    long getDeadlockCount();
+
+    /**
+     * @return отчет о последней обнаруженной взаимной блокировке или пустая строка
+     */
+    String getLastDeadlockReport();
+
+    /**
+     * Возвращает количество самых загруженных потоков, которые выводятся
+     * в конце дампов JMX и SIMPLE. Загрузка считается по процессорному
+     * времени потоков с предыдущего дампа.
+     *
+     * @return количество потоков, 0 - раздел не выводится
+     */
+    int getHotThreads();
+
+    /**
+     * Устанавливает количество самых загруженных потоков в конце дампа.
+     *
+     * @param hotThreads количество потоков, 0 - раздел не выводится
+     */
+    void setHotThreads(int hotThreads);
+
+    /**
+     * Возвращает настройки событий, по которым дамп сохраняется вне расписания:
+     * GC_PAUSE - пауза сборщика мусора в миллисекундах, MEMORY - заполнение пула
+     * кучи после сборки мусора в процентах, CPU - загрузка процессора процессом
+     * в процентах, THREADS - количество живых потоков.
+     * Такие дампы сохраняются в отдельные файлы с меткой события в имени.
+     *
+     * @return строки вида GC_PAUSE threshold=1000 ms cooldown=300 s type=JMX fired=0
+     */
+    String[] getTriggers();
+
+    /**
+     * Меняет настройки события.
+     *
+     * @param trigger событие: GC_PAUSE, MEMORY, CPU или THREADS
+     * @param threshold порог, 0 - событие не отслеживается
+     * @param cooldownSec интервал в секундах, в течение которого повторное событие не вызывает дамп
+     * @param dumpType способ снятия дампа
+     */
+    void configureTrigger(String trigger, int threshold, int cooldownSec, String dumpType);
+
+    /**
+     * Возвращает самые занятые блокировки за окно статистики по дампам JMX:
+     * мониторы и синхронизаторы, которых ждали другие потоки, их частых владельцев
+     * и кадры стека, в которых блокировку захватывали и ждали.
+     *
+     * @return таблица с ключом lock, не более 50 строк по убыванию количества ожидающих
+     */
+    TabularData getLockContention();
+
+    /**
+     * Возвращает текстовый отчет о конкуренции за блокировки за окно статистики,
+     * включая самую длинную цепочку ожидающих друг друга потоков.
+     * Такой же отчет раз в окно сохраняется в каталог дня.
+     *
+     * @return текст отчета
+     */
+    String getLockContentionReport();
+
+    /**
+     * Возвращает длину окна статистики конкуренции за блокировки.
+     *
+     * @return длина окна в секундах, 0 - статистика не собирается
+     */
+    int getLockWindowSec();
+
+    /**
+     * Устанавливает длину окна статистики конкуренции за блокировки.
+     * Период сохранения отчета меняется после перезапуска мониторинга.
+     *
+     * @param lockWindowSec длина окна в секундах, 0 - статистика не собирается
+     */
+    void setLockWindowSec(int lockWindowSec);
+
+    /**
+     * Возвращает признак того, что дампы отдаются по HTTP по адресу
+     * <code>/dump</code>. По умолчанию выключено.
+     *
+     * @return <code>true</code>, если дампы по HTTP включены
+     */
+    boolean isHttpEnabled();
+
+    /**
+     * Включает или выключает дампы по HTTP. Сервлет не проверяет права
+     * доступа, а ответ содержит стеки всех потоков и позволяет вызывать
+     * остановки JVM, поэтому включать дампы по HTTP можно, только если
+     * адрес закрыт средствами безопасности контейнера.
+     *
+     * @param httpEnabled <code>true</code> - включить
+     */
+    void setHttpEnabled(boolean httpEnabled);
+
+    /**
+     * Возвращает количество запросов дампов по HTTP, которые обслуживаются
+     * одновременно. Остальные запросы получают ответ 503.
+     * Запросы нового дампа одного типа, пришедшие во время его снятия,
+     * получают один и тот же дамп.
+     *
+     * @return количество запросов
+     */
+    int getHttpMaxRequests();
+
+    /**
+     * Устанавливает количество одновременно обслуживаемых запросов дампов по HTTP.
+     *
+     * @param httpMaxRequests количество запросов от 1 до 100
+     */
+    void setHttpMaxRequests(int httpMaxRequests);
+
+    /**
+     * Возвращает дампы, которые хранятся в кольцевом буфере в памяти.
+     * В буфер попадают дампы по расписанию и дампы, снятые с периодом буфера.
+     *
+     * @return строки вида 12 2017-06-12 10:15:00.000 JMX 183204 bytes от старых к новым,
+     *         первое число - номер дампа в буфере
+     */
+    String[] listRingDumps();
+
+    /**
+     * Возвращает дамп из кольцевого буфера.
+     *
+     * @param id номер дампа в буфере
+     * @return текст дампа
+     * @throws IOException если дамп уже вытеснен из буфера
+     */
+    String readRingDump(long id) throws IOException;
+
+    /**
+     * Сохраняет дамп из кольцевого буфера в файл.
+     *
+     * @param id номер дампа в буфере
+     * @param file имя файла
+     */
+    void exportRingDump(long id, String file) throws IOException;
+
+    /**
+     * Возвращает размер кольцевого буфера дампов. Буфер выделяется
+     * вне кучи при сохранении первого дампа.
+     *
+     * @return размер в мегабайтах, 0 - буфер не используется
+     */
+    int getRingSizeMb();
+
+    /**
+     * Устанавливает размер кольцевого буфера дампов. Содержимое буфера теряется.
+     *
+     * @param ringSizeMb размер в мегабайтах от 0 до 1024
+     */
+    void setRingSizeMb(int ringSizeMb);
+
+    /**
+     * @return количество байт буфера, занятых сжатыми дампами
+     */
+    long getRingUsedBytes();
+
+    /**
+     * Возвращает возраст, после которого дамп удаляется из буфера.
+     *
+     * @return возраст в секундах, 0 - дампы вытесняются только новыми дампами
+     */
+    int getRingMaxAgeSec();
+
+    /**
+     * Устанавливает возраст, после которого дамп удаляется из буфера.
+     *
+     * @param ringMaxAgeSec возраст в секундах, 0 - дампы вытесняются только новыми дампами
+     */
+    void setRingMaxAgeSec(int ringMaxAgeSec);
+
+    /**
+     * Возвращает период, с которым дампы снимаются только в буфер.
+     *
+     * @return период в миллисекундах, 0 - в буфер попадают только дампы по расписанию
+     */
+    int getRingPeriodMs();
+
+    /**
+     * Устанавливает период, с которым дампы снимаются только в буфер.
+     * Новый период действует после перезапуска мониторинга.
+     *
+     * @param ringPeriodMs период в миллисекундах не меньше 100, 0 - только дампы по расписанию
+     */
+    void setRingPeriodMs(int ringPeriodMs);
+
+    /**
+     * Возвращает максимальный объем всех хранимых дампов. При превышении
+     * удаляются самые старые дни, кроме текущего.
+     *
+     * @return объем в мегабайтах, 0 - без ограничения
+     */
+    int getRetentionMaxTotalMb();
+
+    /**
+     * Устанавливает максимальный объем всех хранимых дампов.
+     *
+     * @param retentionMaxTotalMb объем в мегабайтах, 0 - без ограничения
+     */
+    void setRetentionMaxTotalMb(int retentionMaxTotalMb);
+
+    /**
+     * Возвращает минимальное свободное место на диске с дампами. Пока места
+     * меньше, удаляются самые старые дни, кроме текущего.
+     *
+     * @return свободное место в мегабайтах, 0 - не проверяется
+     */
+    int getRetentionMinFreeMb();
+
+    /**
+     * Устанавливает минимальное свободное место на диске с дампами.
+     *
+     * @param retentionMinFreeMb свободное место в мегабайтах, 0 - не проверяется
+     */
+    void setRetentionMinFreeMb(int retentionMinFreeMb);
+
+    /**
+     * @return объем хранимых дампов в байтах по каталогу хранения
+     */
+    long getRetainedBytes();
+
+    /**
+     * Возвращает хранимые дни с их объемом от старых к новым.
+     *
+     * @return строки вида <code>2017-06-12 1048576 bytes</code>
+     */
+    String[] listRetainedDays();
+
+    /**
+     * Возвращает ограничение скорости фоновой упаковки прошедших дней.
+     *
+     * @return скорость в мегабайтах в секунду, 0 - без ограничения
+     */
+    int getCompactMbPerSec();
+
+    /**
+     * Устанавливает ограничение скорости фоновой упаковки прошедших дней.
+     *
+     * @param compactMbPerSec скорость в мегабайтах в секунду от 0 до 1024, 0 - без ограничения
+     */
+    void setCompactMbPerSec(int compactMbPerSec);
+
+    /**
+     * Ставит в очередь упаковку каталогов всех прошедших дней в архивы,
+     * даже если сжатие выключено.
+     */
+    void compact();
+
+    /**
+     * Возвращает идентификаторы процессов других JVM, дампы которых
+     * снимаются вместе с дампами этой JVM.
+     *
+     * @return идентификаторы процессов через запятую
+     */
+    String getTargetPids();
+
+    /**
+     * Устанавливает идентификаторы процессов других JVM, дампы которых
+     * снимаются вместе с дампами этой JVM.
+     *
+     * @param targetPids идентификаторы процессов через запятую
+     */
+    void setTargetPids(String targetPids);
+
+    /**
+     * Возвращает регулярные выражения, по которым другие JVM находятся
+     * по отображаемому имени - главному классу или jar с аргументами.
+     *
+     * @return регулярные выражения через запятую
+     */
+    String getTargetPatterns();
+
+    /**
+     * Устанавливает регулярные выражения, по которым другие JVM находятся
+     * по отображаемому имени.
+     *
+     * @param targetPatterns регулярные выражения через запятую
+     */
+    void setTargetPatterns(String targetPatterns);
+
+    /**
+     * Возвращает время, за которое должен быть снят дамп другой JVM.
+     *
+     * @return время в секундах
+     */
+    int getTargetTimeoutSec();
+
+    /**
+     * Устанавливает время, за которое должен быть снят дамп другой JVM.
+     *
+     * @param targetTimeoutSec время в секундах от 1 до 3600
+     */
+    void setTargetTimeoutSec(int targetTimeoutSec);
+
+    /**
+     * Возвращает количество потоков, в которых параллельно снимаются дампы других JVM.
+     *
+     * @return количество потоков
+     */
+    int getTargetThreads();
+
+    /**
+     * Устанавливает количество потоков, в которых параллельно снимаются
+     * дампы других JVM. Новое значение действует после перезапуска мониторинга.
+     *
+     * @param targetThreads количество потоков от 1 до 32
+     */
+    void setTargetThreads(int targetThreads);
+
+    /**
+     * Возвращает другие JVM, дампы которых снимаются, и результаты их дампов.
+     *
+     * @return строки вида <code>1234 Main-1234 ok 3 dumps 0 failed 0 skipped 152 ms Main</code>
+     */
+    String[] listTargets();
+
+    /**
+     * Возвращает JVM этого компьютера, к которым можно подключиться.
+     *
+     * @return строки вида <code>1234 org.example.Main</code>
+     */
+    String[] listVirtualMachines();
+
+    /**
+     * Возвращает время, за которое должен быть снят дамп. Если дамп
+     * не снят вовремя, он отменяется и снимается дамп следующего способа
+     * в цепочке HOTSPOT - JMX - SIMPLE.
+     *
+     * @return время в секундах, 0 - без ограничения
+     */
+    int getDumpTimeoutSec();
+
+    /**
+     * Устанавливает время, за которое должен быть снят дамп.
+     *
+     * @param dumpTimeoutSec время в секундах от 0 до 3600, 0 - без ограничения
+     */
+    void setDumpTimeoutSec(int dumpTimeoutSec);
+
+    /**
+     * Возвращает время подготовки к дампам HOTSPOT: поиска Attach API,
+     * распаковки библиотек и загрузки классов. Подготовка выполняется
+     * в фоне при запуске мониторинга, если выбран тип дампа HOTSPOT.
+     *
+     * @return время подготовки в миллисекундах
+     */
+    long getHotSpotInitTimeMs();
+
+    /**
+     * Возвращает способ подключения к JVM для дампов HOTSPOT и время
+     * подготовки, распаковки библиотек и прогревочного дампа.
+     * Распакованные библиотеки сохраняются в каталоге cache корневого
+     * каталога дампов и используются повторно после перезапуска.
+     *
+     * @return описание подготовки к дампам HOTSPOT
+     */
+    String getHotSpotInitSummary();
 }
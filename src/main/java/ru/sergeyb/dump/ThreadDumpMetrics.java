@@ -0,0 +1,129 @@
+package ru.sergeyb.dump;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ThreadDumpMetrics implements ThreadDumpMetricsMBean {
+    static final String JMX_NAME = "ru.sergeyb:type=ThreadDumpMetrics";
+
+    @Override
+    public String[] getSummary() {
+        List<String> result = new ArrayList<>();
+        for (DumpType dumpType: DumpType.values()) {
+            DumpMetrics metrics = DumpMetrics.of(dumpType);
+            if (metrics.getDumps() == 0 && metrics.getFailures() == 0) {
+                continue;
+            }
+            result.add(String.format("%s: dumps=%d failures=%d timeouts=%d bytes=%d threads=%d capture %s write %s total %s",
+                dumpType, metrics.getDumps(), metrics.getFailures(), metrics.getTimeouts(), metrics.getBytes(), metrics.getThreads(),
+                percentiles(metrics.getCaptureTime()), percentiles(metrics.getWriteTime()), percentiles(metrics.getTotalTime())));
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    private static String percentiles(Histogram histogram) {
+        return String.format("p50=%d p90=%d p99=%d max=%d", histogram.percentile(50), histogram.percentile(90),
+            histogram.percentile(99), histogram.getMax());
+    }
+
+    @Override
+    public long getDumpCount(String dumpType) {
+        return DumpMetrics.of(DumpType.valueOf(dumpType)).getDumps();
+    }
+
+    @Override
+    public long getFailureCount(String dumpType) {
+        return DumpMetrics.of(DumpType.valueOf(dumpType)).getFailures();
+    }
+
+    @Override
+    public long getTimeoutCount(String dumpType) {
+        return DumpMetrics.of(DumpType.valueOf(dumpType)).getTimeouts();
+    }
+
+    @Override
+    public long getBytesWritten(String dumpType) {
+        return DumpMetrics.of(DumpType.valueOf(dumpType)).getBytes();
+    }
+
+    @Override
+    public long getThreadsCaptured(String dumpType) {
+        return DumpMetrics.of(DumpType.valueOf(dumpType)).getThreads();
+    }
+
+    @Override
+    public long getLatencyPercentileMs(String dumpType, String stage, double percent) {
+        DumpMetrics metrics = DumpMetrics.of(DumpType.valueOf(dumpType));
+        switch (stage) {
+            case "capture":
+                return metrics.getCaptureTime().percentile(percent);
+            case "write":
+                return metrics.getWriteTime().percentile(percent);
+            case "total":
+                return metrics.getTotalTime().percentile(percent);
+            default:
+                throw new IllegalArgumentException(String.format("Unknown stage %s, expected capture, write or total", stage));
+        }
+    }
+
+    @Override
+    public long getHotSpotFallbackCount() {
+        return ((HotSpotVMDumper) DumpType.HOTSPOT.dumper()).getFallbackCount();
+    }
+
+    @Override
+    public long getVirtualFallbackCount() {
+        return ((VirtualThreadDumper) DumpType.VIRTUAL.dumper()).getFallbackCount();
+    }
+
+    @Override
+    public String getSchedulerLag() {
+        return DumpMetrics.getSchedulerLag().toString();
+    }
+
+    @Override
+    public long getSchedulerLagP99Ms() {
+        return DumpMetrics.getSchedulerLag().percentile(99);
+    }
+
+    @Override
+    public long getCoalescedTickCount() {
+        return DumpMetrics.getCoalescedTicks();
+    }
+
+    @Override
+    public String getRotationTime() {
+        return DumpMetrics.getRotationTime().toString();
+    }
+
+    @Override
+    public long getRotatedFileCount() {
+        return DumpMetrics.getRotatedFiles();
+    }
+
+    @Override
+    public int getWriteQueueLength() {
+        return DumpWriter.getQueueLength();
+    }
+
+    @Override
+    public long getDroppedDumpCount() {
+        return DumpWriter.getDroppedCount();
+    }
+
+    @Override
+    public long getHttpRejectedCount() {
+        return OnDemandCapture.getRejectedCount();
+    }
+
+    @Override
+    public long getHttpCoalescedCount() {
+        return OnDemandCapture.getCoalescedCount();
+    }
+
+    @Override
+    public void reset() {
+        DumpMetrics.resetAll();
+        OnDemandCapture.resetCounters();
+    }
+}
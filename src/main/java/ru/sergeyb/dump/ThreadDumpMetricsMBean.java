@@ -0,0 +1,120 @@
+package ru.sergeyb.dump;
+
+/**
+ * Показатели работы сохранения дампов. Время в миллисекундах,
+ * процентили оцениваются по корзинам гистограмм.
+ *
+ * @author sergeyb
+ */
+public interface ThreadDumpMetricsMBean {
+
+    /**
+     * @return по одной строке на способ снятия дампа, которым снимались дампы:
+     *         количество дампов, ошибок, байт, потоков и процентили времени
+     *         снятия (capture), записи (write) и сохранения целиком (total)
+     */
+    String[] getSummary();
+
+    /**
+     * @param dumpType способ снятия дампа: SIMPLE, JMX, HOTSPOT, PROFILE или VIRTUAL
+     * @return количество сохраненных дампов
+     */
+    long getDumpCount(String dumpType);
+
+    /**
+     * @param dumpType способ снятия дампа
+     * @return количество дампов, которые не удалось сохранить
+     */
+    long getFailureCount(String dumpType);
+
+    /**
+     * @param dumpType способ снятия дампа
+     * @return количество байт, записанных на диск
+     */
+    long getBytesWritten(String dumpType);
+
+    /**
+     * @param dumpType способ снятия дампа
+     * @return количество дампов, отмененных по истечении времени на снятие дампа
+     */
+    long getTimeoutCount(String dumpType);
+
+    /**
+     * @param dumpType способ снятия дампа
+     * @return суммарное количество потоков в дампах; дампы HOTSPOT, PROFILE и VIRTUAL не учитываются
+     */
+    long getThreadsCaptured(String dumpType);
+
+    /**
+     * Возвращает процентиль времени одного из этапов сохранения дампа.
+     *
+     * @param dumpType способ снятия дампа
+     * @param stage этап: capture - снятие дампа, write - запись, total - сохранение целиком
+     * @param percent процент от 0 до 100
+     * @return время в миллисекундах
+     */
+    long getLatencyPercentileMs(String dumpType, String stage, double percent);
+
+    /**
+     * @return количество дампов HOTSPOT, вместо которых был сохранен дамп JMX
+     */
+    long getHotSpotFallbackCount();
+
+    /**
+     * @return количество дампов VIRTUAL, вместо которых был сохранен дамп JMX,
+     *         потому что JVM не умеет снимать дамп виртуальных потоков (нужна Java 21)
+     */
+    long getVirtualFallbackCount();
+
+    /**
+     * @return гистограмма отставания плановых дампов от расписания
+     */
+    String getSchedulerLag();
+
+    /**
+     * @return 99-й процентиль отставания плановых дампов от расписания
+     */
+    long getSchedulerLagP99Ms();
+
+    /**
+     * @return количество плановых дампов, пропущенных, потому что к моменту
+     *         их выполнения уже наступило время следующего дампа
+     */
+    long getCoalescedTickCount();
+
+    /**
+     * @return гистограмма времени ротации
+     */
+    String getRotationTime();
+
+    /**
+     * @return количество файлов, удаленных при ротации
+     */
+    long getRotatedFileCount();
+
+    /**
+     * @return количество дампов, ожидающих записи на диск
+     */
+    int getWriteQueueLength();
+
+    /**
+     * @return количество дампов, отброшенных из-за заполнения очереди записи
+     */
+    long getDroppedDumpCount();
+
+    /**
+     * @return количество запросов дампов по HTTP, отклоненных из-за ограничения одновременных запросов
+     */
+    long getHttpRejectedCount();
+
+    /**
+     * @return количество запросов нового дампа по HTTP, получивших дамп, снятый для другого запроса
+     */
+    long getHttpCoalescedCount();
+
+    /**
+     * Сбрасывает все показатели.
+     */
+    void reset();
+
+}
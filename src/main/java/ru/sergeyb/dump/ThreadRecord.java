@@ -0,0 +1,129 @@
+package ru.sergeyb.dump;
+
+import java.lang.Thread.State;
+
+/**
+ * Сведения об одном потоке в дампе в структурированном виде.
+ * Кадры стека и блокировки хранятся уже в виде строк, поэтому
+ * запись можно сохранить и восстановить без потери точности вывода.
+ *
+ * @author sergeyb
+ */
+class ThreadRecord {
+    private static final String NO_STRINGS[] = new String[0];
+    private static final int NO_DEPTHS[] = new int[0];
+    private final long id;
+    private final String name;
+    private final State state;
+    private final String lockName;
+    private final String lockOwnerName;
+    private final long lockOwnerId;
+    private final boolean suspended;
+    private final boolean inNative;
+    private final String frames[];
+    private final int lockedMonitorDepths[];
+    private final String lockedMonitors[];
+    private final String lockedSynchronizers[];
+    private long cpuTime = -1;
+    private long cpuTimeDelta = -1;
+
+    ThreadRecord(long id, String name, State state, String lockName, String lockOwnerName, long lockOwnerId,
+            boolean suspended, boolean inNative, String frames[], int lockedMonitorDepths[], String lockedMonitors[],
+            String lockedSynchronizers[]) {
+        this.id = id;
+        this.name = name;
+        this.state = state;
+        this.lockName = lockName;
+        this.lockOwnerName = lockOwnerName;
+        this.lockOwnerId = lockOwnerId;
+        this.suspended = suspended;
+        this.inNative = inNative;
+        this.frames = frames;
+        this.lockedMonitorDepths = lockedMonitorDepths == null ? NO_DEPTHS : lockedMonitorDepths;
+        this.lockedMonitors = lockedMonitors == null ? NO_STRINGS : lockedMonitors;
+        this.lockedSynchronizers = lockedSynchronizers == null ? NO_STRINGS : lockedSynchronizers;
+    }
+
+    ThreadRecord(long id, String name, State state, String frames[]) {
+        this(id, name, state, null, null, -1, false, false, frames, null, null, null);
+    }
+
+    long getId() {
+        return id;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    State getState() {
+        return state;
+    }
+
+    /**
+     * @return строковое представление объекта, которого ожидает поток, или <code>null</code>
+     */
+    String getLockName() {
+        return lockName;
+    }
+
+    String getLockOwnerName() {
+        return lockOwnerName;
+    }
+
+    long getLockOwnerId() {
+        return lockOwnerId;
+    }
+
+    boolean isSuspended() {
+        return suspended;
+    }
+
+    boolean isInNative() {
+        return inNative;
+    }
+
+    /**
+     * @return кадры стека, начиная с верхнего, в виде {@link StackTraceElement#toString()}
+     */
+    String[] getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return глубина стека, на которой захвачен соответствующий монитор из {@link #getLockedMonitors()}
+     */
+    int[] getLockedMonitorDepths() {
+        return lockedMonitorDepths;
+    }
+
+    String[] getLockedMonitors() {
+        return lockedMonitors;
+    }
+
+    String[] getLockedSynchronizers() {
+        return lockedSynchronizers;
+    }
+
+    /**
+     * @return процессорное время потока в наносекундах или -1, если оно не измерялось
+     */
+    long getCpuTime() {
+        return cpuTime;
+    }
+
+    /**
+     * @return процессорное время потока с предыдущего дампа в наносекундах или -1
+     */
+    long getCpuTimeDelta() {
+        return cpuTimeDelta;
+    }
+
+    /**
+     * Заполняется сразу после снятия дампа, до передачи записи другим потокам.
+     */
+    void setCpuTime(long cpuTime, long cpuTimeDelta) {
+        this.cpuTime = cpuTime;
+        this.cpuTimeDelta = cpuTimeDelta;
+    }
+}
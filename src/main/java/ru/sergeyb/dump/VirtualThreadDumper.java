@@ -0,0 +1,473 @@
+package ru.sergeyb.dump;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Дамп с виртуальными потоками. {@link Thread#getAllStackTraces()} и
+ * {@link java.lang.management.ThreadMXBean#dumpAllThreads(boolean, boolean)}
+ * виртуальные потоки не видят, поэтому дамп снимается через
+ * <code>HotSpotDiagnosticMXBean.dumpThreads</code> в формате JSON
+ * (тот же формат, что у <code>jcmd Thread.dump_to_file -format=json</code>).
+ * Метод появился в JDK 21 и вызывается через отражение; на более старых
+ * JDK вместо этого дампа сохраняется дамп JMX.
+ * <p>
+ * JSON читается потоком, без загрузки в память целиком. Потоки с одинаковым
+ * состоянием и стеком объединяются в группу, и группа выводится один раз
+ * с количеством потоков и несколькими примерами имен, поэтому дамп сотен
+ * тысяч виртуальных потоков, ожидающих в одних и тех же местах, остается
+ * маленьким.
+ *
+ * @author sergeyb
+ */
+public class VirtualThreadDumper implements Dumper {
+    private static final String TEMP_DIR_PREFIX = "vthreads";
+    private static final int MAX_SAMPLES = 5;
+    private static final int MAX_CONTAINERS = 5;
+    private final String host;
+    private final AtomicLong fallbackCount;
+    private Object bean;
+    private Method dumpThreads;
+    private Object jsonFormat;
+    private Path tempDir;
+    private boolean initialized;
+
+    public VirtualThreadDumper() {
+        this.host = HostHelper.getHost();
+        this.fallbackCount = new AtomicLong(0);
+    }
+
+    @Override
+    public void threadDump(PrintWriter out, Date date) throws IOException {
+        Path file = dumpToFile();
+        if (file == null) {
+            fallbackCount.incrementAndGet();
+            DumpType.JMX.dumper().threadDump(out, date);
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            write(out, reader, date, host);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Сохраняет дамп в JSON во временный файл.
+     *
+     * @return файл или <code>null</code>, если JDK не умеет снимать такой дамп
+     */
+    private synchronized Path dumpToFile() throws IOException {
+        if (!initialized) {
+            initialized = true;
+            try {
+                Class<?> beanClass = Class.forName("com.sun.management.HotSpotDiagnosticMXBean");
+                Class<?> formatClass = Class.forName("com.sun.management.HotSpotDiagnosticMXBean$ThreadDumpFormat");
+                dumpThreads = beanClass.getMethod("dumpThreads", String.class, formatClass);
+                jsonFormat = formatClass.getField("JSON").get(null);
+                bean = ManagementFactory.class.getMethod("getPlatformMXBean", Class.class).invoke(null, beanClass);
+                tempDir = Files.createTempDirectory(TEMP_DIR_PREFIX);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                dumpThreads = null;
+                ThreadDumpImpl.logger.log(Level.WARNING, "Virtual thread dumps are not supported by this JVM, JMX dumps are saved instead. Error = {0}", new Object[] {e.toString()});
+            }
+        }
+        if (dumpThreads == null) {
+            return null;
+        }
+        // файл не должен существовать заранее
+        Path file = tempDir.resolve(String.format("threads-%d.json", System.nanoTime()));
+        try {
+            dumpThreads.invoke(bean, file.toAbsolutePath().toString(), jsonFormat);
+        } catch (InvocationTargetException e) {
+            Files.deleteIfExists(file);
+            Throwable cause = e.getTargetException();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        } catch (IllegalAccessException e) {
+            throw new IOException(e);
+        }
+        return file;
+    }
+
+    /**
+     * @return количество дампов, вместо которых был сохранен дамп JMX
+     */
+    long getFallbackCount() {
+        return fallbackCount.get();
+    }
+
+    /**
+     * Читает дамп в JSON и выводит потоки, объединенные в группы
+     * по состоянию и стеку, от больших групп к меньшим.
+     */
+    static void write(PrintWriter out, Reader json, Date date, String host) throws IOException {
+        Map<String, Group> groups = new LinkedHashMap<>();
+        Map<String, String> frames = new HashMap<>();
+        int total = 0;
+        int virtual = 0;
+        JsonReader reader = new JsonReader(json);
+        reader.beginObject();
+        for (String name = reader.nextName(); name != null; name = reader.nextName()) {
+            if (!name.equals("threadDump")) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginObject();
+            for (String field = reader.nextName(); field != null; field = reader.nextName()) {
+                if (!field.equals("threadContainers")) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    String container = null;
+                    reader.beginObject();
+                    for (String key = reader.nextName(); key != null; key = reader.nextName()) {
+                        if (key.equals("container")) {
+                            container = reader.nextString();
+                        } else if (key.equals("threads")) {
+                            reader.beginArray();
+                            while (reader.hasNext()) {
+                                ThreadEntry thread = readThread(reader, frames);
+                                String groupKey = thread.getKey();
+                                Group group = groups.get(groupKey);
+                                if (group == null) {
+                                    group = new Group(thread.state, thread.stack.toArray(new String[thread.stack.size()]));
+                                    groups.put(groupKey, group);
+                                }
+                                group.add(thread, container);
+                                total++;
+                                if (thread.isVirtual()) {
+                                    virtual++;
+                                }
+                            }
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                }
+            }
+        }
+        List<Group> sorted = new ArrayList<>(groups.values());
+        Collections.sort(sorted, new Comparator<Group>() {
+            @Override
+            public int compare(Group o1, Group o2) {
+                return Integer.compare(o2.count, o1.count);
+            }
+        });
+        out.printf("[%1$tY-%1$tm-%1$td %1$tT%1$tz] Thread dump at %2$s:%n%n", date, host);
+        out.printf("Threads: %d, virtual: %d, groups of threads with the same state and stack: %d%n%n", total, virtual, sorted.size());
+        for (Group group: sorted) {
+            group.write(out);
+            out.println();
+        }
+    }
+
+    private static ThreadEntry readThread(JsonReader reader, Map<String, String> frames) throws IOException {
+        ThreadEntry result = new ThreadEntry();
+        reader.beginObject();
+        for (String key = reader.nextName(); key != null; key = reader.nextName()) {
+            switch (key) {
+                case "tid":
+                    result.tid = reader.nextString();
+                    break;
+                case "name":
+                    result.name = reader.nextString();
+                    break;
+                case "state":
+                    result.state = reader.nextString();
+                    break;
+                case "virtual":
+                    result.virtual = Boolean.valueOf(reader.nextString());
+                    break;
+                case "stack":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        String frame = reader.nextString();
+                        String cached = frames.get(frame);
+                        if (cached == null) {
+                            frames.put(frame, frame);
+                            cached = frame;
+                        }
+                        result.stack.add(cached);
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (tempDir != null) {
+            try {
+                Files.deleteIfExists(tempDir);
+            } catch (IOException e) {
+                // ignore
+            }
+            tempDir = null;
+        }
+        initialized = false;
+    }
+
+    /**
+     * Поток из дампа в JSON.
+     */
+    private static final class ThreadEntry {
+        private String tid;
+        private String name;
+        private String state;
+        private Boolean virtual;
+        private final List<String> stack = new ArrayList<>();
+
+        /**
+         * JDK 21 не выводит признак виртуального потока, но стек
+         * виртуального потока всегда начинается с VirtualThread.run.
+         */
+        boolean isVirtual() {
+            if (virtual != null) {
+                return virtual;
+            }
+            return !stack.isEmpty() && stack.get(stack.size() - 1).contains("java.lang.VirtualThread.run(");
+        }
+
+        String getKey() {
+            StringBuilder result = new StringBuilder();
+            result.append(state).append('\n');
+            for (String frame: stack) {
+                result.append(frame).append('\n');
+            }
+            return result.toString();
+        }
+    }
+
+    /**
+     * Потоки с одинаковым состоянием и стеком.
+     */
+    private static final class Group {
+        private final String state;
+        private final String stack[];
+        private final List<String> samples = new ArrayList<>(MAX_SAMPLES);
+        private final List<String> containers = new ArrayList<>(MAX_CONTAINERS);
+        private int count;
+        private int virtualCount;
+
+        Group(String state, String stack[]) {
+            this.state = state;
+            this.stack = stack;
+        }
+
+        void add(ThreadEntry thread, String container) {
+            count++;
+            if (thread.isVirtual()) {
+                virtualCount++;
+            }
+            if (samples.size() < MAX_SAMPLES) {
+                samples.add(String.format("\"%s\" #%s", thread.name == null ? "" : thread.name, thread.tid));
+            }
+            if (container != null && containers.size() < MAX_CONTAINERS && !containers.contains(container)) {
+                containers.add(container);
+            }
+        }
+
+        void write(PrintWriter out) {
+            if (count == 1) {
+                out.print(samples.get(0));
+                out.print(virtualCount > 0 ? " virtual" : "");
+            } else {
+                out.printf("%d threads (%d virtual), e.g. ", count, virtualCount);
+                for (int i = 0; i < samples.size(); i++) {
+                    out.print(i == 0 ? "" : ", ");
+                    out.print(samples.get(i));
+                }
+            }
+            if (state != null) {
+                out.print(' ');
+                out.print(state);
+            }
+            out.println();
+            if (!containers.isEmpty()) {
+                out.print("    containers: ");
+                for (int i = 0; i < containers.size(); i++) {
+                    out.print(i == 0 ? "" : ", ");
+                    out.print(containers.get(i));
+                }
+                out.println();
+            }
+            for (String frame: stack) {
+                out.print("\tat ");
+                out.println(frame);
+            }
+        }
+    }
+
+    /**
+     * Потоковое чтение JSON без построения дерева. Числа и логические
+     * значения читаются как строки.
+     */
+    static final class JsonReader {
+        private final Reader in;
+        private final StringBuilder buffer = new StringBuilder();
+        private int next = -2;
+
+        JsonReader(Reader in) {
+            this.in = in;
+        }
+
+        private int peek() throws IOException {
+            if (next == -2) {
+                next = in.read();
+            }
+            while (next == ' ' || next == '\n' || next == '\r' || next == '\t' || next == ',' || next == ':') {
+                next = in.read();
+            }
+            return next;
+        }
+
+        private int read() throws IOException {
+            int result = peek();
+            next = -2;
+            return result;
+        }
+
+        private void expect(char expected) throws IOException {
+            int c = read();
+            if (c != expected) {
+                throw new IOException(String.format("Invalid thread dump JSON: expected '%c' but found %s", expected, c < 0 ? "end of file" : "'" + (char) c + "'"));
+            }
+        }
+
+        void beginObject() throws IOException {
+            expect('{');
+        }
+
+        void beginArray() throws IOException {
+            expect('[');
+        }
+
+        /**
+         * @return <code>false</code>, если массив закончился; закрывающая скобка пропускается
+         */
+        boolean hasNext() throws IOException {
+            if (peek() == ']') {
+                read();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return имя следующего поля или <code>null</code>, если объект закончился
+         */
+        String nextName() throws IOException {
+            if (peek() == '}') {
+                read();
+                return null;
+            }
+            return nextString();
+        }
+
+        /**
+         * @return строка, число или логическое значение в виде строки; <code>null</code> для null
+         */
+        String nextString() throws IOException {
+            int c = read();
+            if (c == '"') {
+                buffer.setLength(0);
+                for (c = in.read(); c != '"'; c = in.read()) {
+                    if (c < 0) {
+                        throw new IOException("Invalid thread dump JSON: unterminated string");
+                    }
+                    if (c == '\\') {
+                        c = in.read();
+                        switch (c) {
+                            case -1:
+                                throw new IOException("Invalid thread dump JSON: unterminated string");
+                            case 'n':
+                                c = '\n';
+                                break;
+                            case 't':
+                                c = '\t';
+                                break;
+                            case 'r':
+                                c = '\r';
+                                break;
+                            case 'b':
+                                c = '\b';
+                                break;
+                            case 'f':
+                                c = '\f';
+                                break;
+                            case 'u':
+                                c = 0;
+                                for (int i = 0; i < 4; i++) {
+                                    int digit = Character.digit(in.read(), 16);
+                                    if (digit < 0) {
+                                        throw new IOException("Invalid thread dump JSON: invalid \\u escape");
+                                    }
+                                    c = c * 16 + digit;
+                                }
+                                break;
+                            default:
+                                break;
+                        }
+                    }
+                    buffer.append((char) c);
+                }
+                return buffer.toString();
+            }
+            if (c == '{' || c == '[' || c == '}' || c == ']' || c < 0) {
+                throw new IOException(String.format("Invalid thread dump JSON: unexpected %s", c < 0 ? "end of file" : "'" + (char) c + "'"));
+            }
+            buffer.setLength(0);
+            buffer.append((char) c);
+            for (c = in.read(); c >= 0 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c); c = in.read()) {
+                buffer.append((char) c);
+            }
+            next = c;
+            String result = buffer.toString();
+            return result.equals("null") ? null : result;
+        }
+
+        void skipValue() throws IOException {
+            int c = peek();
+            if (c == '{') {
+                read();
+                while (nextName() != null) {
+                    skipValue();
+                }
+            } else if (c == '[') {
+                read();
+                while (hasNext()) {
+                    skipValue();
+                }
+            } else {
+                nextString();
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package ru.sergeyb.dump;
+
+/**
+ * Поведение при заполнении очереди дампов, ожидающих записи на диск.
+ *
+ * @author sergeyb
+ */
+enum WriteQueuePolicy {
+    /**
+     * Поток, снимающий дампы, ждет, пока в очереди не освободится место.
+     */
+    BLOCK,
+    /**
+     * Самый старый дамп из очереди отбрасывается.
+     */
+    DROP_OLDEST
+}
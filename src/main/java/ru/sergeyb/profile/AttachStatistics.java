@@ -0,0 +1,151 @@
+package ru.sergeyb.profile;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Накопительная статистика длительного подключения к JVM через Attach API.
+ * Позволяет сравнить время, затраченное на подключение, со временем
+ * собственно получения дампа, и время подготовки к первому дампу.
+ *
+ * @author sergeyb
+ */
+public class AttachStatistics {
+    private final AtomicLong attachCount;
+    private final AtomicLong attachTimeNanos;
+    private final AtomicLong dumpCount;
+    private final AtomicLong dumpTimeNanos;
+    private final AtomicLong reconnectCount;
+    private final AtomicLong lastAttachTimeNanos;
+    private final AtomicLong lastDumpTimeNanos;
+    private final AtomicLong initTimeNanos;
+    private final AtomicLong extractTimeNanos;
+    private final AtomicLong warmupTimeNanos;
+    private final AtomicReference<String> initMode;
+
+    public AttachStatistics() {
+        this.attachCount = new AtomicLong(0);
+        this.attachTimeNanos = new AtomicLong(0);
+        this.dumpCount = new AtomicLong(0);
+        this.dumpTimeNanos = new AtomicLong(0);
+        this.reconnectCount = new AtomicLong(0);
+        this.lastAttachTimeNanos = new AtomicLong(0);
+        this.lastDumpTimeNanos = new AtomicLong(0);
+        this.initTimeNanos = new AtomicLong(0);
+        this.extractTimeNanos = new AtomicLong(0);
+        this.warmupTimeNanos = new AtomicLong(0);
+        this.initMode = new AtomicReference<>("not initialized");
+    }
+
+    /**
+     * Учитывает подготовку к подключению: поиск Attach API, распаковку
+     * библиотек и загрузку классов.
+     *
+     * @param mode способ подключения
+     * @param nanos длительность подготовки в наносекундах
+     * @param extractNanos длительность распаковки библиотек в наносекундах
+     */
+    public void initialized(String mode, long nanos, long extractNanos) {
+        initMode.set(mode);
+        initTimeNanos.set(nanos);
+        extractTimeNanos.set(extractNanos);
+    }
+
+    /**
+     * Учитывает прогревочное подключение, которое открывается заранее без дампа.
+     *
+     * @param nanos длительность прогревочного подключения в наносекундах
+     */
+    public void warmedUp(long nanos) {
+        warmupTimeNanos.set(nanos);
+    }
+
+    /**
+     * Учитывает очередное подключение к JVM.
+     *
+     * @param nanos длительность подключения в наносекундах
+     */
+    public void attached(long nanos) {
+        attachCount.incrementAndGet();
+        attachTimeNanos.addAndGet(nanos);
+        lastAttachTimeNanos.set(nanos);
+    }
+
+    /**
+     * Учитывает повторное подключение после разрыва соединения.
+     */
+    public void reconnected() {
+        reconnectCount.incrementAndGet();
+    }
+
+    /**
+     * Учитывает очередное получение дампа через открытое подключение.
+     *
+     * @param nanos длительность получения дампа в наносекундах
+     */
+    public void dumped(long nanos) {
+        dumpCount.incrementAndGet();
+        dumpTimeNanos.addAndGet(nanos);
+        lastDumpTimeNanos.set(nanos);
+    }
+
+    public long getAttachCount() {
+        return attachCount.get();
+    }
+
+    public long getAttachTimeMs() {
+        return TimeUnit.NANOSECONDS.toMillis(attachTimeNanos.get());
+    }
+
+    public long getLastAttachTimeMs() {
+        return TimeUnit.NANOSECONDS.toMillis(lastAttachTimeNanos.get());
+    }
+
+    public long getDumpCount() {
+        return dumpCount.get();
+    }
+
+    public long getDumpTimeMs() {
+        return TimeUnit.NANOSECONDS.toMillis(dumpTimeNanos.get());
+    }
+
+    public long getLastDumpTimeMs() {
+        return TimeUnit.NANOSECONDS.toMillis(lastDumpTimeNanos.get());
+    }
+
+    public long getReconnectCount() {
+        return reconnectCount.get();
+    }
+
+    public String getInitMode() {
+        return initMode.get();
+    }
+
+    public long getInitTimeMs() {
+        return TimeUnit.NANOSECONDS.toMillis(initTimeNanos.get());
+    }
+
+    public long getExtractTimeMs() {
+        return TimeUnit.NANOSECONDS.toMillis(extractTimeNanos.get());
+    }
+
+    public long getWarmupTimeMs() {
+        return TimeUnit.NANOSECONDS.toMillis(warmupTimeNanos.get());
+    }
+
+    /**
+     * @return способ подключения и время подготовки, распаковки и прогревочного подключения
+     */
+    public String getInitSummary() {
+        return String.format("%s: init %d ms (extract %d ms), warmup %d ms",
+            getInitMode(), getInitTimeMs(), getExtractTimeMs(), getWarmupTimeMs());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("attaches=%d (%d ms, last %d ms), dumps=%d (%d ms, last %d ms), reconnects=%d, %s",
+            getAttachCount(), getAttachTimeMs(), getLastAttachTimeMs(),
+            getDumpCount(), getDumpTimeMs(), getLastDumpTimeMs(), getReconnectCount(), getInitSummary());
+    }
+}
@@ -9,16 +9,24 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 import javax.management.MBeanServer;
 
@@ -32,21 +40,62 @@ public class JVMTIDumper implements AutoCloseable {
     private static final String JVMTI_DUMPER_IMPL_JAR = "/DumperImpl.jar";
     private static final String JVMTI_DUMPER_IMPL_CLASS = "ru.sergeyb.profile.impl.JVMTIDumperImpl";
     private static final String NULL_DEVICE = "nul";
-    private URLClassLoader classLoader;
+    private static final long STALE_CACHE_MS = TimeUnit.DAYS.toMillis(1);
+    private static URLClassLoader indirectClassLoader;
+    private static Path indirectTempDir;
     private Dumper hotSpotVMDumper;
-    private Path tempDir;
+    private Path cacheDir;
+    private long extractNanos;
+    private boolean extractCached;
+    private boolean extractShared;
+    private final AttachStatistics statistics;
+    private final String pid;
 
     public JVMTIDumper() {
-        this.classLoader = null;
+        this(null);
+    }
+
+    /**
+     * Создает дампер другой JVM. Если Attach API недоступен загрузчику
+     * классов приложения, используется общий загрузчик распакованных
+     * tools.jar и DumperImpl.jar: библиотеку attach можно загрузить только
+     * одним загрузчиком, поэтому своя JVM и другие JVM используют один
+     * загрузчик. Он закрывается вместе с дампером своей JVM.
+     *
+     * @param pid идентификатор процесса JVM или <code>null</code> для своей JVM
+     */
+    public JVMTIDumper(String pid) {
         this.hotSpotVMDumper = null;
+        this.statistics = new AttachStatistics();
+        this.pid = pid;
+    }
+
+    /**
+     * Задает каталог, в котором сохраняются распакованные tools.jar
+     * и DumperImpl.jar. Файлы в этом каталоге не удаляются при закрытии
+     * и используются повторно после перезапуска, если их размер совпадает
+     * с размером ресурса, поэтому распаковка выполняется только при первом
+     * запуске новой версии приложения. Файлы прежних версий удаляются
+     * при следующем обращении к каталогу через сутки. Библиотека attach по-прежнему
+     * копируется во временный каталог: библиотеку из одного файла может
+     * загрузить только один загрузчик классов, а после повторного
+     * развертывания приложения загрузчик уже другой.
+     *
+     * @param cacheDir каталог или <code>null</code>, чтобы распаковывать во временный каталог
+     */
+    public void setCacheDir(Path cacheDir) {
+        this.cacheDir = cacheDir;
     }
 
     public void init() {
+        long start = System.nanoTime();
         try {
             try {
                 initDirect();
+                statistics.initialized("direct", System.nanoTime() - start, 0);
             } catch (Throwable e) {
                 initIndirect();
+                statistics.initialized(extractShared ? "indirect, shared" : extractCached ? "indirect, cached" : "indirect", System.nanoTime() - start, extractNanos);
             }
         } catch (RuntimeException e) {
             throw e;
@@ -65,46 +114,167 @@ public class JVMTIDumper implements AutoCloseable {
     }
 
     private void initIndirect() throws IOException, ReflectiveOperationException {
-        this.tempDir = Files.createTempDirectory(TEMP_DIR_PREFIX);
-        Collection<URL> jars = new ArrayList<>();
-        URL url = JVMTIDumper.class.getResource(TOOLS_JAR);
-        if (url == null) {
-            throw new IllegalStateException(String.format("%s not found", TOOLS_JAR));
-        }
-        jars.add(url);
-        url = JVMTIDumper.class.getResource(JVMTI_DUMPER_IMPL_JAR);
-        if (url == null) {
-            throw new IllegalStateException(String.format("%s not found", JVMTI_DUMPER_IMPL_JAR));
-        }
-        jars.add(url);
-        URL[] cp = jars.toArray(new URL[jars.size()]);
-        for (int i = 0; i < cp.length; i++) {
-            url = cp[i];
-            if (url.toString().contains("!")) {
-                try (InputStream input = url.openStream()) {
-                    Path target = tempDir.resolve(String.format("lib-%d.jar", i));
-                    Files.copy(input, target);
+        Class<?> clazz = getIndirectClassLoader().loadClass(JVMTI_DUMPER_IMPL_CLASS);
+        this.hotSpotVMDumper = new JVMTIIndirectDumperImpl(clazz, pid, statistics);
+    }
+
+    /**
+     * Возвращает общий загрузчик классов Attach API из распакованных
+     * tools.jar и DumperImpl.jar, создавая его при первом обращении.
+     */
+    private URLClassLoader getIndirectClassLoader() throws IOException, ReflectiveOperationException {
+        synchronized (JVMTIDumper.class) {
+            this.extractNanos = 0;
+            this.extractShared = indirectClassLoader != null;
+            if (indirectClassLoader == null) {
+                indirectClassLoader = createIndirectClassLoader();
+            }
+            return indirectClassLoader;
+        }
+    }
+
+    private URLClassLoader createIndirectClassLoader() throws IOException, ReflectiveOperationException {
+        long start = System.nanoTime();
+        Path tempDir = Files.createTempDirectory(TEMP_DIR_PREFIX);
+        boolean ok = false;
+        try {
+            Collection<URL> jars = new ArrayList<>();
+            URL url = JVMTIDumper.class.getResource(TOOLS_JAR);
+            if (url == null) {
+                throw new IllegalStateException(String.format("%s not found", TOOLS_JAR));
+            }
+            jars.add(url);
+            url = JVMTIDumper.class.getResource(JVMTI_DUMPER_IMPL_JAR);
+            if (url == null) {
+                throw new IllegalStateException(String.format("%s not found", JVMTI_DUMPER_IMPL_JAR));
+            }
+            jars.add(url);
+            URL[] cp = jars.toArray(new URL[jars.size()]);
+            this.extractCached = cacheDir != null;
+            for (int i = 0; i < cp.length; i++) {
+                url = cp[i];
+                if (url.toString().contains("!")) {
+                    Path target = null;
+                    if (extractCached) {
+                        try {
+                            target = extractCached(url);
+                        } catch (IOException e) {
+                            // каталог недоступен, распаковываем во временный каталог
+                            target = null;
+                        }
+                    }
+                    if (target == null) {
+                        this.extractCached = false;
+                        try (InputStream input = url.openStream()) {
+                            target = tempDir.resolve(String.format("lib-%d.jar", i));
+                            Files.copy(input, target);
+                        }
+                    }
                     URL newUrl = target.toUri().toURL();
                     cp[i] = newUrl;
                 }
             }
+            String attachDll = System.mapLibraryName("attach");
+            String dll = String.format("%s/%s", System.getProperty("os.arch", "x86"), attachDll);
+            url = JVMTIDumper.class.getResource(dll);
+            if (url == null) {
+                throw new IllegalStateException(String.format("%s not found", dll));
+            }
+            try (InputStream input = url.openStream()) {
+                Path target = tempDir.resolve(attachDll);
+                Files.copy(input, target);
+            }
+            this.extractNanos = System.nanoTime() - start;
+            addLibraryPath(tempDir.toString());
+            indirectTempDir = tempDir;
+            ok = true;
+            ClassLoader parent  = JVMTIDumper.class.getClassLoader();
+            return new URLClassLoader(cp, parent);
+        } finally {
+            if (!ok) {
+                delete(tempDir);
+            }
+        }
+    }
+
+    /**
+     * Возвращает файл ресурса в каталоге распакованных библиотек,
+     * распаковывая его, если файла еще нет. Имя файла содержит размер
+     * и время изменения ресурса, так что новая версия ресурса распаковывается
+     * в новый файл. Файл сначала пишется под временным именем, поэтому
+     * несколько JVM могут распаковывать ресурс одновременно. Файлы прежних
+     * версий этого ресурса и брошенные временные файлы удаляются, если
+     * не менялись больше суток: более новые могут использоваться другой JVM,
+     * которая еще не загрузила из них классы.
+     *
+     * @return файл или <code>null</code>, если размер ресурса неизвестен
+     */
+    private Path extractCached(URL url) throws IOException {
+        URLConnection connection = url.openConnection();
+        long length = connection.getContentLengthLong();
+        if (length < 0) {
+            return null;
         }
-        String attachDll = System.mapLibraryName("attach");
-        String dll = String.format("%s/%s", System.getProperty("os.arch", "x86"), attachDll);
-        url = JVMTIDumper.class.getResource(dll);
-        if (url == null) {
-            throw new IllegalStateException(String.format("%s not found", dll));
+        String name = url.getPath();
+        name = name.substring(name.lastIndexOf('/') + 1);
+        int dot = name.lastIndexOf('.');
+        String prefix = dot < 0 ? name : name.substring(0, dot);
+        String suffix = dot < 0 ? "" : name.substring(dot);
+        Path target = cacheDir.resolve(String.format("%s-%d-%d%s", prefix, length, connection.getLastModified(), suffix));
+        Pattern versions = Pattern.compile(Pattern.quote(prefix + "-") + "\\d+-\\d+" + Pattern.quote(suffix));
+        if (Files.isRegularFile(target) && Files.size(target) == length) {
+            connection.getInputStream().close();
+            cleanCache(target, versions);
+            return target;
         }
-        try (InputStream input = url.openStream()) {
-            Path target = tempDir.resolve(attachDll);
-            Files.copy(input, target);
+        Files.createDirectories(cacheDir);
+        Path temp = Files.createTempFile(cacheDir, TEMP_DIR_PREFIX, ".tmp");
+        try {
+            try (InputStream input = connection.getInputStream()) {
+                Files.copy(input, temp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (Files.size(temp) != length) {
+                throw new IOException(String.format("%s: expected %d bytes but extracted %d", url, length, Files.size(temp)));
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                // файл могла одновременно распаковать другая JVM
+                if (!Files.isRegularFile(target) || Files.size(target) != length) {
+                    throw e;
+                }
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        cleanCache(target, versions);
+        return target;
+    }
+
+    /**
+     * Удаляет из каталога распакованных библиотек устаревшие файлы
+     * с подходящим именем и брошенные временные файлы. Ошибки удаления
+     * пропускаются: файл может быть занят другой JVM.
+     */
+    private void cleanCache(Path target, Pattern versions) {
+        long staleTime = System.currentTimeMillis() - STALE_CACHE_MS;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(cacheDir)) {
+            for (Path file: stream) {
+                String fileName = file.getFileName().toString();
+                if (file.equals(target) || !versions.matcher(fileName).matches() && !(fileName.startsWith(TEMP_DIR_PREFIX) && fileName.endsWith(".tmp"))) {
+                    continue;
+                }
+                try {
+                    if (Files.getLastModifiedTime(file).toMillis() < staleTime) {
+                        Files.delete(file);
+                    }
+                } catch (IOException e) {
+                    // skip
+                }
+            }
+        } catch (IOException e) {
+            // ignore
         }
-        addLibraryPath(tempDir.toString());
-        ClassLoader parent  = JVMTIDumper.class.getClassLoader();
-        URLClassLoader cl = new URLClassLoader(cp, parent);
-        this.classLoader = cl;
-        Class<?> clazz = cl.loadClass(JVMTI_DUMPER_IMPL_CLASS);
-        this.hotSpotVMDumper = new JVMTIIndirectDumperImpl(clazz);
     }
 
     private void initDirect() throws ReflectiveOperationException {
@@ -113,17 +283,74 @@ public class JVMTIDumper implements AutoCloseable {
         Method detach = vmClass.getMethod("detach");
         String vmName = ManagementFactory.getRuntimeMXBean().getName();
         int i = vmName.indexOf('@');
-        String pid = vmName.substring(0, i);
+        String thePid = vmName.substring(0, i);
         String host = vmName.substring(i + 1);
-        detach.invoke(attach.invoke(null, pid));
-        this.classLoader = null;
-        this.hotSpotVMDumper = new JVMTIDirectDumperImpl(pid, host, attach, detach);
+        if (pid != null) {
+            thePid = pid;
+            host = String.format("%s pid %s", host, pid);
+        }
+        // пробное подключение проверяет Attach API и остается сессией дампера
+        long start = System.nanoTime();
+        Object vm = attach.invoke(null, thePid);
+        statistics.attached(System.nanoTime() - start);
+        try {
+            this.hotSpotVMDumper = new JVMTIDirectDumperImpl(thePid, host, attach, detach, vm, statistics);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            detach.invoke(vm);
+            throw e;
+        }
+    }
+
+    /**
+     * Возвращает JVM этого компьютера, к которым можно подключиться.
+     * Если Attach API недоступен загрузчику классов приложения,
+     * используется общий загрузчик распакованного tools.jar.
+     *
+     * @param cacheDir каталог распакованных библиотек или <code>null</code>
+     *
+     * @return идентификатор процесса -> отображаемое имя JVM, обычно главный класс с аргументами
+     * @throws ReflectiveOperationException если Attach API недоступен
+     */
+    public static Map<String, String> listVirtualMachines(Path cacheDir) throws ReflectiveOperationException {
+        ClassLoader cl = JVMTIDumper.class.getClassLoader();
+        Class<?> vmClass;
+        try {
+            vmClass = Class.forName("com.sun.tools.attach.VirtualMachine", true, cl);
+        } catch (ClassNotFoundException | LinkageError e) {
+            JVMTIDumper dumper = new JVMTIDumper();
+            dumper.setCacheDir(cacheDir);
+            try {
+                cl = dumper.getIndirectClassLoader();
+            } catch (IOException | RuntimeException e1) {
+                e.addSuppressed(e1);
+                throw e;
+            }
+            vmClass = Class.forName("com.sun.tools.attach.VirtualMachine", true, cl);
+        }
+        Class<?> descriptorClass = Class.forName("com.sun.tools.attach.VirtualMachineDescriptor", true, cl);
+        Method id = descriptorClass.getMethod("id");
+        Method displayName = descriptorClass.getMethod("displayName");
+        Map<String, String> result = new LinkedHashMap<>();
+        for (Object descriptor: (List<?>) vmClass.getMethod("list").invoke(null)) {
+            result.put((String) id.invoke(descriptor), (String) displayName.invoke(descriptor));
+        }
+        return result;
     }
 
     @Override
     public void close() {
+        Dumper dumper = this.hotSpotVMDumper;
+        if (dumper != null) {
+            dumper.destroy();
+        }
         this.hotSpotVMDumper = null;
-        URLClassLoader cl = classLoader;
+        if (pid == null) {
+            closeIndirectClassLoader();
+        }
+    }
+
+    private static synchronized void closeIndirectClassLoader() {
+        URLClassLoader cl = indirectClassLoader;
         if (cl != null) {
             try {
                 cl.close();
@@ -131,9 +358,10 @@ public class JVMTIDumper implements AutoCloseable {
                 // ignore
             }
             cl = null;
-            this.classLoader = null;
+            indirectClassLoader = null;
         }
-        if (this.tempDir != null) {
+        Path tempDir = indirectTempDir;
+        if (tempDir != null) {
             System.gc();
             System.runFinalization();
             System.gc();
@@ -142,7 +370,37 @@ public class JVMTIDumper implements AutoCloseable {
                 dumpHeap();
                 delete(tempDir);
             }
-            this.tempDir = null;
+            indirectTempDir = null;
+        }
+    }
+
+    /**
+     * Закрывает подключение зависшего дампа, чтобы чтение дампа в другом
+     * потоке завершилось ошибкой.
+     */
+    public void abort() {
+        Dumper dumper = this.hotSpotVMDumper;
+        if (dumper instanceof JVMTIDirectDumperImpl) {
+            ((JVMTIDirectDumperImpl) dumper).abort();
+        } else if (dumper instanceof JVMTIIndirectDumperImpl) {
+            ((JVMTIIndirectDumperImpl) dumper).abort();
+        }
+    }
+
+    /**
+     * Открывает подключение к JVM, которое затем переиспользуется дампами,
+     * не получая дамп.
+     */
+    public void connect() throws IOException {
+        Dumper dumper = this.hotSpotVMDumper;
+        try {
+            if (dumper instanceof JVMTIDirectDumperImpl) {
+                ((JVMTIDirectDumperImpl) dumper).connect();
+            } else if (dumper instanceof JVMTIIndirectDumperImpl) {
+                ((JVMTIIndirectDumperImpl) dumper).connect();
+            }
+        } catch (RuntimeException e) {
+            throw new IOException(e);
         }
     }
 
@@ -156,6 +414,15 @@ public class JVMTIDumper implements AutoCloseable {
         }
     }
 
+    /**
+     * Возвращает статистику подключений к JVM и получения дампов.
+     *
+     * @return статистика подключений
+     */
+    public AttachStatistics getStatistics() {
+        return statistics;
+    }
+
     private static void addLibraryPath(String pathToAdd) throws ReflectiveOperationException {
         Field usrPathsField = ClassLoader.class.getDeclaredField("usr_paths");
         usrPathsField.setAccessible(true);
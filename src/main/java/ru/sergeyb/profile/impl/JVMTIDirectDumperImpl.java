@@ -9,8 +9,11 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.nio.charset.Charset;
 import java.util.Date;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import ru.sergeyb.dump.Dumper;
+import ru.sergeyb.profile.AttachStatistics;
 
 public class JVMTIDirectDumperImpl implements Dumper {
     private final String pid;
@@ -18,48 +21,152 @@ public class JVMTIDirectDumperImpl implements Dumper {
     private final Method detach;
     private final Method remoteDataDump;
     private final String host;
+    private final AttachStatistics statistics;
+    private final Lock sessionLock;
+    private volatile Object vm;
+    private volatile InputStream current;
+    private volatile boolean destroyed;
 
-    public JVMTIDirectDumperImpl(String pid, String host, Method attach, Method detach) throws ReflectiveOperationException {
+    /**
+     * @param vm открытое подключение к JVM, которое становится сессией дампера, или <code>null</code>
+     */
+    public JVMTIDirectDumperImpl(String pid, String host, Method attach, Method detach, Object vm, AttachStatistics statistics) throws ReflectiveOperationException {
         this.pid = pid;
         Class<?> hsClass = Class.forName("sun.tools.attach.HotSpotVirtualMachine");
         this.attach = attach;
         this.detach = detach;
         this.remoteDataDump = hsClass.getMethod("remoteDataDump", Object[].class);
         this.host = host;
+        this.statistics = statistics;
+        this.sessionLock = new ReentrantLock();
+        this.vm = vm;
     }
 
     @Override
     public void threadDump(PrintWriter out, Date date) throws IOException {
         out.printf("[%1$tY-%1$tm-%1$td %1$tT%1$tz] Thread dump at %2$s:%n%n", date, host);
+        sessionLock.lock();
         try {
-            Object vm = attach.invoke(null, pid);
-            try (
-                InputStream in = (InputStream) remoteDataDump.invoke(vm, new Object[]{new Object[]{"-l"}});
-                Reader reader = new InputStreamReader(in, Charset.defaultCharset());
-            ) {
+            Object theVm = session();
+            long start = System.nanoTime();
+            InputStream in;
+            try {
+                in = remoteDataDump(theVm);
+            } catch (IOException e) {
+                /*
+                 * Подключение могло быть разорвано, например, после
+                 * перезапуска Attach Listener. Подключаемся заново
+                 * и повторяем попытку один раз.
+                 */
+                closeSession();
+                statistics.reconnected();
+                theVm = session();
+                start = System.nanoTime();
+                in = remoteDataDump(theVm);
+            }
+            current = in;
+            try (Reader reader = new InputStreamReader(in, Charset.defaultCharset())) {
                 char buf[] = new char[10240];
                 for (int i = reader.read(buf); i >= 0; i = reader.read(buf)) {
                     out.write(buf, 0, i);
                 }
+            } catch (IOException e) {
+                closeSession();
+                throw e;
             } finally {
-                detach.invoke(vm);
+                current = null;
+            }
+            statistics.dumped(System.nanoTime() - start);
+        } finally {
+            sessionLock.unlock();
+        }
+    }
+
+    /**
+     * Открывает подключение к JVM заранее, не получая дамп.
+     */
+    public void connect() throws IOException {
+        sessionLock.lock();
+        try {
+            session();
+        } finally {
+            sessionLock.unlock();
+        }
+    }
+
+    private Object session() throws IOException {
+        if (vm == null) {
+            long start = System.nanoTime();
+            Object theVm = invoke(attach, null, pid);
+            statistics.attached(System.nanoTime() - start);
+            if (destroyed) {
+                // дампер закрыт, пока выполнялось подключение
+                invoke(detach, theVm);
+                throw new IOException("Thread dumper is destroyed");
             }
+            vm = theVm;
+        }
+        return vm;
+    }
+
+    private InputStream remoteDataDump(Object theVm) throws IOException {
+        return (InputStream) invoke(remoteDataDump, theVm, new Object[]{new Object[]{"-l"}});
+    }
+
+    /**
+     * Закрывает поток данных дампа и подключение без блокировки сессии,
+     * чтобы поток, зависший в чтении дампа, получил ошибку.
+     */
+    public void abort() {
+        InputStream in = current;
+        current = null;
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        closeSession();
+    }
+
+    private void closeSession() {
+        Object theVm = vm;
+        vm = null;
+        if (theVm != null) {
+            try {
+                invoke(detach, theVm);
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) throws IOException {
+        try {
+            return method.invoke(target, args);
         } catch (InvocationTargetException e) {
-            Throwable target = e.getTargetException();
-            if (target == null) {
+            Throwable cause = e.getTargetException();
+            if (cause == null) {
                 throw new IOException(e);
-            } else if (target instanceof IOException) {
-                throw (IOException) target;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
             } else {
-                throw new IOException(target);
+                throw new IOException(cause);
             }
         } catch (RuntimeException | ReflectiveOperationException e) {
             throw new IOException(e);
         }
     }
 
+    /**
+     * Закрывает подключение, не дожидаясь блокировки сессии: дамп, брошенный
+     * по таймауту, может удерживать ее, зависнув в подключении к JVM.
+     * Подключение, завершившееся после закрытия дампера, сразу закрывается.
+     */
     @Override
     public void destroy() {
-        // do nothing
+        destroyed = true;
+        abort();
     }
 }
@@ -7,20 +7,73 @@ import java.lang.reflect.Method;
 import java.util.Date;
 
 import ru.sergeyb.dump.Dumper;
+import ru.sergeyb.profile.AttachStatistics;
 
 public class JVMTIIndirectDumperImpl implements Dumper {
     private final Object impl;
     private final Method dump;
+    private final Method connect;
+    private final Method abort;
+    private final Method destroy;
+    private final Method getLastAttachTimeNanos;
+    private final Method getLastDumpTimeNanos;
+    private final Method getReconnectCount;
+    private final AttachStatistics statistics;
+    private long reconnectCount;
 
-    public JVMTIIndirectDumperImpl(Class<?> clazz) throws ReflectiveOperationException {
+    public JVMTIIndirectDumperImpl(Class<?> clazz, String pid, AttachStatistics statistics) throws ReflectiveOperationException {
         this.dump = clazz.getMethod("dump", PrintWriter.class, Date.class);
-        this.impl = clazz.newInstance();
+        this.connect = clazz.getMethod("connect");
+        this.abort = clazz.getMethod("abort");
+        this.destroy = clazz.getMethod("destroy");
+        this.getLastAttachTimeNanos = clazz.getMethod("getLastAttachTimeNanos");
+        this.getLastDumpTimeNanos = clazz.getMethod("getLastDumpTimeNanos");
+        this.getReconnectCount = clazz.getMethod("getReconnectCount");
+        this.impl = pid == null ? clazz.newInstance() : clazz.getConstructor(String.class).newInstance(pid);
+        this.statistics = statistics;
+        this.reconnectCount = 0;
     }
 
     @Override
-    public void threadDump(PrintWriter out, Date date) throws IOException {
+    public synchronized void threadDump(PrintWriter out, Date date) throws IOException {
+        invoke(dump, out, date);
+        long attachNanos = (Long) invoke(getLastAttachTimeNanos);
+        if (attachNanos > 0) {
+            statistics.attached(attachNanos);
+        }
+        statistics.dumped((Long) invoke(getLastDumpTimeNanos));
+        long reconnects = (Long) invoke(getReconnectCount);
+        for (; reconnectCount < reconnects; reconnectCount++) {
+            statistics.reconnected();
+        }
+    }
+
+    /**
+     * Открывает подключение к JVM заранее, не получая дамп.
+     */
+    public synchronized void connect() throws IOException {
+        invoke(connect);
+        long attachNanos = (Long) invoke(getLastAttachTimeNanos);
+        if (attachNanos > 0) {
+            statistics.attached(attachNanos);
+        }
+    }
+
+    /**
+     * Закрывает поток данных дампа и подключение без блокировки,
+     * чтобы поток, зависший в чтении дампа, получил ошибку.
+     */
+    public void abort() {
         try {
-            dump.invoke(impl, out, date);
+            invoke(abort);
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private Object invoke(Method method, Object... args) throws IOException {
+        try {
+            return method.invoke(impl, args);
         } catch (InvocationTargetException e) {
             Throwable target = e.getTargetException();
             if (target == null) {
@@ -35,8 +88,15 @@ public class JVMTIIndirectDumperImpl implements Dumper {
         }
     }
 
+    /**
+     * Закрывает подключение без блокировки, см. {@link #abort()}.
+     */
     @Override
     public void destroy() {
-        // do nothing
+        try {
+            invoke(destroy);
+        } catch (IOException e) {
+            // ignore
+        }
     }
 }
@@ -0,0 +1,194 @@
+package ru.sergeyb.dump;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.Thread.State;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Упаковка каталогов дней в архивы.
+ *
+ * @author sergeyb
+ */
+public class DumpArchiveTest {
+    private static final String DAY = "2024-03-01";
+    private static final String TODAY = "2024-03-02";
+    private static final String FIRST = "thread-dump-2024-03-01-10-00.txt";
+    private static final String SECOND = "thread-dump-2024-03-01-10-05.txt";
+    private static final String STORED = "thread-dump-2024-03-01-10-10-00-000.txt";
+    private Path parentDir;
+    private Path dayDir;
+
+    @Before
+    public void setUp() throws IOException {
+        parentDir = Files.createTempDirectory("dump-archive");
+        dayDir = Files.createDirectory(parentDir.resolve(DAY));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        delete(parentDir);
+    }
+
+    private static void delete(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                for (Path child: stream) {
+                    delete(child);
+                }
+            }
+        }
+        Files.deleteIfExists(path);
+    }
+
+    private void writeText(String name, String text) throws IOException {
+        Files.write(dayDir.resolve(name), text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writeGzip(String name, String text) throws IOException {
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(dayDir.resolve(name + DumpArchive.GZIP_SUFFIX)))) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void writeStore() throws IOException {
+        try (StackStore store = StackStore.open(dayDir.resolve(StackStore.FILE_NAME))) {
+            ThreadRecord threads[] = {new ThreadRecord(1, "main", State.RUNNABLE, new String[] {"ru.sergeyb.test.Main.main(Main.java:10)"})};
+            store.append(STORED, new DumpRecord(DumpType.JMX, new Date(), "host", threads));
+        }
+    }
+
+    private String read(String name) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DumpArchive.read(parentDir, DAY + "/" + name, out, true);
+        return out.toString("UTF-8");
+    }
+
+    private List<String> entries() throws IOException {
+        List<String> result = new ArrayList<>();
+        try (ZipFile zip = new ZipFile(DumpArchive.getArchive(parentDir, DAY).toFile())) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                result.add(entries.nextElement().getName());
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private String entry(String name) throws IOException {
+        try (ZipFile zip = new ZipFile(DumpArchive.getArchive(parentDir, DAY).toFile())) {
+            ZipEntry entry = zip.getEntry(name);
+            assertNotNull(name, entry);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (InputStream input = zip.getInputStream(entry)) {
+                byte buf[] = new byte[4096];
+                for (int n = input.read(buf); n >= 0; n = input.read(buf)) {
+                    out.write(buf, 0, n);
+                }
+            }
+            return out.toString("UTF-8");
+        }
+    }
+
+    /**
+     * Текстовые и сжатые дампы и хранилище попадают в архив без индексов,
+     * каталог дня удаляется, а дампы читаются из архива.
+     */
+    @Test
+    public void dayIsPackedAndReadBack() throws IOException {
+        writeText(FIRST, "first");
+        writeGzip(SECOND, "second");
+        writeStore();
+        try (SegmentReader reader = SegmentReader.open(dayDir)) {
+            assertEquals(1, reader.size());
+        }
+        DumpArchive.archive(parentDir, DAY, null);
+        assertFalse(Files.exists(dayDir));
+        assertFalse(Files.exists(parentDir.resolve(DAY + DumpArchive.ARCHIVE_SUFFIX + ".tmp")));
+        assertEquals(Arrays.asList(FIRST, SECOND, StackStore.FILE_NAME), entries());
+        assertEquals("second", entry(SECOND));
+        assertEquals(Arrays.asList(DAY + "/" + FIRST, DAY + "/" + SECOND, DAY + "/" + STORED), DumpArchive.list(parentDir, DAY));
+        assertEquals("first", read(FIRST));
+        assertEquals("second", read(SECOND));
+        assertTrue(read(STORED).contains("\"main\""));
+        DumpRecord stored = DumpArchive.load(parentDir, DAY + "/" + STORED);
+        assertEquals("main", stored.getThreads()[0].getName());
+    }
+
+    /**
+     * Сжатый и несжатый дампы с одним именем сохраняются оба.
+     */
+    @Test
+    public void collidingFilesAreKept() throws IOException {
+        writeText(FIRST, "plain");
+        writeGzip(FIRST, "compressed");
+        DumpArchive.archive(parentDir, DAY, null);
+        assertEquals(Arrays.asList("thread-dump-2024-03-01-10-00-2.txt", FIRST), entries());
+        assertEquals("plain", entry(FIRST));
+        assertEquals("compressed", entry("thread-dump-2024-03-01-10-00-2.txt"));
+    }
+
+    /**
+     * При повторной упаковке дня дампы из архива сохраняются: тот же дамп,
+     * оставшийся после прерванной упаковки, не дублируется, а другой дамп
+     * с тем же именем получает новое имя.
+     */
+    @Test
+    public void existingArchiveIsMerged() throws IOException {
+        writeText(FIRST, "old");
+        writeText(SECOND, "same");
+        DumpArchive.archive(parentDir, DAY, null);
+        Files.createDirectory(dayDir);
+        writeText(FIRST, "new");
+        writeText(SECOND, "same");
+        DumpArchive.archive(parentDir, DAY, null);
+        assertEquals(Arrays.asList("thread-dump-2024-03-01-10-00-2.txt", FIRST, SECOND), entries());
+        assertEquals("new", entry(FIRST));
+        assertEquals("old", entry("thread-dump-2024-03-01-10-00-2.txt"));
+        assertEquals("same", entry(SECOND));
+    }
+
+    /**
+     * День, занятый удалением, не упаковывается, текущий день не трогается.
+     */
+    @Test
+    public void busyDayAndTodayAreSkipped() throws IOException {
+        writeText(FIRST, "first");
+        Path todayDir = Files.createDirectory(parentDir.resolve(TODAY));
+        assertTrue(DumpArchive.lockDay(parentDir, DAY));
+        try {
+            DumpArchive.archiveBefore(parentDir, TODAY, null);
+        } finally {
+            DumpArchive.unlockDay(parentDir, DAY);
+        }
+        assertTrue(Files.exists(dayDir.resolve(FIRST)));
+        DumpArchive.archiveBefore(parentDir, TODAY, null);
+        assertFalse(Files.exists(dayDir));
+        assertEquals(Arrays.asList(FIRST), entries());
+        assertTrue(Files.isDirectory(todayDir));
+    }
+}
@@ -0,0 +1,209 @@
+package ru.sergeyb.dump;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.Thread.State;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Запись дампов в хранилище и чтение их через индексы.
+ *
+ * @author sergeyb
+ */
+public class StackStoreTest {
+    private static final int KEYFRAME_INTERVAL = 3;
+    private static final String WAITING[] = {
+        "java.lang.Object.wait(Native Method)",
+        "ru.sergeyb.test.Worker.take(Worker.java:42)",
+        "ru.sergeyb.test.Worker.run(Worker.java:17)",
+    };
+    private static final String RUNNING[] = {
+        "ru.sergeyb.test.Worker.process(Worker.java:60)",
+        "ru.sergeyb.test.Worker.run(Worker.java:19)",
+    };
+    private static final String MAIN[] = {
+        "java.lang.Thread.sleep(Native Method)",
+        "ru.sergeyb.test.Main.main(Main.java:10)",
+    };
+    private static final String QUOTED_NAME = "worker \"2\" / ввод";
+    private Path dayDir;
+    private Date dates[];
+    private String names[];
+
+    @Before
+    public void setUp() throws IOException {
+        dayDir = Files.createTempDirectory("stack-store");
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2024, Calendar.MARCH, 1, 10, 0, 0);
+        dates = new Date[8];
+        names = new String[dates.length];
+        for (int i = 0; i < dates.length; i++) {
+            dates[i] = new Date(calendar.getTimeInMillis() + i * 60_000L + i);
+            names[i] = String.format(ThreadDumpImpl.PRECISE_FILE_NAME, dates[i]);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        SegmentReader.release(dayDir);
+        for (String name: new String[] {StackStore.FILE_NAME, StackStore.INDEX_FILE_NAME, StackStore.THREAD_INDEX_FILE_NAME}) {
+            Files.deleteIfExists(dayDir.resolve(name));
+        }
+        Files.deleteIfExists(dayDir);
+    }
+
+    /**
+     * Потоки дампов по порядку. Поток worker-1 меняет стек, затем исчезает
+     * и появляется снова с другим идентификатором, второй рабочий поток
+     * появляется между полными дампами и исчезает после полного дампа.
+     */
+    private static ThreadRecord[][] threads() {
+        ThreadRecord main = new ThreadRecord(1, "main", State.TIMED_WAITING, MAIN);
+        ThreadRecord waiting = new ThreadRecord(11, "worker-1", State.WAITING, "java.lang.Object@1b6d3586", null, -1,
+            false, false, WAITING, null, null, null);
+        ThreadRecord running = new ThreadRecord(11, "worker-1", State.RUNNABLE, null, null, -1,
+            false, true, RUNNING, new int[] {0}, new String[] {"java.lang.Object@4554617c"}, null);
+        ThreadRecord quoted = new ThreadRecord(12, QUOTED_NAME, State.BLOCKED, "java.lang.Object@4554617c", "worker-1", 11,
+            false, false, WAITING, null, null, null);
+        ThreadRecord restarted = new ThreadRecord(13, "worker-1", State.WAITING, WAITING);
+        return new ThreadRecord[][] {
+            {main, waiting},
+            {main, running},
+            {main, running, quoted},
+            {main, quoted},
+            {main},
+            {main, restarted},
+        };
+    }
+
+    private void write(ThreadRecord dumps[][], int first, int last) throws IOException {
+        StackStore store = StackStore.open(dayDir.resolve(StackStore.FILE_NAME));
+        try {
+            store.setKeyframeInterval(KEYFRAME_INTERVAL);
+            for (int i = first; i <= last; i++) {
+                store.append(names[i], new DumpRecord(DumpType.JMX, dates[i], "host", dumps[i]));
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void deltasAreReconstructedFromKeyframe() throws IOException {
+        ThreadRecord dumps[][] = threads();
+        write(dumps, 0, dumps.length - 1);
+        try (SegmentReader reader = SegmentReader.open(dayDir)) {
+            assertEquals(dumps.length, reader.size());
+            boolean deltas[] = {false, true, true, false, true, true};
+            for (int i = 0; i < dumps.length; i++) {
+                assertEquals("dump " + i, deltas[i], reader.readStored(i).isDelta());
+                assertEquals(names[i], reader.getName(i));
+                assertThreads(dumps[i], reader.read(i));
+            }
+            DumpRecord changed = reader.readStored(1);
+            assertEquals(1, changed.getThreads().length);
+            assertEquals(names[0], changed.getBase());
+            DumpRecord ended = reader.readStored(4);
+            assertEquals(0, ended.getThreads().length);
+            assertEquals(1, ended.getEndedThreads().length);
+            assertEquals(QUOTED_NAME, ended.getEndedThreads()[0].getName());
+        }
+    }
+
+    @Test
+    public void dumpsAreFoundByTimeAndName() throws IOException {
+        ThreadRecord dumps[][] = threads();
+        write(dumps, 0, dumps.length - 1);
+        try (SegmentReader reader = SegmentReader.open(dayDir)) {
+            assertEquals(0, reader.ceiling(dates[0].getTime() - 1));
+            assertEquals(-1, reader.floor(dates[0].getTime() - 1));
+            assertEquals(2, reader.ceiling(dates[2].getTime()));
+            assertEquals(3, reader.ceiling(dates[2].getTime() + 1));
+            assertEquals(2, reader.floor(dates[3].getTime() - 1));
+            assertEquals(dumps.length, reader.ceiling(dates[dumps.length].getTime()));
+            for (int i = 0; i < dumps.length; i++) {
+                assertEquals(i, reader.find(names[i]));
+            }
+            assertEquals(-1, reader.find(names[dumps.length]));
+            assertEquals(-1, reader.find("thread-dump.txt"));
+        }
+    }
+
+    @Test
+    public void threadsAreFoundByName() throws IOException {
+        ThreadRecord dumps[][] = threads();
+        write(dumps, 0, dumps.length - 1);
+        try (SegmentReader reader = SegmentReader.open(dayDir)) {
+            int last = dumps.length - 1;
+            assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), reader.findThread("main", 0, last));
+            assertEquals(Arrays.asList(0, 1, 2, 5), reader.findThread("worker-1", 0, last));
+            assertEquals(Arrays.asList(1, 2), reader.findThread("worker-1", 1, 4));
+            assertEquals(Arrays.asList(2, 3), reader.findThread(QUOTED_NAME, 0, last));
+            assertEquals(Collections.<Integer>emptyList(), reader.findThread("worker-3", 0, last));
+            assertEquals(Collections.<Integer>emptyList(), reader.findThread("main", 3, 2));
+        }
+    }
+
+    /**
+     * Первый дамп после повторного открытия хранилища полный, а индексы
+     * перестраиваются, если их нет.
+     */
+    @Test
+    public void storeIsReopenedAndIndexesAreRebuilt() throws IOException {
+        ThreadRecord dumps[][] = threads();
+        write(dumps, 0, 1);
+        write(dumps, 2, dumps.length - 1);
+        SegmentReader.release(dayDir);
+        Files.delete(dayDir.resolve(StackStore.INDEX_FILE_NAME));
+        Files.delete(dayDir.resolve(StackStore.THREAD_INDEX_FILE_NAME));
+        StackStore.open(dayDir.resolve(StackStore.FILE_NAME)).close();
+        try (SegmentReader reader = SegmentReader.open(dayDir)) {
+            assertEquals(dumps.length, reader.size());
+            assertFalse(reader.readStored(2).isDelta());
+            for (int i = 0; i < dumps.length; i++) {
+                assertEquals(i, reader.find(names[i]));
+                assertThreads(dumps[i], reader.read(i));
+            }
+            assertEquals(Arrays.asList(0, 1, 2, 5), reader.findThread("worker-1", 0, dumps.length - 1));
+        }
+    }
+
+    @Test
+    public void missingStoreIsNotOpened() throws IOException {
+        assertNull(SegmentReader.open(dayDir));
+    }
+
+    private static void assertThreads(ThreadRecord expected[], DumpRecord actual) {
+        assertEquals(DumpType.JMX, actual.getType());
+        assertEquals("host", actual.getHost());
+        assertTrue(!actual.isDelta());
+        assertEquals(describe(expected), describe(actual.getThreads()));
+    }
+
+    private static List<String> describe(ThreadRecord threads[]) {
+        List<String> result = new ArrayList<>();
+        for (ThreadRecord thread: threads) {
+            result.add(String.format("%d %s %s %s %s %d %b %s %s %s %s", thread.getId(), thread.getName(), thread.getState(),
+                thread.getLockName(), thread.getLockOwnerName(), thread.getLockOwnerId(), thread.isInNative(),
+                Arrays.toString(thread.getFrames()), Arrays.toString(thread.getLockedMonitorDepths()),
+                Arrays.toString(thread.getLockedMonitors()), Arrays.toString(thread.getLockedSynchronizers())));
+        }
+        return result;
+    }
+}
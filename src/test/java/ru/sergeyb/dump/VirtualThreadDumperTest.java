@@ -0,0 +1,113 @@
+package ru.sergeyb.dump;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import org.junit.Test;
+
+/**
+ * Разбор дампа в JSON, который выводит HotSpotDiagnosticMXBean.dumpThreads.
+ *
+ * @author sergeyb
+ */
+public class VirtualThreadDumperTest {
+    /**
+     * Дамп JDK 21.0.1: в корневом контейнере три виртуальных потока
+     * с одинаковым стеком, у двух платформенных потоков стек пустой.
+     * JDK 21 не выводит состояние и признак виртуального потока.
+     * В имя потока добавлены символы, записанные шестнадцатеричным кодом:
+     * так более новые JDK экранируют управляющие символы.
+     */
+    private static final String SAMPLE = "virtual-threads.json";
+    private static final String WORKER = "worker \"quoted\" \\ tab\there \u00e9\u4e2d\u0001\u00b5";
+
+    private static String write(Reader json) throws IOException {
+        StringWriter result = new StringWriter();
+        PrintWriter out = new PrintWriter(result);
+        VirtualThreadDumper.write(out, json, new Date(), "host");
+        out.flush();
+        return result.toString();
+    }
+
+    @Test
+    public void jdk21DumpIsGrouped() throws IOException {
+        String dump;
+        try (Reader json = new BufferedReader(new InputStreamReader(getClass().getResourceAsStream(SAMPLE), StandardCharsets.UTF_8))) {
+            dump = write(json);
+        }
+        String n = System.lineSeparator();
+        String lines[] = dump.split(n);
+        assertTrue(lines[0], lines[0].endsWith("Thread dump at host:"));
+        assertEquals("Threads: 11, virtual: 3, groups of threads with the same state and stack: 8", lines[2]);
+        assertEquals("3 threads (3 virtual), e.g. \"vt-1\" #16, \"vt-2\" #17, \"vt-0\" #14", lines[4]);
+        assertEquals("    containers: <root>", lines[5]);
+        assertEquals("\tat java.base/java.lang.VirtualThread.park(VirtualThread.java:582)", lines[6]);
+        assertEquals("2 threads (0 virtual), e.g. \"Signal Dispatcher\" #6, \"Notification Thread\" #11", lines[16]);
+        assertTrue(dump.contains("\"" + WORKER + "\" #13" + n));
+        assertTrue(dump.contains("\"ForkJoinPool-1-worker-1\" #15" + n + "    containers: ForkJoinPool-1/jdk.internal.vm.SharedThreadContainer@66a29884" + n));
+    }
+
+    @Test
+    public void escapesAreDecoded() throws IOException {
+        VirtualThreadDumper.JsonReader reader = new VirtualThreadDumper.JsonReader(
+            new StringReader("{\"a\\/b\": [\"\\\"\\\\\\n\\t\\r\\b\\f\", \"\\u0041\\u00e9\\u4E2D\", 42, true, null]}"));
+        reader.beginObject();
+        assertEquals("a/b", reader.nextName());
+        reader.beginArray();
+        assertEquals("\"\\\n\t\r\b\f", reader.nextString());
+        assertEquals("A\u00e9\u4e2d", reader.nextString());
+        assertEquals("42", reader.nextString());
+        assertEquals("true", reader.nextString());
+        assertNull(reader.nextString());
+        assertTrue(!reader.hasNext());
+        assertNull(reader.nextName());
+    }
+
+    @Test
+    public void nestedValuesAreSkipped() throws IOException {
+        VirtualThreadDumper.JsonReader reader = new VirtualThreadDumper.JsonReader(
+            new StringReader("{\"skip\": {\"a\": [1, {\"b\": \"}]\"}, []], \"c\": null}, \"name\": \"value\"}"));
+        reader.beginObject();
+        assertEquals("skip", reader.nextName());
+        reader.skipValue();
+        assertEquals("name", reader.nextName());
+        assertEquals("value", reader.nextString());
+        assertNull(reader.nextName());
+    }
+
+    @Test
+    public void truncatedInputIsRejected() {
+        String inputs[] = {
+            "\"\\u00",
+            "\"\\u00\"",
+            "\"\\u00zz\"",
+            "\"abc\\",
+            "\"abc",
+            "{\"threadDump\": {\"threadContainers\": [",
+        };
+        for (String input: inputs) {
+            try {
+                if (input.startsWith("{")) {
+                    write(new StringReader(input));
+                } else {
+                    new VirtualThreadDumper.JsonReader(new StringReader(input)).nextString();
+                }
+                fail(input);
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid thread dump JSON"));
+            }
+        }
+    }
+}